@@ -1,9 +1,7 @@
 package contextswitching;
 
-import java.util.HashMap;
 import sim.engine.SimState;
 import sim.engine.Steppable;
-import sim.util.Bag;
 
 /**
  * This class represents an agent to be scheduled for execution
@@ -15,7 +13,8 @@ import sim.util.Bag;
  * This represents an agent from the Context Switching model.
  * each agent owns a choice that he has made.
  * the agent also records a memory of the encounters with agents with each 
- * existent choice.
+ * existent choice, kept by the model for the whole population (see 
+ * <code>AgentMemory</code>).
  * 
  * <p>
  * Each time the agent is scheduled for execution it performs an encounter
@@ -23,6 +22,9 @@ import sim.util.Bag;
  * 
  * <ul>
  * <li> choose an available neighbor from the current social context
+ * <li> if the model rewires its networks, possibly replace the edge to a
+ * neighbor with a different choice by an edge to another agent and skip the
+ * encounter (see <code>ContextSwitchingModel.rewire</code>)
  * <li> check is choice and record it in memory
  * <li> if there a chance in the majority of choices observed in the agents 
  * memory, switch the choice to the majority
@@ -36,26 +38,35 @@ public class Agent implements Steppable {
     private int id;
     private ContextSwitchingModel model;
     private int choice; //opinion value (from the possible Choices.getAllChoices();)
-    private HashMap<Integer, Integer> memory;
 
     /**
      * Constructor
-     * creates an agent with the given id value and no memory 
-     * of choices observed
+     * creates an agent with the given id value, its memory of choices
+     * observed is kept by the model
      * 
      * @param id the representative id for the agent
      */
     public Agent(int id, ContextSwitchingModel model) {
-        memory = new HashMap<Integer, Integer>();
         choice = 0;
-        int choices [] = Choices.getAllChoices();
-        for(int op : choices)  //no choices in memory at the beginning
-            memory.put(op, 0);
-        
         this.id = id;
         this.model = model; //saves a reference of the model for future access
     }
 
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Number of encounters with agents with a given choice the agent
+     * remembers (see <code>AgentMemory.getCount</code>)
+     *
+     * @param choice the choice value
+     * @return encounters Integer
+     */
+    public int getMemory(int choice) {
+        return model.getAgentMemory().getCount(id, choice);
+    }
+
     /**
      * Returns the current choice 0 or 1
      * @see Choices 
@@ -68,6 +79,9 @@ public class Agent implements Steppable {
     /**
      * Sets the current choice to a given value
      * 
+     * used to set up the agents, the opinion counts of the model are only
+     * computed again when the model is initialized or started
+     * 
      * @return opinion Integer a value for the opinion
      */
     public void setOpinion(int choice) {
@@ -80,10 +94,11 @@ public class Agent implements Steppable {
      */
     @Override
     public void step(SimState state){
+        model.agentStepped(this);
         //gets an active partner from the current context
         Agent partner = getActiveNeighbor(); 
         //System.out.println("PARTNER: "+partner);
-        if (partner != null) {              //some partner exists
+        if (partner != null && !model.rewire(this, partner)) {//some partner exists and is still a neighbour
             performEncounter(partner);      //update opinions
             this.model.incNumEncounters();  //update the number of encounters
         }      
@@ -104,7 +119,7 @@ public class Agent implements Steppable {
         sb.append("(");
         sb.append("Agent ");
         sb.append("id:");
-        sb.append(id);
+        sb.append(model.getOriginalId(this));
         sb.append(" choice:");
         sb.append(choice);
         sb.append(" context:").append(model.getContextIndexOf(this));
@@ -157,13 +172,10 @@ public class Agent implements Steppable {
      * @return partner Agent / null
      */
     private Agent getActiveNeighbor() {
-        Bag activeNeighbours = model.getActiveNeighbors(this);
-        Agent result = null;
-        if (!activeNeighbours.isEmpty()) {
-            int partner = model.random.nextInt(activeNeighbours.numObjs);
-            result = (Agent) activeNeighbours.objs[partner];
+        if (!model.hasActiveNeighbors(this)) {
+            return null;    //nobody to meet in the current context, skip the search
         }
-        return result;
+        return model.getRandomActiveNeighbor(this);
     }
 
     /**
@@ -174,7 +186,7 @@ public class Agent implements Steppable {
      * 
      * 1. get the partner's opinion
      * 2. update the opinions seen in memory
-     * 3. if the agent saw that opinion more than its current opinion 
+     * 3. if the agent remembers that opinion more than its current opinion 
      *      ->  switch opinion to this value
      * 
      * @param partner Agent - the agent with wich the current agent will perform
@@ -182,15 +194,15 @@ public class Agent implements Steppable {
      */
     private void performEncounter(Agent partner) {
         int otherOpinion = partner.getOpinion();
-        int otherInMemory = memory.get(otherOpinion);
-        otherInMemory++;
-        memory.put(otherOpinion, otherInMemory);
+        AgentMemory memory = model.getAgentMemory();
+        memory.observe(id, otherOpinion);
 
         //only consider switching if opinion is different
         if (otherOpinion != choice) {
-            int currentSeen = memory.get(choice);
-            if (otherInMemory > currentSeen)//change if the one is bigger than the other
-                choice = otherOpinion;     
+            if (memory.outweighs(id, otherOpinion, choice)) {//change if the one is bigger than the other
+                model.opinionChanged(choice, otherOpinion);
+                choice = otherOpinion;
+            }
         }
     }
 
@@ -203,8 +215,14 @@ public class Agent implements Steppable {
      * 
      */
     private void contextSwitching() {
+        if (model.isEventDrivenSwitching()) {//the switch time was sampled when entering the context
+            if (model.isSwitchDue(this)) {
+                model.switchContextOf(this);
+            }
+            return;
+        }
         double switchProb = model.getSwitchingProb(this);
-        if (model.random.nextDouble() < switchProb) {       
+        if (model.randomDouble() < switchProb) {       
             model.switchContextOf(this);         
         }
     }
@@ -0,0 +1,78 @@
+package contextswitching;
+
+import ec.util.MersenneTwisterFast;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/**
+ * Steps every agent of the model from a single schedule entry
+ *
+ * Instead of one repeating schedule entry per agent, the model can schedule
+ * this driver alone. In each step the driver shuffles an array with the agent
+ * ids and steps the agents in that order, so the agents are still activated
+ * in a random sequential order, without the cost of a heap insertion and
+ * removal per agent per step.
+ *
+ * The array is shuffled in place, the order of a step is a shuffle of the
+ * order of the previous step, which is the order saved in a checkpoint.
+ * The shuffle uses the random stream of the driver if it has one and the
+ * generator of the model otherwise.
+ *
+ * @author Davide Nunes
+ */
+public class AgentDriver implements Steppable {
+
+    private static final long serialVersionUID = 1L;
+    private Agent[] agents;
+    private int[] order;
+    private RandomStream stream;
+
+    /**
+     * Constructor
+     *
+     * @param agents the agents indexed by id
+     * @param order initial order of the agent ids, shuffled before each step
+     */
+    public AgentDriver(Agent[] agents, int[] order) {
+        this(agents, order, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param agents the agents indexed by id
+     * @param order initial order of the agent ids, shuffled before each step
+     * @param stream random stream used to shuffle, null to use the
+     * generator of the model
+     */
+    public AgentDriver(Agent[] agents, int[] order, RandomStream stream) {
+        this.agents = agents;
+        this.order = order.clone();
+        this.stream = stream;
+    }
+
+    public void step(SimState state) {
+        int[] ids = order;
+        if (stream != null) {
+            RandomStream random = stream;
+            for (int x = ids.length - 1; x > 0; x--) {
+                int y = random.nextInt(x + 1);
+                int t = ids[x];
+                ids[x] = ids[y];
+                ids[y] = t;
+            }
+        } else {
+            MersenneTwisterFast random = state.random;
+            for (int x = ids.length - 1; x > 0; x--) {//same shuffle as sim.util.Bag
+                int y = random.nextInt(x + 1);
+                int t = ids[x];
+                ids[x] = ids[y];
+                ids[y] = t;
+            }
+        }
+        Agent[] pool = agents;
+        for (int i = 0; i < ids.length; i++) {
+            pool[ids[i]].step(state);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package contextswitching;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The memories of all the agents, packed in primitive arrays shared by the
+ * population
+ *
+ * The memory of an agent weighs the opinions it encountered, the majority
+ * rule of <code>Agent</code> compares these weights. Three memory models are
+ * available:
+ *
+ * <ul>
+ * <li> UNBOUNDED_MEMORY counts every encounter of the run
+ * <li> WINDOW_MEMORY counts the last <code>window</code> encounters, the
+ * opinions encountered are kept in a ring buffer per agent, slices of a
+ * single byte array, and the oldest one is forgotten when a new one arrives
+ * <li> DECAY_MEMORY weighs an encounter by <code>decay^age</code>, the age
+ * being the number of encounters of the agent since then. The weights of an
+ * agent are stored divided by a scale factor shared by its opinions: an
+ * encounter multiplies the scale by the decay and adds <code>1 / scale</code>
+ * to the stored weight of its opinion, and when the scale gets too small the
+ * weights are renormalised and the scale set back to 1. The weights never
+ * decay into subnormal numbers, which are slow, and the comparisons of the
+ * majority rule do not need the scale
+ * </ul>
+ *
+ * Every model keeps the weight of each opinion for each agent up to date, so
+ * an encounter is recorded and the majority rule evaluated in constant time,
+ * and the arrays are allocated once: an agent takes
+ * <code>4 * Choices.NUM_OPINIONS</code> bytes with unbounded memory,
+ * <code>window + 4 * (Choices.NUM_OPINIONS + 1)</code> with a window and
+ * <code>8 * (Choices.NUM_OPINIONS + 1)</code> with decay. A population whose
+ * memories do not fit in Java arrays is rejected when the memories are
+ * created.
+ *
+ * @author Davide Nunes
+ */
+public class AgentMemory implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    //memory models
+    public static final int UNBOUNDED_MEMORY = 0;
+    public static final int WINDOW_MEMORY = 1;
+    public static final int DECAY_MEMORY = 2;
+    private static final byte EMPTY = -1;       //slot of a window not yet filled
+    private static final double MIN_SCALE = 1e-64;  //scale below which the decayed weights are renormalised
+    private int type;
+    private int numOpinions;
+    private int window;
+    private double decay;
+    private int[] counts;       //[agent * numOpinions + op] unbounded and window memories
+    private byte[] ring;        //[agent * window + k] opinions of the last encounters, window memory
+    private int[] head;         //[agent] slot of the next encounter, window memory
+    private double[] weights;   //[agent * numOpinions + op] weights divided by the scale, decay memory
+    private double[] scale;     //[agent] scale factor of the weights, decay memory
+
+    /**
+     * Constructor, the agents start with an empty memory
+     *
+     * @param population number of agents
+     * @param numOpinions number of opinions
+     * @param type UNBOUNDED_MEMORY, WINDOW_MEMORY or DECAY_MEMORY
+     * @param window encounters remembered by WINDOW_MEMORY
+     * @param decay factor applied to the weights at each encounter by
+     * DECAY_MEMORY
+     * @throws IllegalArgumentException if the memory model or its window are
+     * not valid, or the memories of the population do not fit in an array
+     */
+    public AgentMemory(int population, int numOpinions, int type, int window, double decay) {
+        this.type = type;
+        this.numOpinions = numOpinions;
+        this.window = window;
+        this.decay = decay;
+        switch (type) {
+            case UNBOUNDED_MEMORY:
+                counts = new int[arraySize(population, numOpinions)];
+                break;
+            case WINDOW_MEMORY:
+                if (window <= 0 || numOpinions > Byte.MAX_VALUE) {
+                    throw new IllegalArgumentException("Invalid memory window: " + window);
+                }
+                counts = new int[arraySize(population, numOpinions)];
+                ring = new byte[arraySize(population, window)];
+                Arrays.fill(ring, EMPTY);
+                head = new int[population];
+                break;
+            case DECAY_MEMORY:
+                weights = new double[arraySize(population, numOpinions)];
+                scale = new double[population];
+                Arrays.fill(scale, 1.0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown memory model: " + type);
+        }
+    }
+
+    /**
+     * Size of an array with a slice of slots for each agent
+     *
+     * @throws IllegalArgumentException if it is larger than an array can be
+     */
+    private static int arraySize(int population, int slots) {
+        long size = (long) population * slots;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The memories of " + population + " agents with "
+                    + slots + " slots each do not fit in an array");
+        }
+        return (int) size;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public double getDecay() {
+        return decay;
+    }
+
+    /**
+     * Records that an agent encountered an opinion
+     *
+     * @param agent the agent id
+     * @param opinion the opinion encountered
+     */
+    public void observe(int agent, int opinion) {
+        int base = agent * numOpinions;
+        switch (type) {
+            case UNBOUNDED_MEMORY:
+                counts[base + opinion]++;
+                break;
+            case WINDOW_MEMORY:
+                int slot = agent * window + head[agent];
+                if (ring[slot] != EMPTY) {
+                    counts[base + ring[slot]]--;
+                }
+                ring[slot] = (byte) opinion;
+                counts[base + opinion]++;
+                head[agent] = head[agent] + 1 == window ? 0 : head[agent] + 1;
+                break;
+            default:
+                double s = scale[agent] * decay;
+                if (s < MIN_SCALE) {
+                    for (int op = 0; op < numOpinions; op++) {
+                        weights[base + op] *= s;
+                    }
+                    s = 1.0;
+                }
+                scale[agent] = s;
+                weights[base + opinion] += 1.0 / s;
+        }
+    }
+
+    /**
+     * Checks if an agent remembers an opinion more than another one
+     *
+     * @param agent the agent id
+     * @param opinion the opinion that may win
+     * @param other the opinion compared with
+     * @return true if the weight of opinion is greater than the weight of other
+     */
+    public boolean outweighs(int agent, int opinion, int other) {
+        int base = agent * numOpinions;
+        if (weights != null) {
+            return weights[base + opinion] > weights[base + other];
+        }
+        return counts[base + opinion] > counts[base + other];
+    }
+
+    /**
+     * The weight of an opinion in the memory of an agent: the number of
+     * encounters remembered, or their decayed weight with DECAY_MEMORY
+     *
+     * @param agent the agent id
+     * @param opinion the opinion
+     * @return weight double
+     */
+    public double getWeight(int agent, int opinion) {
+        int index = agent * numOpinions + opinion;
+        return weights != null ? weights[index] * scale[agent] : counts[index];
+    }
+
+    /**
+     * The number of encounters with an opinion an agent remembers, the
+     * weight rounded to the nearest integer with DECAY_MEMORY
+     *
+     * @param agent the agent id
+     * @param opinion the opinion
+     * @return encounters int
+     */
+    public int getCount(int agent, int opinion) {
+        return weights != null ? (int) Math.round(getWeight(agent, opinion))
+                : counts[agent * numOpinions + opinion];
+    }
+
+    /**
+     * Sets the number of encounters with each opinion an agent remembers.
+     * The window of a WINDOW_MEMORY does not follow from the counts, it is
+     * filled with the opinions grouped in the order of the opinions and the
+     * counts are truncated to its size, DECAY_MEMORY takes the counts as
+     * weights
+     *
+     * @param agent the agent id
+     * @param encounters array with the count of each opinion from position from
+     * @param from position of the count of the first opinion
+     */
+    public void setCounts(int agent, int[] encounters, int from) {
+        int base = agent * numOpinions;
+        switch (type) {
+            case UNBOUNDED_MEMORY:
+                System.arraycopy(encounters, from, counts, base, numOpinions);
+                break;
+            case WINDOW_MEMORY:
+                int slot = agent * window;
+                int end = slot + window;
+                Arrays.fill(ring, slot, end, EMPTY);
+                for (int op = 0; op < numOpinions; op++) {
+                    counts[base + op] = 0;
+                    for (int c = 0; c < encounters[from + op] && slot < end; c++) {
+                        ring[slot++] = (byte) op;
+                        counts[base + op]++;
+                    }
+                }
+                head[agent] = slot - agent * window == window ? 0 : slot - agent * window;
+                break;
+            default:
+                for (int op = 0; op < numOpinions; op++) {
+                    weights[base + op] = encounters[from + op];
+                }
+                scale[agent] = 1.0;
+        }
+    }
+
+    /**
+     * The opinions in the window of an agent, oldest first, used to store the
+     * memory of a WINDOW_MEMORY
+     *
+     * @param agent the agent id
+     * @param to array where the window is copied from position from,
+     * <code>getWindow()</code> entries with -1 for the slots not yet filled
+     * @param from first position of the window in to
+     */
+    public void copyWindow(int agent, int[] to, int from) {
+        int base = agent * window;
+        for (int k = 0; k < window; k++) {
+            int slot = head[agent] + k;
+            to[from + k] = ring[base + (slot < window ? slot : slot - window)];
+        }
+    }
+
+    /**
+     * Sets the window of an agent of a WINDOW_MEMORY and its counts
+     *
+     * @param agent the agent id
+     * @param opinions array with the opinions encountered oldest first from
+     * position from, -1 for slots not yet filled
+     * @param from first position of the window in opinions
+     */
+    public void setWindow(int agent, int[] opinions, int from) {
+        int base = agent * numOpinions;
+        for (int op = 0; op < numOpinions; op++) {
+            counts[base + op] = 0;
+        }
+        for (int k = 0; k < window; k++) {
+            int opinion = opinions[from + k];
+            ring[agent * window + k] = (byte) opinion;
+            if (opinion != EMPTY) {
+                counts[base + opinion]++;
+            }
+        }
+        head[agent] = 0;
+    }
+
+    /**
+     * The scale factor of the weights of an agent of a DECAY_MEMORY, used
+     * with <code>copyScaledWeights</code> to store its memory exactly
+     *
+     * @param agent the agent id
+     * @return scale double
+     */
+    public double getScale(int agent) {
+        return scale[agent];
+    }
+
+    /**
+     * The weights of an agent of a DECAY_MEMORY divided by its scale factor
+     *
+     * @param agent the agent id
+     * @param to array where the weights are copied from position from
+     * @param from position of the weight of the first opinion
+     */
+    public void copyScaledWeights(int agent, double[] to, int from) {
+        System.arraycopy(weights, agent * numOpinions, to, from, numOpinions);
+    }
+
+    /**
+     * Sets the memory of an agent of a DECAY_MEMORY as stored by
+     * <code>copyScaledWeights</code> and <code>getScale</code>
+     *
+     * @param agent the agent id
+     * @param scaledWeights array with the weights divided by the scale from
+     * position from
+     * @param from position of the weight of the first opinion
+     * @param scale the scale factor of the weights
+     */
+    public void setScaledWeights(int agent, double[] scaledWeights, int from, double scale) {
+        System.arraycopy(scaledWeights, from, weights, agent * numOpinions, numOpinions);
+        this.scale[agent] = scale;
+    }
+}
@@ -0,0 +1,123 @@
+package contextswitching;
+
+import ec.util.MersenneTwisterFast;
+import java.io.Serializable;
+
+/**
+ * Walker alias table to sample from a discrete distribution in constant time
+ *
+ * The table is built once (Vose's method, linear time) from the weights of
+ * the outcomes, each sample then takes one random number: it selects a column
+ * and, within the column, either the outcome of the column or its alias.
+ *
+ * @author Davide Nunes
+ */
+public class AliasTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private double[] probability;
+    private int[] alias;
+
+    /**
+     * Constructor
+     *
+     * @param weights non negative weights of the outcomes, not necessarily
+     * normalized, with a positive sum
+     */
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        probability = new double[n];
+        alias = new int[n];
+        double sum = 0;
+        for (double w : weights) {
+            sum += w;
+        }
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+            if (scaled[l] < 1.0) {
+                small[numSmall++] = l;
+            } else {
+                large[numLarge++] = l;
+            }
+        }
+        //what is left is 1 up to rounding errors
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            probability[l] = 1.0;
+            alias[l] = l;
+        }
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            probability[s] = 1.0;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * Builds a table for each row of a matrix of weights, such as the context
+     * transition matrix of the model
+     *
+     * @param rows the non negative weights of each row, null for none
+     * @return tables AliasTable[] with null for the rows whose weights sum
+     * to zero, or null if rows is null
+     */
+    public static AliasTable[] forRows(double[][] rows) {
+        if (rows == null) {
+            return null;
+        }
+        AliasTable[] tables = new AliasTable[rows.length];
+        for (int r = 0; r < rows.length; r++) {
+            double sum = 0;
+            for (double w : rows[r]) {
+                sum += w;
+            }
+            if (sum > 0) {
+                tables[r] = new AliasTable(rows[r]);
+            }
+        }
+        return tables;
+    }
+
+    public int size() {
+        return probability.length;
+    }
+
+    /**
+     * Samples an outcome
+     *
+     * @param random the random number generator
+     * @return outcome index int
+     */
+    public int sample(MersenneTwisterFast random) {
+        return sample(random.nextDouble());
+    }
+
+    /**
+     * Samples an outcome from a given uniform number
+     *
+     * @param uniform a uniform random number in [0, 1)
+     * @return outcome index int
+     */
+    public int sample(double uniform) {
+        double u = uniform * probability.length;
+        int column = (int) u;
+        return (u - column) < probability[column] ? column : alias[column];
+    }
+}
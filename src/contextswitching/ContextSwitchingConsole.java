@@ -1,12 +1,17 @@
 package contextswitching;
 
+import contextswitching.display.LayerRenderer;
+import java.awt.Color;
 import java.io.File;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.JFrame;
 import sim.display.Console;
+import sim.display.Display2D;
 import sim.display.GUIState;
 import sim.engine.SimState;
+import sim.engine.Steppable;
 import sim.portrayal.Inspector;
 
 /**
@@ -17,6 +22,11 @@ import sim.portrayal.Inspector;
  */
 public class ContextSwitchingConsole extends GUIState {
 
+    private static final int DISPLAY_SIZE = 400;
+    private Display2D[] displays;       //a display for each context layer
+    private JFrame[] frames;
+    private LayerRenderer renderer;     //draws the layers off the simulation thread
+
     public static void main(String[] args) {
         ContextSwitchingConsole consoleGUI = new ContextSwitchingConsole();
 
@@ -97,15 +107,18 @@ public class ContextSwitchingConsole extends GUIState {
      * This controls what happens in a step of the simulation
      * we override this method to provide a new stop criteria
      * which is the fact that the agents reach the specified required consensus
+     * 
+     * the consensus is read from the statistics published by the model 
+     * at the end of the last step
      */
     @Override
     public boolean step() {
 
         boolean stop;
-        ContextSwitchingModel model = (ContextSwitchingModel) state;
+        ModelStatistics statistics = ((ContextSwitchingModel) state).getStatistics();
 
 
-        if (model.consensusReached()) {
+        if (statistics != null && statistics.isConsensusReached()) {
             stop = true;
         } else {
             stop = super.step();
@@ -129,6 +142,7 @@ public class ContextSwitchingConsole extends GUIState {
 
         ModelConfiguration config = new ModelConfiguration(
                 500, 3, 0.9, new double[]{0.75, 0.75, 0.5}, networks);
+        config.driverScheduling = model.isDriverScheduling();  //keep the choice made in the inspector
 
 
 
@@ -140,6 +154,16 @@ public class ContextSwitchingConsole extends GUIState {
 
     /**
      * Start overridden in order to configure the model every time we
+     * 
+     * the model publishes its statistics after every step, from the
+     * simulation thread and outside the model schedule, the inspectors 
+     * only read the last statistics published
+     * 
+     * each context layer is shown in its own display, the agents active in 
+     * the layer are coloured by opinion and the inactive ones are grey. The
+     * layers are rendered by a <code>LayerRenderer</code> on its own thread,
+     * the simulation thread only hands it the state of the agents when it 
+     * is ready for a new frame
      */
     @Override
     public void start() {
@@ -149,6 +173,89 @@ public class ContextSwitchingConsole extends GUIState {
             Logger.getLogger(ContextSwitchingConsole.class.getName()).log(Level.SEVERE, null, ex);
         }
         super.start();
+        setupDisplays();
+        final LayerRenderer layerRenderer = renderer;
+        scheduleRepeatingImmediatelyAfter(new Steppable() {
+
+            public void step(SimState state) {
+                ContextSwitchingModel model = (ContextSwitchingModel) state;
+                model.publishStatistics();
+                if (layerRenderer != null) {
+                    layerRenderer.offer(model);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a display for each context layer, if there is a controller to 
+     * register them with, and a renderer for the current model
+     */
+    private void setupDisplays() {
+        if (renderer != null) {
+            renderer.stop();
+            renderer = null;
+        }
+        if (controller == null) {
+            return;
+        }
+        ContextSwitchingModel model = (ContextSwitchingModel) state;
+        LayerRenderer layerRenderer = new LayerRenderer(model);
+        int numLayers = layerRenderer.getNumLayers();
+        if (displays == null || displays.length != numLayers) {
+            disposeDisplays();
+            displays = new Display2D[numLayers];
+            frames = new JFrame[numLayers];
+            for (int l = 0; l < numLayers; l++) {
+                displays[l] = new Display2D(DISPLAY_SIZE, DISPLAY_SIZE, this);
+                displays[l].setBackdrop(Color.white);
+                frames[l] = displays[l].createFrame();
+                frames[l].setTitle("Context " + l);
+                controller.registerFrame(frames[l]);
+                frames[l].setVisible(true);
+            }
+        }
+        for (int l = 0; l < numLayers; l++) {
+            displays[l].detatchAll();
+            displays[l].attach(layerRenderer.getPortrayal(l), "Context " + l);
+            layerRenderer.setRepaintTarget(l, displays[l]);
+            displays[l].reset();
+            displays[l].repaint();
+        }
+        renderer = layerRenderer;
+        renderer.start();
+    }
+
+    private void disposeDisplays() {
+        if (frames != null) {
+            for (JFrame frame : frames) {
+                if (controller != null) {
+                    controller.unregisterFrame(frame);
+                }
+                frame.dispose();
+            }
+        }
+        displays = null;
+        frames = null;
+    }
+
+    @Override
+    public void finish() {
+        super.finish();
+        if (renderer != null) {
+            renderer.stop();
+            renderer = null;
+        }
+    }
+
+    @Override
+    public void quit() {
+        super.quit();
+        if (renderer != null) {
+            renderer.stop();
+            renderer = null;
+        }
+        disposeDisplays();
     }
 
     /**
@@ -158,6 +265,10 @@ public class ContextSwitchingConsole extends GUIState {
      * 
      * get methods are mapped to the interface 
      * set method allow for parameter to be edited by the user
+     * 
+     * the values shown are read from the statistics published by the model
+     * (see <code>ModelStatistics</code>) so refreshing the inspector does not
+     * scan the agents nor touch the running model
      */
     public class ModelProperties {
 
@@ -171,39 +282,63 @@ public class ContextSwitchingConsole extends GUIState {
         }
 
         public int getNumOpinion1() {
-            if (model.isInitialised()) {
-                return model.getOpinionCout()[0];
+            ModelStatistics statistics = model.getStatistics();
+            if (statistics != null) {
+                return statistics.getOpinionCount(0);
             }
             return -1;
         }
 
         public int getNumOpinion2() {
-            if (model.isInitialised()) {
-                return model.getOpinionCout()[1];
+            ModelStatistics statistics = model.getStatistics();
+            if (statistics != null) {
+                return statistics.getOpinionCount(1);
             }
             return -1;
         }
 
         public int getNumEncounters() {
-            if (model.isInitialised()) {
-                return model.getNumEncounters();
+            ModelStatistics statistics = model.getStatistics();
+            if (statistics != null) {
+                return statistics.getNumEncounters();
             }
             return 0;
         }
 
         public double getAvgEncountersPerCycle() {
+            ModelStatistics statistics = model.getStatistics();
+            if (statistics != null) {
 
-            if (model.isInitialised()) {
-
-                double avg = model.getNumEncounters() / (model.schedule.getSteps() * 1.0);
+                double avg = statistics.getNumEncounters() / (statistics.getSteps() * 1.0);
                 return avg;
             }
             return 0;
         }
 
+        public String getContextPopulations() {
+            ModelStatistics statistics = model.getStatistics();
+            if (statistics != null) {
+                return Arrays.toString(statistics.getContextPopulations());
+            }
+            return null;
+        }
+
+        public boolean isDriverScheduling() {
+            return model.isDriverScheduling();
+        }
+
+        /**
+         * Steps the agents from a single driver, applied when the
+         * simulation is started again
+         */
+        public void setDriverScheduling(boolean driverScheduling) {
+            model.setDriverScheduling(driverScheduling);
+        }
+
         public String getOpinionCount() {
-            if (model.isInitialised()) {
-                return Arrays.toString(model.getOpinionCout());
+            ModelStatistics statistics = model.getStatistics();
+            if (statistics != null) {
+                return Arrays.toString(statistics.getOpinionCounts());
             }
             return null;
         }
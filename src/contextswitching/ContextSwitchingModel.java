@@ -1,16 +1,16 @@
 package contextswitching;
 
+import ec.util.MersenneTwisterFast;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Scanner;
-import javax.swing.JOptionPane;
+import java.util.List;
 import sim.engine.SimState;
+import sim.engine.Steppable;
 import sim.field.continuous.Continuous2D;
-import sim.field.network.Edge;
 import sim.field.network.Network;
 import sim.util.Bag;
+import sim.util.IntBag;
 import sim.util.Double2D;
 
 /**
@@ -24,18 +24,59 @@ import sim.util.Double2D;
  */
 public class ContextSwitchingModel extends SimState implements Runnable {
     private static final int STEP_LIMIT = 10000;
+    private static final int SWITCH_WHEEL_BUCKETS = 1024;
+    //targets of the rewired edges (see rewire)
+    public static final int RANDOM_REWIRING = 0;
+    public static final int SIMILAR_REWIRING = 1;
+    private static final int REWIRING_TRIES = 32;     //agents drawn in search of a new neighbour
 
     private int numNetworks;                    //number of social contexts
     private int numEncounters;                  //number of encounters during simulation
     private int population;                     //number of agents in the population
     private double consensusRequired;           //consensus required for the simulation to stop       
+    private ContextTopology topology;           //primitive adjacency lists of the social contexts as loaded
+    private MutableTopology adjacency;          //current adjacency lists when edges are rewired, null otherwise
     private Network[] networks;                 //networks referent to the social contexts
     private Continuous2D[] space;               //A 2D space field required to represent to agents in a 2D space
     double[] contextSwitching;
+    private double[][] contextTransitions;      //weights of the destinations when leaving each context, null if uniform
+    private AliasTable[] transitionTables;
     private Bag agentPool;                      //maintains the Agent Pool
-    private HashMap<Agent, Integer> agentLocation;
+    private int[] agentContext;                 //current context of each agent indexed by id
+    private int[] activeNeighbors;              //number of neighbours of each agent in its current context
+    private int[] opinionCounts;                //number of agents with each opinion
+    private int[] contextPopulations;           //number of agents in each context
+    private volatile ModelStatistics statistics;//summary published at the end of the last step
     File[] networksToBeLoaded;
     private boolean initialised;
+    private boolean verbose;                    //print the simulation progress to the standard output
+    private volatile boolean stopRequested;     //run() returns after the current step
+    private long stepOffset;                    //steps executed before the run was resumed from a checkpoint
+    private long resumeSteps;                   //resume point set by restoreState(...)
+    private int resumeEncounters;
+    private List<Steppable> periodicSteppables; //executed at the end of every periodicIntervals[i] steps
+    private List<Integer> periodicIntervals;
+    private int[] schedulingOrder;              //ids of the agents in the order they were stepped in the last step
+    private int stepCursor;
+    private boolean eventDrivenSwitching;       //sample switch times instead of a draw per agent per step
+    private boolean driverScheduling;           //step the agents from a single AgentDriver schedule entry
+    private TimingWheel switchWheel;            //pending context switches
+    private boolean[] switchDue;                //agents that switch context in the current step
+    private IntBag dueAgents;
+    private long collectedStep;                 //last step whose switches were collected
+    private int agentOrdering;                  //numbering of the agents (see ContextTopology.getOrdering)
+    private int[] originalIds;                  //id in the network files of each agent, null if not renumbered
+    private int[] internalIds;                  //id of the agent of each id in the network files
+    private long topologyFingerprint;           //fingerprint of the networks as loaded, 0 until computed
+    private boolean bufferedRandom;             //draw the step loop random numbers from a RandomStream
+    private RandomStream stepRandom;            //stream of the current run, null if not buffered
+    private RandomStream resumeStepRandom;      //stream set by restoreState(...)
+    private double rewiringProb;                //probability of rewiring an edge to a disagreeing partner
+    private int rewiringTarget;                 //RANDOM_REWIRING or SIMILAR_REWIRING
+    private AgentMemory memory;                 //memories of the agents indexed by id
+    private int memoryModel;                    //AgentMemory.UNBOUNDED_MEMORY, WINDOW_MEMORY or DECAY_MEMORY
+    private int memoryWindow;
+    private double memoryDecay;
 
     /**
      * Constructor
@@ -46,9 +87,18 @@ public class ContextSwitchingModel extends SimState implements Runnable {
         super(seed);
         initialised = false;
         numEncounters = 0;
+        verbose = true;
+        periodicSteppables = new ArrayList<Steppable>();
+        periodicIntervals = new ArrayList<Integer>();
 
     }
 
+    /**
+     * The MASON networks of the contexts, they hold the networks as loaded
+     * and do not follow the edges rewired while the model runs
+     *
+     * @return networks Network[]
+     */
     public Network[] getNetworkFields() {
         return networks;
     }
@@ -57,6 +107,52 @@ public class ContextSwitchingModel extends SimState implements Runnable {
         return space;
     }
 
+    /**
+     * The networks of the contexts with the agent ids used by the model, which
+     * are not the ids of the network files if the agents were renumbered.
+     * With rewiring these are the current networks, copied from the mutable
+     * adjacency lists, this must be called between steps
+     *
+     * @return topology ContextTopology
+     */
+    public ContextTopology getTopology() {
+        return adjacency == null ? topology : adjacency.toTopology();
+    }
+
+    /**
+     * The networks of the contexts with the ids of the network files (see
+     * <code>getTopology()</code>)
+     *
+     * @return topology ContextTopology
+     */
+    public ContextTopology getOriginalTopology() {
+        ContextTopology current = getTopology();
+        return originalIds == null ? current : current.permute(originalIds);
+    }
+
+    /**
+     * Fingerprint of the networks as loaded with the ids of the network files,
+     * it does not depend on the agent ordering nor on the edges rewired since
+     *
+     * @return fingerprint long
+     */
+    public long getTopologyFingerprint() {
+        if (topologyFingerprint == 0) {
+            topologyFingerprint = (originalIds == null ? topology : topology.permute(originalIds)).fingerprint();
+        }
+        return topologyFingerprint;
+    }
+
+    /**
+     * The network files the model was configured with, null if the model was
+     * rebuilt from its compact representation
+     *
+     * @return networks File[]
+     */
+    public File[] getNetworkFiles() {
+        return networksToBeLoaded;
+    }
+
     /**
      * SETTERS AND GETTERS
      */
@@ -76,6 +172,30 @@ public class ContextSwitchingModel extends SimState implements Runnable {
         this.numNetworks = numNetworks;
     }
 
+    public double[] getContextSwitchingProbs() {
+        return contextSwitching;
+    }
+
+    public void setContextSwitchingProbs(double[] contextSwitching) {
+        this.contextSwitching = contextSwitching;
+    }
+
+    public double[][] getContextTransitions() {
+        return contextTransitions;
+    }
+
+    /**
+     * Sets the weights of the destination contexts of an agent leaving each
+     * context (see <code>ModelConfiguration.setContextTransitions</code>)
+     *
+     * @param transitions numContexts x numContexts matrix with a zero
+     * diagonal or null for uniform destinations
+     */
+    public void setContextTransitions(double[][] transitions) {
+        this.contextTransitions = transitions;
+        this.transitionTables = AliasTable.forRows(transitions);    //contexts without destinations are never left
+    }
+
     public double getConsensusRequired() {
         return consensusRequired;
     }
@@ -88,10 +208,237 @@ public class ContextSwitchingModel extends SimState implements Runnable {
         return numEncounters;
     }
 
+    public boolean isDriverScheduling() {
+        return driverScheduling;
+    }
+
+    /**
+     * Chooses how the agents are scheduled
+     *
+     * by default each agent is a repeating entry in the MASON schedule, with
+     * driver scheduling a single <code>AgentDriver</code> is scheduled and it
+     * steps the agents in a shuffled order in each step. Both activate the
+     * agents in a random sequential order, the driver avoids the schedule
+     * overhead of each agent. The setting takes effect when the model starts
+     *
+     * @param driverScheduling true to use a single driver
+     */
+    public void setDriverScheduling(boolean driverScheduling) {
+        this.driverScheduling = driverScheduling;
+    }
+
+    public int getAgentOrdering() {
+        return agentOrdering;
+    }
+
+    /**
+     * Chooses the numbering of the agents used while the model runs
+     *
+     * with ContextTopology.BFS_ORDER or RCM_ORDER the agents are renumbered
+     * when the model is initialized so that neighbours in any context have
+     * close ids, the state of neighbouring agents is then close in memory.
+     * The results (opinions, contexts, memories and scheduling order) are
+     * still reported with the ids of the network files. The renumbering
+     * changes which agents the random initial distributions pick, so a
+     * seeded run does not repeat the run of the original order.
+     * The setting takes effect when the model is initialized
+     *
+     * @param agentOrdering ContextTopology.ORIGINAL_ORDER, BFS_ORDER or
+     * RCM_ORDER
+     */
+    public void setAgentOrdering(int agentOrdering) {
+        this.agentOrdering = agentOrdering;
+    }
+
+    public double getRewiringProb() {
+        return rewiringProb;
+    }
+
+    public int getRewiringTarget() {
+        return rewiringTarget;
+    }
+
+    /**
+     * Lets the agents rewire their edges while the model runs (see
+     * <code>rewire</code>), with a positive probability the networks are
+     * kept in mutable adjacency lists. The setting takes effect when the
+     * model is initialized
+     *
+     * @param probability probability that an agent rewires the edge to a
+     * partner it disagrees with instead of meeting it, 0 for fixed networks
+     * @param target RANDOM_REWIRING or SIMILAR_REWIRING
+     */
+    public void setRewiring(double probability, int target) {
+        this.rewiringProb = probability;
+        this.rewiringTarget = target;
+    }
+
+    public int getMemoryModel() {
+        return memoryModel;
+    }
+
+    public int getMemoryWindow() {
+        return memoryWindow;
+    }
+
+    public double getMemoryDecay() {
+        return memoryDecay;
+    }
+
+    /**
+     * Chooses how the agents remember the opinions they encounter (see
+     * <code>AgentMemory</code>). The setting takes effect when the model is
+     * initialized
+     *
+     * @param model AgentMemory.UNBOUNDED_MEMORY, WINDOW_MEMORY or DECAY_MEMORY
+     * @param window encounters remembered with WINDOW_MEMORY
+     * @param decay factor applied to the memory at each encounter with
+     * DECAY_MEMORY
+     */
+    public void setMemoryModel(int model, int window, double decay) {
+        this.memoryModel = model;
+        this.memoryWindow = window;
+        this.memoryDecay = decay;
+    }
+
+    /**
+     * The memories of the agents, indexed by the agent ids used by the model
+     *
+     * @return memory AgentMemory
+     */
+    public AgentMemory getAgentMemory() {
+        return memory;
+    }
+
+    public boolean isBufferedRandom() {
+        return bufferedRandom;
+    }
+
+    /**
+     * Chooses the generator of the random numbers drawn while the agents
+     * are stepped
+     *
+     * by default every draw is a call to the MASON generator of the model.
+     * With a buffered random the draws of the agents, of the context switches
+     * and of the driver shuffle read a <code>RandomStream</code> that is
+     * filled in bulk, it is seeded from the model generator when the model
+     * starts. The MASON schedule still uses the model generator.
+     * The setting takes effect when the model starts
+     *
+     * @param bufferedRandom true to use a buffered random stream
+     */
+    public void setBufferedRandom(boolean bufferedRandom) {
+        this.bufferedRandom = bufferedRandom;
+    }
+
+    /**
+     * The random stream of the current run
+     *
+     * @return stream RandomStream or null if the model does not use a
+     * buffered random or was not started
+     */
+    public RandomStream getStepRandom() {
+        return stepRandom;
+    }
+
+    /**
+     * Uniform integer for the step loop, from the buffered stream if the
+     * model uses one and from the model generator otherwise
+     *
+     * @param bound number of values
+     * @return value int in [0, bound)
+     */
+    public int randomInt(int bound) {
+        return stepRandom != null ? stepRandom.nextInt(bound) : random.nextInt(bound);
+    }
+
+    /**
+     * Uniform double for the step loop (see <code>randomInt</code>)
+     *
+     * @return value double in [0, 1)
+     */
+    public double randomDouble() {
+        return stepRandom != null ? stepRandom.nextDouble() : random.nextDouble();
+    }
+
+    public boolean isEventDrivenSwitching() {
+        return eventDrivenSwitching;
+    }
+
+    /**
+     * Chooses how the agents decide to switch context
+     *
+     * by default each agent draws a random number in every step and switches
+     * with the switching probability of its context. When event driven, the
+     * step of the next switch of an agent is sampled from a geometric
+     * distribution when it enters a context and kept in a timing wheel, so
+     * the random number generator is only used when an agent switches.
+     * Both produce the same process, the steps between switches follow
+     * the same distribution, but not the same random sequence.
+     *
+     * Pending switch times are not part of a checkpoint, as the geometric
+     * distribution is memoryless they are sampled again when a restored model
+     * starts
+     *
+     * @param eventDriven true to use the event driven switching
+     */
+    public void setEventDrivenSwitching(boolean eventDriven) {
+        this.eventDrivenSwitching = eventDriven;
+    }
+
     public void incNumEncounters() {
         numEncounters++;
     }
 
+    /**
+     * Number of steps executed so far, including the steps executed before
+     * the model was restored from a checkpoint
+     *
+     * @return steps long
+     */
+    public long getSteps() {
+        return stepOffset + schedule.getSteps();
+    }
+
+    /**
+     * Registers an object to be stepped after the agents every interval
+     * steps when the model is executed with <code>run()</code>
+     *
+     * the object is called by <code>run()</code> between steps and it is not
+     * added to the schedule, adding it to the schedule would change the order
+     * in which the agents are stepped and with it the result of a seeded run
+     *
+     * @param steppable the object to be stepped
+     * @param interval number of steps between executions
+     */
+    public void addPeriodicSteppable(Steppable steppable, int interval) {
+        periodicSteppables.add(steppable);
+        periodicIntervals.add(interval);
+    }
+
+    public void removePeriodicSteppable(Steppable steppable) {
+        int index = periodicSteppables.indexOf(steppable);
+        if (index >= 0) {
+            periodicSteppables.remove(index);
+            periodicIntervals.remove(index);
+        }
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Turns the per step progress output of <code>run()</code> on or off,
+     * benchmarks and batch runs should turn it off as printing every cycle
+     * dominates the execution time of small models
+     *
+     * @param verbose true to print the simulation progress
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
     /**
      * Configure the model
      *
@@ -113,6 +460,13 @@ public class ContextSwitchingModel extends SimState implements Runnable {
         this.consensusRequired = config.consensusRequired;
         this.contextSwitching = config.contextSwitchingProb;
         this.networksToBeLoaded = config.networkFiles;
+        this.eventDrivenSwitching = config.eventDrivenSwitching;
+        this.driverScheduling = config.driverScheduling;
+        this.agentOrdering = config.agentOrdering;
+        this.bufferedRandom = config.bufferedRandom;
+        setContextTransitions(config.contextTransitions);
+        setRewiring(config.rewiringProb, config.rewiringTarget);
+        setMemoryModel(config.memoryModel, config.memoryWindow, config.memoryDecay);
         return this;
     }
 
@@ -131,29 +485,219 @@ public class ContextSwitchingModel extends SimState implements Runnable {
      * @return model ContextSwitchingModel the initialized model ready to run
      */
     public ContextSwitchingModel initializeModel() {
+        createAgents(ContextTopology.load(networksToBeLoaded, population));
+
+        configInitialChoiceDist();
+        configInitialContextDist();
+        countPopulations();
+
+        initialised = true;
+
+        return this;
+    }
+
+    /**
+     * Initializes the model with a given topology and agent state instead of
+     * reading the network files and distributing the agents randomly, this is
+     * used to rebuild a model from its compact representation
+     *
+     * @param topology ContextTopology - the networks of the contexts with the
+     * ids of the network files
+     * @param opinions the opinion of each agent
+     * @param contexts the context of each agent
+     * @param memories the number of encounters with each opinion for each agent
+     * (population * Choices.NUM_OPINIONS values)
+     *
+     * @return model ContextSwitchingModel the initialized model ready to run
+     */
+    public ContextSwitchingModel initializeModel(ContextTopology topology,
+            int[] opinions, int[] contexts, int[] memories) {
+        createAgents(topology);
+        setAgentState(opinions, contexts, memories);
+        countPopulations();
+
+        initialised = true;
+
+        return this;
+    }
+
+    /**
+     * Restores the dynamic state of an initialized model, the next run
+     * continues from the given step instead of starting from scratch, the
+     * agents are identified by the ids of the network files
+     *
+     * @param opinions the opinion of each agent
+     * @param contexts the context of each agent
+     * @param memories the memory of each agent (see <code>getMemories()</code>)
+     * @param schedulingOrder the order in which the agents were stepped in
+     * the last step (see <code>getSchedulingOrder()</code>)
+     * @param random the state of the random number generator
+     * @param stepRandom the state of the buffered random stream (see
+     * <code>getStepRandom()</code>), null if the model does not use one
+     * @param steps number of steps already executed
+     * @param encounters number of encounters already performed
+     */
+    public void restoreState(int[] opinions, int[] contexts, int[] memories, int[] schedulingOrder,
+            MersenneTwisterFast random, RandomStream stepRandom, long steps, int encounters) {
+        setAgentState(opinions, contexts, memories);
+        countPopulations();
+        for (int k = 0; k < population; k++) {
+            this.schedulingOrder[k] = internalId(schedulingOrder[k]);
+        }
+        this.random = random;
+        this.resumeStepRandom = stepRandom;
+        this.resumeSteps = steps;
+        this.resumeEncounters = encounters;
+    }
+
+    /**
+     * Replaces the networks of an initialized model that rewires its edges
+     * with the networks reached by a run, used to resume the run from a
+     * checkpoint. Must be called before the model starts
+     *
+     * @param current the networks with the ids of the network files
+     */
+    public void restoreTopology(ContextTopology current) {
+        if (adjacency == null) {
+            throw new IllegalStateException("The model does not rewire its networks");
+        }
+        adjacency = new MutableTopology(internalIds == null ? current : current.permute(internalIds));
+    }
+
+    /**
+     * Sets the opinion, context and memory of each agent from arrays indexed
+     * by the ids of the network files
+     */
+    private void setAgentState(int[] opinions, int[] contexts, int[] memories) {
+        for (int i = 0; i < population; i++) {
+            Agent agent = (Agent) agentPool.objs[i];
+            int id = originalId(i);
+            agent.setOpinion(opinions[id]);
+            agentContext[i] = contexts[id];
+            memory.setCounts(i, memories, id * Choices.NUM_OPINIONS);
+        }
+    }
+
+    /**
+     * The window of each agent of a model with AgentMemory.WINDOW_MEMORY, the
+     * window of agent i (id in the network files) is stored oldest encounter
+     * first at i * getMemoryWindow(), -1 for encounters not yet made
+     *
+     * @return windows int[] or null if the agents do not remember a window
+     */
+    public int[] getMemoryWindows() {
+        if (memoryModel != AgentMemory.WINDOW_MEMORY) {
+            return null;
+        }
+        int[] windows = new int[population * memoryWindow];
+        for (int i = 0; i < population; i++) {
+            memory.copyWindow(i, windows, originalId(i) * memoryWindow);
+        }
+        return windows;
+    }
+
+    /**
+     * The weight of each opinion for each agent of a model with
+     * AgentMemory.DECAY_MEMORY divided by the scale factor of the agent
+     * (see <code>getMemoryScales()</code>), indexed as <code>getMemories()</code>
+     *
+     * @return weights double[] or null if the memories do not decay
+     */
+    public double[] getMemoryWeights() {
+        if (memoryModel != AgentMemory.DECAY_MEMORY) {
+            return null;
+        }
+        double[] weights = new double[population * Choices.NUM_OPINIONS];
+        for (int i = 0; i < population; i++) {
+            memory.copyScaledWeights(i, weights, originalId(i) * Choices.NUM_OPINIONS);
+        }
+        return weights;
+    }
+
+    /**
+     * The scale factor of the memory weights of each agent of a model with
+     * AgentMemory.DECAY_MEMORY, the scale of agent i (id in the network
+     * files) is stored at i
+     *
+     * @return scales double[] or null if the memories do not decay
+     */
+    public double[] getMemoryScales() {
+        if (memoryModel != AgentMemory.DECAY_MEMORY) {
+            return null;
+        }
+        double[] scales = new double[population];
+        for (int i = 0; i < population; i++) {
+            scales[originalId(i)] = memory.getScale(i);
+        }
+        return scales;
+    }
+
+    /**
+     * Restores the memories of a bounded memory model exactly, the counts set
+     * by <code>initializeModel</code> or <code>restoreState</code> do not
+     * hold the order of the encounters in a window nor the decayed weights
+     *
+     * @param windows windows as returned by <code>getMemoryWindows()</code>,
+     * null if the model does not remember a window
+     * @param weights weights as returned by <code>getMemoryWeights()</code>,
+     * null if the memories do not decay
+     * @param scales scales as returned by <code>getMemoryScales()</code>,
+     * null if the memories do not decay
+     */
+    public void restoreMemories(int[] windows, double[] weights, double[] scales) {
+        for (int i = 0; i < population; i++) {
+            int id = originalId(i);
+            if (windows != null) {
+                memory.setWindow(i, windows, id * memoryWindow);
+            }
+            if (weights != null) {
+                memory.setScaledWeights(i, weights, id * Choices.NUM_OPINIONS, scales[id]);
+            }
+        }
+    }
+
+    /**
+     * Creates the agent population and places it in the networks and
+     * in the space fields, the agents are renumbered first if an agent
+     * ordering is set
+     */
+    private void createAgents(ContextTopology topology) {
+        int[] newIds = topology.getOrdering(agentOrdering);
+        topologyFingerprint = 0;
+        if (newIds == null) {
+            originalIds = null;
+            internalIds = null;
+        } else {
+            internalIds = newIds;
+            originalIds = new int[population];
+            for (int i = 0; i < population; i++) {
+                originalIds[newIds[i]] = i;
+            }
+            topology = topology.permute(newIds);
+        }
+        this.topology = topology;
+        adjacency = rewiringProb > 0 ? new MutableTopology(topology) : null;
+        memory = new AgentMemory(population, Choices.NUM_OPINIONS, memoryModel, memoryWindow, memoryDecay);
         networks = new Network[numNetworks];
         space = new Continuous2D[numNetworks];
 
 
 
         agentPool = new Bag(population);
-        agentLocation = new HashMap<Agent, Integer>(population);
+        agentContext = new int[population];
+        activeNeighbors = new int[population];
+        schedulingOrder = new int[population];
+        stepCursor = 0;
 
         for (int i = 0; i < population; i++)//populate the agent pool
         {
             agentPool.add(new Agent(i, this));
+            schedulingOrder[i] = i;
         }
 
         initContexts();  //distribute agents by Networks evenly
 
         initSpace();    //distribute agents by the space field
-
-        configInitialChoiceDist();
-        configInitialContextDist();
-
-        initialised = true;
-
-        return this;
     }
 
     public boolean isInitialised() {
@@ -200,9 +744,20 @@ public class ContextSwitchingModel extends SimState implements Runnable {
 
     }
 
+    /**
+     * Adds the edges of the topology to the networks
+     */
     private void loadNetworks() {
-        for (int i = 0; i < numNetworks; i++) {
-            loadNetwork(networksToBeLoaded[i], networks[i]);
+        for (int l = 0; l < numNetworks; l++) {
+            int[] row = topology.getOffsets(l);
+            int[] adj = topology.getNeighbors(l);
+            for (int i = 0; i < population; i++) {
+                for (int k = row[i]; k < row[i + 1]; k++) {
+                    if (adj[k] >= i) {//undirected edges are stored in both rows
+                        networks[l].addEdge(agentPool.objs[i], agentPool.objs[adj[k]], null);
+                    }
+                }
+            }
         }
     }
 
@@ -236,7 +791,7 @@ public class ContextSwitchingModel extends SimState implements Runnable {
                 }
 
                 Agent agent = (Agent) allAgents.get(nextID);
-                agentLocation.put(agent, c - 1);//put current agent in context i
+                agentContext[agent.getId()] = c - 1;//put current agent in context i
 
 
 
@@ -277,53 +832,49 @@ public class ContextSwitchingModel extends SimState implements Runnable {
     }
 
     /**
-     * Loads a network file into the contexts
-     *
-     * @param networkFile
-     * @param context
+     * ************************************************************************
+     * Model Utilities
+     * ***********************************************************************
      */
-    private void loadNetwork(File networkFile, Network context) {
-        try {
-            Scanner scanner = new Scanner(networkFile);
-            boolean done = false;
-            while (scanner.hasNextInt()) {
-                int id1 = scanner.nextInt();
-                int id2 = scanner.nextInt();
-
-                if (id1 > agentPool.numObjs
-                        || id2 > agentPool.numObjs) {
-                    done = true;
-                }
-                if (!done) {
-                    //create edge in the network
-                    Object agent1 = agentPool.get(id1);
-                    Object agent2 = agentPool.get(id2);
+    public int getContextIndexOf(Agent agent) {
+        return agentContext[agent.getId()];
+    }
 
-                    context.addEdge(agent1, agent2, null);
+    /**
+     * The id of an agent in the network files, which differs from
+     * <code>agent.getId()</code> if the agents were renumbered
+     *
+     * @param agent the agent
+     * @return id int
+     */
+    public int getOriginalId(Agent agent) {
+        return originalId(agent.getId());
+    }
 
-                }
-            }
-        } catch (FileNotFoundException ex) {
-            System.out.println("Invalid Network File");
-            System.out.println(ex.getMessage());
-        }
+    private int originalId(int id) {
+        return originalIds == null ? id : originalIds[id];
+    }
 
+    private int internalId(int originalId) {
+        return internalIds == null ? originalId : internalIds[originalId];
     }
 
     /**
-     * ************************************************************************
-     * Model Utilities
-     * ***********************************************************************
+     * Neighbours of an agent in a context are the entries
+     * <code>firstNeighbor</code> to <code>endNeighbor - 1</code> of
+     * <code>neighborsOf</code>, from the loaded networks or from the mutable
+     * adjacency lists when edges are rewired
      */
-    public int getContextIndexOf(Agent agent) {
-        int index = 0;
-        try {
-            index = agentLocation.get(agent);
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(null, agentLocation.containsKey(agent));
+    private int[] neighborsOf(int context, int id) {
+        return adjacency == null ? topology.getNeighbors(context) : adjacency.getNeighbors(context, id);
+    }
 
-        }
-        return index;
+    private int firstNeighbor(int context, int id) {
+        return adjacency == null ? topology.getOffsets(context)[id] : 0;
+    }
+
+    private int endNeighbor(int context, int id) {
+        return adjacency == null ? topology.getOffsets(context)[id + 1] : adjacency.getDegree(context, id);
     }
 
     /**
@@ -336,54 +887,340 @@ public class ContextSwitchingModel extends SimState implements Runnable {
      */
     public HashSet<Agent> getNeighbors(Agent agent) {
         HashSet<Agent> neighbors = new HashSet<Agent>();
+        int id = agent.getId();
         int context = getContextIndexOf(agent);
-
-        Bag outEdges = networks[context].getEdges(agent, null);
-
-
-        for (int i = 0; i < outEdges.numObjs; i++) {
-            Edge edge = (Edge) outEdges.objs[i];
-            neighbors.add((Agent) edge.getOtherNode(agent));
+        int[] adj = neighborsOf(context, id);
+        int end = endNeighbor(context, id);
+        for (int k = firstNeighbor(context, id); k < end; k++) {
+            neighbors.add((Agent) agentPool.objs[adj[k]]);
         }
-
         return neighbors;
     }
 
     /**
      * Returns the neighbours of an agent that are active in its current context
+     * ordered by id, or in no particular order when edges are rewired
      *
      * @param agent the agent we want neighbours from
      * @return
      */
     public Bag getActiveNeighbors(Agent agent) {
-        HashSet<Agent> neighbors = getNeighbors(agent);
         Bag actives = new Bag();
+        int id = agent.getId();
+        int context = agentContext[id];
+        int[] adj = neighborsOf(context, id);
+        int end = endNeighbor(context, id);
+        for (int k = firstNeighbor(context, id); k < end; k++) {
+            if (agentContext[adj[k]] == context) {
+                actives.add(agentPool.objs[adj[k]]);
+            }
+        }
+        return actives;
+    }
 
-        int context = getContextIndexOf(agent);
+    /**
+     * Checks if an agent has a possible partner in its current context, the
+     * number of active neighbours of each agent is updated as agents switch
+     * context so this takes constant time
+     *
+     * @param agent the agent
+     * @return true if at least one neighbour is in the same context
+     */
+    public boolean hasActiveNeighbors(Agent agent) {
+        return activeNeighbors[agent.getId()] > 0;
+    }
 
-        for (Agent neighbor : neighbors) {
-            int neighborContext = getContextIndexOf(neighbor);
-            if (context == neighborContext) {
-                actives.add(neighbor);
+    /**
+     * Picks one of the active neighbours of an agent uniformly at random
+     *
+     * @param agent the agent
+     * @return partner Agent or null if the agent has no active neighbours
+     */
+    public Agent getRandomActiveNeighbor(Agent agent) {
+        int id = agent.getId();
+        if (activeNeighbors[id] == 0) {
+            return null;
+        }
+        int target = randomInt(activeNeighbors[id]);
+        int context = agentContext[id];
+        int[] adj = neighborsOf(context, id);
+        int end = endNeighbor(context, id);
+        for (int k = firstNeighbor(context, id); k < end; k++) {
+            if (agentContext[adj[k]] == context && target-- == 0) {
+                return (Agent) agentPool.objs[adj[k]];
             }
         }
-        return actives;
+        return null;
     }
 
-    public int[] getOpinionCout() {
-        int[] counts = new int[Choices.NUM_OPINIONS];
+    /**
+     * Counts the active neighbours of every agent
+     */
+    private void countActiveNeighbors() {
+        for (int i = 0; i < population; i++) {
+            activeNeighbors[i] = countActiveNeighbors(i, agentContext[i]);
+        }
+    }
 
-        for (int i = 0; i < agentPool.numObjs; i++) {
-            Agent agent = (Agent) agentPool.objs[i];
-            counts[agent.getOpinion()]++;
+    /**
+     * Number of neighbours of agent i in a context that are in that context
+     */
+    private int countActiveNeighbors(int i, int context) {
+        int[] adj = neighborsOf(context, i);
+        int end = endNeighbor(context, i);
+        int count = 0;
+        for (int k = firstNeighbor(context, i); k < end; k++) {
+            if (agentContext[adj[k]] == context) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the agents with each opinion and in each context, the counts are
+     * then updated as the agents change opinion and context
+     */
+    private void countPopulations() {
+        opinionCounts = new int[Choices.NUM_OPINIONS];
+        contextPopulations = new int[numNetworks];
+        for (int i = 0; i < population; i++) {
+            opinionCounts[((Agent) agentPool.objs[i]).getOpinion()]++;
+            contextPopulations[agentContext[i]]++;
+        }
+    }
+
+    /**
+     * Records that an agent changed opinion, called by the agents
+     *
+     * @param from the previous opinion
+     * @param to the new opinion
+     */
+    void opinionChanged(int from, int to) {
+        opinionCounts[from]--;
+        opinionCounts[to]++;
+    }
+
+    /**
+     * Publishes a summary of the current state for the readers of
+     * <code>getStatistics()</code>, called at the end of each step
+     */
+    public void publishStatistics() {
+        statistics = new ModelStatistics(getSteps(), numEncounters, opinionCounts.clone(),
+                contextPopulations.clone(), consensusReached());
+    }
+
+    /**
+     * The summary of the state of the model published at the end of the last
+     * step, it can be read from any thread
+     *
+     * @return statistics ModelStatistics or null if the model was not started
+     */
+    public ModelStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Moves an agent to another context updating the active neighbour counts
+     * of the agent and of its neighbours in both contexts
+     */
+    private void moveAgent(int id, int from, int to) {
+        contextPopulations[from]--;
+        contextPopulations[to]++;
+        int[] adj = neighborsOf(from, id);
+        int end = endNeighbor(from, id);
+        for (int k = firstNeighbor(from, id); k < end; k++) {
+            if (adj[k] != id && agentContext[adj[k]] == from) {
+                activeNeighbors[adj[k]]--;
+            }
+        }
+        agentContext[id] = to;
+        adj = neighborsOf(to, id);
+        end = endNeighbor(to, id);
+        int count = 0;
+        for (int k = firstNeighbor(to, id); k < end; k++) {
+            if (agentContext[adj[k]] == to) {
+                count++;
+                if (adj[k] != id) {
+                    activeNeighbors[adj[k]]++;
+                }
+            }
+        }
+        activeNeighbors[id] = count;
+    }
+
+    /**
+     * Rewiring rule of the co-evolving networks, called by an agent that
+     * found a partner in its context before they meet
+     *
+     * with the rewiring probability an agent that disagrees with its partner
+     * drops their edge in the current context and links to another agent of
+     * the population instead, drawn uniformly among all the agents
+     * (RANDOM_REWIRING) or among the agents with its opinion
+     * (SIMILAR_REWIRING), and the agents do not meet. The new neighbour is
+     * drawn at most REWIRING_TRIES times, if no agent that is not already a
+     * neighbour is found the edge is kept. The random numbers are only drawn
+     * by models that rewire their edges
+     *
+     * @param agent the agent being stepped
+     * @param partner an active neighbour of the agent
+     * @return true if the edge was rewired, false if the agents meet
+     */
+    public boolean rewire(Agent agent, Agent partner) {
+        if (adjacency == null || partner.getOpinion() == agent.getOpinion() || randomDouble() >= rewiringProb) {
+            return false;
+        }
+        int id = agent.getId();
+        int context = agentContext[id];
+        int target = -1;
+        for (int t = 0; t < REWIRING_TRIES && target < 0; t++) {
+            int candidate = randomInt(population);
+            if (candidate != id && !adjacency.hasEdge(context, id, candidate)
+                    && (rewiringTarget != SIMILAR_REWIRING
+                    || ((Agent) agentPool.objs[candidate]).getOpinion() == agent.getOpinion())) {
+                target = candidate;
+            }
+        }
+        if (target < 0) {
+            return false;
+        }
+        int other = partner.getId();
+        adjacency.removeEdge(context, id, other);
+        activeNeighbors[id]--;//the partner is in the context of the agent
+        activeNeighbors[other]--;
+        adjacency.addEdge(context, id, target);
+        if (agentContext[target] == context) {
+            activeNeighbors[id]++;
+            activeNeighbors[target]++;
+        }
+        return true;
+    }
+
+    /**
+     * The opinion of each agent indexed by the agent id in the network files
+     *
+     * @return opinions int[]
+     */
+    public int[] getOpinions() {
+        int[] opinions = new int[population];
+        for (int i = 0; i < population; i++) {
+            opinions[originalId(i)] = ((Agent) agentPool.objs[i]).getOpinion();
+        }
+        return opinions;
+    }
+
+    /**
+     * The context of each agent indexed by the agent id in the network files
+     *
+     * @return contexts int[]
+     */
+    public int[] getContexts() {
+        int[] contexts = new int[population];
+        for (int i = 0; i < population; i++) {
+            contexts[originalId(i)] = agentContext[i];
+        }
+        return contexts;
+    }
+
+    /**
+     * Copies the opinion and context of each agent into the given arrays,
+     * indexed by the internal agent ids (the ids of <code>getTopology()</code>)
+     * without allocating, used to hand the state over to other threads
+     * between steps
+     *
+     * @param opinions array of size population for the opinions
+     * @param contexts array of size population for the contexts
+     */
+    public void copyAgentState(int[] opinions, int[] contexts) {
+        for (int i = 0; i < population; i++) {
+            opinions[i] = ((Agent) agentPool.objs[i]).getOpinion();
+        }
+        System.arraycopy(agentContext, 0, contexts, 0, population);
+    }
+
+    /**
+     * The encounters each agent remembers with each opinion, the memory of
+     * agent i (id in the network files) for opinion op is stored at
+     * i * Choices.NUM_OPINIONS + op (see <code>AgentMemory.getCount</code>)
+     *
+     * @return memories int[]
+     */
+    public int[] getMemories() {
+        int[] memories = new int[population * Choices.NUM_OPINIONS];
+        for (int i = 0; i < population; i++) {
+            int id = originalId(i);
+            for (int op = 0; op < Choices.NUM_OPINIONS; op++) {
+                memories[id * Choices.NUM_OPINIONS + op] = memory.getCount(i, op);
+            }
         }
+        return memories;
+    }
 
-        return counts;
+    /**
+     * Records that an agent was stepped, called by the agents
+     *
+     * @param agent the agent being stepped
+     */
+    void agentStepped(Agent agent) {
+        schedulingOrder[stepCursor++] = agent.getId();
+        if (stepCursor == population) {
+            stepCursor = 0;
+        }
+    }
+
+    /**
+     * The ids of the agents in the order they were stepped in the last step
+     *
+     * the schedule shuffles the agents in each step but the shuffle depends
+     * on the order in which the agents were added to the schedule, to resume
+     * a run exactly the agents have to be scheduled again in this order
+     *
+     * @return order int[] ids in the network files
+     */
+    public int[] getSchedulingOrder() {
+        int[] order = new int[population];
+        for (int k = 0; k < population; k++) {
+            order[k] = originalId(schedulingOrder[k]);
+        }
+        return order;
+    }
+
+    /**
+     * The number of agents with each opinion, the counts are kept up to date
+     * as the agents change opinion so this does not scan the agents
+     *
+     * @return counts int[]
+     */
+    public int[] getOpinionCout() {
+        return opinionCounts.clone();
+    }
+
+    /**
+     * Asks <code>run()</code> to return after the step being executed, the
+     * model is left between steps so it can be checkpointed and resumed. Can
+     * be called from any thread
+     */
+    public void requestStop() {
+        stopRequested = true;
+    }
+
+    public boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * True if <code>run()</code> returned because a stop was requested, before
+     * the model reached consensus or the step limit. A run that reached one of
+     * them as the stop arrived is complete
+     *
+     * @return unfinished boolean
+     */
+    public boolean isUnfinished() {
+        return stopRequested && !consensusReached() && getSteps() < STEP_LIMIT;
     }
 
     public boolean consensusReached() {
-        int[] count = getOpinionCout();
-        for (int c : count) {
+        for (int c : opinionCounts) {
             if (c / (population * 1.0) >= consensusRequired) {
                 return true;
             }
@@ -396,13 +1233,82 @@ public class ContextSwitchingModel extends SimState implements Runnable {
         return contextSwitching[index];
     }
 
+    /**
+     * Moves an agent out of its context, the destination is sampled from the
+     * transition matrix or uniformly among the other contexts
+     *
+     * @param agent the agent
+     */
     public void switchContextOf(Agent agent) {
+        if (numNetworks < 2) {
+            return;//nowhere to go
+        }
         int current = getContextIndexOf(agent);
-        int next = current;
-        while (next == current) {
-            next = random.nextInt(numNetworks);
+        int next;
+        if (transitionTables != null) {
+            if (transitionTables[current] == null) {
+                return;
+            }
+            next = transitionTables[current].sample(randomDouble());
+        } else {
+            //uniform over the other numNetworks - 1 contexts, skipping the current one
+            next = randomInt(numNetworks - 1);
+            if (next >= current) {
+                next++;
+            }
+        }
+        moveAgent(agent.getId(), current, next);
+        if (eventDrivenSwitching && switchWheel != null) {
+            scheduleSwitch(agent.getId(), next, getSteps() + 1);
+        }
+    }
+
+    /**
+     * Checks if an agent switches context in the current step, used with the
+     * event driven switching
+     *
+     * @param agent the agent
+     * @return true if the agent must switch context now
+     */
+    public boolean isSwitchDue(Agent agent) {
+        long now = getSteps();
+        if (now != collectedStep) {
+            collectedStep = now;
+            dueAgents.clear();
+            switchWheel.collect(now, dueAgents);
+            for (int k = 0; k < dueAgents.numObjs; k++) {
+                switchDue[dueAgents.objs[k]] = true;
+            }
+        }
+        int id = agent.getId();
+        if (switchDue[id]) {
+            switchDue[id] = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Samples the step in which an agent leaves a context, the number of
+     * steps it stays is geometric with the switching probability of the
+     * context
+     *
+     * @param id agent id
+     * @param context the context the agent is in
+     * @param from first step in which the agent can switch
+     */
+    private void scheduleSwitch(int id, int context, long from) {
+        double p = contextSwitching[context];
+        if (p <= 0.0) {
+            return;//never leaves
+        }
+        double stay = 0;
+        if (p < 1.0) {
+            stay = Math.floor(Math.log(1.0 - randomDouble()) / Math.log1p(-p));
+        }
+        if (stay < Long.MAX_VALUE / 4) {
+            switchWheel.schedule(id, from + (long) stay);
         }
-        agentLocation.put(agent, next);
     }
 
     /**
@@ -414,11 +1320,58 @@ public class ContextSwitchingModel extends SimState implements Runnable {
     @Override
     public void start() {
         super.start();
-        numEncounters = 0;
+        numEncounters = resumeEncounters;
+        stepOffset = resumeSteps;
+        resumeEncounters = 0;
+        resumeSteps = 0;
+        if (bufferedRandom) {//a restored model continues its stream
+            stepRandom = resumeStepRandom != null ? resumeStepRandom : new RandomStream(random.nextLong());
+        } else {
+            stepRandom = null;
+        }
+        resumeStepRandom = null;
+
+        countActiveNeighbors();
+        countPopulations();
+        publishStatistics();
+
+        //add agents to the schedule, in the order of the last step if the model was restored
+        stepCursor = 0;
+        if (driverScheduling) {
+            Agent[] agents = new Agent[population];
+            for (int i = 0; i < population; i++) {
+                agents[i] = (Agent) agentPool.objs[i];
+            }
+            schedule.scheduleRepeating(new AgentDriver(agents, schedulingOrder, stepRandom));
+        } else {
+            for (int id : schedulingOrder) {
+                schedule.scheduleRepeating((Agent) agentPool.objs[id]);
+            }
+        }
+
+        if (eventDrivenSwitching) {
+            switchWheel = new TimingWheel(SWITCH_WHEEL_BUCKETS);
+            switchDue = new boolean[population];
+            dueAgents = new IntBag();
+            collectedStep = -1;
+            long now = getSteps();
+            for (int i = 0; i < population; i++) {
+                scheduleSwitch(i, getContextIndexOf((Agent) agentPool.objs[i]), now);
+            }
+        } else {
+            switchWheel = null;
+        }
+    }
 
-        //add agents to the schedule
-        for (Object agent : agentPool) {
-            schedule.scheduleRepeating((Agent) agent);
+    /**
+     * Steps the periodic steppables whose interval ends at the current step
+     */
+    private void stepPeriodicSteppables() {
+        long steps = getSteps();
+        for (int i = 0; i < periodicSteppables.size(); i++) {
+            if (steps % periodicIntervals.get(i) == 0) {
+                periodicSteppables.get(i).step(this);
+            }
         }
     }
 
@@ -426,16 +1379,22 @@ public class ContextSwitchingModel extends SimState implements Runnable {
     public void run() {
         start();
 
-        do {
+        //checked before the first step as well, a model resumed from a checkpoint may be finished
+        while (!consensusReached() && getSteps() < STEP_LIMIT && !stopRequested) {
             if (!schedule.step(this)) {
                 break;//exhausted nothing to do in schedule
             }
-            System.out.println("Simulation cicle: " + schedule.getSteps());
-
-        } while (!consensusReached() && schedule.getSteps() < STEP_LIMIT);
+            publishStatistics();
+            if (verbose) {
+                System.out.println("Simulation cicle: " + getSteps());
+            }
+            stepPeriodicSteppables();
+        }
 
         finish();
-        System.out.println("Simulation ended at step: " + schedule.getSteps());
+        if (verbose) {
+            System.out.println("Simulation ended at step: " + getSteps());
+        }
 
     }
 
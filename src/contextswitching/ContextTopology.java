@@ -0,0 +1,436 @@
+package contextswitching;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compact representation of the social networks of the model
+ *
+ * Each context is stored as an undirected adjacency list in compressed sparse
+ * row form: the neighbours of agent i in layer l are
+ * <code>neighbors[l][offsets[l][i]]</code> to
+ * <code>neighbors[l][offsets[l][i + 1] - 1]</code> sorted by id and without
+ * repetitions
+ *
+ * @author Davide Nunes
+ */
+public class ContextTopology implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    //agent orderings (see getOrdering)
+    public static final int ORIGINAL_ORDER = 0;
+    public static final int BFS_ORDER = 1;
+    public static final int RCM_ORDER = 2;
+    private int population;
+    private int[][] offsets;
+    private int[][] neighbors;
+
+    /**
+     * Constructor
+     *
+     * @param population number of agents
+     * @param offsets row offsets for each layer (population + 1 entries each)
+     * @param neighbors neighbour ids for each layer
+     */
+    public ContextTopology(int population, int[][] offsets, int[][] neighbors) {
+        this.population = population;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+    }
+
+    public int getPopulation() {
+        return population;
+    }
+
+    public int getNumLayers() {
+        return offsets.length;
+    }
+
+    public int[] getOffsets(int layer) {
+        return offsets[layer];
+    }
+
+    public int[] getNeighbors(int layer) {
+        return neighbors[layer];
+    }
+
+    public int getDegree(int layer, int agent) {
+        return offsets[layer][agent + 1] - offsets[layer][agent];
+    }
+
+    /**
+     * A hash of the adjacency lists, used to check that a checkpoint is
+     * restored on the same networks it was taken from
+     *
+     * @return fingerprint long
+     */
+    public long fingerprint() {
+        long h = 0xCBF29CE484222325L;
+        h = (h ^ population) * 0x100000001B3L;
+        for (int l = 0; l < offsets.length; l++) {
+            h = (h ^ l) * 0x100000001B3L;
+            for (int v : offsets[l]) {
+                h = (h ^ v) * 0x100000001B3L;
+            }
+            for (int v : neighbors[l]) {
+                h = (h ^ v) * 0x100000001B3L;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Number of undirected edges in a layer
+     *
+     * @param layer the layer index
+     * @return edges int
+     */
+    public int getNumEdges(int layer) {
+        int[] row = offsets[layer];
+        int[] adj = neighbors[layer];
+        int edges = 0;
+        for (int i = 0; i < population; i++) {
+            for (int k = row[i]; k < row[i + 1]; k++) {
+                if (adj[k] >= i) {
+                    edges++;
+                }
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Largest difference between the ids of two neighbours in any layer, a
+     * small bandwidth means that the neighbours of an agent are stored close
+     * to the agent and to each other
+     *
+     * @return bandwidth int
+     */
+    public int getBandwidth() {
+        int bandwidth = 0;
+        for (int l = 0; l < offsets.length; l++) {
+            int[] row = offsets[l];
+            int[] adj = neighbors[l];
+            for (int i = 0; i < population; i++) {
+                if (row[i + 1] > row[i]) {//rows are sorted, the extremes are enough
+                    bandwidth = Math.max(bandwidth, Math.max(i - adj[row[i]], adj[row[i + 1] - 1] - i));
+                }
+            }
+        }
+        return bandwidth;
+    }
+
+    /**
+     * Computes a new numbering of the agents that places agents connected in
+     * any of the layers close to each other
+     *
+     * <ul>
+     * <li> BFS_ORDER numbers the agents in the order of a breadth first
+     * search over the union of the layers
+     * <li> RCM_ORDER is the reverse Cuthill-McKee ordering of the union of
+     * the layers: a breadth first search from a pseudo peripheral agent of
+     * each component that visits the neighbours by increasing degree, in
+     * reverse
+     * </ul>
+     *
+     * @param ordering ORIGINAL_ORDER, BFS_ORDER or RCM_ORDER
+     * @return newIds int[] the new id of each agent indexed by its current
+     * id, null for ORIGINAL_ORDER
+     */
+    public int[] getOrdering(int ordering) {
+        switch (ordering) {
+            case ORIGINAL_ORDER:
+                return null;
+            case BFS_ORDER:
+                return breadthFirstOrdering(false);
+            case RCM_ORDER:
+                return breadthFirstOrdering(true);
+            default:
+                throw new IllegalArgumentException("Unknown agent ordering: " + ordering);
+        }
+    }
+
+    /**
+     * Renumbers the agents of every layer
+     *
+     * @param newIds the new id of each agent indexed by its current id, a
+     * permutation of 0 to population - 1
+     * @return topology ContextTopology with the same networks and the new ids
+     */
+    public ContextTopology permute(int[] newIds) {
+        int[][] newOffsets = new int[offsets.length][];
+        int[][] newNeighbors = new int[offsets.length][];
+        for (int l = 0; l < offsets.length; l++) {
+            int[] row = offsets[l];
+            int[] adj = neighbors[l];
+            int[] newRow = new int[population + 1];
+            for (int i = 0; i < population; i++) {
+                newRow[newIds[i] + 1] = row[i + 1] - row[i];
+            }
+            for (int i = 0; i < population; i++) {
+                newRow[i + 1] += newRow[i];
+            }
+            int[] newAdj = new int[adj.length];
+            for (int i = 0; i < population; i++) {
+                int first = newRow[newIds[i]];
+                int k = first;
+                for (int j = row[i]; j < row[i + 1]; j++) {
+                    newAdj[k++] = newIds[adj[j]];
+                }
+                Arrays.sort(newAdj, first, k);
+            }
+            newOffsets[l] = newRow;
+            newNeighbors[l] = newAdj;
+        }
+        return new ContextTopology(population, newOffsets, newNeighbors);
+    }
+
+    /**
+     * Numbers the agents in breadth first order, component by component
+     *
+     * @param cuthillMcKee start each component from a pseudo peripheral agent,
+     * visit neighbours by increasing degree and reverse the final order
+     */
+    private int[] breadthFirstOrdering(boolean cuthillMcKee) {
+        int[] degree = new int[population];//degree in the union of the layers, repeated edges included
+        for (int l = 0; l < offsets.length; l++) {
+            for (int i = 0; i < population; i++) {
+                degree[i] += getDegree(l, i);
+            }
+        }
+        boolean[] visited = new boolean[population];
+        int[] order = new int[population];
+        int[] level = null;
+        if (cuthillMcKee) {
+            level = new int[population];
+            Arrays.fill(level, -1);
+        }
+        long[] found = new long[16];//neighbours found by a visit as degree << 32 | id
+        int size = 0;
+        for (int seed = 0; seed < population; seed++) {
+            if (visited[seed]) {
+                continue;
+            }
+            int root = cuthillMcKee ? peripheralAgent(seed, degree, level, order, size) : seed;
+            int head = size;
+            visited[root] = true;
+            order[size++] = root;
+            while (head < size) {
+                int v = order[head++];
+                int numFound = 0;
+                for (int l = 0; l < offsets.length; l++) {
+                    int[] row = offsets[l];
+                    int[] adj = neighbors[l];
+                    for (int k = row[v]; k < row[v + 1]; k++) {
+                        int u = adj[k];
+                        if (!visited[u]) {
+                            visited[u] = true;
+                            if (numFound == found.length) {
+                                found = Arrays.copyOf(found, numFound * 2);
+                            }
+                            found[numFound++] = ((long) degree[u] << 32) | u;
+                        }
+                    }
+                }
+                if (cuthillMcKee) {
+                    Arrays.sort(found, 0, numFound);
+                }
+                for (int k = 0; k < numFound; k++) {
+                    order[size++] = (int) found[k];
+                }
+            }
+        }
+        int[] newIds = new int[population];
+        for (int k = 0; k < population; k++) {
+            newIds[order[k]] = cuthillMcKee ? population - 1 - k : k;
+        }
+        return newIds;
+    }
+
+    /**
+     * Finds an agent of large eccentricity in the component of an agent
+     * (George and Liu): moves to a least connected agent of the last level of
+     * a breadth first search while the number of levels grows
+     *
+     * @param level scratch array filled with -1, restored before returning
+     * @param queue scratch array, its positions from <code>from</code> are used
+     */
+    private int peripheralAgent(int agent, int[] degree, int[] level, int[] queue, int from) {
+        int best = agent;
+        int eccentricity = -1;
+        int root = agent;
+        while (true) {
+            int size = from;
+            level[root] = 0;
+            queue[size++] = root;
+            int head = from;
+            while (head < size) {
+                int v = queue[head++];
+                for (int l = 0; l < offsets.length; l++) {
+                    int[] row = offsets[l];
+                    int[] adj = neighbors[l];
+                    for (int k = row[v]; k < row[v + 1]; k++) {
+                        if (level[adj[k]] < 0) {
+                            level[adj[k]] = level[v] + 1;
+                            queue[size++] = adj[k];
+                        }
+                    }
+                }
+            }
+            int depth = level[queue[size - 1]];
+            int next = queue[size - 1];
+            for (int k = size - 1; k >= from && level[queue[k]] == depth; k--) {
+                if (degree[queue[k]] < degree[next]) {
+                    next = queue[k];
+                }
+            }
+            for (int k = from; k < size; k++) {
+                level[queue[k]] = -1;
+            }
+            if (depth <= eccentricity) {
+                return best;
+            }
+            eccentricity = depth;
+            best = root;
+            root = next;
+        }
+    }
+
+    /**
+     * Loads the network files, one for each layer
+     *
+     * each file contains one edge per line as a pair of agent ids, the file is
+     * read until the first id that does not belong to the population; a
+     * missing file produces an empty layer
+     *
+     * @param files the network files
+     * @param population number of agents
+     * @return topology ContextTopology
+     */
+    public static ContextTopology load(File[] files, int population) {
+        int[][] offsets = new int[files.length][];
+        int[][] neighbors = new int[files.length][];
+        for (int l = 0; l < files.length; l++) {
+            EdgeList edges = new EdgeList();
+            try {
+                readEdges(files[l], population, edges);
+            } catch (FileNotFoundException ex) {
+                System.out.println("Invalid Network File");
+                System.out.println(ex.getMessage());
+            } catch (IOException ex) {
+                System.out.println("Invalid Network File");
+                System.out.println(ex.getMessage());
+            }
+            int[][] csr = toCSR(population, edges.src, edges.dst, edges.size);
+            offsets[l] = csr[0];
+            neighbors[l] = csr[1];
+        }
+        return new ContextTopology(population, offsets, neighbors);
+    }
+
+    /**
+     * Builds a sorted, duplicate free undirected adjacency list from an edge list
+     *
+     * @return {offsets, neighbors}
+     */
+    static int[][] toCSR(int population, int[] src, int[] dst, int numEdges) {
+        int[] degree = new int[population + 1];
+        for (int e = 0; e < numEdges; e++) {
+            degree[src[e]]++;
+            if (src[e] != dst[e]) {
+                degree[dst[e]]++;
+            }
+        }
+        int[] row = new int[population + 1];
+        for (int i = 0; i < population; i++) {
+            row[i + 1] = row[i] + degree[i];
+        }
+        int[] fill = Arrays.copyOf(row, population);
+        int[] adj = new int[row[population]];
+        for (int e = 0; e < numEdges; e++) {
+            adj[fill[src[e]]++] = dst[e];
+            if (src[e] != dst[e]) {
+                adj[fill[dst[e]]++] = src[e];
+            }
+        }
+
+        //sort each row and remove repeated edges
+        int[] compactRow = new int[population + 1];
+        int size = 0;
+        for (int i = 0; i < population; i++) {
+            Arrays.sort(adj, row[i], row[i + 1]);
+            compactRow[i] = size;
+            for (int k = row[i]; k < row[i + 1]; k++) {
+                if (k == row[i] || adj[k] != adj[k - 1]) {
+                    adj[size++] = adj[k];
+                }
+            }
+        }
+        compactRow[population] = size;
+        return new int[][]{compactRow, Arrays.copyOf(adj, size)};
+    }
+
+    private static void readEdges(File file, int population, EdgeList edges) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        try {
+            while (true) {
+                long id1 = readId(in);
+                long id2 = readId(in);
+                if (id1 < 0 || id2 < 0 || id1 >= population || id2 >= population) {
+                    break;
+                }
+                edges.add((int) id1, (int) id2);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the next non negative integer from the stream
+     *
+     * @return value long or -1 at the end of the stream or if the next token
+     * is not a number
+     */
+    private static long readId(InputStream in) throws IOException {
+        int c = in.read();
+        while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+            c = in.read();
+        }
+        if (c < '0' || c > '9') {
+            return -1;
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            c = in.read();
+        }
+        return value;
+    }
+
+    /**
+     * Growable primitive edge list
+     */
+    private static class EdgeList {
+
+        int[] src = new int[1024];
+        int[] dst = new int[1024];
+        int size;
+
+        void add(int a, int b) {
+            if (size == src.length) {
+                src = Arrays.copyOf(src, size * 2);
+                dst = Arrays.copyOf(dst, size * 2);
+            }
+            src[size] = a;
+            dst[size] = b;
+            size++;
+        }
+    }
+}
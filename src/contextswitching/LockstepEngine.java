@@ -0,0 +1,374 @@
+package contextswitching;
+
+/**
+ * Runs several replicates of a model in lockstep over a single copy of its
+ * topology
+ *
+ * The replicates of a configuration start from the same initialized model
+ * and only differ in their random numbers. Instead of a model per replicate
+ * the engine keeps the topology once and the state of every replicate in
+ * primitive arrays interleaved by agent: the opinion, context, active
+ * neighbour count and memory of agent i in replicate r are at i * R + r.
+ * Each step the replicates advance together, position by position of their
+ * activation orders, the topology is read by all of them while it is in
+ * cache and the state of the replicates shares the same cache lines.
+ *
+ * Each replicate has its own activation order: with an order shared by the
+ * replicates, stepping an agent in every replicate at once would read its
+ * neighbour list a single time, but the replicates become correlated (an
+ * intraclass correlation of about 0.2 in the steps to consensus), which
+ * makes the confidence intervals of the replicates too narrow.
+ *
+ * The agents follow the rules of <code>Agent</code> with Bernoulli context
+ * switching, each replicate draws from its own <code>RandomStream</code>. A
+ * replicate stops, and is no longer stepped, when it reaches consensus or
+ * the step limit, the others continue.
+ *
+ * @author Davide Nunes
+ */
+public class LockstepEngine {
+
+    private static final int STEP_LIMIT = 10000;    //same limit as ContextSwitchingModel.run()
+    private int population;
+    private int numReplicates;
+    private int numContexts;
+    private int numOpinions;
+    private double consensusRequired;
+    private double[] switching;
+    private AliasTable[] transitionTables;
+    private int[][] offsets;
+    private int[][] neighbors;
+    private int[] order;            //activation orders, shuffled every step: [k * numReplicates + r]
+    private RandomStream[] random;
+    private int[] opinion;          //interleaved by agent: [i * numReplicates + r]
+    private int[] context;
+    private int[] active;
+    private int[] memory;           //[(i * numReplicates + r) * numOpinions + op]
+    private int[] opinionCount;     //[r * numOpinions + op]
+    private int[] running;          //replicates still running, the first numRunning entries
+    private int numRunning;
+    private long[] steps;
+    private int[] encounters;
+    private boolean[] consensus;
+    private long[] runtime;
+    private volatile boolean stopRequested;
+
+    /**
+     * Checks if the replicates of a model can run in lockstep: the replicates
+     * share a single topology, so the model must not rewire its networks, and
+     * the engine keeps unbounded memories
+     *
+     * @param model the model
+     * @return true if the engine can run the model
+     */
+    public static boolean supports(ContextSwitchingModel model) {
+        return model.getRewiringProb() == 0 && model.getMemoryModel() == AgentMemory.UNBOUNDED_MEMORY;
+    }
+
+    /**
+     * Prepares the replicates of an initialized model, every replicate starts
+     * from the state of the model
+     *
+     * @param model an initialized model, its agent ordering and transition
+     * matrix are used, it must be supported by the engine (see
+     * <code>supports</code>)
+     * @param seeds the seed of each replicate
+     */
+    public LockstepEngine(ContextSwitchingModel model, long[] seeds) {
+        if (!supports(model)) {
+            throw new IllegalArgumentException("The replicates of the model can not run in lockstep");
+        }
+        ContextTopology topology = model.getOriginalTopology();
+        int[] initialOpinions = model.getOpinions();
+        int[] initialContexts = model.getContexts();
+        int[] initialMemories = model.getMemories();
+        int[] newIds = topology.getOrdering(model.getAgentOrdering());
+        if (newIds != null) {
+            topology = topology.permute(newIds);
+        }
+
+        population = model.getPopulation();
+        numReplicates = seeds.length;
+        numContexts = topology.getNumLayers();
+        numOpinions = Choices.NUM_OPINIONS;
+        consensusRequired = model.getConsensusRequired();
+        switching = model.getContextSwitchingProbs().clone();
+        transitionTables = AliasTable.forRows(model.getContextTransitions());
+        offsets = new int[numContexts][];
+        neighbors = new int[numContexts][];
+        for (int l = 0; l < numContexts; l++) {
+            offsets[l] = topology.getOffsets(l);
+            neighbors[l] = topology.getNeighbors(l);
+        }
+
+        int size = population * numReplicates;
+        opinion = new int[size];
+        context = new int[size];
+        active = new int[size];
+        memory = new int[size * numOpinions];
+        opinionCount = new int[numReplicates * numOpinions];
+        for (int id = 0; id < population; id++) {
+            int i = newIds == null ? id : newIds[id];
+            for (int r = 0; r < numReplicates; r++) {
+                int ir = i * numReplicates + r;
+                opinion[ir] = initialOpinions[id];
+                context[ir] = initialContexts[id];
+                System.arraycopy(initialMemories, id * numOpinions, memory, ir * numOpinions, numOpinions);
+                opinionCount[r * numOpinions + initialOpinions[id]]++;
+            }
+        }
+        for (int i = 0; i < population; i++) {
+            for (int r = 0; r < numReplicates; r++) {
+                active[i * numReplicates + r] = countActive(i, r, context[i * numReplicates + r]);
+            }
+        }
+
+        order = new int[size];
+        for (int i = 0; i < population; i++) {
+            for (int r = 0; r < numReplicates; r++) {
+                order[i * numReplicates + r] = i;
+            }
+        }
+        random = new RandomStream[numReplicates];
+        for (int r = 0; r < numReplicates; r++) {
+            random[r] = new RandomStream(seeds[r]);
+        }
+        running = new int[numReplicates];
+        for (int r = 0; r < numReplicates; r++) {
+            running[r] = r;
+        }
+        numRunning = numReplicates;
+        steps = new long[numReplicates];
+        encounters = new int[numReplicates];
+        consensus = new boolean[numReplicates];
+        runtime = new long[numReplicates];
+    }
+
+    public int getNumReplicates() {
+        return numReplicates;
+    }
+
+    public long getSteps(int replicate) {
+        return steps[replicate];
+    }
+
+    public int getNumEncounters(int replicate) {
+        return encounters[replicate];
+    }
+
+    public boolean isConsensusReached(int replicate) {
+        return consensus[replicate];
+    }
+
+    /**
+     * The number of agents with each opinion in a replicate
+     *
+     * @param replicate the replicate
+     * @return counts int[]
+     */
+    public int[] getOpinionCounts(int replicate) {
+        int[] counts = new int[numOpinions];
+        System.arraycopy(opinionCount, replicate * numOpinions, counts, 0, numOpinions);
+        return counts;
+    }
+
+    /**
+     * Share of the execution time of the engine taken by a replicate: the
+     * time of each step is divided by the replicates stepped in it
+     *
+     * @param replicate the replicate
+     * @return runtime long in nanoseconds
+     */
+    public long getRuntimeNanos(int replicate) {
+        return runtime[replicate];
+    }
+
+    /**
+     * Checks if a replicate reached consensus or the step limit, replicates
+     * left running by <code>requestStop()</code> are not finished
+     *
+     * @param replicate the replicate
+     * @return true if the replicate finished its run
+     */
+    public boolean isFinished(int replicate) {
+        return consensus[replicate] || steps[replicate] >= STEP_LIMIT;
+    }
+
+    /**
+     * Asks <code>run()</code> to return after the step being executed, can be
+     * called from any thread
+     */
+    public void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Runs every replicate until it reaches consensus or the step limit, or
+     * until a stop is requested
+     */
+    public void run() {
+        while (step()) {
+        }
+    }
+
+    /**
+     * Executes a step of the replicates still running
+     *
+     * @return false if no step was executed because every replicate finished
+     * or a stop was requested
+     */
+    public boolean step() {
+        //checked before each step, as in ContextSwitchingModel.run()
+        int kept = 0;
+        for (int q = 0; q < numRunning; q++) {
+            int r = running[q];
+            consensus[r] = isConsensus(r);
+            if (!consensus[r] && steps[r] < STEP_LIMIT) {
+                running[kept++] = r;
+            }
+        }
+        numRunning = kept;
+        if (numRunning == 0 || stopRequested) {
+            return false;
+        }
+        long start = System.nanoTime();
+        for (int q = 0; q < numRunning; q++) {
+            shuffleOrder(running[q]);
+        }
+        int[] ids = order;
+        int R = numReplicates;
+        for (int k = 0; k < population; k++) {
+            for (int q = 0; q < numRunning; q++) {
+                int r = running[q];
+                stepAgent(ids[k * R + r], r);
+            }
+        }
+        long share = (System.nanoTime() - start) / numRunning;
+        for (int q = 0; q < numRunning; q++) {
+            steps[running[q]]++;
+            runtime[running[q]] += share;
+        }
+        return true;
+    }
+
+    /**
+     * Shuffles the activation order of a replicate, same shuffle as
+     * sim.util.Bag
+     */
+    private void shuffleOrder(int r) {
+        int[] ids = order;
+        int R = numReplicates;
+        RandomStream rnd = random[r];
+        for (int x = population - 1; x > 0; x--) {
+            int y = rnd.nextInt(x + 1);
+            int t = ids[x * R + r];
+            ids[x * R + r] = ids[y * R + r];
+            ids[y * R + r] = t;
+        }
+    }
+
+    /**
+     * Steps agent i in replicate r: an encounter with a random active
+     * neighbour followed by the context switching draw
+     */
+    private void stepAgent(int i, int r) {
+        int R = numReplicates;
+        int ir = i * R + r;
+        RandomStream rnd = random[r];
+        int c = context[ir];
+        if (active[ir] > 0) {
+            int target = rnd.nextInt(active[ir]);
+            int[] row = offsets[c];
+            int[] adj = neighbors[c];
+            for (int k = row[i]; k < row[i + 1]; k++) {
+                int jr = adj[k] * R + r;
+                if (context[jr] == c && target-- == 0) {
+                    encounter(ir, r, opinion[jr]);
+                    encounters[r]++;
+                    break;
+                }
+            }
+        }
+        if (rnd.nextDouble() < switching[c] && numContexts > 1) {
+            int next;
+            if (transitionTables != null) {
+                if (transitionTables[c] == null) {
+                    return;
+                }
+                next = transitionTables[c].sample(rnd.nextDouble());
+            } else {
+                next = rnd.nextInt(numContexts - 1);
+                if (next >= c) {
+                    next++;
+                }
+            }
+            move(i, r, c, next);
+        }
+    }
+
+    /**
+     * Records the opinion of the partner and adopts it if it was seen more
+     * often than the current opinion (see <code>Agent.performEncounter</code>)
+     */
+    private void encounter(int ir, int r, int other) {
+        int base = ir * numOpinions;
+        int seen = ++memory[base + other];
+        int current = opinion[ir];
+        if (other != current && seen > memory[base + current]) {
+            opinion[ir] = other;
+            opinionCount[r * numOpinions + current]--;
+            opinionCount[r * numOpinions + other]++;
+        }
+    }
+
+    /**
+     * Moves agent i of replicate r to another context updating the active
+     * neighbour counts (see <code>ContextSwitchingModel.moveAgent</code>)
+     */
+    private void move(int i, int r, int from, int to) {
+        int R = numReplicates;
+        int[] row = offsets[from];
+        int[] adj = neighbors[from];
+        for (int k = row[i]; k < row[i + 1]; k++) {
+            int jr = adj[k] * R + r;
+            if (adj[k] != i && context[jr] == from) {
+                active[jr]--;
+            }
+        }
+        context[i * R + r] = to;
+        row = offsets[to];
+        adj = neighbors[to];
+        int count = 0;
+        for (int k = row[i]; k < row[i + 1]; k++) {
+            int jr = adj[k] * R + r;
+            if (context[jr] == to) {
+                count++;
+                if (adj[k] != i) {
+                    active[jr]++;
+                }
+            }
+        }
+        active[i * R + r] = count;
+    }
+
+    private int countActive(int i, int r, int c) {
+        int[] row = offsets[c];
+        int[] adj = neighbors[c];
+        int count = 0;
+        for (int k = row[i]; k < row[i + 1]; k++) {
+            if (context[adj[k] * numReplicates + r] == c) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isConsensus(int r) {
+        for (int op = 0; op < numOpinions; op++) {
+            if (opinionCount[r * numOpinions + op] / (population * 1.0) >= consensusRequired) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
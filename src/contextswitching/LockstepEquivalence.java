@@ -0,0 +1,119 @@
+package contextswitching;
+
+import java.io.File;
+
+/**
+ * Checks that the replicates run by the <code>LockstepEngine</code> behave
+ * as independent runs of the model
+ *
+ * for each of a number of initialized models, runs a group of replicates
+ * in lockstep and the same number of separate model runs. The distributions
+ * of the steps and encounters are compared with a two sample
+ * Kolmogorov-Smirnov test and a Welch t test (see
+ * <code>SwitchingEquivalence</code>). The replicates of a group share their
+ * initial state, the intraclass correlation of the steps within the groups
+ * is reported for both, lockstep replicates must be as uncorrelated as
+ * separate runs. The time taken by both is reported as well.
+ *
+ * usage: LockstepEquivalence [groups] [replicates per group] [seed]
+ *
+ * @author Davide Nunes
+ */
+public class LockstepEquivalence {
+
+    private static final int GROUPS = 10;
+    private static final int REPLICATES = 10;
+    private static final double ALPHA = 0.01;
+
+    public static void main(String[] args) throws Exception {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : GROUPS;
+        int replicates = args.length > 1 ? Integer.parseInt(args[1]) : REPLICATES;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1L;
+
+        File[] networks = new File[]{
+            new File("NetworkFiles/barabasi_500.np"),
+            new File("NetworkFiles/regular_500.np"),
+            new File("NetworkFiles/ws_500.np")
+        };
+        ModelConfiguration config = new ModelConfiguration(500, 3, 0.7,
+                new double[]{0.2, 0.1, 0.05}, networks);
+
+        int n = groups * replicates;
+        double[][] separate = new double[2][n];
+        double[][] lockstep = new double[2][n];
+        long separateTime = 0;
+        long lockstepTime = 0;
+        for (int g = 0; g < groups; g++) {
+            long[] seeds = new long[replicates];
+            for (int r = 0; r < replicates; r++) {
+                seeds[r] = seed * 1000003L + g * (long) replicates + r;
+                ContextSwitchingModel model = initialModel(config, seed + g);
+                model.setSeed(seeds[r]);
+                long start = System.nanoTime();
+                model.run();
+                separateTime += System.nanoTime() - start;
+                separate[0][g * replicates + r] = model.getSteps();
+                separate[1][g * replicates + r] = model.getNumEncounters();
+            }
+            LockstepEngine engine = new LockstepEngine(initialModel(config, seed + g), seeds);
+            long start = System.nanoTime();
+            engine.run();
+            lockstepTime += System.nanoTime() - start;
+            for (int r = 0; r < replicates; r++) {
+                lockstep[0][g * replicates + r] = engine.getSteps(r);
+                lockstep[1][g * replicates + r] = engine.getNumEncounters(r);
+            }
+        }
+
+        boolean pass = true;
+        String[] names = {"steps", "encounters"};
+        for (int m = 0; m < names.length; m++) {
+            double d = SwitchingEquivalence.ksStatistic(separate[m], lockstep[m]);
+            double pKS = SwitchingEquivalence.ksPValue(d, n, n);
+            double t = SwitchingEquivalence.welchT(separate[m], lockstep[m]);
+            double pT = 2 * (1 - SwitchingEquivalence.normalCdf(Math.abs(t)));
+            System.out.printf("%-10s separate mean %12.1f  lockstep mean %12.1f  KS D %.3f p %.3f  Welch t %6.2f p %.3f%n",
+                    names[m], SwitchingEquivalence.mean(separate[m]), SwitchingEquivalence.mean(lockstep[m]), d, pKS, t, pT);
+            pass &= pKS >= ALPHA && pT >= ALPHA;
+        }
+        System.out.printf("intraclass correlation of the steps: separate %.3f lockstep %.3f%n",
+                intraclassCorrelation(separate[0], groups, replicates),
+                intraclassCorrelation(lockstep[0], groups, replicates));
+        System.out.printf("time: separate %.1f ms lockstep %.1f ms (%.2fx)%n",
+                separateTime / 1e6, lockstepTime / 1e6, separateTime / (double) lockstepTime);
+        System.out.println(pass ? "PASS: no difference at the " + ALPHA + " level"
+                : "FAIL: the lockstep replicates behave differently");
+    }
+
+    private static ContextSwitchingModel initialModel(ModelConfiguration config, long seed) {
+        ContextSwitchingModel model = new ContextSwitchingModel(seed);
+        model.configureModel(config);
+        model.initializeModel();
+        model.setVerbose(false);
+        return model;
+    }
+
+    /**
+     * One way analysis of variance estimate of the correlation between
+     * replicates of the same group
+     */
+    private static double intraclassCorrelation(double[] x, int groups, int replicates) {
+        double grand = SwitchingEquivalence.mean(x);
+        double between = 0;
+        double within = 0;
+        for (int g = 0; g < groups; g++) {
+            double groupMean = 0;
+            for (int r = 0; r < replicates; r++) {
+                groupMean += x[g * replicates + r];
+            }
+            groupMean /= replicates;
+            between += replicates * (groupMean - grand) * (groupMean - grand);
+            for (int r = 0; r < replicates; r++) {
+                within += (x[g * replicates + r] - groupMean) * (x[g * replicates + r] - groupMean);
+            }
+        }
+        double msb = between / (groups - 1);
+        double msw = within / (groups * (replicates - 1));
+        return (msb - msw) / (msb + (replicates - 1) * msw);
+    }
+}
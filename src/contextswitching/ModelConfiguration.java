@@ -18,6 +18,24 @@ public class ModelConfiguration {
     public double consensusRequired;
     public double[] contextSwitchingProb;
     public File[] networkFiles;
+    //sample the steps between context switches instead of a draw per agent per step
+    public boolean eventDrivenSwitching = false;
+    //step the agents from a single driver with a shuffled order instead of a schedule entry per agent
+    public boolean driverScheduling = false;
+    //contextTransitions[c][d] weight of moving to d when leaving c, null for uniform destinations
+    public double[][] contextTransitions = null;
+    //renumber the agents at load time for locality, ContextTopology.ORIGINAL_ORDER, BFS_ORDER or RCM_ORDER
+    public int agentOrdering = ContextTopology.ORIGINAL_ORDER;
+    //draw the random numbers of the step loop from a bulk filled RandomStream
+    public boolean bufferedRandom = false;
+    //probability of rewiring the edge to a disagreeing partner, 0 for fixed networks (see setRewiring)
+    public double rewiringProb = 0.0;
+    //ContextSwitchingModel.RANDOM_REWIRING or SIMILAR_REWIRING
+    public int rewiringTarget = ContextSwitchingModel.RANDOM_REWIRING;
+    //AgentMemory.UNBOUNDED_MEMORY, WINDOW_MEMORY or DECAY_MEMORY (see setWindowMemory and setDecayMemory)
+    public int memoryModel = AgentMemory.UNBOUNDED_MEMORY;
+    public int memoryWindow = 0;
+    public double memoryDecay = 1.0;
 
     /**
      * Constructor
@@ -48,6 +66,96 @@ public class ModelConfiguration {
 
     }
 
+    /**
+     * Sets the context transition matrix
+     *
+     * when an agent leaves context c it moves to context d with probability
+     * proportional to transitions[c][d], without a matrix the destination is
+     * uniform among the other contexts
+     *
+     * @param transitions numContexts x numContexts non negative weights with
+     * a zero diagonal, or null for uniform destinations
+     * @throws Exception if the matrix is not valid
+     */
+    public void setContextTransitions(double[][] transitions) throws Exception {
+        if (transitions != null) {
+            if (transitions.length != numContexts) {
+                throw new Exception("Invalid context transitions: the matrix must have a row for each context");
+            }
+            for (int c = 0; c < numContexts; c++) {
+                if (transitions[c] == null || transitions[c].length != numContexts) {
+                    throw new Exception("Invalid context transitions: the matrix must have a column for each context");
+                }
+                double sum = 0;
+                for (double w : transitions[c]) {
+                    if (w < 0.0 || Double.isNaN(w) || Double.isInfinite(w)) {
+                        throw new Exception("Invalid context transitions: weights must be finite non negative values");
+                    }
+                    sum += w;
+                }
+                if (transitions[c][c] != 0.0) {
+                    throw new Exception("Invalid context transitions: an agent can not switch to the context it is in");
+                }
+                if (sum == 0.0 && contextSwitchingProb[c] > 0.0) {
+                    throw new Exception("Invalid context transitions: context " + c + " can be left but has no destinations");
+                }
+            }
+        }
+        this.contextTransitions = transitions;
+    }
+
+    /**
+     * Lets the agents rewire the networks while the model runs
+     *
+     * when an agent meets a partner with a different opinion it drops their
+     * edge with the given probability and links to another agent, drawn
+     * among all the agents or among the agents with its opinion
+     *
+     * @param probability rewiring probability, 0 for fixed networks
+     * @param target ContextSwitchingModel.RANDOM_REWIRING or SIMILAR_REWIRING
+     * @throws Exception if the probability or the target are not valid
+     */
+    public void setRewiring(double probability, int target) throws Exception {
+        if (!(probability >= 0.0 && probability <= 1.0)) {
+            throw new Exception("Invalid rewiring probability: must be a value between 0 and 1");
+        }
+        if (target != ContextSwitchingModel.RANDOM_REWIRING && target != ContextSwitchingModel.SIMILAR_REWIRING) {
+            throw new Exception("Invalid rewiring target: " + target);
+        }
+        this.rewiringProb = probability;
+        this.rewiringTarget = target;
+    }
+
+    /**
+     * Makes the agents remember only their last encounters
+     *
+     * @param encounters number of encounters remembered by each agent
+     * @throws Exception if the number of encounters is not positive
+     */
+    public void setWindowMemory(int encounters) throws Exception {
+        if (encounters <= 0) {
+            throw new Exception("Invalid memory window: must be a positive number of encounters");
+        }
+        this.memoryModel = AgentMemory.WINDOW_MEMORY;
+        this.memoryWindow = encounters;
+    }
+
+    /**
+     * Makes the memory of the agents decay: before an encounter is recorded
+     * the weight of the encounters remembered is multiplied by the decay
+     *
+     * @param decay decay factor, between 0 (only the last encounter counts)
+     * and 1 exclusive
+     * @throws Exception if the decay is not valid
+     */
+    public void setDecayMemory(double decay) throws Exception {
+        if (!(decay >= 0.0 && decay < 1.0)) {
+            throw new Exception("Invalid memory decay: must be a value between 0 and 1 exclusive");
+        }
+        this.memoryModel = AgentMemory.DECAY_MEMORY;
+        this.memoryDecay = decay;
+    }
+
     /**
      * Validates the configuration parameters
      * 
@@ -0,0 +1,70 @@
+package contextswitching;
+
+import java.io.Serializable;
+
+/**
+ * Immutable summary of the state of a model at the end of a step
+ *
+ * The model publishes a new summary after each step (see
+ * <code>ContextSwitchingModel.publishStatistics()</code>), readers on other
+ * threads, such as the GUI inspectors, read the last summary published in
+ * constant time without scanning the agents or waiting for the step to end.
+ *
+ * @author Davide Nunes
+ */
+public final class ModelStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final long steps;
+    private final int numEncounters;
+    private final int[] opinionCounts;
+    private final int[] contextPopulations;
+    private final boolean consensusReached;
+
+    /**
+     * Constructor, the arrays are owned by the summary and must not be
+     * changed afterwards
+     *
+     * @param steps steps executed
+     * @param numEncounters encounters performed
+     * @param opinionCounts number of agents with each opinion
+     * @param contextPopulations number of agents in each context
+     * @param consensusReached true if the required consensus was reached
+     */
+    public ModelStatistics(long steps, int numEncounters, int[] opinionCounts,
+            int[] contextPopulations, boolean consensusReached) {
+        this.steps = steps;
+        this.numEncounters = numEncounters;
+        this.opinionCounts = opinionCounts;
+        this.contextPopulations = contextPopulations;
+        this.consensusReached = consensusReached;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public int getNumEncounters() {
+        return numEncounters;
+    }
+
+    public int getOpinionCount(int opinion) {
+        return opinionCounts[opinion];
+    }
+
+    public int[] getOpinionCounts() {
+        return opinionCounts.clone();
+    }
+
+    public int getContextPopulation(int context) {
+        return contextPopulations[context];
+    }
+
+    public int[] getContextPopulations() {
+        return contextPopulations.clone();
+    }
+
+    public boolean isConsensusReached() {
+        return consensusReached;
+    }
+}
@@ -0,0 +1,290 @@
+package contextswitching;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Social networks of the model that can change while it runs
+ *
+ * Each agent has an array of neighbours per layer, unordered, with its first
+ * <code>getDegree(layer, agent)</code> entries in use. The position of every
+ * neighbour in the array of an agent is kept in a hash index, so an edge is
+ * removed by moving the last neighbour of each endpoint into the place of the
+ * one removed (swap remove) and both insertion and removal take constant
+ * expected time. A uniform neighbour is a random position of the array.
+ *
+ * The edges are undirected and stored in the arrays of both endpoints, a
+ * self loop is stored once, as in <code>ContextTopology</code>
+ *
+ * @author Davide Nunes
+ */
+public class MutableTopology implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_CAPACITY = 4;
+    private int population;
+    private int[][][] neighbors;    //[layer][agent] neighbours in no particular order
+    private int[][] degree;         //[layer][agent] neighbours in use
+    private EdgeIndex[] positions;  //[layer] position of b in the neighbours of a, keyed by a << 32 | b
+    private int[] numEdges;
+
+    /**
+     * Copies the networks of a topology
+     *
+     * @param topology the networks
+     */
+    public MutableTopology(ContextTopology topology) {
+        population = topology.getPopulation();
+        int numLayers = topology.getNumLayers();
+        neighbors = new int[numLayers][population][];
+        degree = new int[numLayers][population];
+        positions = new EdgeIndex[numLayers];
+        numEdges = new int[numLayers];
+        for (int l = 0; l < numLayers; l++) {
+            int[] row = topology.getOffsets(l);
+            int[] adj = topology.getNeighbors(l);
+            positions[l] = new EdgeIndex(adj.length);
+            for (int i = 0; i < population; i++) {
+                int d = row[i + 1] - row[i];
+                neighbors[l][i] = Arrays.copyOfRange(adj, row[i], row[i] + Math.max(d, MIN_CAPACITY));
+                degree[l][i] = d;
+                for (int k = 0; k < d; k++) {
+                    positions[l].put(key(i, adj[row[i] + k]), k);
+                    if (adj[row[i] + k] >= i) {
+                        numEdges[l]++;
+                    }
+                }
+            }
+        }
+    }
+
+    public int getPopulation() {
+        return population;
+    }
+
+    public int getNumLayers() {
+        return neighbors.length;
+    }
+
+    public int getDegree(int layer, int agent) {
+        return degree[layer][agent];
+    }
+
+    /**
+     * The neighbours of an agent in a layer, the array is used by the
+     * topology and only its first <code>getDegree(layer, agent)</code>
+     * entries are neighbours, it is no longer valid once an edge of the agent
+     * is added
+     *
+     * @param layer the layer index
+     * @param agent the agent id
+     * @return neighbors int[]
+     */
+    public int[] getNeighbors(int layer, int agent) {
+        return neighbors[layer][agent];
+    }
+
+    public int getNumEdges(int layer) {
+        return numEdges[layer];
+    }
+
+    public boolean hasEdge(int layer, int a, int b) {
+        return positions[layer].get(key(a, b)) >= 0;
+    }
+
+    /**
+     * Adds an undirected edge
+     *
+     * @param layer the layer index
+     * @param a one endpoint
+     * @param b the other endpoint
+     * @return true if the edge was added, false if it already existed
+     */
+    public boolean addEdge(int layer, int a, int b) {
+        if (hasEdge(layer, a, b)) {
+            return false;
+        }
+        append(layer, a, b);
+        if (a != b) {
+            append(layer, b, a);
+        }
+        numEdges[layer]++;
+        return true;
+    }
+
+    /**
+     * Removes an undirected edge
+     *
+     * @param layer the layer index
+     * @param a one endpoint
+     * @param b the other endpoint
+     * @return true if the edge was removed, false if it did not exist
+     */
+    public boolean removeEdge(int layer, int a, int b) {
+        if (!hasEdge(layer, a, b)) {
+            return false;
+        }
+        swapRemove(layer, a, b);
+        if (a != b) {
+            swapRemove(layer, b, a);
+        }
+        numEdges[layer]--;
+        return true;
+    }
+
+    private void append(int layer, int a, int b) {
+        int d = degree[layer][a];
+        int[] adj = neighbors[layer][a];
+        if (d == adj.length) {
+            adj = Arrays.copyOf(adj, d * 2);
+            neighbors[layer][a] = adj;
+        }
+        adj[d] = b;
+        degree[layer][a] = d + 1;
+        positions[layer].put(key(a, b), d);
+    }
+
+    /**
+     * Removes b from the neighbours of a, the last neighbour of a takes its
+     * position
+     */
+    private void swapRemove(int layer, int a, int b) {
+        EdgeIndex index = positions[layer];
+        int k = index.remove(key(a, b));
+        int last = --degree[layer][a];
+        int[] adj = neighbors[layer][a];
+        if (k != last) {
+            adj[k] = adj[last];
+            index.put(key(a, adj[k]), k);
+        }
+    }
+
+    /**
+     * The current networks in compressed sparse row form
+     *
+     * @return topology ContextTopology with sorted rows
+     */
+    public ContextTopology toTopology() {
+        int numLayers = neighbors.length;
+        int[][] offsets = new int[numLayers][];
+        int[][] adjacency = new int[numLayers][];
+        for (int l = 0; l < numLayers; l++) {
+            int[] row = new int[population + 1];
+            for (int i = 0; i < population; i++) {
+                row[i + 1] = row[i] + degree[l][i];
+            }
+            int[] adj = new int[row[population]];
+            for (int i = 0; i < population; i++) {
+                System.arraycopy(neighbors[l][i], 0, adj, row[i], degree[l][i]);
+                Arrays.sort(adj, row[i], row[i + 1]);
+            }
+            offsets[l] = row;
+            adjacency[l] = adj;
+        }
+        return new ContextTopology(population, offsets, adjacency);
+    }
+
+    private static long key(int a, int b) {
+        return ((long) a << 32) | b;
+    }
+
+    /**
+     * Open addressing hash map from edge keys to positions, with linear
+     * probing and backward shift deletion so removals leave no tombstones
+     */
+    private static class EdgeIndex implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private static final long FREE = -1L;   //keys are built from non negative ids
+        private long[] keys;
+        private int[] values;
+        private int size;
+        private int mask;
+
+        EdgeIndex(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, FREE);
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        int get(long key) {
+            for (int s = slot(key);; s = (s + 1) & mask) {
+                if (keys[s] == key) {
+                    return values[s];
+                }
+                if (keys[s] == FREE) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(long key, int value) {
+            int s = slot(key);
+            while (keys[s] != FREE && keys[s] != key) {
+                s = (s + 1) & mask;
+            }
+            if (keys[s] == FREE) {
+                keys[s] = key;
+                if (++size * 2 > keys.length) {
+                    values[s] = value;
+                    grow();
+                    return;
+                }
+            }
+            values[s] = value;
+        }
+
+        /**
+         * @return the value of the key removed, -1 if it was not in the map
+         */
+        int remove(long key) {
+            int s = slot(key);
+            while (keys[s] != key) {
+                if (keys[s] == FREE) {
+                    return -1;
+                }
+                s = (s + 1) & mask;
+            }
+            int value = values[s];
+            size--;
+            //move back the entries of the run that follows so every key stays reachable from its slot
+            int hole = s;
+            for (int next = (s + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+                int home = slot(keys[next]);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+            keys[hole] = FREE;
+            return value;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            allocate(oldKeys.length * 2);
+            size = 0;
+            for (int s = 0; s < oldKeys.length; s++) {
+                if (oldKeys[s] != FREE) {
+                    put(oldKeys[s], oldValues[s]);
+                }
+            }
+        }
+    }
+}
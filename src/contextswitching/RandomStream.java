@@ -0,0 +1,160 @@
+package contextswitching;
+
+import java.io.Serializable;
+
+/**
+ * Splittable random number stream that generates its numbers in bulk
+ *
+ * The stream is a SplitMix64 generator: its state is advanced by a constant
+ * odd gamma and each value is a mix of the state. Values are generated a
+ * buffer at a time in a tight loop and the draws read the buffer, a draw is
+ * an array read and a few arithmetic operations instead of a call into the
+ * generator.
+ *
+ * As the state advances by a constant, the state of the stream after any
+ * number of draws is a single long, which is all a checkpoint needs to
+ * continue the stream exactly. Independent streams for parallel workers are
+ * obtained with <code>split()</code> or, reproducibly from a seed and a worker
+ * index, with <code>forStream(seed, index)</code>.
+ *
+ * @author Davide Nunes
+ */
+public class RandomStream implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    private static final int BUFFER_SIZE = 1024;
+    private long state;         //state of the last value in the buffer
+    private long gamma;
+    private long[] buffer;
+    private int position;       //next value to be read, BUFFER_SIZE if the buffer is used up
+
+    /**
+     * Constructor
+     *
+     * @param seed the seed of the stream
+     */
+    public RandomStream(long seed) {
+        this(mix64(seed), GOLDEN_GAMMA);
+    }
+
+    /**
+     * Creates a stream with a given state, used to restore a stream from
+     * <code>getState()</code> and <code>getGamma()</code>
+     *
+     * @param state the state of the stream
+     * @param gamma the increment of the stream, must be odd
+     */
+    public RandomStream(long state, long gamma) {
+        this.state = state;
+        this.gamma = gamma | 1L;
+        this.buffer = new long[BUFFER_SIZE];
+        this.position = BUFFER_SIZE;
+    }
+
+    /**
+     * A stream for a worker, different indexes of the same seed produce
+     * statistically independent streams
+     *
+     * @param seed the seed shared by the workers
+     * @param index the index of the worker
+     * @return stream RandomStream
+     */
+    public static RandomStream forStream(long seed, long index) {
+        long s = mix64(seed) + mix64(index + GOLDEN_GAMMA);
+        return new RandomStream(mix64(s), mixGamma(s + GOLDEN_GAMMA));
+    }
+
+    /**
+     * Creates a new stream from the next values of this one, the two streams
+     * are statistically independent
+     *
+     * @return stream RandomStream
+     */
+    public RandomStream split() {
+        return new RandomStream(mix64(nextLong()), mixGamma(nextLong()));
+    }
+
+    /**
+     * The state of the stream, the next value drawn is the value that
+     * follows this state
+     *
+     * @return state long
+     */
+    public long getState() {
+        return state - (BUFFER_SIZE - position) * gamma;
+    }
+
+    public long getGamma() {
+        return gamma;
+    }
+
+    public long nextLong() {
+        if (position == BUFFER_SIZE) {
+            refill();
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * @return uniform double in [0, 1)
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Uniform integer, unbiased (Lemire's multiply and reject)
+     *
+     * @param bound the number of values, positive
+     * @return value int in [0, bound)
+     */
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        long m = (nextLong() >>> 32) * bound;
+        long low = m & 0xFFFFFFFFL;
+        if (low < bound) {
+            long threshold = (0x100000000L - bound) % bound;
+            while (low < threshold) {
+                m = (nextLong() >>> 32) * bound;
+                low = m & 0xFFFFFFFFL;
+            }
+        }
+        return (int) (m >>> 32);
+    }
+
+    /**
+     * Generates the next buffer of values
+     */
+    private void refill() {
+        long s = getState();
+        long g = gamma;
+        long[] values = buffer;
+        for (int k = 0; k < BUFFER_SIZE; k++) {
+            s += g;
+            values[k] = mix64(s);
+        }
+        state = s;
+        position = 0;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * An odd gamma with enough bit transitions to mix well (as in
+     * java.util.SplittableRandom)
+     */
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xAAAAAAAAAAAAAAAAL : z;
+    }
+}
@@ -1,14 +1,25 @@
 package contextswitching;
 
+import contextswitching.offheap.OffHeapModel;
 import java.io.File;
 
 /**
  * Simple Class to test the run of a model instance
  *
+ * with -Dcontextswitching.offheap=true the configuration is run headless by
+ * an <code>OffHeapModel</code>, with the state of the agents outside the
+ * heap; -Dcontextswitching.offheap.checkpoint=file writes a checkpoint every
+ * contextswitching.offheap.checkpoint.interval steps and resumes the run from
+ * the file if it exists
+ *
  * @author Davide Nunes
  */
 public class RunModel {
 
+    private static final boolean OFF_HEAP = Boolean.getBoolean("contextswitching.offheap");
+    private static final String CHECKPOINT = System.getProperty("contextswitching.offheap.checkpoint");
+    private static final int CHECKPOINT_INTERVAL = Integer.getInteger("contextswitching.offheap.checkpoint.interval", 100);
+
     /**
      * No parameters are needed here
      *
@@ -46,6 +57,11 @@ public class RunModel {
                 new double[]{0.75, 0.25},//context switching 
                 networks);
 
+        if (OFF_HEAP) {
+            runOffHeap(config);
+            return;
+        }
+
         //configure the model with the configuration above
         model.configureModel(config);
         
@@ -66,4 +82,27 @@ public class RunModel {
         System.out.println("(" + count[0] + "," + count[1] + ")");
         System.out.println("Consensus reached? " + model.consensusReached());
     }
+
+    private static void runOffHeap(ModelConfiguration config) throws Exception {
+        OffHeapModel model;
+        if (CHECKPOINT != null && new File(CHECKPOINT).exists()) {
+            model = OffHeapModel.restore(new File(CHECKPOINT));
+            System.out.println("resumed at step " + model.getSteps());
+        } else {
+            model = new OffHeapModel(config, System.currentTimeMillis());
+        }
+        if (CHECKPOINT != null) {
+            model.setCheckpoint(new File(CHECKPOINT), CHECKPOINT_INTERVAL);
+        }
+        model.run();
+        if (model.getLastError() != null) {
+            System.out.println("checkpoint failed: " + model.getLastError().getMessage());
+        }
+
+        long[] count = model.getOpinionCounts();
+        System.out.println("num encounters: " + model.getNumEncounters());
+        System.out.println("Opinion Count: ");
+        System.out.println("(" + count[0] + "," + count[1] + ")");
+        System.out.println("Consensus reached? " + model.consensusReached());
+    }
 }
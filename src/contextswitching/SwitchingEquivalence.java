@@ -0,0 +1,152 @@
+package contextswitching;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Checks that the event driven context switching produces the same model
+ * behaviour as the per step Bernoulli draws
+ *
+ * runs the same configuration with both switching modes and compares the
+ * distributions of the steps and encounters until consensus with a two
+ * sample Kolmogorov-Smirnov test and the means with a Welch t test. Both modes
+ * use different random sequences so the runs are not expected to be equal,
+ * only their distributions.
+ *
+ * usage: SwitchingEquivalence [replicates] [seed]
+ *
+ * @author Davide Nunes
+ */
+public class SwitchingEquivalence {
+
+    private static final int REPLICATES = 100;
+    private static final double ALPHA = 0.01;    //significance level of the tests
+
+    public static void main(String[] args) throws Exception {
+        int replicates = args.length > 0 ? Integer.parseInt(args[0]) : REPLICATES;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1L;
+
+        File[] networks = new File[]{
+            new File("NetworkFiles/barabasi_500.np"),
+            new File("NetworkFiles/regular_500.np"),
+            new File("NetworkFiles/ws_500.np")
+        };
+        //a different switching probability in each context
+        ModelConfiguration config = new ModelConfiguration(500, 3, 0.7,
+                new double[]{0.2, 0.1, 0.05}, networks);
+
+        double[][] bernoulli = run(config, false, replicates, seed);
+        double[][] event = run(config, true, replicates, seed);
+
+        boolean pass = true;
+        String[] names = {"steps", "encounters"};
+        for (int m = 0; m < names.length; m++) {
+            double d = ksStatistic(bernoulli[m], event[m]);
+            double pKS = ksPValue(d, replicates, replicates);
+            double t = welchT(bernoulli[m], event[m]);
+            double pT = 2 * (1 - normalCdf(Math.abs(t)));
+            System.out.printf("%-10s bernoulli mean %12.1f  event mean %12.1f  KS D %.3f p %.3f  Welch t %6.2f p %.3f%n",
+                    names[m], mean(bernoulli[m]), mean(event[m]), d, pKS, t, pT);
+            pass &= pKS >= ALPHA && pT >= ALPHA;
+        }
+        System.out.println(pass ? "PASS: no difference at the " + ALPHA + " level"
+                : "FAIL: the switching modes behave differently");
+    }
+
+    /**
+     * Runs the replicates of a configuration
+     *
+     * @return {steps, encounters} of each run
+     */
+    private static double[][] run(ModelConfiguration config, boolean eventDriven, int replicates, long seed) {
+        double[][] results = new double[2][replicates];
+        config.eventDrivenSwitching = eventDriven;
+        for (int r = 0; r < replicates; r++) {
+            ContextSwitchingModel model = new ContextSwitchingModel(seed + r);
+            model.configureModel(config);
+            model.initializeModel();
+            model.setVerbose(false);
+            model.setSeed(seed * 31 + r);
+            model.run();
+            results[0][r] = model.getSteps();
+            results[1][r] = model.getNumEncounters();
+        }
+        return results;
+    }
+
+    static double mean(double[] x) {
+        double sum = 0;
+        for (double v : x) {
+            sum += v;
+        }
+        return sum / x.length;
+    }
+
+    static double variance(double[] x) {
+        double m = mean(x);
+        double sum = 0;
+        for (double v : x) {
+            sum += (v - m) * (v - m);
+        }
+        return sum / (x.length - 1);
+    }
+
+    static double welchT(double[] a, double[] b) {
+        double se = Math.sqrt(variance(a) / a.length + variance(b) / b.length);
+        return se == 0 ? 0 : (mean(a) - mean(b)) / se;
+    }
+
+    /**
+     * Largest distance between the empirical distribution functions
+     */
+    static double ksStatistic(double[] a, double[] b) {
+        double[] x = a.clone();
+        double[] y = b.clone();
+        Arrays.sort(x);
+        Arrays.sort(y);
+        int i = 0;
+        int j = 0;
+        double d = 0;
+        while (i < x.length && j < y.length) {
+            double v = Math.min(x[i], y[j]);
+            while (i < x.length && x[i] == v) {
+                i++;
+            }
+            while (j < y.length && y[j] == v) {
+                j++;
+            }
+            d = Math.max(d, Math.abs(i / (double) x.length - j / (double) y.length));
+        }
+        return d;
+    }
+
+    /**
+     * Asymptotic p value of the two sample Kolmogorov-Smirnov statistic
+     */
+    static double ksPValue(double d, int n, int m) {
+        double ne = n * (double) m / (n + m);
+        double lambda = (Math.sqrt(ne) + 0.12 + 0.11 / Math.sqrt(ne)) * d;
+        if (lambda < 0.2) {//the series does not converge, the p value is 1 to many digits
+            return 1.0;
+        }
+        double sum = 0;
+        for (int k = 1; k <= 100; k++) {
+            double term = 2 * (k % 2 == 1 ? 1 : -1) * Math.exp(-2 * k * k * lambda * lambda);
+            sum += term;
+            if (Math.abs(term) < 1e-10) {
+                break;
+            }
+        }
+        return Math.max(0, Math.min(1, sum));
+    }
+
+    /**
+     * Standard normal distribution function (Abramowitz and Stegun 7.1.26)
+     */
+    static double normalCdf(double x) {
+        double t = 1 / (1 + 0.3275911 * Math.abs(x) / Math.sqrt(2));
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741
+                + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x / 2);
+        return x >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+}
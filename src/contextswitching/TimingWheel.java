@@ -0,0 +1,94 @@
+package contextswitching;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import sim.util.IntBag;
+
+/**
+ * Bucketed timing wheel of agent events
+ *
+ * An event is an agent id with the step it is due. Events are kept in the
+ * bucket of their step modulo the number of buckets, an event more than a
+ * full turn of the wheel away shares its bucket with nearer events and is
+ * only returned when its own step comes. Scheduling is constant time and
+ * collecting the events of a step costs the number of events in its bucket.
+ *
+ * @author Davide Nunes
+ */
+public class TimingWheel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private int mask;
+    private int[][] ids;
+    private long[][] times;
+    private int[] sizes;
+    private int numEvents;
+
+    /**
+     * Constructor
+     *
+     * @param numBuckets number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(int numBuckets) {
+        int buckets = Integer.highestOneBit(Math.max(1, numBuckets - 1)) << 1;
+        mask = buckets - 1;
+        ids = new int[buckets][4];
+        times = new long[buckets][4];
+        sizes = new int[buckets];
+    }
+
+    public int getNumEvents() {
+        return numEvents;
+    }
+
+    /**
+     * Schedules an event
+     *
+     * @param id agent id
+     * @param time step in which the event is due
+     */
+    public void schedule(int id, long time) {
+        int b = (int) (time & mask);
+        int size = sizes[b];
+        if (size == ids[b].length) {
+            ids[b] = Arrays.copyOf(ids[b], size * 2);
+            times[b] = Arrays.copyOf(times[b], size * 2);
+        }
+        ids[b][size] = id;
+        times[b][size] = time;
+        sizes[b] = size + 1;
+        numEvents++;
+    }
+
+    /**
+     * Removes the events due at a given step
+     *
+     * @param time the current step
+     * @param due receives the ids of the events due
+     */
+    public void collect(long time, IntBag due) {
+        int b = (int) (time & mask);
+        int[] bucketIds = ids[b];
+        long[] bucketTimes = times[b];
+        int kept = 0;
+        for (int k = 0; k < sizes[b]; k++) {
+            if (bucketTimes[k] <= time) {
+                due.add(bucketIds[k]);
+            } else {//due in a later turn of the wheel
+                bucketIds[kept] = bucketIds[k];
+                bucketTimes[kept] = bucketTimes[k];
+                kept++;
+            }
+        }
+        numEvents -= sizes[b] - kept;
+        sizes[b] = kept;
+    }
+
+    /**
+     * Removes every event
+     */
+    public void clear() {
+        Arrays.fill(sizes, 0);
+        numEvents = 0;
+    }
+}
@@ -0,0 +1,62 @@
+package contextswitching.display;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import sim.portrayal.DrawInfo2D;
+import sim.portrayal.FieldPortrayal2D;
+import sim.portrayal.Portrayal;
+import sim.portrayal.simple.RectanglePortrayal2D;
+import sim.util.Bag;
+
+/**
+ * Portrayal of a context layer drawn by a <code>LayerRenderer</code>
+ *
+ * Drawing does not touch the agents: the portrayal tells the renderer which
+ * region of the layer is visible in the display and at what size, and copies
+ * the last image the renderer finished for the layer. Agents cannot be
+ * selected or inspected through this portrayal.
+ *
+ * @author Davide Nunes
+ */
+public class LayerPortrayal extends FieldPortrayal2D {
+
+    private static final long serialVersionUID = 1L;
+    private LayerRenderer renderer;
+    private int layer;
+
+    LayerPortrayal(LayerRenderer renderer, int layer) {
+        this.renderer = renderer;
+        this.layer = layer;
+    }
+
+    @Override
+    public void draw(Object object, Graphics2D graphics, DrawInfo2D info) {
+        double scaleX = info.draw.width / renderer.getWidth();
+        double scaleY = info.draw.height / renderer.getHeight();
+        Rectangle2D.Double area = new Rectangle2D.Double(info.draw.x, info.draw.y, info.draw.width, info.draw.height);
+        if (info.clip != null) {
+            Rectangle2D.intersect(area, info.clip, area);
+        }
+        if (area.width <= 0 || area.height <= 0) {
+            return;
+        }
+        int pixelWidth = Math.max(1, (int) Math.ceil(area.width));
+        int pixelHeight = Math.max(1, (int) Math.ceil(area.height));
+        LayerRenderer.View view = new LayerRenderer.View(
+                (area.x - info.draw.x) / scaleX, (area.y - info.draw.y) / scaleY,
+                pixelWidth / scaleX, pixelHeight / scaleY,
+                pixelWidth, pixelHeight);
+        renderer.requestView(layer, view);
+        renderer.drawImage(layer, graphics, info.draw.x, info.draw.y, scaleX, scaleY);
+    }
+
+    @Override
+    protected void hitOrDraw(Graphics2D graphics, DrawInfo2D info, Bag putInHere) {
+        //the layer is drawn as a whole in draw(), no agent can be hit
+    }
+
+    @Override
+    public Portrayal getDefaultPortrayal() {
+        return new RectanglePortrayal2D();
+    }
+}
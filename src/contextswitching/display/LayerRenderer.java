@@ -0,0 +1,558 @@
+package contextswitching.display;
+
+import contextswitching.Agent;
+import contextswitching.Choices;
+import contextswitching.ContextSwitchingModel;
+import contextswitching.ContextTopology;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import sim.field.continuous.Continuous2D;
+import sim.util.Bag;
+import sim.util.Double2D;
+
+/**
+ * Renders the context layers of a model into images on a background thread
+ *
+ * The model thread only hands over the opinion and context of each agent,
+ * and only when the renderer is ready for a new frame (see
+ * <code>offer</code>), so a model running at full speed is slowed by one
+ * array copy per rendered frame. The renderer draws each layer into a
+ * reusable image for the region of the layer the display shows, and the
+ * displays only copy the last finished image (see <code>LayerPortrayal</code>).
+ * After each frame the renderer waits at least three times as long as the
+ * frame took, so it never takes more than a quarter of a core from the model.
+ *
+ * The rendering adapts to the number of agents visible:
+ *
+ * <ul>
+ * <li> when there are few agents per pixel each agent is drawn, coloured by
+ * its opinion if it is active in the layer and in grey otherwise, with the
+ * edges between active agents. Edges outside the region shown or shorter
+ * than a pixel are culled and at most EDGE_BUDGET edges are drawn, evenly
+ * sampled
+ * <li> otherwise the agents are aggregated per pixel, each pixel gets the mix
+ * of the opinion colours of the active agents it holds, and no edges are
+ * drawn
+ * </ul>
+ *
+ * @author Davide Nunes
+ */
+public class LayerRenderer implements Runnable {
+
+    private static final int MIN_FRAME_MILLIS = 40;     //at most 25 frames per second
+    private static final int IDLE_PER_RENDER = 3;       //the renderer waits 3 times the time it took to render a frame
+    private static final int PIXELS_PER_AGENT = 16;     //with fewer pixels per visible agent, agents are aggregated
+    private static final int EDGE_BUDGET = 20000;       //edges drawn per layer and frame
+    private static final int[] OPINION_COLORS = {0xD62728, 0x1F77B4, 0x2CA02C, 0xFF7F0E, 0x9467BD};
+    private static final int INACTIVE_COLOR = 0xC8C8C8;
+    private static final int BACKGROUND = 0xFFFFFF;
+    private static final int EDGE_SHADE = 216;          //an edge keeps 216/256 of the brightness of the pixels it covers
+    private ContextTopology topology;
+    private int population;
+    private double width;
+    private double height;
+    private float[][] xs;                   //position of each agent in each layer
+    private float[][] ys;
+    private int[] opinions;                 //frame being rendered
+    private int[] contexts;
+    private int[] pendingOpinions;          //frame handed over by the model thread
+    private int[] pendingContexts;
+    private boolean frameRequested = true;
+    private boolean frameReady;
+    private Layer[] layers;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param model an initialized model, the positions of the agents are
+     * taken from its space fields
+     */
+    public LayerRenderer(ContextSwitchingModel model) {
+        topology = model.getTopology();
+        population = model.getPopulation();
+        Continuous2D[] space = model.getSpaceFields();
+        width = space[0].getWidth();
+        height = space[0].getHeight();
+        int numLayers = topology.getNumLayers();
+        xs = new float[numLayers][population];
+        ys = new float[numLayers][population];
+        layers = new Layer[numLayers];
+        for (int l = 0; l < numLayers; l++) {
+            Bag agents = space[l].getAllObjects();
+            for (int k = 0; k < agents.numObjs; k++) {
+                Agent agent = (Agent) agents.objs[k];
+                Double2D p = space[l].getObjectLocation(agent);
+                xs[l][agent.getId()] = (float) p.x;
+                ys[l][agent.getId()] = (float) p.y;
+            }
+            layers[l] = new Layer(l);
+            layers[l].portrayal.setField(space[l]);
+        }
+        opinions = new int[population];
+        contexts = new int[population];
+        pendingOpinions = new int[population];
+        pendingContexts = new int[population];
+        model.copyAgentState(opinions, contexts);
+    }
+
+    public int getNumLayers() {
+        return layers.length;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    /**
+     * The portrayal of a layer, to be attached to a display
+     *
+     * @param layer the layer index
+     * @return portrayal LayerPortrayal
+     */
+    public LayerPortrayal getPortrayal(int layer) {
+        return layers[layer].portrayal;
+    }
+
+    /**
+     * Sets the component to be repainted when a new image of a layer is ready
+     *
+     * @param layer the layer index
+     * @param component the display of the layer
+     */
+    public void setRepaintTarget(int layer, Component component) {
+        layers[layer].repaintTarget = component;
+    }
+
+    /**
+     * Starts the rendering thread
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "Layer renderer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the rendering thread, the last images stay available
+     */
+    public void stop() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hands the state of the agents over to the renderer if it is waiting for
+     * a new frame, called by the model thread between steps
+     *
+     * @param model the model being rendered
+     */
+    public void offer(ContextSwitchingModel model) {
+        synchronized (this) {
+            if (!frameRequested) {
+                return;
+            }
+            frameRequested = false;
+        }
+        //the pending arrays are not read until the frame is marked as ready
+        model.copyAgentState(pendingOpinions, pendingContexts);
+        synchronized (this) {
+            frameReady = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records the region of a layer shown by its display, a new image is
+     * rendered if it differs from the region of the last image
+     */
+    void requestView(int layer, View view) {
+        Layer l = layers[layer];
+        if (!view.equals(l.requested)) {
+            l.requested = view;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Draws the last image of a layer, blocks the renderer from reusing the
+     * image while it is drawn
+     */
+    void drawImage(int layer, Graphics2D graphics, double x, double y, double scaleX, double scaleY) {
+        Layer l = layers[layer];
+        synchronized (l) {
+            if (l.front != null) {
+                View v = l.frontView;
+                graphics.drawImage(l.front,
+                        (int) Math.round(x + v.x * scaleX), (int) Math.round(y + v.y * scaleY),
+                        (int) Math.round(v.width * scaleX), (int) Math.round(v.height * scaleY), null);
+            }
+        }
+    }
+
+    public void run() {
+        while (running) {
+            boolean newFrame;
+            synchronized (this) {
+                while (running && !frameReady && !viewChanged()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                newFrame = frameReady;
+                if (newFrame) {
+                    int[] t = opinions;
+                    opinions = pendingOpinions;
+                    pendingOpinions = t;
+                    t = contexts;
+                    contexts = pendingContexts;
+                    pendingContexts = t;
+                    frameReady = false;
+                }
+            }
+            if (!running) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            for (Layer l : layers) {
+                View view = l.requested;
+                if (view != null && (newFrame || !view.equals(l.renderedView))) {
+                    render(l, view);
+                    if (l.repaintTarget != null) {
+                        l.repaintTarget.repaint();
+                    }
+                }
+            }
+            synchronized (this) {
+                frameRequested = true;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            long pause = Math.max(MIN_FRAME_MILLIS - elapsed, elapsed * IDLE_PER_RENDER);
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean viewChanged() {
+        for (Layer l : layers) {
+            if (l.requested != null && !l.requested.equals(l.renderedView)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renders a region of a layer into the back image and swaps it with the
+     * image shown
+     */
+    private void render(Layer l, View view) {
+        BufferedImage image = l.back;
+        if (image == null || image.getWidth() != view.pixelWidth || image.getHeight() != view.pixelHeight) {
+            image = new BufferedImage(view.pixelWidth, view.pixelHeight, BufferedImage.TYPE_INT_RGB);
+        }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, BACKGROUND);
+
+        float[] x = xs[l.index];
+        float[] y = ys[l.index];
+        int visible = 0;
+        for (int i = 0; i < population; i++) {
+            if (view.contains(x[i], y[i])) {
+                visible++;
+            }
+        }
+        if ((long) visible * PIXELS_PER_AGENT > (long) view.pixelWidth * view.pixelHeight) {
+            renderAggregated(l, view, pixels);
+        } else {
+            renderAgents(l, view, pixels, visible);
+        }
+
+        synchronized (l) {
+            l.back = l.front;
+            l.front = image;
+            l.frontView = view;
+        }
+        l.renderedView = view;
+    }
+
+    /**
+     * Level of detail for dense regions: the agents are binned per pixel
+     */
+    private void renderAggregated(Layer l, View view, int[] pixels) {
+        int numOpinions = Choices.NUM_OPINIONS;
+        int bins = numOpinions + 1;         //active agents of each opinion and inactive agents
+        int size = view.pixelWidth * view.pixelHeight * bins;
+        if (l.bins == null || l.bins.length < size) {
+            l.bins = new int[size];
+        }
+        int[] count = l.bins;
+        float[] x = xs[l.index];
+        float[] y = ys[l.index];
+        double sx = view.pixelWidth / view.width;
+        double sy = view.pixelHeight / view.height;
+        for (int i = 0; i < population; i++) {
+            if (view.contains(x[i], y[i])) {
+                int px = Math.min(view.pixelWidth - 1, (int) ((x[i] - view.x) * sx));
+                int py = Math.min(view.pixelHeight - 1, (int) ((y[i] - view.y) * sy));
+                int bin = contexts[i] == l.index ? opinions[i] : numOpinions;
+                count[(py * view.pixelWidth + px) * bins + bin]++;
+            }
+        }
+        for (int p = 0; p < pixels.length; p++) {
+            int base = p * bins;
+            int active = 0;
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int op = 0; op < numOpinions; op++) {
+                int c = count[base + op];
+                if (c > 0) {
+                    int color = OPINION_COLORS[op % OPINION_COLORS.length];
+                    r += c * ((color >> 16) & 0xFF);
+                    g += c * ((color >> 8) & 0xFF);
+                    b += c * (color & 0xFF);
+                    active += c;
+                    count[base + op] = 0;
+                }
+            }
+            if (active > 0) {
+                pixels[p] = ((r / active) << 16) | ((g / active) << 8) | (b / active);
+            } else if (count[base + numOpinions] > 0) {
+                pixels[p] = INACTIVE_COLOR;
+            }
+            count[base + numOpinions] = 0;
+        }
+    }
+
+    /**
+     * Full detail for sparse regions: the edges between active agents and
+     * every agent as a small square
+     */
+    private void renderAgents(Layer l, View view, int[] pixels, int visible) {
+        int layer = l.index;
+        float[] x = xs[layer];
+        float[] y = ys[layer];
+        double sx = view.pixelWidth / view.width;
+        double sy = view.pixelHeight / view.height;
+        int[] row = topology.getOffsets(layer);
+        int[] adj = topology.getNeighbors(layer);
+
+        //count the edges left after culling to sample them evenly within the budget
+        double[] segment = new double[4];
+        int edges = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            int stride = pass == 0 ? 0 : (edges + EDGE_BUDGET - 1) / EDGE_BUDGET;
+            if (pass == 1 && edges == 0) {
+                break;
+            }
+            int seen = 0;
+            for (int i = 0; i < population; i++) {
+                if (contexts[i] != layer) {
+                    continue;
+                }
+                double x1 = (x[i] - view.x) * sx;
+                double y1 = (y[i] - view.y) * sy;
+                for (int k = row[i]; k < row[i + 1]; k++) {
+                    int j = adj[k];
+                    if (j <= i || contexts[j] != layer) {
+                        continue;
+                    }
+                    if (!clip(x1, y1, (x[j] - view.x) * sx, (y[j] - view.y) * sy,
+                            view.pixelWidth, view.pixelHeight, segment)) {
+                        continue;//outside the region or shorter than a pixel
+                    }
+                    if (pass == 0) {
+                        edges++;
+                    } else if (seen++ % stride == 0) {
+                        drawEdge(pixels, view.pixelWidth, view.pixelHeight,
+                                (int) segment[0], (int) segment[1], (int) segment[2], (int) segment[3]);
+                    }
+                }
+            }
+        }
+
+        //squares grow with the zoom but do not cover each other on average
+        double room = Math.sqrt(view.pixelWidth * (double) view.pixelHeight / Math.max(1, visible));
+        int side = (int) Math.max(2, Math.min(8, Math.min(room, Math.min(sx, sy) * 1.5)));
+        for (int active = 0; active < 2; active++) {//inactive agents below the active ones
+            for (int i = 0; i < population; i++) {
+                boolean isActive = contexts[i] == layer;
+                if (isActive != (active == 1) || !view.contains(x[i], y[i])) {
+                    continue;
+                }
+                int color = isActive ? OPINION_COLORS[opinions[i] % OPINION_COLORS.length] : INACTIVE_COLOR;
+                int px = (int) ((x[i] - view.x) * sx) - side / 2;
+                int py = (int) ((y[i] - view.y) * sy) - side / 2;
+                for (int yy = Math.max(0, py); yy < Math.min(view.pixelHeight, py + side); yy++) {
+                    int base = yy * view.pixelWidth;
+                    for (int xx = Math.max(0, px); xx < Math.min(view.pixelWidth, px + side); xx++) {
+                        pixels[base + xx] = color;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Darkens the pixels of a line (Bresenham), drawn on the raster directly
+     * as translucent lines drawn through Graphics2D are far slower
+     */
+    private static void drawEdge(int[] pixels, int width, int height, int x0, int y0, int x1, int y1) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int stepX = x0 < x1 ? 1 : -1;
+        int stepY = y0 < y1 ? 1 : -1;
+        int error = dx + dy;
+        while (true) {
+            if (x0 >= 0 && y0 >= 0 && x0 < width && y0 < height) {
+                int p = pixels[y0 * width + x0];
+                pixels[y0 * width + x0] = ((((p >> 16) & 0xFF) * EDGE_SHADE >> 8) << 16)
+                        | ((((p >> 8) & 0xFF) * EDGE_SHADE >> 8) << 8)
+                        | ((p & 0xFF) * EDGE_SHADE >> 8);
+            }
+            if (x0 == x1 && y0 == y1) {
+                return;
+            }
+            int e2 = 2 * error;
+            if (e2 >= dy) {
+                error += dy;
+                x0 += stepX;
+            }
+            if (e2 <= dx) {
+                error += dx;
+                y0 += stepY;
+            }
+        }
+    }
+
+    /**
+     * Clips a segment to the image (Liang-Barsky)
+     *
+     * @param segment receives the clipped segment
+     * @return false if no part of the segment longer than a pixel is inside
+     * the image
+     */
+    private static boolean clip(double x1, double y1, double x2, double y2,
+            int width, int height, double[] segment) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double t0 = 0;
+        double t1 = 1;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {x1, width - x1, y1, height - y1};
+        for (int k = 0; k < 4; k++) {
+            if (p[k] == 0) {
+                if (q[k] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[k] / p[k];
+                if (p[k] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        if (t0 > t1 || (t1 - t0) * (Math.abs(dx) + Math.abs(dy)) < 1) {
+            return false;
+        }
+        segment[0] = x1 + t0 * dx;
+        segment[1] = y1 + t0 * dy;
+        segment[2] = x1 + t1 * dx;
+        segment[3] = y1 + t1 * dy;
+        return true;
+    }
+
+    /**
+     * Images and requested region of a layer
+     */
+    private class Layer {
+
+        final int index;
+        final LayerPortrayal portrayal;
+        volatile View requested;        //region shown by the display
+        View renderedView;              //region of the last image rendered
+        BufferedImage front;            //image shown, guarded by the layer
+        View frontView;
+        BufferedImage back;             //image reused for the next rendering
+        int[] bins;
+        volatile Component repaintTarget;
+
+        Layer(int index) {
+            this.index = index;
+            this.portrayal = new LayerPortrayal(LayerRenderer.this, index);
+        }
+    }
+
+    /**
+     * Region of a layer in field coordinates and the size in pixels it is
+     * rendered at
+     */
+    static class View {
+
+        final double x;
+        final double y;
+        final double width;
+        final double height;
+        final int pixelWidth;
+        final int pixelHeight;
+
+        View(double x, double y, double width, double height, int pixelWidth, int pixelHeight) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+
+        boolean contains(float px, float py) {
+            return px >= x && py >= y && px < x + width && py < y + height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof View)) {
+                return false;
+            }
+            View v = (View) obj;
+            return v.x == x && v.y == y && v.width == width && v.height == height
+                    && v.pixelWidth == pixelWidth && v.pixelHeight == pixelHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) Double.doubleToLongBits(x + 31 * y + 961 * width) ^ pixelWidth ^ (pixelHeight << 16);
+        }
+    }
+}
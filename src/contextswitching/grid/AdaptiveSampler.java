@@ -0,0 +1,439 @@
+package contextswitching.grid;
+
+import ec.util.MersenneTwisterFast;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chooses which points of a lattice parameter space are explored
+ *
+ * The parameter space is a regular lattice with <code>levels</code> values in
+ * each of its <code>dimensions</code>, a point is identified by the same index
+ * the full factorial enumeration gives it (the last dimension varies the
+ * fastest, see <code>ParameterSpace</code>), so the sampler can be used with
+ * the parameter space list, the run seeds and the completion journal as they
+ * are.
+ *
+ * The exploration starts with a coarse initial design: a coarse grid, a latin
+ * hypercube or a Sobol sequence. When the outcome of a point is known it is
+ * compared with the outcomes of its nearest evaluated points, whenever the
+ * outcome changes sharply between two points that are not adjacent in the
+ * lattice the point between them is added. Refinement goes on until every
+ * sharp change is between adjacent points or the maximum number of points
+ * is reached, so the points concentrate around the transitions and flat
+ * regions are left coarse.
+ *
+ * @author Davide Nunes
+ */
+public class AdaptiveSampler {
+
+    /**
+     * initial designs
+     */
+    public static final int FULL_FACTORIAL = 0;
+    public static final int COARSE_GRID = 1;
+    public static final int LATIN_HYPERCUBE = 2;
+    public static final int SOBOL = 3;
+    //Sobol direction numbers (Joe and Kuo) for the dimensions after the first: degree, polynomial, initial m
+    private static final int[][] SOBOL_PARAMETERS = {
+        {1, 0, 1}, {2, 1, 1, 3}, {3, 1, 1, 3, 1}, {3, 2, 1, 1, 1}, {4, 1, 1, 1, 3, 3}};
+    private int dimensions;
+    private int levels;
+    private double threshold;
+    private int maxPoints;
+    private Set<Integer> requested;           //points handed to the runner
+    private Map<Integer, double[]> outcomes;  //outcome metrics of the evaluated points
+    private List<Integer> evaluated;
+    private int refinedUpTo;                  //evaluated points already compared with their neighbours
+    private Set<Long> comparedPairs;
+
+    /**
+     * Constructor
+     *
+     * @param dimensions number of parameters
+     * @param levels number of values of each parameter
+     * @param threshold change of an outcome metric between two points, as a
+     * fraction of the range of the metric over the evaluated points, above
+     * which the space between the points is refined
+     * @param maxPoints maximum number of points to be explored
+     * @throws Exception if the parameters are not valid
+     */
+    public AdaptiveSampler(int dimensions, int levels, double threshold, int maxPoints) throws Exception {
+        if (dimensions <= 0 || dimensions > SOBOL_PARAMETERS.length + 1) {
+            throw new Exception("Invalid number of dimensions: must be between 1 and " + (SOBOL_PARAMETERS.length + 1));
+        }
+        if (levels < 2) {
+            throw new Exception("Invalid number of levels: at least 2 values per dimension are required");
+        }
+        if (threshold <= 0.0) {
+            throw new Exception("Invalid threshold: must be a positive value");
+        }
+        this.dimensions = dimensions;
+        this.levels = levels;
+        this.threshold = threshold;
+        this.maxPoints = maxPoints;
+        this.requested = new LinkedHashSet<Integer>();
+        this.outcomes = new HashMap<Integer, double[]>();
+        this.evaluated = new ArrayList<Integer>();
+        this.comparedPairs = new HashSet<Long>();
+    }
+
+    /**
+     * Initial design from its name: full, grid, lhs or sobol
+     *
+     * @param name the design name
+     * @return design int
+     * @throws Exception if the name is unknown
+     */
+    public static int parseDesign(String name) throws Exception {
+        if (name.equals("full")) {
+            return FULL_FACTORIAL;
+        } else if (name.equals("grid")) {
+            return COARSE_GRID;
+        } else if (name.equals("lhs")) {
+            return LATIN_HYPERCUBE;
+        } else if (name.equals("sobol")) {
+            return SOBOL;
+        }
+        throw new Exception("Unknown sweep design: " + name);
+    }
+
+    /**
+     * Number of points in the full lattice
+     *
+     * @return size int
+     */
+    public int getSize() {
+        int size = 1;
+        for (int d = 0; d < dimensions; d++) {
+            size *= levels;
+        }
+        return size;
+    }
+
+    public int getNumRequested() {
+        return requested.size();
+    }
+
+    /**
+     * Generates the initial design
+     *
+     * @param design FULL_FACTORIAL, COARSE_GRID, LATIN_HYPERCUBE or SOBOL
+     * @param numPoints number of points of a latin hypercube or Sobol design,
+     * the stride between levels for a coarse grid
+     * @param seed random seed of the latin hypercube
+     * @return points List of point indexes to be evaluated
+     * @throws Exception if the design is unknown
+     */
+    public List<Integer> initialDesign(int design, int numPoints, long seed) throws Exception {
+        List<Integer> points = new ArrayList<Integer>();
+        switch (design) {
+            case FULL_FACTORIAL:
+                for (int i = 0; i < getSize(); i++) {
+                    points.add(i);
+                }
+                break;
+            case COARSE_GRID:
+                coarseGrid(Math.max(1, numPoints), points);
+                break;
+            case LATIN_HYPERCUBE:
+                latinHypercube(numPoints, seed, points);
+                break;
+            case SOBOL:
+                sobol(numPoints, points);
+                break;
+            default:
+                throw new Exception("Unknown initial design: " + design);
+        }
+        return request(points);
+    }
+
+    /**
+     * Records the outcome of an evaluated point
+     *
+     * @param point the point index
+     * @param outcome the outcome metrics, for instance consensus rate and
+     * mean steps to consensus
+     */
+    public void setOutcome(int point, double[] outcome) {
+        checkPoint(point);
+        if (!outcomes.containsKey(point)) {
+            requested.add(point);
+            outcomes.put(point, outcome.clone());
+            evaluated.add(point);
+        }
+    }
+
+    public boolean hasOutcome(int point) {
+        return outcomes.containsKey(point);
+    }
+
+    /**
+     * Finds the points to be added between evaluated points with sharply
+     * different outcomes, it can be called whenever new outcomes are known
+     *
+     * @return points List of new point indexes to be evaluated, empty when
+     * there is nothing left to refine
+     */
+    public List<Integer> refine() {
+        List<Integer> points = new ArrayList<Integer>();
+        if (evaluated.size() < 2) {
+            return points;
+        }
+        int numMetrics = outcomes.get(evaluated.get(0)).length;
+        double[] range = new double[numMetrics];
+        for (int m = 0; m < numMetrics; m++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int p : evaluated) {
+                min = Math.min(min, outcomes.get(p)[m]);
+                max = Math.max(max, outcomes.get(p)[m]);
+            }
+            range[m] = max - min;
+        }
+
+        //every point is compared with its nearest evaluated points, new points
+        //are compared with all the others and old points with the new ones
+        int neighbours = 2 * dimensions;
+        int[][] coords = new int[evaluated.size()][];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = coordinates(evaluated.get(i));
+        }
+        for (int i = 0; i < coords.length; i++) {
+            int[] nearest = nearest(coords, i, neighbours, i < refinedUpTo ? refinedUpTo : 0);
+            for (int j : nearest) {
+                int a = evaluated.get(i);
+                int b = evaluated.get(j);
+                long pair = a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+                if (comparedPairs.contains(pair) || !sharpChange(a, b, range)) {
+                    continue;
+                }
+                comparedPairs.add(pair);
+                int[] mid = new int[dimensions];
+                boolean adjacent = true;
+                for (int d = 0; d < dimensions; d++) {
+                    mid[d] = (coords[i][d] + coords[j][d]) / 2;
+                    if (Math.abs(coords[i][d] - coords[j][d]) > 1) {
+                        adjacent = false;
+                    }
+                }
+                if (!adjacent) {
+                    points.add(index(mid));
+                }
+            }
+        }
+        refinedUpTo = coords.length;
+        return request(points);
+    }
+
+    private boolean sharpChange(int a, int b, double[] range) {
+        double[] oa = outcomes.get(a);
+        double[] ob = outcomes.get(b);
+        for (int m = 0; m < oa.length; m++) {
+            if (range[m] > 0 && Math.abs(oa[m] - ob[m]) / range[m] > threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The k nearest points to point i among points[from..], and among
+     * points[0..from) if i was not compared before
+     */
+    private int[] nearest(int[][] points, int i, int k, int from) {
+        int[] best = new int[k];
+        long[] bestDistance = new long[k];
+        Arrays.fill(bestDistance, Long.MAX_VALUE);
+        int found = 0;
+        for (int j = from; j < points.length; j++) {
+            if (j == i) {
+                continue;
+            }
+            long distance = 0;
+            for (int d = 0; d < dimensions; d++) {
+                long delta = points[i][d] - points[j][d];
+                distance += delta * delta;
+            }
+            if (found == k && distance >= bestDistance[k - 1]) {
+                continue;
+            }
+            //insertion into the sorted candidates, the farthest one is dropped when full
+            int pos = found < k ? found++ : k - 1;
+            while (pos > 0 && bestDistance[pos - 1] > distance) {
+                bestDistance[pos] = bestDistance[pos - 1];
+                best[pos] = best[pos - 1];
+                pos--;
+            }
+            bestDistance[pos] = distance;
+            best[pos] = j;
+        }
+        return Arrays.copyOf(best, found);
+    }
+
+    /**
+     * Filters the points already requested and those over the budget
+     */
+    private List<Integer> request(List<Integer> points) {
+        List<Integer> accepted = new ArrayList<Integer>();
+        for (int p : points) {
+            if (requested.size() >= maxPoints) {
+                break;
+            }
+            if (requested.add(p)) {
+                accepted.add(p);
+            }
+        }
+        return accepted;
+    }
+
+    private void coarseGrid(int stride, List<Integer> points) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int v = 0; v < levels - 1; v += stride) {
+            values.add(v);
+        }
+        values.add(levels - 1);
+        int[] coords = new int[dimensions];
+        int[] position = new int[dimensions];
+        while (true) {
+            for (int d = 0; d < dimensions; d++) {
+                coords[d] = values.get(position[d]);
+            }
+            points.add(index(coords));
+            int d = dimensions - 1;
+            while (d >= 0 && ++position[d] == values.size()) {
+                position[d] = 0;
+                d--;
+            }
+            if (d < 0) {
+                break;
+            }
+        }
+    }
+
+    private void latinHypercube(int n, long seed, List<Integer> points) {
+        MersenneTwisterFast random = new MersenneTwisterFast(seed);
+        int[][] strata = new int[dimensions][n];
+        for (int d = 0; d < dimensions; d++) {
+            for (int i = 0; i < n; i++) {
+                strata[d][i] = i;
+            }
+            for (int i = n - 1; i > 0; i--) {//shuffle the strata of each dimension
+                int j = random.nextInt(i + 1);
+                int t = strata[d][i];
+                strata[d][i] = strata[d][j];
+                strata[d][j] = t;
+            }
+        }
+        int[] coords = new int[dimensions];
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < dimensions; d++) {
+                coords[d] = toLevel((strata[d][i] + random.nextDouble()) / n);
+            }
+            points.add(index(coords));
+        }
+    }
+
+    /**
+     * First n points of the Sobol sequence, generated in gray code order
+     */
+    private void sobol(int n, List<Integer> points) {
+        int bits = 31;
+        long[][] v = new long[dimensions][bits];
+        for (int b = 0; b < bits; b++) {
+            v[0][b] = 1L << (bits - 1 - b);
+        }
+        for (int d = 1; d < dimensions; d++) {
+            int[] p = SOBOL_PARAMETERS[d - 1];
+            int s = p[0];
+            int a = p[1];
+            for (int b = 0; b < bits; b++) {
+                if (b < s) {
+                    v[d][b] = (long) p[2 + b] << (bits - 1 - b);
+                } else {
+                    long value = v[d][b - s] ^ (v[d][b - s] >> s);
+                    for (int k = 1; k < s; k++) {
+                        value ^= ((a >> (s - 1 - k)) & 1) * v[d][b - k];
+                    }
+                    v[d][b] = value;
+                }
+            }
+        }
+        long[] x = new long[dimensions];
+        int[] coords = new int[dimensions];
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < dimensions; d++) {
+                coords[d] = toLevel(x[d] / (double) (1L << bits));
+            }
+            points.add(index(coords));
+            int c = Integer.numberOfTrailingZeros(~i); //rightmost zero bit of i
+            for (int d = 0; d < dimensions; d++) {
+                x[d] ^= v[d][c];
+            }
+        }
+    }
+
+    private int toLevel(double u) {
+        return Math.min(levels - 1, (int) Math.round(u * (levels - 1)));
+    }
+
+    /**
+     * Index of a lattice point, the last dimension varies the fastest
+     *
+     * @param coords the level of each parameter
+     * @return index int
+     */
+    public int index(int[] coords) {
+        int index = 0;
+        for (int d = 0; d < dimensions; d++) {
+            if (coords[d] < 0 || coords[d] >= levels) {
+                throw new IllegalArgumentException("Invalid level " + coords[d] + " of parameter " + d);
+            }
+            index = index * levels + coords[d];
+        }
+        return index;
+    }
+
+    /**
+     * Levels of the parameters of a lattice point
+     *
+     * @param index the point index
+     * @return coordinates int[]
+     */
+    public int[] coordinates(int index) {
+        checkPoint(index);
+        int[] coords = new int[dimensions];
+        for (int d = dimensions - 1; d >= 0; d--) {
+            coords[d] = index % levels;
+            index /= levels;
+        }
+        return coords;
+    }
+
+    /**
+     * Checks that the space sampled has a point for each index of the
+     * lattice, the configurations of a parameter space are listed in the
+     * order of the lattice indexes
+     *
+     * @param numConfigurations number of configurations of the space
+     * @throws Exception if the space and the lattice do not match
+     */
+    public void checkSpace(int numConfigurations) throws Exception {
+        if (numConfigurations != getSize()) {
+            throw new Exception("Invalid parameter space: " + numConfigurations
+                    + " configurations for a lattice of " + getSize() + " points");
+        }
+    }
+
+    private void checkPoint(int index) {
+        if (index < 0 || index >= getSize()) {
+            throw new IllegalArgumentException("Invalid point: " + index + " is not in the lattice of " + getSize() + " points");
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package contextswitching.grid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append only journal of the runs completed by a sweep
+ *
+ * Each completed run is recorded as a fixed size record with the
+ * configuration index, the replicate number, the seed used, the result of the
+ * run and a checksum. When a sweep is restarted the journal is read back and
+ * only the runs that are not in it have to be submitted again, the results
+ * read back are used to decide how many runs each configuration still needs
+ *
+ * Runs summarised on the nodes (see <code>ResultSummary</code>) are recorded
+ * as a single variable size record with the summary, it marks every
+ * replicate of the summary as completed.
+ *
+ * Records are written with a single write call and the file can be synced to
+ * disk after each job. If the client dies while a record is being written the
+ * last record is incomplete or fails its checksum, it is discarded and the
+ * file is truncated when the journal is opened again.
+ *
+ * @author Davide Nunes
+ */
+public class CompletionJournal {
+
+    private static final int MAGIC = 0x43534A33; //CSJ3
+    private static final int RUNS_MAGIC = 0x43534A32; //CSJ2, journals with run records only
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 44;
+    //first field of a summary record, the first field of a run record is its configuration
+    private static final int SUMMARY_RECORD = -1;
+    private RandomAccessFile file;
+    private Map<Integer, BitSet> completed;
+    private Map<Integer, List<SimulationResult>> results;
+    private Map<Integer, List<ResultSummary>> summaries;
+    private int numCompleted;
+    private byte[] record;
+    private CRC32 crc;
+
+    private CompletionJournal(RandomAccessFile file) {
+        this.file = file;
+        this.completed = new HashMap<Integer, BitSet>();
+        this.results = new HashMap<Integer, List<SimulationResult>>();
+        this.summaries = new HashMap<Integer, List<ResultSummary>>();
+        this.record = new byte[RECORD_SIZE];
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Opens a journal, creating it if it does not exist
+     *
+     * the journal belongs to a sweep identified by its seed and the size of
+     * its parameter space, opening the journal of a different sweep fails
+     *
+     * @param journalFile the journal file
+     * @param sweepSeed seed of the sweep
+     * @param numConfigurations size of the parameter space
+     * @return journal CompletionJournal with the completed runs loaded
+     * @throws IOException if the file cannot be read or belongs to another sweep
+     */
+    public static CompletionJournal open(File journalFile, long sweepSeed, int numConfigurations)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        CompletionJournal journal = new CompletionJournal(file);
+        try {
+            if (file.length() < HEADER_SIZE) {//new journal
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.writeLong(sweepSeed);
+                file.writeInt(numConfigurations);
+                file.getFD().sync();
+            } else {
+                int magic = file.readInt();
+                if (magic != MAGIC && magic != RUNS_MAGIC) {
+                    throw new IOException("Not a sweep journal: " + journalFile);
+                }
+                long seed = file.readLong();
+                int size = file.readInt();
+                if (seed != sweepSeed || size != numConfigurations) {
+                    throw new IOException("Journal " + journalFile + " belongs to another sweep (seed "
+                            + seed + ", " + size + " configurations)");
+                }
+                if (magic == RUNS_MAGIC) {//its run records are still valid, summaries may follow
+                    file.seek(0);
+                    file.writeInt(MAGIC);
+                    file.seek(HEADER_SIZE);
+                }
+                journal.replay();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Reads the records in the file, a torn or corrupted record ends the
+     * journal and is cut from the file
+     */
+    private void replay() throws IOException {
+        long position = HEADER_SIZE;
+        long length = file.length();
+        file.seek(position);
+        while (position + 8 <= length) {
+            if (file.readInt() == SUMMARY_RECORD) {
+                long end = replaySummary(position, length);
+                if (end < 0) {
+                    break;
+                }
+                position = end;
+                continue;
+            }
+            if (position + RECORD_SIZE > length) {
+                break;
+            }
+            file.seek(position);
+            file.readFully(record);
+            crc.reset();
+            crc.update(record, 0, RECORD_SIZE - 4);
+            if ((int) crc.getValue() != getInt(record, RECORD_SIZE - 4)) {
+                break;
+            }
+            markCompleted(new SimulationResult(getInt(record, 0), getInt(record, 4),
+                    getLong(record, 8), getLong(record, 16), getInt(record, 24),
+                    getInt(record, 28) != 0, getLong(record, 32)));
+            position += RECORD_SIZE;
+        }
+        if (position != length) {
+            System.out.println("Discarding " + (length - position) + " bytes of an incomplete journal record");
+            file.setLength(position);
+        }
+        file.seek(position);
+    }
+
+    /**
+     * Reads a summary record: marker, size, encoded summary and checksum
+     *
+     * @return position after the record, -1 if it is incomplete or corrupted
+     */
+    private long replaySummary(long position, long length) throws IOException {
+        int size = file.readInt();
+        if (size < 0 || position + 12 + size > length) {
+            return -1;
+        }
+        byte[] encoded = new byte[size];
+        file.readFully(encoded);
+        crc.reset();
+        crc.update(encoded);
+        if ((int) crc.getValue() != file.readInt()) {
+            return -1;
+        }
+        ResultSummary summary = new ResultSummary();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(encoded));
+        summary.readExternal(in);
+        markCompleted(summary);
+        return position + 12 + size;
+    }
+
+    /**
+     * Checks if a run was already completed
+     *
+     * @param configuration configuration index
+     * @param replicate replicate number
+     * @return true if the run is in the journal
+     */
+    public synchronized boolean isCompleted(int configuration, int replicate) {
+        BitSet replicates = completed.get(configuration);
+        return replicates != null && replicates.get(replicate);
+    }
+
+    /**
+     * Number of completed replicates of a configuration
+     *
+     * @param configuration configuration index
+     * @return completed replicates
+     */
+    public synchronized int getNumCompleted(int configuration) {
+        BitSet replicates = completed.get(configuration);
+        return replicates == null ? 0 : replicates.cardinality();
+    }
+
+    public synchronized int getNumCompleted() {
+        return numCompleted;
+    }
+
+    /**
+     * The results of the completed runs of a configuration
+     *
+     * @param configuration configuration index
+     * @return results List of results in the order they were recorded
+     */
+    public synchronized List<SimulationResult> getResults(int configuration) {
+        List<SimulationResult> list = results.get(configuration);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<SimulationResult>(list);
+    }
+
+    /**
+     * The summaries of runs of a configuration recorded in the journal
+     *
+     * @param configuration configuration index
+     * @return summaries List in the order they were recorded
+     */
+    public synchronized List<ResultSummary> getSummaries(int configuration) {
+        List<ResultSummary> list = summaries.get(configuration);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<ResultSummary>(list);
+    }
+
+    /**
+     * Appends a completed run to the journal, runs already in the journal are
+     * ignored
+     *
+     * @param result the result of the run
+     * @return true if the run was recorded, false if it was already in the
+     * journal
+     * @throws IOException
+     */
+    public synchronized boolean record(SimulationResult result) throws IOException {
+        if (isCompleted(result.getConfiguration(), result.getReplicate())) {
+            return false;
+        }
+        putInt(record, 0, result.getConfiguration());
+        putInt(record, 4, result.getReplicate());
+        putLong(record, 8, result.getSeed());
+        putLong(record, 16, result.getSteps());
+        putInt(record, 24, result.getNumEncounters());
+        putInt(record, 28, result.isConsensusReached() ? 1 : 0);
+        putLong(record, 32, result.getRuntimeNanos());
+        crc.reset();
+        crc.update(record, 0, RECORD_SIZE - 4);
+        putInt(record, RECORD_SIZE - 4, (int) crc.getValue());
+        file.write(record);
+        markCompleted(result);
+        return true;
+    }
+
+    /**
+     * Appends a summary of completed runs to the journal, a summary with a
+     * run already in the journal is ignored
+     *
+     * @param summary the summary of the runs
+     * @return true if the summary was recorded, false if it has a run already
+     * in the journal
+     * @throws IOException
+     */
+    public synchronized boolean record(ResultSummary summary) throws IOException {
+        for (int replicate : summary.getReplicates()) {
+            if (isCompleted(summary.getConfiguration(), replicate)) {
+                return false;
+            }
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(buffer);
+        summary.writeExternal(out);
+        out.close();
+        byte[] encoded = buffer.toByteArray();
+        crc.reset();
+        crc.update(encoded);
+        byte[] entry = new byte[12 + encoded.length];
+        putInt(entry, 0, SUMMARY_RECORD);
+        putInt(entry, 4, encoded.length);
+        System.arraycopy(encoded, 0, entry, 8, encoded.length);
+        putInt(entry, 8 + encoded.length, (int) crc.getValue());
+        file.write(entry);
+        markCompleted(summary);
+        return true;
+    }
+
+    /**
+     * Forces the records written so far to the disk
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        file.getFD().sync();
+    }
+
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    private void markCompleted(SimulationResult result) {
+        BitSet replicates = replicatesOf(result.getConfiguration());
+        if (!replicates.get(result.getReplicate())) {
+            replicates.set(result.getReplicate());
+            results.get(result.getConfiguration()).add(result);
+            numCompleted++;
+        }
+    }
+
+    private void markCompleted(ResultSummary summary) {
+        BitSet replicates = replicatesOf(summary.getConfiguration());
+        for (int replicate : summary.getReplicates()) {
+            replicates.set(replicate);
+        }
+        summaries.get(summary.getConfiguration()).add(summary);
+        numCompleted += summary.getNumRuns();
+    }
+
+    private BitSet replicatesOf(int configuration) {
+        BitSet replicates = completed.get(configuration);
+        if (replicates == null) {
+            replicates = new BitSet();
+            completed.put(configuration, replicates);
+            results.put(configuration, new ArrayList<SimulationResult>());
+            summaries.put(configuration, new ArrayList<ResultSummary>());
+        }
+        return replicates;
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] b, int offset, long value) {
+        putInt(b, offset, (int) (value >>> 32));
+        putInt(b, offset + 4, (int) value);
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        return ((long) getInt(b, offset) << 32) | (getInt(b, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,82 @@
+package contextswitching.grid;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.jppf.data.transform.JPPFDataTransform;
+
+/**
+ * Deflate compression of the data exchanged between clients, drivers and nodes
+ *
+ * JPPF applies a data transformation to every block of serialized data when
+ * the following property is set in the configuration of the client, the
+ * driver and the nodes:
+ *
+ * <pre>
+ * jppf.data.transform.class = contextswitching.grid.CompressionTransform
+ * </pre>
+ *
+ * the class must be available in the local classpath of all of them. The
+ * compression level can be set with the system property
+ * contextswitching.compression.level (1 is the fastest, 9 the smallest)
+ *
+ * @author Davide Nunes
+ */
+public class CompressionTransform implements JPPFDataTransform {
+
+    private static final int BUFFER_SIZE = 8192;
+    private int level;
+
+    /**
+     * Constructor used by JPPF
+     */
+    public CompressionTransform() {
+        this(Integer.getInteger("contextswitching.compression.level", Deflater.BEST_SPEED));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param level Deflater compression level
+     */
+    public CompressionTransform(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Compresses the data read from the source
+     */
+    public void wrap(InputStream source, OutputStream destination) throws Exception {
+        Deflater deflater = new Deflater(level);
+        DeflaterOutputStream out = new DeflaterOutputStream(destination, deflater, BUFFER_SIZE);
+        try {
+            copy(source, out);
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses the data read from the source
+     */
+    public void unwrap(InputStream source, OutputStream destination) throws Exception {
+        Inflater inflater = new Inflater();
+        try {
+            copy(new InflaterInputStream(source, inflater, BUFFER_SIZE), destination);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws Exception {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+}
@@ -6,7 +6,6 @@ package contextswitching.grid;
 
 import contextswitching.ContextSwitchingModel;
 import contextswitching.ModelConfiguration;
-import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 import org.jppf.JPPFException;
@@ -19,6 +18,13 @@ import org.jppf.server.protocol.JPPFTask;
  * Executes the exploration of a parameter space in an available JPPF grid
  * system This Grid runner sends one job at the time sequentially
  *
+ * each configuration is replicated in waves until the confidence interval of
+ * the mean steps to consensus is narrow enough (see
+ * <code>ReplicationController</code>), the configurations are chosen by an
+ * <code>AdaptiveSampler</code> (see <code>ContextSwitchingParallelGridRunner</code>
+ * for the designs available). The nodes are warmed up before the first job
+ * (see <code>NodeWarmup</code>)
+ *
  * for a more advanced runner that submits N jobs in parallel see
  * <code>ContextSwitchingParallelGridRunner</code>
  *
@@ -27,7 +33,17 @@ import org.jppf.server.protocol.JPPFTask;
 public class ContextSwitchingGridRunner {
 
     private static JPPFClient jppfClient = null;
-    private static final int NUM_RUNS = 30; //number of runs
+    //replicates per configuration: at least MIN_RUNS, at most MAX_RUNS
+    private static final int MIN_RUNS = 10;
+    private static final int MAX_RUNS = 100;
+    //stop when the 95% confidence interval of the mean steps to consensus is within 5% of the mean
+    private static final int[] STOPPING_METRICS = {ReplicationController.STEPS};
+    private static final double RELATIVE_WIDTH = 0.05;
+    private static final double CONFIDENCE = 0.95;
+    //initial design of the sweep: full, grid, lhs or sobol
+    private static final String DESIGN = System.getProperty("contextswitching.sweep.design", "full");
+    private static final int DESIGN_POINTS = Integer.getInteger("contextswitching.sweep.design.points", 64);
+    private static final double REFINEMENT_THRESHOLD = 0.1;
 
 
     /**
@@ -59,24 +75,7 @@ public class ContextSwitchingGridRunner {
              **************************************************
              */
         
-            File[] networks = new File[]{
-                new File("NetworkFiles/barabasi_500.np"),
-                new File("NetworkFiles/regular_500.np"),
-                new File("NetworkFiles/ws_500.np")
-            };
-            int numAgents = 500;
-            //networks are loaded according to number of agents
-            int numContexts = 3;
-            double consensusRequired = 0.8;
-
-            //construct the parameter space
-            LinkedList<ModelConfiguration> ps = new LinkedList<ModelConfiguration>();
-            for (double c1 = 0.0; c1 <= 1.0; c1 += 0.05) {//span of the switching probabilities
-                for (double c2 = 0.0; c2 <= 1.0; c2 += 0.05) {
-                    for(double c3 = 0.0; c3 <=1.0; c3 += 0.05)
-                        ps.addLast(new ModelConfiguration(numAgents, numContexts, consensusRequired, new double[]{c1, c2, c3}, networks));
-                }
-            }
+            List<ModelConfiguration> ps = ParameterSpace.switchingProbabilitySweep();
 
             System.out.println("PARAMETER SPACE DEFINED");
             
@@ -85,23 +84,62 @@ public class ContextSwitchingGridRunner {
              * For each configuration
              * 1. create a context switching model
              * 2. configure the model with the current configuration
-             * 3. Create a grid job with NUM_RUNS tasks with the same model instance
+             * 3. Create a grid job with the next wave of tasks with the same model instance
              * 4. Submit the Job
-             * 5. Collect the results and repeat from 1.
+             * 5. Collect the results, repeat from 3. until the configuration
+             * has enough replicates
              */
-            for(ModelConfiguration config : ps){
+            AdaptiveSampler sampler = new AdaptiveSampler(ParameterSpace.NUM_SWITCHING_PROBS,
+                    ParameterSpace.SWITCHING_LEVELS, REFINEMENT_THRESHOLD, ps.size());
+            sampler.checkSpace(ps.size());
+            LinkedList<Integer> pending = new LinkedList<Integer>(
+                    sampler.initialDesign(AdaptiveSampler.parseDesign(DESIGN), DESIGN_POINTS, System.currentTimeMillis()));
+
+            //the first jobs must not run on cold nodes
+            if (NodeWarmup.ENABLED && !pending.isEmpty()) {
+                NodeWarmup.warmUp(jppfClient, ps.get(pending.getFirst()));
+            }
+            while (!pending.isEmpty()) {
+                int index = pending.removeFirst();
+                ModelConfiguration config = ps.get(index);
                 ContextSwitchingModel model = new ContextSwitchingModel(System.currentTimeMillis());//create a new model and provide a random seed
                 model.configureModel(config);
                 
                 //initialize the model with the current configuration
                 model.initializeModel();
                 
-                JPPFJob job = createJob(model, NUM_RUNS);
-                //execute blocking job wait for the job to terminate and do something with the results
-                List<JPPFTask> results = executeBlockingJob(job);
-                
-                //as an example lets just print the results of the jobs tasks
-                System.out.println(results.toString());
+                ReplicationController replication = new ReplicationController(
+                        STOPPING_METRICS, RELATIVE_WIDTH, CONFIDENCE, MIN_RUNS, MAX_RUNS);
+                while (!replication.isDone()) {
+                    JPPFJob job = createJob(model, replication.nextWave());
+                    //execute blocking job wait for the job to terminate and do something with the results
+                    List<JPPFTask> results = executeBlockingJob(job);
+                    
+                    //as an example lets just print the results of the jobs tasks
+                    System.out.println(results.toString());
+                    int received = 0;
+                    for (JPPFTask task : results) {
+                        if (task.getResult() instanceof SimulationResult) {
+                            replication.addResult((SimulationResult) task.getResult());
+                            received++;
+                        }
+                    }
+                    if (received == 0) {
+                        System.out.println("Every run of the wave failed, skipping configuration");
+                        break;
+                    }
+                }
+                System.out.println("Replicates: " + replication.getNumRuns()
+                        + " mean steps: " + replication.getMean(ReplicationController.STEPS)
+                        + " +- " + replication.getHalfWidth(ReplicationController.STEPS));
+                if (replication.getNumRuns() > 0) {
+                    sampler.setOutcome(index, new double[]{
+                                replication.getMean(ReplicationController.CONSENSUS),
+                                replication.getMean(ReplicationController.STEPS)});
+                }
+                if (pending.isEmpty()) {//refine around the transitions found so far
+                    pending.addAll(sampler.refine());
+                }
     
             }
         } catch (Exception e) {
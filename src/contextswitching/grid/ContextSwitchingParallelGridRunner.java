@@ -5,17 +5,25 @@
 package contextswitching.grid;
 
 import contextswitching.ContextSwitchingModel;
+import contextswitching.LockstepEngine;
 import contextswitching.ModelConfiguration;
+import contextswitching.grid.performance.CostModel;
+import contextswitching.grid.performance.OverheadModel;
 import java.io.File;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.jppf.JPPFException;
 import org.jppf.client.JPPFClient;
 import org.jppf.client.JPPFJob;
-import org.jppf.client.JPPFResultCollector;
-import org.jppf.client.event.TaskResultEvent;
-import org.jppf.client.event.TaskResultListener;
+import org.jppf.scheduling.JPPFSchedule;
 import org.jppf.server.protocol.JPPFTask;
 
 /**
@@ -24,19 +32,142 @@ import org.jppf.server.protocol.JPPFTask;
  * system This Grid runner submits multiple jobs at the time to the grid and
  * collects the results asynchronously
  *
+ * Jobs are submitted through a <code>GridClient</code>: the results of each
+ * job are recorded by its own collector on the result handler threads and
+ * the jobs are taken in the order they complete, the thread that submits
+ * the jobs only updates the statistics of the completed jobs. Up to
+ * <code>contextswitching.sweep.jobs</code> jobs (2 by default) are in
+ * flight, their results are handled by
+ * <code>contextswitching.sweep.handlers</code> threads (2 by default)
+ *
+ * Every completed run is recorded in a journal (see <code>CompletionJournal</code>),
+ * if the sweep is interrupted, running it again with the same journal and
+ * sweep seed only submits the runs that are missing
+ *
+ * The number of replicates of each configuration is not fixed, replicates
+ * are submitted in waves until the confidence intervals of the stopping
+ * metrics are narrow enough (see <code>ReplicationController</code>)
+ *
+ * The configurations explored are chosen by an <code>AdaptiveSampler</code>,
+ * the whole parameter space by default. With the
+ * <code>contextswitching.sweep.design</code> property set to grid, lhs or
+ * sobol the sweep starts from a coarse design and only refines the
+ * parameter space where the consensus rate or the steps to consensus change
+ * sharply
+ *
+ * With the <code>contextswitching.sweep.lockstep</code> property set to a
+ * number R, the replicates of a wave are sent in <code>LockstepTask</code>s
+ * of up to R replicates that share the model and run in lockstep on the node
+ *
+ * With the <code>contextswitching.sweep.aggregate</code> property set to a
+ * number A, the nodes summarise the replicates of each task (see
+ * <code>ResultSummary</code>) and only the summaries are sent back: lockstep
+ * tasks summarise their replicates and, without lockstep, the replicates are
+ * sent in <code>ReplicateBatchTask</code>s of up to A replicates. The result
+ * of each run is only sent if <code>contextswitching.sweep.aggregate.runs</code>
+ * is true. The summary of each configuration is printed when it is done
+ *
+ * Run times differ by orders of magnitude between configurations, the
+ * configurations waiting to be submitted are taken longest first by the run
+ * time predicted by a <code>CostModel</code> learned from the completed runs,
+ * and each job gets a JPPF priority that grows with its predicted run time,
+ * so long runs start early instead of being left at the end of the sweep
+ *
+ * Once a configuration has MIN_DEADLINE_SAMPLES completed runs, its tasks
+ * get a deadline: DEADLINE_FACTOR times the DEADLINE_QUANTILE of its run
+ * times, per run in the task. A task that misses its deadline is stopped on
+ * the node and sends back a <code>PartialResult</code>, its unfinished runs
+ * are resubmitted from their checkpoints with twice the deadline. Jobs are
+ * not waited on one at a time: when the last TAIL_FRACTION of the tasks of
+ * a job is late, a speculative copy of its runs is submitted in a job of its
+ * own, the first copy of a run to complete is the one recorded and a job is
+ * cancelled once every run it is still executing completed in another job.
+ * Deadlines and speculative copies are turned off with
+ * <code>contextswitching.sweep.speculation</code> set to false
+ *
+ * before the first job the nodes are warmed up with the first configuration
+ * of the sweep (see <code>NodeWarmup</code>)
+ *
  * @author Davide Nunes
  */
 public class ContextSwitchingParallelGridRunner {
 
     private static JPPFClient jppfClient = null;
-    private static final int NUM_RUNS = 30; //number of runs
-    private static final int JOBS_IN_PARALLEL = 2;
-    private static Iterator<ModelConfiguration> parameterSpaceIT;
+    //replicates per configuration: at least MIN_RUNS, at most MAX_RUNS
+    private static final int MIN_RUNS = 10;
+    private static final int MAX_RUNS = 100;
+    //stop when the 95% confidence interval of the mean steps to consensus is within 5% of the mean
+    private static final int[] STOPPING_METRICS = {ReplicationController.STEPS};
+    private static final double RELATIVE_WIDTH = 0.05;
+    private static final double CONFIDENCE = 0.95;
+    private static final int JOBS_IN_PARALLEL = Integer.getInteger("contextswitching.sweep.jobs", 2);
+    //threads that record the results received
+    private static final int HANDLER_THREADS = Integer.getInteger("contextswitching.sweep.handlers", 2);
+    //acceptable per job overhead when grouping configurations in a job
+    private static final double TARGET_OVERHEAD = 0.05;
+    private static final int MAX_CONFIGURATIONS_PER_JOB = 20;
+    //seed of the sweep, the seeds of every model and run are derived from it
+    private static final long SWEEP_SEED = Long.getLong("contextswitching.sweep.seed", 1L);
+    //journal of the completed runs, used to resume an interrupted sweep
+    private static final String JOURNAL_FILE = System.getProperty("contextswitching.sweep.journal", "sweep.journal");
+    //initial design of the sweep: full, grid, lhs or sobol
+    private static final String DESIGN = System.getProperty("contextswitching.sweep.design", "full");
+    //points of a lhs or sobol design, stride between levels of a coarse grid
+    private static final int DESIGN_POINTS = Integer.getInteger("contextswitching.sweep.design.points", 64);
+    //change in consensus rate or steps, relative to their range, that is refined
+    private static final double REFINEMENT_THRESHOLD = 0.1;
+    //replicates run in lockstep by a task, 0 to send a SimulationTask per replicate
+    private static final int LOCKSTEP_REPLICATES = Integer.getInteger("contextswitching.sweep.lockstep", 0);
+    //replicates summarised by a task on the node, 0 to send the result of each run
+    private static final int AGGREGATE_REPLICATES = Integer.getInteger("contextswitching.sweep.aggregate", 0);
+    //send the result of each run with the summaries as well
+    private static final boolean AGGREGATE_RUNS = Boolean.getBoolean("contextswitching.sweep.aggregate.runs");
+    //deadlines of the tasks and speculative copies of the late ones
+    private static final boolean SPECULATION = Boolean.parseBoolean(
+            System.getProperty("contextswitching.sweep.speculation", "true"));
+    //deadline of a run: DEADLINE_FACTOR times the DEADLINE_QUANTILE of the run times of its configuration
+    private static final double DEADLINE_QUANTILE = 0.99;
+    private static final double DEADLINE_FACTOR = 3.0;
+    private static final long MIN_DEADLINE_MILLIS = 10000;
+    private static final int MIN_DEADLINE_SAMPLES = MIN_RUNS;
+    //a job is late when its last TAIL_FRACTION of tasks takes SPECULATION_FACTOR times longer than expected
+    private static final double TAIL_FRACTION = 0.25;
+    private static final double SPECULATION_FACTOR = 2.0;
+    private static final long MIN_SPECULATION_MILLIS = 5000;
+    //longest wait for a job to complete, and interval between looks for late jobs
+    private static final long POLL_MILLIS = 1000;
+    private static LinkedList<Integer> pendingConfigurations;  //configurations waiting for their next wave
+    private List<ModelConfiguration> parameterSpace;
+    private ReplicationController[] replication;
+    private ResultSummary[] summaries;  //all the runs received for each configuration
+    private AdaptiveSampler sampler;
+    private int[] nextReplicate;        //first replicate number not yet submitted for each configuration
+    private CompletionJournal journal;
+    private OverheadModel overhead;     //grid overhead constants, null if not measured
+    private CostModel costs;            //predicted run time of each configuration
+    private double totalRunTime;        //sum of the run times received in milliseconds
+    private int completedRuns;
+    private QuantileSketch[] runtimes;  //run times of the completed runs of each configuration in milliseconds
+    private Map<Long, Integer> timeouts;//number of deadlines missed by each run
+    private GridClient grid;
+    private Set<JournalCollector> inFlight;         //jobs submitted and not yet finished or cancelled
+    private Map<Integer, Set<JournalCollector>> jobsByConfiguration;   //jobs in flight with runs of each configuration
+    private Set<JournalCollector> duplicated;       //jobs in flight whose runs may be executed by another job
+    private int waveJobs;                           //jobs in flight with waves of configurations
+    private long lastSpeculation;
 
     /**
      * Constructor
+     * 
+     * loads the grid overhead constants if they were measured 
+     * with <code>OverheadTester</code>
      */
     public ContextSwitchingParallelGridRunner() {
+        try {
+            overhead = OverheadModel.load(new File(OverheadModel.DEFAULT_FILE));
+        } catch (IOException e) {
+            System.out.println("Could not read the grid overhead constants: " + e.getMessage());
+        }
     }
 
     /**
@@ -48,11 +179,9 @@ public class ContextSwitchingParallelGridRunner {
     }
 
     public static void main(String[] args) {
+        //create a runner instance
+        ContextSwitchingParallelGridRunner runner = new ContextSwitchingParallelGridRunner();
         try {
-
-
-            //create a runner instance
-            ContextSwitchingParallelGridRunner runner = new ContextSwitchingParallelGridRunner();
             runner.initJPPFClient();
 
             /**
@@ -61,54 +190,48 @@ public class ContextSwitchingParallelGridRunner {
              * consensus required, span the switching probabilities
              * *************************************************
              */
-            File[] networks = new File[]{
-                new File("NetworkFiles/barabasi_500.np"),
-                new File("NetworkFiles/regular_500.np"),
-                new File("NetworkFiles/ws_500.np")
-            };
-            int numAgents = 500;
-            //networks are loaded according to number of agents
-            int numContexts = 3;
-            double consensusRequired = 0.8;
-
-            //construct the parameter space
-            LinkedList<ModelConfiguration> ps = new LinkedList<ModelConfiguration>();
-            for (double c1 = 0.0; c1 <= 1.0; c1 += 0.05) {//span of the switching probabilities
-                for (double c2 = 0.0; c2 <= 1.0; c2 += 0.05) {
-                    for (double c3 = 0.0; c3 <= 1.0; c3 += 0.05) {
-                        ps.addLast(new ModelConfiguration(numAgents, numContexts, consensusRequired, new double[]{c1, c2, c3}, networks));
-                    }
-                }
-            }
+            List<ModelConfiguration> ps = ParameterSpace.switchingProbabilitySweep();
 
             System.out.println("PARAMETER SPACE DEFINED");
 
-            parameterSpaceIT = ps.iterator();
+            pendingConfigurations = new LinkedList<Integer>();
+            runner.openJournal(ps);
+            runner.startSampling();
+
+            //the first jobs must not run on cold nodes, nor skew the cost model
+            if (NodeWarmup.ENABLED && !pendingConfigurations.isEmpty()) {
+                NodeWarmup.warmUp(jppfClient, ps.get(pendingConfigurations.getFirst()), LOCKSTEP_REPLICATES);
+            }
             /**
              * For each configuration 1. create a context switching model 2.
              * configure the model with the current configuration 3. Create a
-             * grid job with NUM_RUNS tasks with the same model instance 4.
-             * Submit the Job 5. Collect the results and repeat from 1.
+             * grid job with the next wave of replicates 4.
+             * Submit the Job 5. Collect the results, if the configuration
+             * needs more replicates queue it again and repeat from 1.
+             * 6. Once no configuration is waiting, refine the sampling of the 
+             * parameter space around the transitions found so far
              */
             
-            //this is a result collector helpful to recover the task results asynchronously
-            JPPFResultCollector collector = new JPPFResultCollector(NUM_RUNS);
-            
-            //submit JOBS_IN_PARALLEL at first and set this class as the listener
-            for (int i = 0; i < JOBS_IN_PARALLEL; i++) {
-                if (parameterSpaceIT.hasNext()) {
-                    runner.executeNonBlockingJob(createJob(parameterSpaceIT.next(), NUM_RUNS), collector);
+            //each job gets its own result collector, jobs are collected as they complete
+            runner.startGridClient();
+
+            //submit JOBS_IN_PARALLEL at first
+            runner.submitJobs();
 
+            //wait for jobs to complete collect the results and submit another job,
+            //late jobs get a speculative copy and jobs left with duplicates only are cancelled
+            while (!runner.inFlight.isEmpty()) {
+                JobHandle completed = runner.grid.poll(POLL_MILLIS);
+                if (completed != null) {
+                    runner.finish((JournalCollector) completed.getHandler());
                 }
-            }
-            
-            //wait for jobs to finish collect the results and submit another job
-            while(parameterSpaceIT.hasNext()){
-                List<JPPFTask> results = collector.waitForResults();
-                //do something with the results
-                runner.executeNonBlockingJob(createJob(parameterSpaceIT.next(), NUM_RUNS), collector);
+                runner.cancelDuplicates();
+                runner.speculate();
+                runner.submitJobs();
             }
             //done
+            System.out.println("Sweep finished: " + runner.sampler.getNumRequested() + " of "
+                    + ps.size() + " configurations explored, " + runner.journal.getNumCompleted() + " runs");
 
 
 
@@ -116,56 +239,844 @@ public class ContextSwitchingParallelGridRunner {
             System.out.println("Something went wrong: " + e.getMessage());
         } finally {
             //close the client
+            if (runner.grid != null) {
+                runner.grid.close();
+            }
             if (jppfClient != null) {
                 jppfClient.close();
             }
+            runner.closeJournal();
         }
     }
 
     /**
-     * Creates a model consisting of numRuns tasks with the same model, this is
-     * runs numRuns times the same configuration
+     * Opens the journal of the sweep, the replication statistics are rebuilt 
+     * from the results in the journal
      *
-     * @param model ContextSwitchingModel - the model to be runned
-     * @param numRuns number of repetitions for this configuration
+     * @param ps the parameter space
+     * @throws Exception
+     */
+    private void openJournal(List<ModelConfiguration> ps) throws Exception {
+        parameterSpace = ps;
+        journal = CompletionJournal.open(new File(JOURNAL_FILE), SWEEP_SEED, ps.size());
+        replication = new ReplicationController[ps.size()];
+        summaries = new ResultSummary[ps.size()];
+        costs = new CostModel();
+        runtimes = new QuantileSketch[ps.size()];
+        timeouts = new HashMap<Long, Integer>();
+        nextReplicate = new int[ps.size()];
+        for (int i = 0; i < ps.size(); i++) {
+            replication[i] = new ReplicationController(STOPPING_METRICS, RELATIVE_WIDTH, CONFIDENCE, MIN_RUNS, MAX_RUNS);
+            summaries[i] = new ResultSummary(i, false);
+            for (SimulationResult result : journal.getResults(i)) {
+                replication[i].addResult(result);
+                summaries[i].add(result);
+            }
+            for (ResultSummary summary : journal.getSummaries(i)) {
+                replication[i].addSummary(summary);
+                summaries[i].merge(summary);
+            }
+            costs.observe(i, ps.get(i), summaries[i].getRuntimeNanos() / 1e6, summaries[i].getNumRuns());
+            runtimes[i] = new QuantileSketch();
+            for (SimulationResult result : journal.getResults(i)) {
+                runtimes[i].add(result.getRuntimeNanos() / 1e6);
+            }
+            for (ResultSummary summary : journal.getSummaries(i)) {
+                addRunTimes(runtimes[i], summary);
+            }
+        }
+        if (journal.getNumCompleted() > 0) {
+            System.out.println("Resuming sweep: " + journal.getNumCompleted() + " runs already completed");
+        }
+    }
+
+    /**
+     * Creates the client that submits the jobs and hands their results to
+     * the collectors
+     */
+    private void startGridClient() {
+        grid = new GridClient(jppfClient, HANDLER_THREADS);
+        inFlight = new LinkedHashSet<JournalCollector>();
+        jobsByConfiguration = new HashMap<Integer, Set<JournalCollector>>();
+        duplicated = new LinkedHashSet<JournalCollector>();
+    }
+
+    /**
+     * Creates the sampler of the parameter space and queues its initial design
      *
-     * @return job JPPFJob - a newly created job
+     * the design and the refinements are deterministic, when a sweep is 
+     * resumed the configurations completed in the journal are fed back to
+     * the sampler and the same refinements are found again
+     *
+     * @throws Exception if the design is unknown
      */
-    private static JPPFJob createJob(ModelConfiguration config, int numRuns)
-            throws JPPFException {
+    private void startSampling() throws Exception {
+        int design = AdaptiveSampler.parseDesign(DESIGN);
+        sampler = new AdaptiveSampler(ParameterSpace.NUM_SWITCHING_PROBS, ParameterSpace.SWITCHING_LEVELS,
+                REFINEMENT_THRESHOLD, parameterSpace.size());
+        sampler.checkSpace(parameterSpace.size());
+        queue(sampler.initialDesign(design, DESIGN_POINTS, SWEEP_SEED));
+        refineSampling();
+    }
 
-        ContextSwitchingModel model = new ContextSwitchingModel(System.currentTimeMillis());//create a new model and provide a random seed
-        model.configureModel(config);
+    /**
+     * Queues configurations for execution, configurations that already have
+     * enough replicates are handed back to the sampler and their summary is
+     * printed
+     *
+     * @param configurations configuration indexes
+     */
+    private void queue(List<Integer> configurations) {
+        for (int index : configurations) {
+            if (replication[index].isDone()) {
+                System.out.println("Configuration done: " + summaries[index]);
+                sampler.setOutcome(index, outcome(index));
+            } else {
+                pendingConfigurations.addLast(index);
+            }
+        }
+    }
 
-        //initialize the model with the current configuration
-        model.initializeModel();
-        // create a JPPF job
-        JPPFJob job = new JPPFJob();
+    /**
+     * Queues the refinements of the parameter space when there is nothing
+     * left to be submitted
+     */
+    private void refineSampling() {
+        while (pendingConfigurations.isEmpty()) {
+            List<Integer> refinement = sampler.refine();
+            if (refinement.isEmpty()) {
+                return;
+            }
+            queue(refinement);
+        }
+    }
+
+    /**
+     * Outcome metrics of a configuration used to find the transitions:
+     * consensus rate and mean steps
+     */
+    private double[] outcome(int index) {
+        return new double[]{
+                    replication[index].getMean(ReplicationController.CONSENSUS),
+                    replication[index].getMean(ReplicationController.STEPS)};
+    }
+
+    private void closeJournal() {
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not close the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Number of configurations to be grouped in the next job
+     * 
+     * if the grid overhead constants measured by <code>OverheadTester</code>
+     * are available, configurations are grouped so that the per job overhead 
+     * stays under TARGET_OVERHEAD of the job compute time, the run time is 
+     * estimated from the results received so far
+     * 
+     * @return batch size int
+     */
+    private int configurationsPerJob() {
+        if (overhead == null || completedRuns == 0) {
+            return 1;
+        }
+        double meanRunTime = totalRunTime / completedRuns;
+        //the first wave of each configuration is the smallest one
+        return overhead.configurationsPerJob(MIN_RUNS, meanRunTime, TARGET_OVERHEAD, MAX_CONFIGURATIONS_PER_JOB);
+    }
+
+    /**
+     * Records the execution time of the runs accepted from a job
+     * 
+     * @param collector the collector of the job
+     */
+    private void recordRunTimes(JournalCollector collector) {
+        for (SimulationResult result : collector.results) {
+            int index = result.getConfiguration();
+            totalRunTime += result.getRuntimeNanos() / 1e6;
+            completedRuns++;
+            costs.observe(index, parameterSpace.get(index), result.getRuntimeNanos() / 1e6, 1);
+            runtimes[index].add(result.getRuntimeNanos() / 1e6);
+        }
+        for (ResultSummary summary : collector.summaries) {
+            int index = summary.getConfiguration();
+            totalRunTime += summary.getRuntimeNanos() / 1e6;
+            completedRuns += summary.getNumRuns();
+            costs.observe(index, parameterSpace.get(index), summary.getRuntimeNanos() / 1e6, summary.getNumRuns());
+            addRunTimes(runtimes[index], summary);
+        }
+    }
+
+    /**
+     * Adds the runs of a summary to a sketch of run times, the summary only
+     * has their total so each run counts with the mean run time
+     */
+    private static void addRunTimes(QuantileSketch sketch, ResultSummary summary) {
+        double mean = summary.getRuntimeNanos() / 1e6 / summary.getNumRuns();
+        for (int r = 0; r < summary.getNumRuns(); r++) {
+            sketch.add(mean);
+        }
+    }
+
+    /**
+     * The results in the result of a task, one for a <code>SimulationTask</code>
+     * and one per replicate for a <code>LockstepTask</code>, tasks that
+     * summarise their replicates have no results (see <code>summaryOf</code>)
+     *
+     * @param result the result of a task, or the completed part of a
+     * <code>PartialResult</code>
+     * @return results List empty if there is no result
+     */
+    private static List<SimulationResult> resultsOf(Object result) {
+        List<SimulationResult> results = new ArrayList<SimulationResult>();
+        if (result instanceof SimulationResult) {
+            results.add((SimulationResult) result);
+        } else if (result instanceof SimulationResult[]) {
+            results.addAll(Arrays.asList((SimulationResult[]) result));
+        }
+        return results;
+    }
+
+    /**
+     * The summary of the replicates of a task that summarised them on the node
+     *
+     * @param result the result of a task, or the completed part of a
+     * <code>PartialResult</code>
+     * @return summary ResultSummary or null if the task did not summarise
+     * its replicates
+     */
+    private static ResultSummary summaryOf(Object result) {
+        return result instanceof ResultSummary ? (ResultSummary) result : null;
+    }
+
+    private static int configurationOf(JPPFTask task) {
+        if (task instanceof LockstepTask) {
+            return ((LockstepTask) task).getConfiguration();
+        }
+        if (task instanceof ReplicateBatchTask) {
+            return ((ReplicateBatchTask) task).getConfiguration();
+        }
+        return ((SimulationTask) task).getConfiguration();
+    }
+
+    /**
+     * The runs executed by a task, see <code>runKey</code>
+     *
+     * @param task a task of the sweep
+     * @return runs long[]
+     */
+    private static long[] runsOf(JPPFTask task) {
+        int index = configurationOf(task);
+        int[] replicates;
+        if (task instanceof LockstepTask) {
+            replicates = ((LockstepTask) task).getReplicates();
+        } else if (task instanceof ReplicateBatchTask) {
+            replicates = ((ReplicateBatchTask) task).getReplicates();
+        } else {
+            replicates = new int[]{((SimulationTask) task).getReplicate()};
+        }
+        long[] runs = new long[replicates.length];
+        for (int r = 0; r < replicates.length; r++) {
+            runs[r] = runKey(index, replicates[r]);
+        }
+        return runs;
+    }
+
+    /**
+     * Identifies a run of the sweep by its configuration and replicate number
+     */
+    private static long runKey(int configuration, int replicate) {
+        return ((long) configuration << 32) | (replicate & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Adds the results accepted from a job to the replication statistics and
+     * queues the configurations of the job that need another wave, a
+     * configuration is only queued once none of its runs is still being
+     * executed by another job
+     *
+     * @param collector the collector of the job
+     */
+    private void updateReplication(JournalCollector collector) {
+        for (SimulationResult result : collector.results) {
+            replication[result.getConfiguration()].addResult(result);
+            summaries[result.getConfiguration()].add(result);
+        }
+        for (ResultSummary summary : collector.summaries) {
+            replication[summary.getConfiguration()].addSummary(summary);
+            summaries[summary.getConfiguration()].merge(summary);
+        }
+        for (int index : collector.failed) {//a wave without a single result would fail again
+            if (!collector.answered.contains(index)) {
+                System.out.println("Every run of configuration " + index + " failed, skipping it");
+            }
+        }
+        List<Integer> ready = new ArrayList<Integer>();
+        for (int index : collector.answered) {
+            if (!isInFlight(index) && !pendingConfigurations.contains(index) && !sampler.hasOutcome(index)) {
+                ready.add(index);
+            }
+        }
+        queue(ready);
+        refineSampling();
+    }
+
+    /**
+     * Checks if a job still executes runs of a configuration or holds results
+     * of its runs not yet added to the replication statistics
+     */
+    private boolean isInFlight(int index) {
+        Set<JournalCollector> jobs = jobsByConfiguration.get(index);
+        if (jobs != null) {
+            for (JournalCollector collector : jobs) {
+                if (collector.holds(index)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Submits jobs with the next waves until JOBS_IN_PARALLEL jobs, not
+     * counting the copies of runs, are in flight
+     *
+     * @throws Exception
+     */
+    private void submitJobs() throws Exception {
+        while (waveJobs < JOBS_IN_PARALLEL && !pendingConfigurations.isEmpty()) {
+            submitNextBatch();
+        }
+    }
+
+    /**
+     * Submits a job and registers its collector as in flight
+     *
+     * @param job the job
+     * @param copy true if the job runs copies of runs of other jobs
+     * @return collector JournalCollector - the collector for the job results
+     * @throws Exception
+     */
+    private JournalCollector submit(JPPFJob job, boolean copy) throws Exception {
+        JournalCollector collector = new JournalCollector(job, copy);
+        collector.handle = grid.submit(job, collector);
+        inFlight.add(collector);
+        for (int index : collector.configurations) {
+            Set<JournalCollector> jobs = jobsByConfiguration.get(index);
+            if (jobs == null) {
+                jobs = new HashSet<JournalCollector>();
+                jobsByConfiguration.put(index, jobs);
+            }
+            jobs.add(collector);
+        }
+        if (copy) {
+            duplicated.add(collector);
+        } else {
+            waveJobs++;
+        }
+        return collector;
+    }
 
-        // add a task to the job.
-        for (int i = 0; i < numRuns; i++) {
-            job.addTask(new SimulationTask(model));
+    /**
+     * Removes a completed or cancelled job, adds its results to the
+     * statistics and resubmits its runs that were stopped by their deadline
+     *
+     * @param collector the collector of the job
+     * @throws Exception
+     */
+    private void finish(JournalCollector collector) throws Exception {
+        if (!inFlight.remove(collector)) {
+            return;
         }
-        return job;
+        for (int index : collector.configurations) {
+            Set<JournalCollector> jobs = jobsByConfiguration.get(index);
+            jobs.remove(collector);
+            if (jobs.isEmpty()) {
+                jobsByConfiguration.remove(index);
+            }
+        }
+        duplicated.remove(collector);
+        if (!collector.copy) {
+            waveJobs--;
+        }
+        collector.close();
+        journal.sync();
+        recordRunTimes(collector);
+        resubmitUnfinished(collector);
+        updateReplication(collector);
     }
 
     /**
-     * Submits a job to the grid, The results will be received by a Task Result
-     * Listener This is used to submit multiple jobs in parallel
+     * Resubmits the runs of a job that did not finish, from their checkpoints
+     * if they have one, unless they completed or are being executed in
+     * another job. Each deadline missed doubles the deadline of the run
      *
-     * @param job JPPFJob the job to be submitted
+     * @param collector the collector of the job
+     * @throws Exception
+     */
+    private void resubmitUnfinished(JournalCollector collector) throws Exception {
+        List<SimulationResult> runs = new ArrayList<SimulationResult>();
+        List<byte[]> checkpoints = new ArrayList<byte[]>();
+        for (int r = 0; r < collector.unfinished.size(); r++) {
+            SimulationResult run = collector.unfinished.get(r);
+            long key = runKey(run.getConfiguration(), run.getReplicate());
+            if (journal.isCompleted(run.getConfiguration(), run.getReplicate()) || isExecuting(key)) {
+                continue;
+            }
+            Integer missed = timeouts.get(key);
+            timeouts.put(key, missed == null ? 1 : missed + 1);
+            runs.add(run);
+            checkpoints.add(collector.checkpoints.get(r));
+        }
+        if (!runs.isEmpty()) {
+            System.out.println("Resubmitting " + runs.size() + " unfinished runs");
+            submitCopies(runs, checkpoints);
+        }
+    }
+
+    private boolean isExecuting(long run) {
+        Set<JournalCollector> jobs = jobsByConfiguration.get((int) (run >>> 32));
+        if (jobs != null) {
+            for (JournalCollector collector : jobs) {
+                if (collector.isExecuting(run)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Submits a speculative copy of the late runs of each late job, a job
+     * is late when the last TAIL_FRACTION of its tasks is still running
+     * SPECULATION_FACTOR times longer than the expected time of a task, or
+     * than the time the job took to receive the other results. The copies
+     * only run the runs, each in a task of its own, and every job gets at
+     * most one copy. The jobs are looked at once every POLL_MILLIS
      *
      * @throws Exception
      */
-    private void executeNonBlockingJob(JPPFJob job, TaskResultListener listener) throws Exception {
-        // set the job in blocking mode.
-        job.setBlocking(false);
+    private void speculate() throws Exception {
+        long now = System.currentTimeMillis();
+        if (!SPECULATION || now - lastSpeculation < POLL_MILLIS) {
+            return;
+        }
+        lastSpeculation = now;
+        for (JournalCollector collector : new ArrayList<JournalCollector>(inFlight)) {
+            if (collector.copy || collector.speculated || collector.handle.isDone()
+                    || collector.received < (int) (collector.count * (1 - TAIL_FRACTION))) {
+                continue;
+            }
+            List<Long> late = collector.getExecuting();
+            if (late.isEmpty()) {
+                continue;
+            }
+            double expected = 0;
+            for (long run : late) {
+                int index = (int) (run >>> 32);
+                expected = Math.max(expected, costs.predict(index, parameterSpace.get(index)));
+            }
+            expected *= collector.runsPerTask;
+            double allowed = SPECULATION_FACTOR * Math.max(Math.max(MIN_SPECULATION_MILLIS, expected),
+                    collector.lastReceived - collector.submitted);
+            if (now - collector.submitted <= allowed) {
+                continue;
+            }
+            List<SimulationResult> runs = new ArrayList<SimulationResult>();
+            List<byte[]> checkpoints = new ArrayList<byte[]>();
+            for (long run : late) {
+                int index = (int) (run >>> 32);
+                int replicate = (int) run;
+                runs.add(new SimulationResult(index, replicate, ParameterSpace.runSeed(SWEEP_SEED, index, replicate),
+                        0, 0, false, 0));
+                checkpoints.add(null);
+            }
+            collector.speculated = true;
+            duplicated.add(collector);
+            System.out.println("Submitting a speculative copy of " + runs.size() + " late runs");
+            submitCopies(runs, checkpoints);
+        }
+    }
+
+    /**
+     * Cancels the jobs whose runs still executing all completed in other
+     * jobs, the nodes stop their tasks (see <code>SimulationTask.onCancel()</code>).
+     * A cancelled job is completed, the results it received are added to the
+     * statistics when it is taken from the client
+     */
+    private void cancelDuplicates() {
+        for (JournalCollector collector : new ArrayList<JournalCollector>(duplicated)) {
+            if (!collector.handle.isDone() && collector.getExecuting().isEmpty()) {
+                collector.handle.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Deadline of the tasks of a configuration
+     *
+     * @param index configuration index
+     * @return deadline long in milliseconds per run, 0 if the configuration
+     * has too few completed runs to have one
+     */
+    private long deadlineMillis(int index) {
+        if (!SPECULATION || runtimes[index].getCount() < MIN_DEADLINE_SAMPLES) {
+            return 0;
+        }
+        double quantile = runtimes[index].getQuantile(DEADLINE_QUANTILE);
+        return Math.max(MIN_DEADLINE_MILLIS, (long) (DEADLINE_FACTOR * quantile));
+    }
+
+    /**
+     * Sets the timeout of a task from the deadline of its configuration
+     *
+     * @param task the task
+     * @param index configuration index
+     * @param runs number of runs in the task
+     * @param missed deadlines already missed by the runs, each one doubles
+     * the deadline
+     */
+    private void setDeadline(JPPFTask task, int index, int runs, int missed) {
+        long deadline = deadlineMillis(index);
+        if (deadline > 0) {
+            task.setTimeoutSchedule(new JPPFSchedule(deadline * runs * (1L << Math.min(missed, 16))));
+        }
+    }
+
+    /**
+     * Creates a job with the next wave of the next batch of configurations
+     * and submits it, the configurations with the longest predicted run time
+     * go first
+     * 
+     * @return collector JournalCollector - the collector for the job results
+     * @throws Exception 
+     */
+    private JournalCollector submitNextBatch() throws Exception {
+        int batchSize = configurationsPerJob();
+        JPPFJob job = new JPPFJob();
+        double longest = 0;
+        for (int i = 0; i < batchSize && !pendingConfigurations.isEmpty(); i++) {
+            int index = removeLongest();
+            longest = Math.max(longest, costs.predict(index, parameterSpace.get(index)));
+            addTasks(job, index, replication[index].nextWave());
+        }
+        job.getJobSLA().setPriority(priority(longest));
+        return submit(job, false);
+    }
+
+    /**
+     * Creates a job with a task for each of the given runs and submits it,
+     * the job gets a higher priority than a wave of the same runs. The runs
+     * of a configuration executed in lockstep are copied in a
+     * <code>LockstepTask</code> of their own with the same seed, a
+     * <code>SimulationTask</code> draws different random numbers from the
+     * same seed and a run that misses its deadline would be replaced by
+     * another run of the configuration
+     *
+     * @param runs the runs to be executed, the state they reached if they
+     * are resumed
+     * @param checkpoints the checkpoint each run resumes from, null to start
+     * the run
+     * @return collector JournalCollector - the collector for the job results
+     * @throws Exception
+     */
+    private JournalCollector submitCopies(List<SimulationResult> runs, List<byte[]> checkpoints) throws Exception {
+        JPPFJob job = new JPPFJob();
+        Map<Integer, ContextSwitchingModel> models = new HashMap<Integer, ContextSwitchingModel>();
+        double longest = 0;
+        for (int r = 0; r < runs.size(); r++) {
+            SimulationResult run = runs.get(r);
+            int index = run.getConfiguration();
+            ContextSwitchingModel model = models.get(index);
+            if (model == null) {
+                model = createModel(index);
+                models.put(index, model);
+                longest = Math.max(longest, costs.predict(index, parameterSpace.get(index)));
+            }
+            JPPFTask task;
+            if (usesLockstep(model)) {
+                task = new LockstepTask(model, index, new int[]{run.getReplicate()}, new long[]{run.getSeed()});
+            } else {
+                SimulationTask simulation = new SimulationTask(model, run.getSeed(), index, run.getReplicate());
+                if (checkpoints.get(r) != null) {
+                    simulation.resume(checkpoints.get(r), run.getRuntimeNanos());
+                }
+                task = simulation;
+            }
+            Integer missed = timeouts.get(runKey(index, run.getReplicate()));
+            setDeadline(task, index, 1, missed == null ? 0 : missed);
+            job.addTask(task);
+        }
+        job.getJobSLA().setPriority(priority(longest) + 1);
+        return submit(job, true);
+    }
+
+    /**
+     * Removes the pending configuration with the longest predicted run time,
+     * the first one queued among equal predictions
+     *
+     * @return configuration index
+     */
+    private int removeLongest() {
+        int best = 0;
+        double bestCost = Double.NEGATIVE_INFINITY;
+        int position = 0;
+        for (int index : pendingConfigurations) {
+            double cost = costs.predict(index, parameterSpace.get(index));
+            if (cost > bestCost) {
+                bestCost = cost;
+                best = position;
+            }
+            position++;
+        }
+        return pendingConfigurations.remove(best);
+    }
+
+    /**
+     * JPPF priority of a job, the drivers dispatch the jobs with higher
+     * priority first: the number of doublings of the predicted run time over
+     * a millisecond
+     *
+     * @param runtimeMillis predicted run time of the longest run of the job
+     * @return priority int
+     */
+    private static int priority(double runtimeMillis) {
+        return runtimeMillis <= 1 ? 0 : (int) (Math.log(runtimeMillis) / Math.log(2));
+    }
+
+    /**
+     * Adds the tasks with the same model to a job, this is
+     * runs numRuns more times the same configuration, the replicate numbers
+     * continue from the last wave skipping the runs already recorded in the 
+     * journal. With lockstep replicates the runs are grouped in
+     * LOCKSTEP_REPLICATES per task, with aggregation and without lockstep in
+     * AGGREGATE_REPLICATES per task
+     *
+     * @param job JPPFJob - the job that receives the tasks
+     * @param index configuration index in the parameter space
+     * @param numRuns number of repetitions to be added for this configuration
+     */
+    private void addTasks(JPPFJob job, int index, int numRuns)
+            throws JPPFException {
 
-        // Submit the job and wait until the results are returned.
-        // The results are returned as a list of JPPFTask instances,
-        // in the same order as the one in which the tasks where initially added the job.
-        System.out.println("Job submited");
-        job.setResultListener(listener);
-        jppfClient.submit(job); //simulation results
+        ContextSwitchingModel model = createModel(index);
+
+        int[] replicates = new int[numRuns];
+        long[] seeds = new long[numRuns];
+        int added = 0;
+        while (added < numRuns) {
+            int i = nextReplicate[index]++;
+            if (!journal.isCompleted(index, i)) {
+                replicates[added] = i;
+                seeds[added] = ParameterSpace.runSeed(SWEEP_SEED, index, i);
+                added++;
+            }
+        }
+
+        // add the tasks to the job, lockstep only for the models the engine supports
+        if (usesLockstep(model)) {
+            for (int from = 0; from < numRuns; from += LOCKSTEP_REPLICATES) {
+                int to = Math.min(numRuns, from + LOCKSTEP_REPLICATES);
+                JPPFTask task = new LockstepTask(model, index,
+                        Arrays.copyOfRange(replicates, from, to), Arrays.copyOfRange(seeds, from, to),
+                        AGGREGATE_REPLICATES > 0, AGGREGATE_RUNS);
+                setDeadline(task, index, to - from, 0);
+                job.addTask(task);
+            }
+        } else if (AGGREGATE_REPLICATES > 0) {
+            for (int from = 0; from < numRuns; from += AGGREGATE_REPLICATES) {
+                int to = Math.min(numRuns, from + AGGREGATE_REPLICATES);
+                JPPFTask task = new ReplicateBatchTask(model, index,
+                        Arrays.copyOfRange(replicates, from, to), Arrays.copyOfRange(seeds, from, to),
+                        AGGREGATE_RUNS);
+                setDeadline(task, index, to - from, 0);
+                job.addTask(task);
+            }
+        } else {
+            for (int r = 0; r < numRuns; r++) {
+                JPPFTask task = new SimulationTask(model, seeds[r], index, replicates[r]);
+                setDeadline(task, index, 1, 0);
+                job.addTask(task);
+            }
+        }
+    }
+
+    /**
+     * Tells if the runs of a configuration are executed in lockstep, only
+     * the models the engine supports are
+     *
+     * @param model the initialized model of the configuration
+     * @return true if the runs are sent in <code>LockstepTask</code>s
+     */
+    private static boolean usesLockstep(ContextSwitchingModel model) {
+        return LOCKSTEP_REPLICATES > 0 && LockstepEngine.supports(model);
+    }
+
+    /**
+     * Creates the initialized model of a configuration, with the seed of the
+     * configuration
+     *
+     * @param index configuration index in the parameter space
+     * @return model ContextSwitchingModel
+     */
+    private ContextSwitchingModel createModel(int index) {
+        ContextSwitchingModel model = new ContextSwitchingModel(ParameterSpace.runSeed(SWEEP_SEED, index, -1));
+        model.configureModel(parameterSpace.get(index));
+        model.initializeModel();
+        return model;
+    }
+
+    /**
+     * Result collector that records each run, or summary of runs, in the
+     * journal as soon as its result is received, on the result handler
+     * threads of the grid client
+     *
+     * only the results of runs not yet in the journal are accepted, the
+     * others were completed by another copy of the run. The collector keeps
+     * the runs of the job still executing, the results accepted and the
+     * runs that did not finish, until the job is finished or cancelled and
+     * the collector closed
+     */
+    private class JournalCollector implements ResultHandler {
+
+        private JobHandle handle;
+        private final boolean copy;             //the job runs copies of runs of other jobs
+        private final int count;
+        private final int runsPerTask;
+        private final long submitted;
+        private volatile long lastReceived;
+        private volatile int received;
+        private boolean speculated;             //a speculative copy of the late runs was submitted
+        private boolean closed;
+        private final Set<Long> executing = new HashSet<Long>();
+        private final Set<Integer> configurations = new HashSet<Integer>();
+        private final Set<Integer> answered = new HashSet<Integer>();  //configurations with a task that did not fail
+        private final Set<Integer> failed = new HashSet<Integer>();    //configurations with a task that failed
+        private final Set<Integer> held = new HashSet<Integer>();      //configurations with accepted results
+        private final List<SimulationResult> results = new ArrayList<SimulationResult>();
+        private final List<ResultSummary> summaries = new ArrayList<ResultSummary>();
+        private final List<SimulationResult> unfinished = new ArrayList<SimulationResult>();
+        private final List<byte[]> checkpoints = new ArrayList<byte[]>();
+
+        public JournalCollector(JPPFJob job, boolean copy) {
+            this.copy = copy;
+            this.count = job.getTasks().size();
+            int most = 0;
+            for (JPPFTask task : job.getTasks()) {
+                long[] runs = runsOf(task);
+                for (long run : runs) {
+                    executing.add(run);
+                }
+                most = Math.max(most, runs.length);
+                configurations.add(configurationOf(task));
+            }
+            this.runsPerTask = most;
+            this.submitted = System.currentTimeMillis();
+            this.lastReceived = submitted;
+        }
+
+        public synchronized void handle(JobHandle job, List<JPPFTask> tasks) {
+            lastReceived = System.currentTimeMillis();
+            received += tasks.size();
+            for (JPPFTask task : tasks) {
+                for (long run : runsOf(task)) {
+                    executing.remove(run);
+                }
+                if (!closed) {
+                    accept(task);
+                }
+            }
+        }
+
+        private void accept(JPPFTask task) {
+            int index = configurationOf(task);
+            if (task.getException() != null) {
+                failed.add(index);
+                return;
+            }
+            answered.add(index);
+            Object result = task.getResult();
+            if (result instanceof PartialResult) {
+                PartialResult partial = (PartialResult) result;
+                System.out.println("Deadline missed: " + partial);
+                for (int r = 0; r < partial.getUnfinished().length; r++) {
+                    unfinished.add(partial.getUnfinished()[r]);
+                    checkpoints.add(partial.getCheckpoint(r));
+                }
+                result = partial.getCompleted();
+            }
+            try {
+                for (SimulationResult run : resultsOf(result)) {
+                    if (journal.record(run)) {
+                        results.add(run);
+                        held.add(index);
+                    }
+                }
+                ResultSummary summary = summaryOf(result);
+                if (summary != null && summary.getNumRuns() > 0) {
+                    if (journal.record(summary)) {
+                        summaries.add(summary);
+                        held.add(index);
+                    } else {//some runs completed in another job, the others run again
+                        for (int replicate : summary.getReplicates()) {
+                            if (!journal.isCompleted(index, replicate)) {
+                                unfinished.add(new SimulationResult(index, replicate,
+                                        ParameterSpace.runSeed(SWEEP_SEED, index, replicate), 0, 0, false, 0));
+                                checkpoints.add(null);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not write to the journal: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Stops accepting results, the results received afterwards are
+         * neither recorded nor kept
+         */
+        public synchronized void close() {
+            closed = true;
+        }
+
+        /**
+         * The runs of the job still executing that did not complete in
+         * another job
+         */
+        public synchronized List<Long> getExecuting() {
+            List<Long> runs = new ArrayList<Long>();
+            for (long run : executing) {
+                if (!journal.isCompleted((int) (run >>> 32), (int) run)) {
+                    runs.add(run);
+                }
+            }
+            return runs;
+        }
+
+        public synchronized boolean isExecuting(long run) {
+            return executing.contains(run) && !journal.isCompleted((int) (run >>> 32), (int) run);
+        }
+
+        /**
+         * Checks if the job executes runs of a configuration or holds results
+         * of the configuration
+         */
+        public synchronized boolean holds(int index) {
+            if (held.contains(index)) {
+                return true;
+            }
+            for (long run : executing) {
+                if ((int) (run >>> 32) == index && !journal.isCompleted(index, (int) run)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
@@ -0,0 +1,158 @@
+package contextswitching.grid;
+
+import contextswitching.ModelConfiguration;
+import contextswitching.offheap.OffHeapModel;
+import contextswitching.partition.ExchangeHub;
+import contextswitching.partition.Partition;
+import contextswitching.partition.PartitionedRun;
+import java.io.File;
+import java.net.InetAddress;
+import java.util.List;
+import org.jppf.client.JPPFClient;
+import org.jppf.client.JPPFClientConnection;
+import org.jppf.client.JPPFClientConnectionImpl;
+import org.jppf.client.JPPFJob;
+import org.jppf.management.JPPFManagementInfo;
+import org.jppf.management.JPPFSystemInformation;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Runs a single model split in partitions over the nodes of a JPPF grid
+ *
+ * the agents are partitioned on the client (see <code>PartitionedRun</code>),
+ * with the networks loaded off heap from the network files, and each
+ * partition is sent to a node in a <code>PartitionTask</code>. The
+ * partitions exchange the updates of their boundary agents at every step
+ * through an <code>ExchangeHub</code> started on the client, on the port of
+ * <code>contextswitching.partition.port</code> (any free port by default),
+ * which the nodes reach at <code>contextswitching.partition.host</code> (the
+ * address of this host by default). The job of a run holds one task per
+ * partition, all of them must execute at the same time: if the grid has
+ * fewer concurrent execution slots (processing threads over all the nodes)
+ * than <code>contextswitching.partitions</code>, the tasks that started wait
+ * for the others until <code>contextswitching.partition.timeout</code>
+ * expires and the run fails. The runner counts the slots of the nodes
+ * through the management interface of the driver and does not submit the
+ * job when there are too few.
+ *
+ * with <code>-Dcontextswitching.partition.inprocess=true</code> the
+ * partitions run in threads of the client instead, no grid is needed
+ *
+ * @author Davide Nunes
+ */
+public class ContextSwitchingPartitionedRunner {
+
+    private static final int PARTITIONS = Integer.getInteger("contextswitching.partitions", 4);
+    private static final int PORT = Integer.getInteger("contextswitching.partition.port", 0);
+    private static final String HOST = System.getProperty("contextswitching.partition.host");
+    //time a partition waits for the others at a step before the run fails
+    private static final long EXCHANGE_TIMEOUT = Long.getLong("contextswitching.partition.timeout", 60000L);
+    private static final boolean IN_PROCESS = Boolean.getBoolean("contextswitching.partition.inprocess");
+    //time to wait for a connection to the driver
+    private static final long CONNECTION_TIMEOUT = 5000;
+
+    public static void main(String[] args) {
+        try {
+            File[] networks = new File[]{
+                new File("NetworkFiles/barabasi_500.np"),
+                new File("NetworkFiles/regular_500.np")
+            };
+            ModelConfiguration config = new ModelConfiguration(500, 2, 0.8,
+                    new double[]{0.75, 0.25}, networks);
+            long seed = System.currentTimeMillis();
+            OffHeapModel model = new OffHeapModel(config, seed);
+
+            PartitionedRun run = new PartitionedRun(model, PARTITIONS, seed);
+            Partition[] partitions = run.getPartitions();
+            for (Partition partition : partitions) {
+                System.out.println("partition " + partition.getId() + ": " + partition.getNumLocal()
+                        + " agents, " + partition.getNumGhosts() + " ghosts");
+            }
+            System.out.println("edges cut: " + run.getCutEdges());
+
+            if (IN_PROCESS) {
+                long start = System.nanoTime();
+                boolean consensus = run.runInProcess();
+                long[] counts = run.getOpinionCounts();
+                System.out.println("steps: " + run.getSteps() + " encounters: " + run.getNumEncounters()
+                        + " opinions: (" + counts[0] + "," + counts[1] + ") consensus: " + consensus
+                        + " time: " + (System.nanoTime() - start) / 1000000 + " ms");
+                return;
+            }
+
+            JPPFClient client = new JPPFClient();
+            int slots = countExecutionSlots(client);
+            if (slots >= 0 && slots < partitions.length) {
+                System.out.println("The grid has " + slots + " execution slots for " + partitions.length
+                        + " partitions, the partitions could not run at the same time");
+                client.close();
+                return;
+            }
+            if (slots < 0) {
+                System.out.println("Could not count the execution slots of the grid, the run fails after "
+                        + EXCHANGE_TIMEOUT + " ms if the partitions can not run at the same time");
+            }
+            ExchangeHub hub = new ExchangeHub(PORT, partitions.length, EXCHANGE_TIMEOUT);
+            try {
+                hub.start();
+                String host = HOST != null ? HOST : InetAddress.getLocalHost().getHostAddress();
+                JPPFJob job = new JPPFJob();
+                job.setId("partitioned run " + seed);
+                for (Partition partition : partitions) {
+                    job.addTask(new PartitionTask(partition, partitions.length, host, hub.getPort()));
+                }
+                job.setBlocking(true);
+                List<JPPFTask> results = client.submit(job);
+                long encounters = 0;
+                for (JPPFTask task : results) {
+                    if (task.getException() != null) {
+                        System.out.println("partition failed: " + task.getException().getMessage());
+                    } else if (task.getResult() instanceof PartitionResult) {
+                        PartitionResult result = (PartitionResult) task.getResult();
+                        System.out.println(result);
+                        encounters += result.getNumEncounters();
+                    }
+                }
+                System.out.println("encounters: " + encounters);
+            } finally {
+                hub.close();
+                client.close();
+            }
+        } catch (Exception e) {
+            System.out.println("Something went wrong: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Number of tasks the nodes of the grid can execute at the same time,
+     * the sum of the processing threads of the nodes
+     *
+     * @param client the client of the grid
+     * @return slots int, -1 if the nodes could not be queried
+     */
+    private static int countExecutionSlots(JPPFClient client) {
+        try {
+            long deadline = System.currentTimeMillis() + CONNECTION_TIMEOUT;
+            while (!client.hasAvailableConnection() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            JPPFClientConnection connection = client.getClientConnection();
+            if (!(connection instanceof JPPFClientConnectionImpl)) {
+                return -1;
+            }
+            int slots = 0;
+            for (JPPFManagementInfo node : ((JPPFClientConnectionImpl) connection).getJmxConnection().nodesInformation()) {
+                JPPFSystemInformation info = node.getSystemInfo();
+                if (info == null) {
+                    return -1;
+                }
+                //the nodes use a thread per processor unless configured otherwise
+                int processors = info.getRuntime().getInt("availableProcessors", 1);
+                slots += info.getJppf().getInt("processing.threads", processors);
+            }
+            return slots;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
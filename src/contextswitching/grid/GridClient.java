@@ -0,0 +1,157 @@
+package contextswitching.grid;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jppf.client.JPPFClient;
+import org.jppf.client.JPPFClientConnection;
+import org.jppf.client.JPPFClientConnectionImpl;
+import org.jppf.client.JPPFJob;
+
+/**
+ * Non blocking client of a JPPF grid
+ *
+ * <code>submit</code> returns as soon as the job is handed to the JPPF
+ * client, with a <code>JobHandle</code> for the job. The results of each job
+ * are handled by its <code>ResultHandler</code> on a pool of handler threads,
+ * so neither the submitting thread nor the JPPF client threads wait for the
+ * results to be processed. A job is added to the completion queue once all
+ * its results were handled, <code>poll</code> and <code>take</code> return
+ * the jobs in the order they completed whatever the order they were
+ * submitted in.
+ *
+ * <pre>
+ * GridClient grid = new GridClient(new JPPFClient(), 2);
+ * grid.submit(job, handler);
+ * while (grid.getNumInFlight() > 0) {
+ *      JobHandle done = grid.take();
+ *      ... the results of the job were handled
+ * }
+ * grid.close();
+ * </pre>
+ *
+ * @author Davide Nunes
+ */
+public class GridClient {
+
+    private JPPFClient client;
+    private ExecutorService handlers;
+    private BlockingQueue<JobHandle> completed;
+    private AtomicInteger inFlight;     //jobs submitted and not yet done
+
+    /**
+     * Constructor
+     *
+     * @param client the JPPF client the jobs are submitted to, it is not
+     * closed by <code>close()</code>
+     * @param handlerThreads number of threads that handle the results
+     */
+    public GridClient(JPPFClient client, int handlerThreads) {
+        this.client = client;
+        this.handlers = Executors.newFixedThreadPool(Math.max(1, handlerThreads), new ThreadFactory() {
+
+            private int created;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "result-handler-" + created++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.completed = new LinkedBlockingQueue<JobHandle>();
+        this.inFlight = new AtomicInteger();
+    }
+
+    /**
+     * Submits a job without waiting for its execution or its results
+     *
+     * @param job the job, it is submitted as a non blocking job
+     * @param handler receives the results of the job, can be null
+     * @return handle JobHandle of the job
+     * @throws Exception if the JPPF client rejects the job
+     */
+    public JobHandle submit(JPPFJob job, ResultHandler handler) throws Exception {
+        JobHandle handle = new JobHandle(this, job, handler);
+        job.setBlocking(false);
+        job.setResultListener(handle);
+        inFlight.incrementAndGet();
+        try {
+            client.submit(job);
+        } catch (Exception e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * Number of jobs submitted that are not done
+     *
+     * @return jobs int
+     */
+    public int getNumInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Next job done, waiting at most the given time for one
+     *
+     * @param timeoutMillis longest wait in milliseconds
+     * @return handle JobHandle or null if no job was done in time
+     * @throws InterruptedException
+     */
+    public JobHandle poll(long timeoutMillis) throws InterruptedException {
+        return completed.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Next job done, waits until there is one
+     *
+     * @return handle JobHandle
+     * @throws InterruptedException
+     */
+    public JobHandle take() throws InterruptedException {
+        return completed.take();
+    }
+
+    /**
+     * Stops the handler threads, the results received afterwards are not
+     * handled
+     */
+    public void close() {
+        handlers.shutdown();
+    }
+
+    void execute(Runnable handling) {
+        try {
+            handlers.execute(handling);
+        } catch (RejectedExecutionException e) {
+            //the client was closed
+        }
+    }
+
+    void completed(JobHandle handle) {
+        inFlight.decrementAndGet();
+        completed.offer(handle);
+    }
+
+    /**
+     * Cancels a job through the management interface of the driver, the
+     * nodes call <code>onCancel()</code> on the tasks they are executing
+     */
+    void cancel(JobHandle handle) {
+        try {
+            JPPFClientConnection connection = client.getClientConnection();
+            if (connection instanceof JPPFClientConnectionImpl) {
+                ((JPPFClientConnectionImpl) connection).getJmxConnection().cancelJob(handle.getJobUuid());
+            }
+        } catch (Exception e) {
+            System.out.println("Could not cancel job " + handle.getJobUuid() + ": " + e.getMessage());
+        }
+    }
+}
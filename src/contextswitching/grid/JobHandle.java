@@ -0,0 +1,186 @@
+package contextswitching.grid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.jppf.client.JPPFJob;
+import org.jppf.client.event.TaskResultEvent;
+import org.jppf.client.event.TaskResultListener;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Completion handle of a job submitted with a <code>GridClient</code>
+ *
+ * the handle receives the results of its job only, the results of the
+ * other jobs in flight never reach it. Each batch of results is passed to
+ * the <code>ResultHandler</code> of the job on the handler pool of the client
+ * and the job is done once every task was handled, or once it is cancelled.
+ * <code>get()</code> returns the executed tasks in the order they were added
+ * to the job.
+ *
+ * @author Davide Nunes
+ */
+public class JobHandle implements Future<List<JPPFTask>>, TaskResultListener {
+
+    private GridClient client;
+    private String jobUuid;
+    private ResultHandler handler;
+    private JPPFTask[] tasks;
+    private int numHandled;
+    private boolean done;
+    private boolean cancelled;
+
+    JobHandle(GridClient client, JPPFJob job, ResultHandler handler) {
+        this.client = client;
+        this.jobUuid = job.getJobUuid();
+        this.handler = handler;
+        this.tasks = new JPPFTask[job.getTasks().size()];
+    }
+
+    public String getJobUuid() {
+        return jobUuid;
+    }
+
+    public ResultHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Number of tasks in the job
+     *
+     * @return count int
+     */
+    public int getCount() {
+        return tasks.length;
+    }
+
+    /**
+     * Number of tasks whose results were handled so far
+     *
+     * @return handled int
+     */
+    public synchronized int getNumHandled() {
+        return numHandled;
+    }
+
+    /**
+     * Hands the tasks received to the handler pool, called by the JPPF client
+     */
+    public void resultsReceived(TaskResultEvent event) {
+        final List<JPPFTask> received = event.getTaskList();
+        if (received == null) {//the JPPF client submits the tasks again
+            return;
+        }
+        client.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    if (handler != null) {
+                        handler.handle(JobHandle.this, received);
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Could not handle the results of job " + jobUuid + ": " + e.getMessage());
+                } finally {
+                    handled(received);
+                }
+            }
+        });
+    }
+
+    private synchronized void handled(List<JPPFTask> received) {
+        for (JPPFTask task : received) {
+            int position = task.getPosition();
+            if (position >= 0 && position < tasks.length && tasks[position] == null) {
+                tasks[position] = task;
+                numHandled++;
+            }
+        }
+        if (numHandled >= tasks.length) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        if (!done) {
+            done = true;
+            notifyAll();
+            client.completed(this);
+        }
+    }
+
+    /**
+     * Cancels the job in the grid, the handle is done at once and the results
+     * received afterwards are still handled
+     *
+     * @param mayInterruptIfRunning ignored, the nodes always stop the tasks
+     * @return true if the job was cancelled, false if it was already done
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            complete();
+        }
+        client.cancel(this);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for every task of the job to be handled
+     *
+     * @return tasks List the executed tasks in the order of the job
+     * @throws InterruptedException
+     * @throws CancellationException if the job was cancelled
+     */
+    public synchronized List<JPPFTask> get() throws InterruptedException {
+        while (!done) {
+            wait();
+        }
+        return results();
+    }
+
+    /**
+     * Waits at most the given time for every task of the job to be handled
+     *
+     * @return tasks List the executed tasks in the order of the job
+     * @throws InterruptedException
+     * @throws TimeoutException if the job is not done in time
+     * @throws CancellationException if the job was cancelled
+     */
+    public synchronized List<JPPFTask> get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new TimeoutException("Job " + jobUuid + " is not done");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return results();
+    }
+
+    private List<JPPFTask> results() {
+        if (cancelled) {
+            throw new CancellationException("Job " + jobUuid + " was cancelled");
+        }
+        List<JPPFTask> results = new ArrayList<JPPFTask>(tasks.length);
+        for (JPPFTask task : tasks) {
+            results.add(task);
+        }
+        return results;
+    }
+}
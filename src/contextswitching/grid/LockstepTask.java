@@ -0,0 +1,164 @@
+package contextswitching.grid;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.LockstepEngine;
+import contextswitching.io.ModelCodec;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Task that runs several replicates of a configuration in lockstep on a
+ * node (see <code>LockstepEngine</code>)
+ *
+ * the model is sent with its compact encoding, as in
+ * <code>SimulationTask</code>, once for all the replicates. The result is a
+ * <code>SimulationResult[]</code> with a result for each replicate, the run
+ * time of a replicate is its share of the time of the engine. If the task
+ * summarises its replicates the result is a single <code>ResultSummary</code>
+ * instead.
+ *
+ * lockstep tasks do not write checkpoints, a resubmitted task runs all its
+ * replicates again. When the timeout of the task expires, or the task is
+ * cancelled, the engine stops after its current step and the result is a
+ * <code>PartialResult</code> with the result of the replicates that finished
+ * and the state reached by the others, which must start again
+ *
+ * @author Davide Nunes
+ */
+public class LockstepTask extends JPPFTask {
+
+    private static final long serialVersionUID = 1L;
+    private transient ContextSwitchingModel model;
+    private transient volatile LockstepEngine engine;
+    private int configuration;
+    private int[] replicates;
+    private long[] seeds;
+    private boolean summarize;
+    private boolean keepRuns;
+
+    /**
+     * Constructor
+     *
+     * @param model the initialized model of the configuration
+     * @param configuration index of the configuration in the parameter space
+     * @param replicates the replicate numbers of the runs
+     * @param seeds the random seed of each run
+     */
+    public LockstepTask(ContextSwitchingModel model, int configuration, int[] replicates, long[] seeds) {
+        this(model, configuration, replicates, seeds, false, false);
+    }
+
+    /**
+     * Creates a task that can summarise its replicates on the node
+     *
+     * @param model the initialized model of the configuration
+     * @param configuration index of the configuration in the parameter space
+     * @param replicates the replicate numbers of the runs
+     * @param seeds the random seed of each run
+     * @param summarize true to return a <code>ResultSummary</code> of the
+     * replicates
+     * @param keepRuns true to keep the result of each run in the summary
+     */
+    public LockstepTask(ContextSwitchingModel model, int configuration, int[] replicates, long[] seeds,
+            boolean summarize, boolean keepRuns) {
+        this.model = model;
+        this.configuration = configuration;
+        this.replicates = replicates;
+        this.seeds = seeds;
+        this.summarize = summarize;
+        this.keepRuns = keepRuns;
+    }
+
+    public int getConfiguration() {
+        return configuration;
+    }
+
+    public int[] getReplicates() {
+        return replicates;
+    }
+
+    @Override
+    public void run() {
+        engine = new LockstepEngine(model, seeds);
+        engine.run();
+        List<SimulationResult> finished = new ArrayList<SimulationResult>();
+        List<SimulationResult> unfinished = new ArrayList<SimulationResult>();
+        for (int r = 0; r < replicates.length; r++) {
+            SimulationResult result = new SimulationResult(configuration, replicates[r], seeds[r],
+                    engine.getSteps(r),
+                    engine.getNumEncounters(r),
+                    engine.isConsensusReached(r),
+                    engine.getRuntimeNanos(r));
+            if (engine.isFinished(r)) {
+                finished.add(result);
+            } else {
+                unfinished.add(result);
+            }
+        }
+        Object completed = null;
+        if (summarize) {
+            ResultSummary summary = new ResultSummary(configuration, keepRuns);
+            for (SimulationResult result : finished) {
+                summary.add(result);
+            }
+            completed = summary;
+        } else {
+            completed = finished.toArray(new SimulationResult[finished.size()]);
+        }
+        if (unfinished.isEmpty()) {
+            setResult(completed);
+        } else {
+            setResult(new PartialResult(finished.isEmpty() ? null : completed,
+                    unfinished.toArray(new SimulationResult[unfinished.size()]),
+                    new byte[unfinished.size()][]));
+        }
+        engine = null;
+        model = null;
+    }
+
+    /**
+     * Stops the replicates when the timeout of the task expires
+     */
+    @Override
+    public void onTimeout() {
+        stopEngine();
+    }
+
+    /**
+     * Stops the replicates when the task is cancelled
+     */
+    @Override
+    public void onCancel() {
+        stopEngine();
+    }
+
+    private void stopEngine() {
+        LockstepEngine running = engine;
+        if (running != null) {
+            running.requestStop();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(model != null);
+        if (model != null) {
+            byte[] encoded = ModelCodec.encode(model);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            byte[] encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+            model = ModelCodec.decode(encoded);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package contextswitching.grid;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.LockstepEngine;
+import contextswitching.ModelConfiguration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.jppf.client.JPPFClient;
+import org.jppf.client.JPPFJob;
+import org.jppf.node.policy.OneOf;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Warm-up of the nodes of the grid before the jobs of a sweep
+ *
+ * the first jobs sent to a node run while its classes are loaded and its
+ * code is interpreted, their run times are longer than those of the jobs
+ * that follow and skew the cost estimates and the timings of the sweep. The
+ * runners broadcast a <code>WarmupTask</code> with a model of the sweep to
+ * every node and wait until all the nodes report a stable time per step
+ * before they submit their first job. When the replicates of the sweep run in
+ * lockstep the task warms up the <code>LockstepEngine</code> instead of the
+ * model. Nodes that are not warm within the time budget are reported and
+ * get the task again, up to MAX_ATTEMPTS times, after which the sweep starts
+ * anyway: the retries exclude, with an execution policy on the
+ * <code>jppf.uuid</code> of the nodes, the nodes that are already warm.
+ *
+ * the warm-up is enabled unless <code>contextswitching.warmup</code> is
+ * false, <code>contextswitching.warmup.steps</code> sets the steps of each
+ * measured round, <code>contextswitching.warmup.tolerance</code> the spread
+ * of the time per step allowed and <code>contextswitching.warmup.budget</code>
+ * the time, in milliseconds, a node can take to warm up
+ *
+ * @author Davide Nunes
+ */
+public class NodeWarmup {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("contextswitching.warmup", "true"));
+    private static final int ROUND_STEPS = Integer.getInteger("contextswitching.warmup.steps", 20);
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("contextswitching.warmup.tolerance", "0.1"));
+    private static final long BUDGET_MILLIS = Long.getLong("contextswitching.warmup.budget", 60000L);
+    private static final int MAX_ATTEMPTS = 3;
+
+    private NodeWarmup() {
+    }
+
+    /**
+     * Creates the warm-up task for a configuration
+     *
+     * @param config a configuration representative of the sweep
+     * @return task WarmupTask
+     * @throws Exception if the model can not be created
+     */
+    public static WarmupTask createTask(ModelConfiguration config) throws Exception {
+        return createTask(config, 0);
+    }
+
+    /**
+     * Creates the warm-up task for a configuration of a sweep whose
+     * replicates may run in lockstep
+     *
+     * @param config a configuration representative of the sweep
+     * @param lockstepReplicates replicates run in lockstep by the tasks of
+     * the sweep, 0 if they do not run in lockstep; ignored if the engine does
+     * not support the configuration, as by the sweep
+     * @return task WarmupTask
+     * @throws Exception if the model can not be created
+     */
+    public static WarmupTask createTask(ModelConfiguration config, int lockstepReplicates) throws Exception {
+        ContextSwitchingModel model = new ContextSwitchingModel(System.currentTimeMillis());
+        model.configureModel(config);
+        model.initializeModel();
+        model.setVerbose(false);
+        if (lockstepReplicates > 0 && !LockstepEngine.supports(model)) {
+            lockstepReplicates = 0;
+        }
+        return new WarmupTask(model, ROUND_STEPS, TOLERANCE, BUDGET_MILLIS, lockstepReplicates);
+    }
+
+    /**
+     * Warms up every node of the grid and waits until they are warm
+     *
+     * @param client the client of the grid
+     * @param config a configuration representative of the sweep
+     * @return true if all the nodes reported a stable time per step
+     * @throws Exception if the warm-up job could not be submitted
+     */
+    public static boolean warmUp(JPPFClient client, ModelConfiguration config) throws Exception {
+        return warmUp(client, config, 0);
+    }
+
+    /**
+     * Warms up every node of the grid for a sweep whose replicates may run
+     * in lockstep and waits until they are warm
+     *
+     * @param client the client of the grid
+     * @param config a configuration representative of the sweep
+     * @param lockstepReplicates replicates run in lockstep by the tasks of
+     * the sweep, 0 if they do not run in lockstep
+     * @return true if all the nodes reported a stable time per step
+     * @throws Exception if the warm-up job could not be submitted
+     */
+    public static boolean warmUp(JPPFClient client, ModelConfiguration config, int lockstepReplicates)
+            throws Exception {
+        WarmupTask task = createTask(config, lockstepReplicates);
+        Set<String> warmNodes = new HashSet<String>();
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            System.out.println("Warming up the nodes (attempt " + attempt + ")...");
+            JPPFJob job = new JPPFJob();
+            job.setId("warm-up " + attempt);
+            job.getJobSLA().setBroadcastJob(true);
+            if (!warmNodes.isEmpty()) {//only the nodes that are not warm yet
+                job.getJobSLA().setExecutionPolicy(new OneOf("jppf.uuid", false,
+                        warmNodes.toArray(new String[warmNodes.size()])).not());
+            }
+            job.addTask(task);
+            job.setBlocking(true);
+            List<JPPFTask> results = client.submit(job);
+            if (isWarm(results, warmNodes)) {
+                return true;
+            }
+        }
+        System.out.println("The nodes are not warm after " + MAX_ATTEMPTS + " attempts, starting anyway");
+        return false;
+    }
+
+    /**
+     * Prints the warm-up of each node
+     *
+     * @param results the executed warm-up tasks
+     * @return true if every node reported a stable time per step
+     */
+    public static boolean isWarm(List<JPPFTask> results) {
+        return isWarm(results, new HashSet<String>());
+    }
+
+    /**
+     * Prints the warm-up of each node and the nodes that are not warm
+     *
+     * @param results the executed warm-up tasks
+     * @param warmNodes set the uuids of the nodes that are warm are added to
+     * @return true if every node reported a stable time per step
+     */
+    public static boolean isWarm(List<JPPFTask> results, Set<String> warmNodes) {
+        boolean warm = !results.isEmpty();
+        List<String> cold = new ArrayList<String>();
+        for (JPPFTask task : results) {
+            if (task.getException() != null) {
+                System.out.println("Warm-up failed: " + task.getException().getMessage());
+                warm = false;
+            } else if (task.getResult() instanceof WarmupResult) {
+                WarmupResult result = (WarmupResult) task.getResult();
+                System.out.println(result);
+                if (result.isStable()) {
+                    if (result.getNodeUuid() != null) {
+                        warmNodes.add(result.getNodeUuid());
+                    }
+                } else {
+                    cold.add(result.getNode());
+                    warm = false;
+                }
+            } else {
+                warm = false;
+            }
+        }
+        if (!cold.isEmpty()) {
+            System.out.println("Nodes not warm: " + cold);
+        }
+        return warm;
+    }
+}
@@ -0,0 +1,91 @@
+package contextswitching.grid;
+
+import contextswitching.ModelConfiguration;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parameter space explored by the grid runners
+ *
+ * fixed networks, population and consensus required, span the switching
+ * probabilities of the three contexts from 0.0 to 1.0 in steps of 0.05
+ *
+ * The configurations are always listed in the same order so that a
+ * configuration can be identified by its index in the list, the index is
+ * the index of the point in a lattice of NUM_SWITCHING_PROBS dimensions with
+ * SWITCHING_LEVELS levels (see <code>AdaptiveSampler</code>)
+ *
+ * @author Davide Nunes
+ */
+public class ParameterSpace {
+
+    public static final double SWITCHING_STEP = 0.05;
+    public static final int SWITCHING_LEVELS = 21;      //0.0 to 1.0 in steps of 0.05
+    public static final int NUM_SWITCHING_PROBS = 3;
+
+    /**
+     * Network files used by the sweep
+     *
+     * @return networks File[]
+     */
+    public static File[] getNetworks() {
+        return new File[]{
+                    new File("NetworkFiles/barabasi_500.np"),
+                    new File("NetworkFiles/regular_500.np"),
+                    new File("NetworkFiles/ws_500.np")
+                };
+    }
+
+    /**
+     * Builds the full factorial sweep over the switching probabilities
+     *
+     * @return parameter space List of configurations in nested loop order
+     * @throws Exception if a configuration is not valid
+     */
+    public static List<ModelConfiguration> switchingProbabilitySweep() throws Exception {
+        File[] networks = getNetworks();
+        int numAgents = 500;
+        //networks are loaded according to number of agents
+        int numContexts = 3;
+        double consensusRequired = 0.8;
+
+        //construct the parameter space
+        List<ModelConfiguration> ps = new ArrayList<ModelConfiguration>();
+        //span of the switching probabilities, from integer levels so that
+        //rounding does not drop the last level
+        for (int i1 = 0; i1 < SWITCHING_LEVELS; i1++) {
+            for (int i2 = 0; i2 < SWITCHING_LEVELS; i2++) {
+                for (int i3 = 0; i3 < SWITCHING_LEVELS; i3++) {
+                    double[] switching = new double[]{i1 * SWITCHING_STEP, i2 * SWITCHING_STEP, i3 * SWITCHING_STEP};
+                    ps.add(new ModelConfiguration(numAgents, numContexts, consensusRequired, switching, networks));
+                }
+            }
+        }
+        return ps;
+    }
+
+    /**
+     * Seed of a run of the sweep, derived from the sweep seed so that a sweep
+     * can be repeated or resumed with the same seeds
+     *
+     * @param sweepSeed seed of the sweep
+     * @param configuration configuration index
+     * @param replicate replicate number, -1 for the seed used to initialize
+     * the model of the configuration
+     * @return seed long
+     */
+    public static long runSeed(long sweepSeed, int configuration, int replicate) {
+        return mix(mix(mix(sweepSeed) + configuration) + replicate);
+    }
+
+    /**
+     * SplitMix64 finalizer
+     */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
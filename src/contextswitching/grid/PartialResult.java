@@ -0,0 +1,85 @@
+package contextswitching.grid;
+
+import java.io.Serializable;
+
+/**
+ * Result of a task stopped by its deadline before all its runs finished
+ *
+ * it holds the result the task would have returned for the runs that did
+ * finish (a <code>SimulationResult[]</code> or a <code>ResultSummary</code>,
+ * null if none did) and, for each unfinished run, a
+ * <code>SimulationResult</code> with the state it reached: the steps and
+ * encounters executed and the time it ran, consensus is never reached. When
+ * the task could capture it, the checkpoint of an unfinished run (see
+ * <code>ModelCheckpoint.toBytes()</code>) is sent back as well so the run can
+ * be resumed instead of started again.
+ *
+ * @author Davide Nunes
+ */
+public class PartialResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private Object completed;
+    private SimulationResult[] unfinished;
+    private byte[][] checkpoints;
+
+    /**
+     * Constructor
+     *
+     * @param completed result of the finished runs, null if no run finished
+     * @param unfinished state reached by each unfinished run
+     * @param checkpoints checkpoint of each unfinished run, null entries for
+     * runs that must start again
+     */
+    public PartialResult(Object completed, SimulationResult[] unfinished, byte[][] checkpoints) {
+        this.completed = completed;
+        this.unfinished = unfinished;
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * The result of the runs of the task that finished
+     *
+     * @return result SimulationResult[] or ResultSummary, null if no run
+     * finished
+     */
+    public Object getCompleted() {
+        return completed;
+    }
+
+    public SimulationResult[] getUnfinished() {
+        return unfinished;
+    }
+
+    /**
+     * Checkpoint of an unfinished run
+     *
+     * @param run index of the run in <code>getUnfinished()</code>
+     * @return checkpoint byte[] or null if the run must start again
+     */
+    public byte[] getCheckpoint(int run) {
+        return checkpoints[run];
+    }
+
+    /**
+     * A Human readable representation of the partial result in the following form
+     *
+     * (unfinished: [configuration/replicate@steps ...])
+     *
+     * @return resultString
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(unfinished: [");
+        for (int r = 0; r < unfinished.length; r++) {
+            if (r > 0) {
+                sb.append(" ");
+            }
+            sb.append(unfinished[r].getConfiguration()).append("/").append(unfinished[r].getReplicate());
+            sb.append("@").append(unfinished[r].getSteps());
+        }
+        sb.append("])");
+        return sb.toString();
+    }
+}
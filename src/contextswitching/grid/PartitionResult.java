@@ -0,0 +1,64 @@
+package contextswitching.grid;
+
+import java.io.Serializable;
+
+/**
+ * Result of one partition of a partitioned run (see
+ * <code>PartitionTask</code>)
+ *
+ * the steps and the consensus are the same for all the partitions of a run,
+ * the encounters and the opinion counts of the run are the sums over its
+ * partitions
+ *
+ * @author Davide Nunes
+ */
+public class PartitionResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private int partition;
+    private long steps;
+    private long numEncounters;
+    private long[] opinionCounts;
+    private boolean consensusReached;
+    private long runtimeNanos;
+
+    public PartitionResult(int partition, long steps, long numEncounters, long[] opinionCounts,
+            boolean consensusReached, long runtimeNanos) {
+        this.partition = partition;
+        this.steps = steps;
+        this.numEncounters = numEncounters;
+        this.opinionCounts = opinionCounts;
+        this.consensusReached = consensusReached;
+        this.runtimeNanos = runtimeNanos;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public long getNumEncounters() {
+        return numEncounters;
+    }
+
+    public long[] getOpinionCounts() {
+        return opinionCounts;
+    }
+
+    public boolean isConsensusReached() {
+        return consensusReached;
+    }
+
+    public long getRuntimeNanos() {
+        return runtimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "partition " + partition + " steps " + steps + " encounters " + numEncounters
+                + " consensus " + consensusReached + " time " + runtimeNanos / 1000000 + " ms";
+    }
+}
@@ -0,0 +1,79 @@
+package contextswitching.grid;
+
+import contextswitching.partition.Partition;
+import contextswitching.partition.SocketExchange;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Task that runs one partition of a partitioned run on a node (see
+ * <code>PartitionedRun</code>)
+ *
+ * the partition exchanges the updates of its boundary agents with the other
+ * partitions through the <code>ExchangeHub</code> of the client, the tasks
+ * of all the partitions of a run must be executing at the same time. The
+ * result is a <code>PartitionResult</code>, the partition is not sent back
+ * to the client. When the task times out or is cancelled every partition of
+ * the run stops after the same step.
+ *
+ * @author Davide Nunes
+ */
+public class PartitionTask extends JPPFTask {
+
+    private static final long serialVersionUID = 1L;
+    private volatile Partition partition;
+    private int numPartitions;
+    private String host;
+    private int port;
+
+    /**
+     * Constructor
+     *
+     * @param partition the partition to run
+     * @param numPartitions number of partitions of the run
+     * @param host host of the exchange hub
+     * @param port port of the exchange hub
+     */
+    public PartitionTask(Partition partition, int numPartitions, String host, int port) {
+        this.partition = partition;
+        this.numPartitions = numPartitions;
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        SocketExchange exchange = null;
+        try {
+            exchange = new SocketExchange(host, port, partition.getId(), numPartitions);
+            boolean consensus = partition.run(exchange);
+            setResult(new PartitionResult(partition.getId(), partition.getSteps(),
+                    partition.getNumEncounters(), partition.getLocalOpinionCounts(),
+                    consensus, System.nanoTime() - start));
+        } catch (Exception e) {
+            setException(e);
+        } finally {
+            if (exchange != null) {
+                exchange.close();
+            }
+            partition = null;
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        stopPartition();
+    }
+
+    @Override
+    public void onCancel() {
+        stopPartition();
+    }
+
+    private void stopPartition() {
+        Partition running = partition;
+        if (running != null) {
+            running.requestStop();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package contextswitching.grid;
+
+import contextswitching.io.CompactInput;
+import contextswitching.io.CompactOutput;
+import java.io.IOException;
+
+/**
+ * Mergeable sketch of the distribution of a non negative metric
+ *
+ * Values are counted in logarithmic buckets: bucket i holds the values in
+ * (GAMMA^(i-1), GAMMA^i], with GAMMA = (1 + ACCURACY) / (1 - ACCURACY). Any
+ * quantile is estimated within a relative error of ACCURACY of the true
+ * value, whatever the number of values added. Values under 1 are counted
+ * apart, the metrics summarised (steps and encounters) are integers.
+ *
+ * Sketches built on different nodes are merged by adding their buckets,
+ * the result is the same as if every value was added to a single sketch.
+ * The buckets cover the range of the values added, about 1000 buckets for
+ * values from 1 to 10^9.
+ *
+ * @author Davide Nunes
+ */
+public class QuantileSketch {
+
+    private static final double ACCURACY = 0.01;
+    private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private long count;
+    private long zeroCount;         //values under 1
+    private int offset;             //index of the first bucket in counts
+    private long[] counts;          //null while there are no buckets
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Adds a value to the sketch
+     *
+     * @param value the value, non negative
+     */
+    public void add(double value) {
+        count++;
+        if (value < 1) {
+            zeroCount++;
+            return;
+        }
+        int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+        ensureBucket(index);
+        counts[index - offset]++;
+    }
+
+    /**
+     * Adds the values of another sketch to this one
+     *
+     * @param other the sketch to be merged
+     */
+    public void merge(QuantileSketch other) {
+        count += other.count;
+        zeroCount += other.zeroCount;
+        if (other.counts == null) {
+            return;
+        }
+        ensureBucket(other.offset);
+        ensureBucket(other.offset + other.counts.length - 1);
+        for (int k = 0; k < other.counts.length; k++) {
+            counts[other.offset + k - offset] += other.counts[k];
+        }
+    }
+
+    /**
+     * Estimated quantile of the values added
+     *
+     * @param q the quantile, between 0 and 1
+     * @return value double, NaN if the sketch is empty
+     */
+    public double getQuantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (Math.max(0, Math.min(1, q)) * (count - 1));
+        if (rank < zeroCount) {
+            return 0;
+        }
+        rank -= zeroCount;
+        int k = 0;
+        while (rank >= counts[k]) {
+            rank -= counts[k];
+            k++;
+        }
+        return 2 * Math.pow(GAMMA, offset + k) / (GAMMA + 1);
+    }
+
+    private void ensureBucket(int index) {
+        if (counts == null) {
+            offset = index;
+            counts = new long[1];
+        } else if (index < offset) {
+            long[] grown = new long[counts.length + offset - index];
+            System.arraycopy(counts, 0, grown, offset - index, counts.length);
+            counts = grown;
+            offset = index;
+        } else if (index >= offset + counts.length) {
+            long[] grown = new long[index - offset + 1];
+            System.arraycopy(counts, 0, grown, 0, counts.length);
+            counts = grown;
+        }
+    }
+
+    /**
+     * Writes the sketch, empty buckets take a single byte
+     *
+     * @param out destination
+     * @throws IOException
+     */
+    public void write(CompactOutput out) throws IOException {
+        out.writeVarLong(zeroCount);
+        int length = counts == null ? 0 : counts.length;
+        out.writeVarInt(length);
+        if (length > 0) {
+            out.writeSignedVarInt(offset);
+            for (long c : counts) {
+                out.writeVarLong(c);
+            }
+        }
+    }
+
+    /**
+     * Reads a sketch written with <code>write</code>
+     *
+     * @param in source
+     * @return sketch QuantileSketch
+     * @throws IOException
+     */
+    public static QuantileSketch read(CompactInput in) throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.zeroCount = in.readVarLong();
+        sketch.count = sketch.zeroCount;
+        int length = in.readVarInt();
+        if (length > 0) {
+            sketch.offset = in.readSignedVarInt();
+            sketch.counts = new long[length];
+            for (int k = 0; k < length; k++) {
+                sketch.counts[k] = in.readVarLong();
+                sketch.count += sketch.counts[k];
+            }
+        }
+        return sketch;
+    }
+}
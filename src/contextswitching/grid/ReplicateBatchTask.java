@@ -0,0 +1,167 @@
+package contextswitching.grid;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.io.ModelCheckpoint;
+import contextswitching.io.ModelCodec;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Task that runs several replicates of a configuration one after the other
+ * on a node and summarises them there
+ *
+ * the model is sent once with its compact encoding, as in
+ * <code>SimulationTask</code>, and each replicate runs on a model decoded
+ * from it. The result is a <code>ResultSummary</code> of the replicates, with
+ * the result of each run only if it was requested, so a task sends back a
+ * few hundred bytes whatever the number of replicates it ran.
+ *
+ * batch tasks do not write checkpoints, a resubmitted task runs all its
+ * replicates again. When the timeout of the task expires, or the task is
+ * cancelled, the replicate being run stops after its current step and the
+ * result is a <code>PartialResult</code> with the summary of the replicates
+ * that finished, the checkpoint of the stopped one and the replicates not
+ * started
+ *
+ * @author Davide Nunes
+ */
+public class ReplicateBatchTask extends JPPFTask {
+
+    private static final long serialVersionUID = 1L;
+    private transient ContextSwitchingModel model;
+    private transient byte[] encoded;
+    private transient volatile ContextSwitchingModel current;   //model of the replicate being run
+    private transient volatile boolean stopped;
+    private int configuration;
+    private int[] replicates;
+    private long[] seeds;
+    private boolean keepRuns;
+
+    /**
+     * Constructor
+     *
+     * @param model the initialized model of the configuration
+     * @param configuration index of the configuration in the parameter space
+     * @param replicates the replicate numbers of the runs
+     * @param seeds the random seed of each run
+     * @param keepRuns true to keep the result of each run in the summary
+     */
+    public ReplicateBatchTask(ContextSwitchingModel model, int configuration, int[] replicates, long[] seeds,
+            boolean keepRuns) {
+        this.model = model;
+        this.configuration = configuration;
+        this.replicates = replicates;
+        this.seeds = seeds;
+        this.keepRuns = keepRuns;
+    }
+
+    public int getConfiguration() {
+        return configuration;
+    }
+
+    public int[] getReplicates() {
+        return replicates;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (encoded == null) {//executed without being sent
+                encoded = ModelCodec.encode(model);
+            }
+            ResultSummary summary = new ResultSummary(configuration, keepRuns);
+            SimulationResult[] unfinished = new SimulationResult[0];
+            byte[][] checkpoints = new byte[0][];
+            for (int r = 0; r < replicates.length; r++) {
+                if (stopped) {//not started
+                    unfinished = Arrays.copyOf(unfinished, unfinished.length + 1);
+                    unfinished[unfinished.length - 1] = new SimulationResult(configuration, replicates[r], seeds[r],
+                            0, 0, false, 0);
+                    checkpoints = Arrays.copyOf(checkpoints, checkpoints.length + 1);
+                    continue;
+                }
+                ContextSwitchingModel run = ModelCodec.decode(encoded);
+                run.setVerbose(false);
+                run.setSeed(seeds[r]);
+                current = run;
+                if (stopped) {
+                    run.requestStop();
+                }
+                long beforeExecution = System.nanoTime();
+                run.run();
+                long afterExecution = System.nanoTime();
+                current = null;
+                SimulationResult result = new SimulationResult(configuration, replicates[r], seeds[r],
+                        run.getSteps(),
+                        run.getNumEncounters(),
+                        run.consensusReached(),
+                        afterExecution - beforeExecution);
+                if (run.isUnfinished()) {
+                    unfinished = Arrays.copyOf(unfinished, unfinished.length + 1);
+                    unfinished[unfinished.length - 1] = result;
+                    checkpoints = Arrays.copyOf(checkpoints, checkpoints.length + 1);
+                    checkpoints[checkpoints.length - 1] = ModelCheckpoint.capture(run).toBytes();
+                } else {
+                    summary.add(result);
+                }
+            }
+            if (unfinished.length == 0) {
+                setResult(summary);
+            } else {
+                setResult(new PartialResult(summary.getNumRuns() == 0 ? null : summary, unfinished, checkpoints));
+            }
+        } catch (IOException ex) {
+            setException(ex);
+        }
+        model = null;
+        encoded = null;
+    }
+
+    /**
+     * Stops the replicates when the timeout of the task expires
+     */
+    @Override
+    public void onTimeout() {
+        stopReplicates();
+    }
+
+    /**
+     * Stops the replicates when the task is cancelled
+     */
+    @Override
+    public void onCancel() {
+        stopReplicates();
+    }
+
+    private void stopReplicates() {
+        stopped = true;
+        ContextSwitchingModel running = current;
+        if (running != null) {
+            running.requestStop();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        byte[] bytes = encoded;
+        if (bytes == null && model != null) {
+            bytes = ModelCodec.encode(model);
+        }
+        out.writeBoolean(bytes != null);
+        if (bytes != null) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+        }
+    }
+}
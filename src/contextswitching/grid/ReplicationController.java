@@ -0,0 +1,256 @@
+package contextswitching.grid;
+
+/**
+ * Decides how many replicates a configuration needs
+ *
+ * Instead of running a fixed number of replicates for every configuration,
+ * replicates are submitted in waves. After each wave the confidence interval
+ * of the mean of each chosen metric is computed and no more replicates are
+ * submitted once the half width of every interval is at most a fraction of
+ * its mean. At least <code>minRuns</code> and at most <code>maxRuns</code>
+ * replicates are executed.
+ *
+ * The size of the next wave is estimated from the current variance, the
+ * number of runs needed for the target width, but a wave never more than
+ * doubles the number of runs so that a poor early estimate of the variance
+ * does not spend the whole budget at once
+ *
+ * <pre>
+ * ReplicationController c = new ReplicationController(
+ *      new int[]{ReplicationController.STEPS}, 0.05, 0.95, 10, 100);
+ * while (!c.isDone()) {
+ *      int wave = c.nextWave();
+ *      ... run wave replicates and c.addResult(result) for each result
+ * }
+ * </pre>
+ *
+ * @author Davide Nunes
+ */
+public class ReplicationController {
+
+    /**
+     * metrics that can be used as stopping criteria
+     */
+    public static final int STEPS = 0;
+    public static final int ENCOUNTERS = 1;
+    public static final int CONSENSUS = 2;    //proportion of runs that reached consensus
+    private static final int NUM_METRICS = 3;
+    private int[] metrics;
+    private double relativeWidth;
+    private double z;                         //standard normal quantile of the confidence level
+    private int minRuns;
+    private int maxRuns;
+    //running mean and sum of squared deviations of each metric (Welford)
+    private int numRuns;
+    private double[] mean;
+    private double[] m2;
+
+    /**
+     * Constructor
+     *
+     * @param metrics the metrics whose confidence intervals must reach the
+     * target width
+     * @param relativeWidth target half width of the confidence intervals as a
+     * fraction of the mean
+     * @param confidence confidence level of the intervals, for instance 0.95
+     * @param minRuns minimum number of replicates (at least 2)
+     * @param maxRuns maximum number of replicates
+     * @throws Exception if the parameters are not valid
+     */
+    public ReplicationController(int[] metrics, double relativeWidth, double confidence,
+            int minRuns, int maxRuns) throws Exception {
+        if (metrics == null || metrics.length == 0) {
+            throw new Exception("Invalid metrics: at least one metric is required");
+        }
+        for (int metric : metrics) {
+            if (metric < 0 || metric >= NUM_METRICS) {
+                throw new Exception("Invalid metric: " + metric);
+            }
+        }
+        if (relativeWidth <= 0.0) {
+            throw new Exception("Invalid relative width: must be a positive value");
+        }
+        if (confidence <= 0.0 || confidence >= 1.0) {
+            throw new Exception("Invalid confidence level: must be between 0 and 1");
+        }
+        if (minRuns < 2 || maxRuns < minRuns) {
+            throw new Exception("Invalid number of runs: 2 <= minRuns <= maxRuns is required");
+        }
+        this.metrics = metrics;
+        this.relativeWidth = relativeWidth;
+        this.z = normalQuantile(0.5 + confidence / 2);
+        this.minRuns = minRuns;
+        this.maxRuns = maxRuns;
+        this.mean = new double[NUM_METRICS];
+        this.m2 = new double[NUM_METRICS];
+    }
+
+    /**
+     * Adds the result of a replicate to the statistics
+     *
+     * @param result the result of a run
+     */
+    public void addResult(SimulationResult result) {
+        numRuns++;
+        for (int m = 0; m < NUM_METRICS; m++) {
+            double x = valueOf(result, m);
+            double delta = x - mean[m];
+            mean[m] += delta / numRuns;
+            m2[m] += delta * (x - mean[m]);
+        }
+    }
+
+    /**
+     * Adds the runs of a summary computed on a node to the statistics, the
+     * same statistics as adding each run with <code>addResult</code>
+     *
+     * @param summary summary of runs of the configuration
+     */
+    public void addSummary(ResultSummary summary) {
+        int n = numRuns + summary.getNumRuns();
+        if (summary.getNumRuns() == 0) {
+            return;
+        }
+        for (int m = 0; m < NUM_METRICS; m++) {
+            double delta = summary.getMean(m) - mean[m];
+            m2[m] += summary.getSumOfSquares(m) + delta * delta * numRuns * summary.getNumRuns() / n;
+            mean[m] += delta * summary.getNumRuns() / n;
+        }
+        numRuns = n;
+    }
+
+    public int getNumRuns() {
+        return numRuns;
+    }
+
+    public double getMean(int metric) {
+        return mean[metric];
+    }
+
+    /**
+     * Sample standard deviation of a metric
+     *
+     * @param metric the metric
+     * @return standard deviation double, 0 if there are less than 2 runs
+     */
+    public double getStdDev(int metric) {
+        return numRuns < 2 ? 0.0 : Math.sqrt(m2[metric] / (numRuns - 1));
+    }
+
+    /**
+     * Half width of the confidence interval of the mean of a metric
+     *
+     * @param metric the metric
+     * @return half width double, infinite if there are less than 2 runs
+     */
+    public double getHalfWidth(int metric) {
+        if (numRuns < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return tQuantile(numRuns - 1) * getStdDev(metric) / Math.sqrt(numRuns);
+    }
+
+    /**
+     * Checks if the configuration needs more replicates
+     *
+     * @return true if the maximum number of runs was reached or, after the
+     * minimum number of runs, every chosen metric reached the target width
+     */
+    public boolean isDone() {
+        if (numRuns >= maxRuns) {
+            return true;
+        }
+        if (numRuns < minRuns) {
+            return false;
+        }
+        for (int metric : metrics) {
+            if (getHalfWidth(metric) > relativeWidth * Math.abs(mean[metric])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of replicates to be submitted in the next wave
+     *
+     * @return replicates int, 0 if the configuration is done
+     */
+    public int nextWave() {
+        if (isDone()) {
+            return 0;
+        }
+        if (numRuns < minRuns) {
+            return minRuns - numRuns;
+        }
+        //runs needed for the widest interval with the current variance estimate
+        double required = numRuns;
+        for (int metric : metrics) {
+            double target = relativeWidth * Math.abs(mean[metric]);
+            double sd = getStdDev(metric);
+            if (target > 0) {
+                required = Math.max(required, Math.pow(tQuantile(numRuns - 1) * sd / target, 2));
+            } else if (sd > 0) {
+                required = maxRuns;
+            }
+        }
+        int wave = (int) Math.ceil(required) - numRuns;
+        wave = Math.max(wave, Math.max(1, minRuns / 2));
+        wave = Math.min(wave, numRuns);
+        return Math.min(wave, maxRuns - numRuns);
+    }
+
+    private static double valueOf(SimulationResult result, int metric) {
+        switch (metric) {
+            case STEPS:
+                return result.getSteps();
+            case ENCOUNTERS:
+                return result.getNumEncounters();
+            default:
+                return result.isConsensusReached() ? 1.0 : 0.0;
+        }
+    }
+
+    /**
+     * Quantile of the Student t distribution at the confidence level of the
+     * controller, Cornish-Fisher expansion around the normal quantile
+     * (accurate to about 1% for 3 or more degrees of freedom)
+     */
+    private double tQuantile(int df) {
+        double z2 = z * z;
+        double g1 = (z2 + 1) * z / 4;
+        double g2 = ((5 * z2 + 16) * z2 + 3) * z / 96;
+        double g3 = (((3 * z2 + 19) * z2 + 17) * z2 - 15) * z / 384;
+        return z + g1 / df + g2 / (df * (double) df) + g3 / (df * (double) df * df);
+    }
+
+    /**
+     * Inverse of the standard normal distribution (Acklam's rational
+     * approximation, relative error below 1.2e-9)
+     */
+    private static double normalQuantile(double p) {
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+            1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+            6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+            -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+            3.754408661907416e+00};
+        double low = 0.02425;
+        if (p < low) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - low) {
+            double q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+                / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+}
@@ -0,0 +1,24 @@
+package contextswitching.grid;
+
+import java.util.List;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Receives the results of a job submitted with a <code>GridClient</code>
+ *
+ * the results arrive in batches, as the nodes return them, and each batch is
+ * handled on a thread of the handler pool of the client. Batches of the same
+ * job can be handled at the same time by different threads.
+ *
+ * @author Davide Nunes
+ */
+public interface ResultHandler {
+
+    /**
+     * Handles a batch of tasks returned by the grid
+     *
+     * @param job the handle of the job the tasks belong to
+     * @param tasks the executed tasks
+     */
+    void handle(JobHandle job, List<JPPFTask> tasks);
+}
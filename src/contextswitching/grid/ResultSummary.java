@@ -0,0 +1,355 @@
+package contextswitching.grid;
+
+import contextswitching.io.CompactInput;
+import contextswitching.io.CompactOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+/**
+ * Mergeable summary of the results of several replicates of a configuration
+ *
+ * Nodes that run several replicates in a task can send back a summary
+ * instead of a <code>SimulationResult</code> per run: the number of runs, the
+ * consensus rate, the total run time and, for the steps and the encounters,
+ * the mean and sum of squared deviations (Welford), the minimum, the maximum
+ * and a <code>QuantileSketch</code>. The replicate numbers are kept so the
+ * runs can be marked as completed, the per run results only if they were
+ * requested.
+ *
+ * Summaries are merged exactly (Chan et al. for the variances), merging the
+ * summaries of disjoint sets of runs gives the summary of all the runs.
+ *
+ * @author Davide Nunes
+ */
+public class ResultSummary implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int NUM_VALUES = 2;        //steps and encounters, the metrics with a distribution
+    private int configuration;
+    private int numRuns;
+    private int numConsensus;
+    private long runtimeNanos;
+    private double[] mean;
+    private double[] m2;
+    private long[] min;
+    private long[] max;
+    private QuantileSketch[] sketches;
+    private int[] replicates;                       //replicate numbers of the runs, in the order they were added
+    private SimulationResult[] runs;                //null if the per run results are not kept
+
+    /**
+     * Constructor used by the deserialization
+     */
+    public ResultSummary() {
+    }
+
+    /**
+     * Creates an empty summary
+     *
+     * @param configuration index of the configuration in the parameter space
+     * @param keepRuns true to keep the result of each run in the summary
+     */
+    public ResultSummary(int configuration, boolean keepRuns) {
+        this.configuration = configuration;
+        this.mean = new double[NUM_VALUES];
+        this.m2 = new double[NUM_VALUES];
+        this.min = new long[NUM_VALUES];
+        this.max = new long[NUM_VALUES];
+        this.sketches = new QuantileSketch[NUM_VALUES];
+        for (int v = 0; v < NUM_VALUES; v++) {
+            min[v] = Long.MAX_VALUE;
+            max[v] = Long.MIN_VALUE;
+            sketches[v] = new QuantileSketch();
+        }
+        this.replicates = new int[0];
+        this.runs = keepRuns ? new SimulationResult[0] : null;
+    }
+
+    /**
+     * Adds the result of a run to the summary
+     *
+     * @param result the result of a replicate of the configuration
+     */
+    public void add(SimulationResult result) {
+        numRuns++;
+        if (result.isConsensusReached()) {
+            numConsensus++;
+        }
+        runtimeNanos += result.getRuntimeNanos();
+        for (int v = 0; v < NUM_VALUES; v++) {
+            long x = v == ReplicationController.STEPS ? result.getSteps() : result.getNumEncounters();
+            double delta = x - mean[v];
+            mean[v] += delta / numRuns;
+            m2[v] += delta * (x - mean[v]);
+            min[v] = Math.min(min[v], x);
+            max[v] = Math.max(max[v], x);
+            sketches[v].add(x);
+        }
+        replicates = Arrays.copyOf(replicates, replicates.length + 1);
+        replicates[replicates.length - 1] = result.getReplicate();
+        if (runs != null) {
+            runs = Arrays.copyOf(runs, runs.length + 1);
+            runs[runs.length - 1] = result;
+        }
+    }
+
+    /**
+     * Adds the runs of another summary of the same configuration, the per
+     * run results are kept only if both summaries keep them
+     *
+     * @param other summary of other runs
+     */
+    public void merge(ResultSummary other) {
+        if (other.numRuns == 0) {
+            return;
+        }
+        int n = numRuns + other.numRuns;
+        for (int v = 0; v < NUM_VALUES; v++) {
+            double delta = other.mean[v] - mean[v];
+            m2[v] += other.m2[v] + delta * delta * numRuns * other.numRuns / n;
+            mean[v] += delta * other.numRuns / n;
+            min[v] = Math.min(min[v], other.min[v]);
+            max[v] = Math.max(max[v], other.max[v]);
+            sketches[v].merge(other.sketches[v]);
+        }
+        numRuns = n;
+        numConsensus += other.numConsensus;
+        runtimeNanos += other.runtimeNanos;
+        int[] merged = Arrays.copyOf(replicates, replicates.length + other.replicates.length);
+        System.arraycopy(other.replicates, 0, merged, replicates.length, other.replicates.length);
+        replicates = merged;
+        if (runs != null && other.runs != null) {
+            SimulationResult[] all = Arrays.copyOf(runs, runs.length + other.runs.length);
+            System.arraycopy(other.runs, 0, all, runs.length, other.runs.length);
+            runs = all;
+        } else {
+            runs = null;
+        }
+    }
+
+    public int getConfiguration() {
+        return configuration;
+    }
+
+    public int getNumRuns() {
+        return numRuns;
+    }
+
+    public int getNumConsensus() {
+        return numConsensus;
+    }
+
+    /**
+     * Sum of the run times of the runs
+     *
+     * @return runtime long in nanoseconds
+     */
+    public long getRuntimeNanos() {
+        return runtimeNanos;
+    }
+
+    /**
+     * Mean of a metric over the runs
+     *
+     * @param metric ReplicationController.STEPS, ENCOUNTERS or CONSENSUS
+     * @return mean double, the consensus rate for CONSENSUS
+     */
+    public double getMean(int metric) {
+        if (metric == ReplicationController.CONSENSUS) {
+            return numRuns == 0 ? 0.0 : numConsensus / (double) numRuns;
+        }
+        return mean[metric];
+    }
+
+    /**
+     * Sum of the squared deviations of a metric from its mean
+     *
+     * @param metric ReplicationController.STEPS, ENCOUNTERS or CONSENSUS
+     * @return sum of squares double
+     */
+    public double getSumOfSquares(int metric) {
+        if (metric == ReplicationController.CONSENSUS) {
+            double p = getMean(metric);
+            return numRuns * p * (1 - p);
+        }
+        return m2[metric];
+    }
+
+    /**
+     * Sample variance of a metric
+     *
+     * @param metric ReplicationController.STEPS, ENCOUNTERS or CONSENSUS
+     * @return variance double, 0 if there are less than 2 runs
+     */
+    public double getVariance(int metric) {
+        return numRuns < 2 ? 0.0 : getSumOfSquares(metric) / (numRuns - 1);
+    }
+
+    public long getMin(int metric) {
+        return min[metric];
+    }
+
+    public long getMax(int metric) {
+        return max[metric];
+    }
+
+    /**
+     * Estimated quantile of the steps or encounters, within 1% of the true
+     * value (see <code>QuantileSketch</code>)
+     *
+     * @param metric ReplicationController.STEPS or ENCOUNTERS
+     * @param q the quantile, between 0 and 1
+     * @return value double, NaN if there are no runs
+     */
+    public double getQuantile(int metric, double q) {
+        if (numRuns == 0) {
+            return Double.NaN;
+        }
+        double value = sketches[metric].getQuantile(q);
+        return Math.max(min[metric], Math.min(max[metric], value));
+    }
+
+    /**
+     * The replicate numbers of the runs summarised
+     *
+     * @return replicates int[]
+     */
+    public int[] getReplicates() {
+        return replicates.clone();
+    }
+
+    /**
+     * The results of the runs summarised
+     *
+     * @return runs SimulationResult[] or null if they were not kept
+     */
+    public SimulationResult[] getRuns() {
+        return runs == null ? null : runs.clone();
+    }
+
+    /**
+     * A Human readable representation of the summary in the following form
+     *
+     * (configuration: value runs: value consensus: value steps: mean sd [min median p95 max] encounters: mean sd [min median p95 max])
+     *
+     * @return summaryString
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(");
+        sb.append("configuration: ").append(configuration);
+        sb.append(" runs: ").append(numRuns);
+        sb.append(" consensus: ").append(getMean(ReplicationController.CONSENSUS));
+        if (numRuns > 0) {
+            appendMetric(sb, " steps: ", ReplicationController.STEPS);
+            appendMetric(sb, " encounters: ", ReplicationController.ENCOUNTERS);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    private void appendMetric(StringBuilder sb, String name, int metric) {
+        sb.append(name).append(mean[metric]).append(" ").append(Math.sqrt(getVariance(metric)));
+        sb.append(" [").append(min[metric]);
+        sb.append(" ").append(getQuantile(metric, 0.5));
+        sb.append(" ").append(getQuantile(metric, 0.95));
+        sb.append(" ").append(max[metric]).append("]");
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        CompactOutput compact = new CompactOutput(out);
+        compact.writeSignedVarInt(configuration);
+        compact.writeVarInt(numRuns);
+        compact.writeVarInt(numConsensus);
+        compact.writeVarLong(runtimeNanos);
+        for (int v = 0; v < NUM_VALUES; v++) {
+            compact.writeDouble(mean[v]);
+            compact.writeDouble(m2[v]);
+            compact.writeVarLong(numRuns == 0 ? 0 : min[v]);
+            compact.writeVarLong(numRuns == 0 ? 0 : max[v]);
+            sketches[v].write(compact);
+        }
+        writeReplicates(compact);
+        compact.writeBoolean(runs != null);
+        if (runs != null) {
+            for (SimulationResult run : runs) {
+                run.writeExternal(out);
+            }
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        CompactInput compact = new CompactInput(in);
+        configuration = compact.readSignedVarInt();
+        numRuns = compact.readVarInt();
+        numConsensus = compact.readVarInt();
+        runtimeNanos = compact.readVarLong();
+        mean = new double[NUM_VALUES];
+        m2 = new double[NUM_VALUES];
+        min = new long[NUM_VALUES];
+        max = new long[NUM_VALUES];
+        sketches = new QuantileSketch[NUM_VALUES];
+        for (int v = 0; v < NUM_VALUES; v++) {
+            mean[v] = compact.readDouble();
+            m2[v] = compact.readDouble();
+            min[v] = compact.readVarLong();
+            max[v] = compact.readVarLong();
+            if (numRuns == 0) {
+                min[v] = Long.MAX_VALUE;
+                max[v] = Long.MIN_VALUE;
+            }
+            sketches[v] = QuantileSketch.read(compact);
+        }
+        readReplicates(compact);
+        if (compact.readBoolean()) {
+            runs = new SimulationResult[replicates.length];
+            for (int r = 0; r < runs.length; r++) {
+                runs[r] = new SimulationResult();
+                runs[r].readExternal(in);
+            }
+        } else {
+            runs = null;
+        }
+    }
+
+    /**
+     * Writes the replicate numbers as ranges of consecutive numbers, the
+     * replicates of a task are usually a single range
+     */
+    private void writeReplicates(CompactOutput compact) throws IOException {
+        int ranges = 0;
+        for (int k = 0; k < replicates.length; k++) {
+            if (k == 0 || replicates[k] != replicates[k - 1] + 1) {
+                ranges++;
+            }
+        }
+        compact.writeVarInt(ranges);
+        int k = 0;
+        while (k < replicates.length) {
+            int end = k + 1;
+            while (end < replicates.length && replicates[end] == replicates[end - 1] + 1) {
+                end++;
+            }
+            compact.writeVarInt(replicates[k]);
+            compact.writeVarInt(end - k);
+            k = end;
+        }
+    }
+
+    private void readReplicates(CompactInput compact) throws IOException {
+        replicates = new int[numRuns];
+        int ranges = compact.readVarInt();
+        int k = 0;
+        for (int range = 0; range < ranges; range++) {
+            int first = compact.readVarInt();
+            int length = compact.readVarInt();
+            for (int i = 0; i < length; i++) {
+                replicates[k++] = first + i;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package contextswitching.grid;
+
+import contextswitching.io.CompactInput;
+import contextswitching.io.CompactOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Result of a single simulation run executed by a <code>SimulationTask</code>
+ *
+ * it records the configuration and replicate the run belongs to and
+ * the seed used by the run so that any run can be reproduced,
+ * the number of steps and encounters performed, whether or not the required
+ * consensus was reached and the time the run took on the node
+ *
+ * results are written in a compact form, without field descriptors
+ *
+ * @author Davide Nunes
+ */
+public class SimulationResult implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+    private int configuration;
+    private int replicate;
+    private long seed;
+    private long steps;
+    private int numEncounters;
+    private boolean consensusReached;
+    private long runtimeNanos;
+
+    /**
+     * Constructor used by the deserialization
+     */
+    public SimulationResult() {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration index of the configuration in the parameter space
+     * (-1 if the run does not belong to a sweep)
+     * @param replicate replicate number of the run
+     * @param seed random seed used in the run
+     * @param steps number of steps executed
+     * @param numEncounters number of encounters performed by the agents
+     * @param consensusReached true if the run stopped because the consensus
+     * was reached
+     * @param runtimeNanos execution time of the run in nanoseconds
+     */
+    public SimulationResult(int configuration, int replicate, long seed, long steps,
+            int numEncounters, boolean consensusReached, long runtimeNanos) {
+        this.configuration = configuration;
+        this.replicate = replicate;
+        this.seed = seed;
+        this.steps = steps;
+        this.numEncounters = numEncounters;
+        this.consensusReached = consensusReached;
+        this.runtimeNanos = runtimeNanos;
+    }
+
+    public int getConfiguration() {
+        return configuration;
+    }
+
+    public int getReplicate() {
+        return replicate;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public int getNumEncounters() {
+        return numEncounters;
+    }
+
+    public boolean isConsensusReached() {
+        return consensusReached;
+    }
+
+    public long getRuntimeNanos() {
+        return runtimeNanos;
+    }
+
+    /**
+     * Execution time of the run in seconds
+     *
+     * @return runtime double
+     */
+    public double getRuntime() {
+        return runtimeNanos / Math.pow(10, 9);
+    }
+
+    /**
+     * A Human readable representation of the result in the following form
+     *
+     * (configuration: value replicate: value seed: value steps: value encounters: value consensus: value time: value)
+     *
+     * @return resultString
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(");
+        sb.append("configuration: ").append(configuration);
+        sb.append(" replicate: ").append(replicate);
+        sb.append(" seed: ").append(seed);
+        sb.append(" steps: ").append(steps);
+        sb.append(" encounters: ").append(numEncounters);
+        sb.append(" consensus: ").append(consensusReached);
+        sb.append(" time: ").append(getRuntime());
+        sb.append(")");
+        return sb.toString();
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        CompactOutput compact = new CompactOutput(out);
+        compact.writeSignedVarInt(configuration);
+        compact.writeSignedVarInt(replicate);
+        compact.writeLong(seed);
+        compact.writeVarLong(steps);
+        compact.writeVarInt(numEncounters);
+        compact.writeBoolean(consensusReached);
+        compact.writeVarLong(runtimeNanos);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        CompactInput compact = new CompactInput(in);
+        configuration = compact.readSignedVarInt();
+        replicate = compact.readSignedVarInt();
+        seed = compact.readLong();
+        steps = compact.readVarLong();
+        numEncounters = compact.readVarInt();
+        consensusReached = compact.readBoolean();
+        runtimeNanos = compact.readVarLong();
+    }
+}
@@ -1,42 +1,238 @@
 package contextswitching.grid;
 
 import contextswitching.ContextSwitchingModel;
+import contextswitching.io.CheckpointWriter;
+import contextswitching.io.ModelCheckpoint;
+import contextswitching.io.ModelCodec;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import org.jppf.server.protocol.JPPFTask;
 
 /**
  * Class used to wrap a model for deployment over a JPPF grid
  *
  * it should run a model and set the results object upon task completion
+ * the result is a <code>SimulationResult</code> with the seed used, the
+ * number of steps and encounters and the execution time of the run
  *
+ * the model is not written with the default serialization, its compact
+ * encoding (see <code>ModelCodec</code>) is sent instead and the model is
+ * rebuilt on the node. Once the run is finished the model is released so
+ * it is not sent back to the client with the result
+ *
+ * if the node sets the <code>contextswitching.checkpoint.dir</code> system
+ * property, runs with a fixed seed write a compact checkpoint to that
+ * directory every <code>contextswitching.checkpoint.interval</code> steps
+ * (1000 by default). When a task is resubmitted after the node was stopped,
+ * the run resumes from its last checkpoint instead of starting again. The
+ * checkpoints are written in the background, a failed write is reported in
+ * the output of the node once the run ends
+ *
+ * when the task has a timeout and it expires, or the task is cancelled,
+ * the run is stopped after the step being executed and the result is a
+ * <code>PartialResult</code> with the state the run reached and its
+ * checkpoint, a task created with <code>resume</code> continues the run from
+ * that checkpoint
  *
  * @author Davide Nunes
  */
 public class SimulationTask extends JPPFTask {
 
     private static final long serialVersionUID = 1L;
+    //seed value used when the task does not specify one
+    private static final long TIME_SEED = Long.MIN_VALUE;
+    private static final String CHECKPOINT_DIR = System.getProperty("contextswitching.checkpoint.dir");
+    private static final int CHECKPOINT_INTERVAL = Integer.getInteger("contextswitching.checkpoint.interval", 1000);
     //the model to be executed in this task
-    private ContextSwitchingModel model;
+    private transient volatile ContextSwitchingModel model;
+    private long seed;
+    private int configuration;
+    private int replicate;
+    private byte[] resumeCheckpoint;    //state the run continues from, null to start it
+    private long resumeRuntimeNanos;    //time the run executed before the checkpoint
 
     //Constructor
     public SimulationTask(ContextSwitchingModel model) {
+        this(model, TIME_SEED);
+    }
+
+    /**
+     * Creates a task that runs the model with a fixed seed, tasks created
+     * with the same model and seed produce the same result
+     *
+     * @param model the model to be executed
+     * @param seed random seed for the run
+     */
+    public SimulationTask(ContextSwitchingModel model, long seed) {
+        this(model, seed, -1, 0);
+    }
+
+    /**
+     * Creates a task for a run of a sweep, the configuration index and the
+     * replicate number are returned with the result
+     *
+     * @param model the model to be executed
+     * @param seed random seed for the run
+     * @param configuration index of the configuration in the parameter space
+     * @param replicate replicate number of the run
+     */
+    public SimulationTask(ContextSwitchingModel model, long seed, int configuration, int replicate) {
         this.model = model;
+        this.seed = seed;
+        this.configuration = configuration;
+        this.replicate = replicate;
+    }
+
+    /**
+     * Index of the configuration in the parameter space, -1 if the task does
+     * not belong to a sweep
+     *
+     * @return configuration int
+     */
+    public int getConfiguration() {
+        return configuration;
+    }
+
+    public int getReplicate() {
+        return replicate;
+    }
+
+    /**
+     * Makes the task continue a run stopped by a timeout instead of starting
+     * it, the result is the same as if the run was never stopped
+     *
+     * @param checkpoint checkpoint of the run sent in its <code>PartialResult</code>
+     * @param runtimeNanos time the run executed before it was stopped, added
+     * to the run time of the result
+     */
+    public void resume(byte[] checkpoint, long runtimeNanos) {
+        this.resumeCheckpoint = checkpoint;
+        this.resumeRuntimeNanos = runtimeNanos;
+    }
+
+    /**
+     * Stops the run when the timeout of the task expires
+     */
+    @Override
+    public void onTimeout() {
+        stopModel();
+    }
+
+    /**
+     * Stops the run when the task is cancelled, for instance when another
+     * copy of the run finished first
+     */
+    @Override
+    public void onCancel() {
+        stopModel();
+    }
+
+    private void stopModel() {
+        ContextSwitchingModel running = model;
+        if (running != null) {
+            running.requestStop();
+        }
     }
 
     @Override
     public void run() {
         try {
-            model.setSeed(System.currentTimeMillis());
+            long runSeed = (seed == TIME_SEED) ? System.currentTimeMillis() : seed;
+            model.setVerbose(false);
+            File checkpointFile = getCheckpointFile();
+            CheckpointWriter checkpoints = null;
+            if (checkpointFile != null && checkpointFile.exists()) {
+                ModelCheckpoint.read(checkpointFile).restore(model);
+            } else if (resumeCheckpoint != null) {
+                ModelCheckpoint.fromBytes(resumeCheckpoint).restore(model);
+            } else {
+                model.setSeed(runSeed);
+            }
+            if (checkpointFile != null) {
+                checkpoints = new CheckpointWriter(checkpointFile);
+                checkpoints.attach(model, CHECKPOINT_INTERVAL);
+            }
             //self contained model can be executed in a thread
             Thread t = new Thread(model);
             long beforeExecution = System.nanoTime();
             t.start();
-            t.join();	//wait for the model simulation to be finished
-            long afterExecution = System.nanoTime();
+            try {
+                t.join();	//wait for the model simulation to be finished
+            } catch (InterruptedException ex) {//the node cancelled the task, the run stops after its step
+                model.requestStop();
+                joinUninterruptibly(t);
+            }
+            long runtime = resumeRuntimeNanos + System.nanoTime() - beforeExecution;
+            if (checkpoints != null) {
+                checkpoints.close();
+                if (checkpoints.getLastError() != null) {//the run could not have been resumed from it
+                    System.out.println("checkpoint failed: " + checkpoints.getLastError().getMessage());
+                }
+                checkpointFile.delete();  //the run is complete or its state is sent back
+            }
 
-            setResult((afterExecution - beforeExecution) / Math.pow(10, 9));
-            //setResult(model.getNumEncounters());
+            SimulationResult result = new SimulationResult(configuration, replicate, runSeed,
+                    model.getSteps(),
+                    model.getNumEncounters(),
+                    model.consensusReached(),
+                    runtime);
+            if (model.isUnfinished()) {
+                setResult(new PartialResult(null, new SimulationResult[]{result},
+                        new byte[][]{ModelCheckpoint.capture(model).toBytes()}));
+            } else {
+                setResult(result);
+            }
+            model = null;
+        } catch (IOException ex) {
+            setException(ex);
         } catch (InterruptedException ex) {
             setException(ex);
         }
     }
+
+    private static void joinUninterruptibly(Thread t) {
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                //the run is already stopping
+            }
+        }
+    }
+
+    /**
+     * The checkpoint file of this run in the node checkpoint directory
+     *
+     * @return file File or null if the node does not keep checkpoints or the
+     * run does not have a fixed seed
+     */
+    private File getCheckpointFile() {
+        if (CHECKPOINT_DIR == null || seed == TIME_SEED) {
+            return null;
+        }
+        File dir = new File(CHECKPOINT_DIR);
+        dir.mkdirs();
+        return new File(dir, "run_" + configuration + "_" + replicate + "_" + Long.toHexString(seed) + ".ckpt");
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(model != null);
+        if (model != null) {
+            byte[] encoded = ModelCodec.encode(model);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            byte[] encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+            model = ModelCodec.decode(encoded);
+        }
+    }
 }
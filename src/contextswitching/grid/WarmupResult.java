@@ -0,0 +1,74 @@
+package contextswitching.grid;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * Result of the warm-up of a node (see <code>WarmupTask</code>)
+ *
+ * @author Davide Nunes
+ */
+public class WarmupResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String node;
+    private String nodeUuid;
+    private double[] nanosPerStep;
+    private boolean stable;
+    private long runtimeNanos;
+
+    /**
+     * Constructor
+     *
+     * @param node name of the node JVM
+     * @param nodeUuid JPPF uuid of the node, null if the task did not run on
+     * a node
+     * @param nanosPerStep time per step of each round
+     * @param stable true if the time per step of the last rounds was stable
+     * @param runtimeNanos time taken by the warm-up
+     */
+    public WarmupResult(String node, String nodeUuid, double[] nanosPerStep, boolean stable, long runtimeNanos) {
+        this.node = node;
+        this.nodeUuid = nodeUuid;
+        this.nanosPerStep = nanosPerStep;
+        this.stable = stable;
+        this.runtimeNanos = runtimeNanos;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * JPPF uuid of the node, the <code>jppf.uuid</code> property an
+     * execution policy can select the node with
+     *
+     * @return uuid String or null if the task did not run on a node
+     */
+    public String getNodeUuid() {
+        return nodeUuid;
+    }
+
+    public double[] getNanosPerStep() {
+        return nanosPerStep;
+    }
+
+    public boolean isStable() {
+        return stable;
+    }
+
+    public long getRuntimeNanos() {
+        return runtimeNanos;
+    }
+
+    /**
+     * Time per step of the first and of the last round, in microseconds
+     */
+    @Override
+    public String toString() {
+        int n = nanosPerStep.length;
+        return String.format(Locale.US, "%s: %d rounds, %.1f -> %.1f us/step, %s in %d ms", node, n,
+                n > 0 ? nanosPerStep[0] / 1000 : 0.0, n > 0 ? nanosPerStep[n - 1] / 1000 : 0.0,
+                stable ? "stable" : "not stable", runtimeNanos / 1000000);
+    }
+}
@@ -0,0 +1,242 @@
+package contextswitching.grid;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.LockstepEngine;
+import contextswitching.io.ModelCodec;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.jppf.classloader.AbstractJPPFClassLoader;
+import org.jppf.node.NodeRunner;
+import org.jppf.server.protocol.JPPFTask;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/**
+ * Task that warms up a node with a short workload of the model before the
+ * jobs of a sweep are timed or run (see <code>NodeWarmup</code>)
+ *
+ * the model is sent with its compact encoding and decoded and run on the
+ * node as a <code>SimulationTask</code> does, so the classes of the real
+ * tasks are loaded and their code is compiled by the JIT. The time of each
+ * round of steps is measured while the model runs; once the time per step of
+ * the last rounds is stable, or the time budget of the task is used up, the
+ * run is stopped. Runs that end before are followed by new runs of the model.
+ * The result is a <code>WarmupResult</code> with the time per step of each
+ * round.
+ *
+ * a task created for lockstep sweeps runs the replicates of the model in a
+ * <code>LockstepEngine</code>, as a <code>LockstepTask</code> does, so the
+ * code warmed up is the code of the tasks of the sweep.
+ *
+ * @author Davide Nunes
+ */
+public class WarmupTask extends JPPFTask {
+
+    private static final long serialVersionUID = 1L;
+    private static final int WINDOW = 5;    //rounds that must agree within the tolerance
+    private byte[] encodedModel;
+    private int roundSteps;
+    private double tolerance;
+    private long budgetMillis;
+    private int lockstepReplicates;
+    private transient volatile ContextSwitchingModel model;
+    private transient volatile LockstepEngine engine;
+    private transient volatile boolean cancelled;
+
+    /**
+     * Constructor
+     *
+     * @param model an initialized model representative of the sweep
+     * @param roundSteps steps of each measured round
+     * @param tolerance largest spread of the time per step of the last
+     * rounds, relative to their mean, for the node to be warm
+     * @param budgetMillis time after which the warm-up stops even if the
+     * node is not warm
+     * @throws IOException if the model can not be encoded
+     */
+    public WarmupTask(ContextSwitchingModel model, int roundSteps, double tolerance, long budgetMillis)
+            throws IOException {
+        this(model, roundSteps, tolerance, budgetMillis, 0);
+    }
+
+    /**
+     * Creates a task that warms up the lockstep engine
+     *
+     * @param model an initialized model representative of the sweep, it
+     * must be supported by <code>LockstepEngine</code> if replicates run in
+     * lockstep
+     * @param roundSteps steps of each measured round
+     * @param tolerance largest spread of the time per step of the last
+     * rounds, relative to their mean, for the node to be warm
+     * @param budgetMillis time after which the warm-up stops even if the
+     * node is not warm
+     * @param lockstepReplicates replicates run in lockstep by the tasks of
+     * the sweep, 0 to run the model
+     * @throws IOException if the model can not be encoded
+     */
+    public WarmupTask(ContextSwitchingModel model, int roundSteps, double tolerance, long budgetMillis,
+            int lockstepReplicates) throws IOException {
+        this.encodedModel = ModelCodec.encode(model);
+        this.roundSteps = roundSteps;
+        this.tolerance = tolerance;
+        this.budgetMillis = budgetMillis;
+        this.lockstepReplicates = lockstepReplicates;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long deadline = start + budgetMillis * 1000000L;
+        RoundTimer timer = new RoundTimer(deadline);
+        try {
+            if (lockstepReplicates > 0) {
+                runLockstep(timer, deadline);
+            } else {
+                for (long seed = 1; !timer.done && !cancelled && System.nanoTime() < deadline; seed++) {
+                    model = ModelCodec.decode(encodedModel);
+                    model.setVerbose(false);
+                    model.setSeed(seed);
+                    timer.restart();
+                    model.addPeriodicSteppable(timer, roundSteps);
+                    model.run();
+                }
+            }
+            double[] perStep = new double[timer.rounds.size()];
+            for (int r = 0; r < perStep.length; r++) {
+                perStep[r] = timer.rounds.get(r);
+            }
+            setResult(new WarmupResult(ManagementFactory.getRuntimeMXBean().getName(),
+                    nodeUuid(),
+                    perStep, timer.stable, System.nanoTime() - start));
+        } catch (IOException ex) {
+            setException(ex);
+        } finally {
+            model = null;
+            engine = null;
+        }
+    }
+
+    /**
+     * The uuid of the node, null when the task runs on the client: the
+     * classes of the tasks a node executes are loaded by a JPPF class loader.
+     * A node with the classes in its own class path is not identified, it
+     * gets every retry of the warm-up
+     */
+    private String nodeUuid() {
+        return getClass().getClassLoader() instanceof AbstractJPPFClassLoader ? NodeRunner.getUuid() : null;
+    }
+
+    /**
+     * Runs the replicates of the model in lockstep, with new seeds whenever
+     * they all finished, until the node is warm or the budget is used up
+     */
+    private void runLockstep(RoundTimer timer, long deadline) throws IOException {
+        ContextSwitchingModel initial = ModelCodec.decode(encodedModel);
+        long[] seeds = new long[lockstepReplicates];
+        for (long seed = 1; !timer.done && !cancelled && System.nanoTime() < deadline; seed += seeds.length) {
+            for (int r = 0; r < seeds.length; r++) {
+                seeds[r] = seed + r;
+            }
+            LockstepEngine run = new LockstepEngine(initial, seeds);
+            engine = run;
+            if (cancelled) {
+                run.requestStop();
+            }
+            timer.restart();
+            for (long steps = 1; !timer.done && run.step(); steps++) {
+                if (steps % roundSteps == 0) {
+                    timer.endRound();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        stopWarmup();
+    }
+
+    @Override
+    public void onCancel() {
+        stopWarmup();
+    }
+
+    private void stopWarmup() {
+        cancelled = true;
+        ContextSwitchingModel running = model;
+        if (running != null) {
+            running.requestStop();
+        }
+        LockstepEngine runningEngine = engine;
+        if (runningEngine != null) {
+            runningEngine.requestStop();
+        }
+    }
+
+    /**
+     * Records the time per step of each round and stops the run once the
+     * last rounds agree or the budget is used up
+     */
+    private class RoundTimer implements Steppable {
+
+        private static final long serialVersionUID = 1L;
+        private long deadline;
+        private long last;
+        private List<Double> rounds = new ArrayList<Double>();
+        private boolean stable;
+        private boolean done;
+
+        RoundTimer(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * Starts timing a new run, its first round includes the start of
+         * the model and is not measured
+         */
+        void restart() {
+            last = -1;
+        }
+
+        public void step(SimState state) {
+            if (endRound()) {
+                ((ContextSwitchingModel) state).requestStop();
+            }
+        }
+
+        /**
+         * Records the round that ends now
+         *
+         * @return true if the warm-up is done
+         */
+        boolean endRound() {
+            long now = System.nanoTime();
+            if (last >= 0) {
+                rounds.add((now - last) / (double) roundSteps);
+                stable = isStable();
+            }
+            last = now;
+            done = stable || now >= deadline || cancelled;
+            return done;
+        }
+
+        private boolean isStable() {
+            int n = rounds.size();
+            if (n < WINDOW) {
+                return false;
+            }
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            double sum = 0;
+            for (int r = n - WINDOW; r < n; r++) {
+                double t = rounds.get(r);
+                min = Math.min(min, t);
+                max = Math.max(max, t);
+                sum += t;
+            }
+            return max - min <= tolerance * sum / WINDOW;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Licensed under the MIT license:
+ *
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package contextswitching.grid.performance;
+
+import contextswitching.ModelConfiguration;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Predicts the run time of the configurations of a sweep from the runs
+ * completed so far
+ *
+ * A configuration with completed runs is predicted by the mean time of its
+ * runs. Any other configuration is predicted from the configurations with
+ * completed runs closest to it in feature space: the log of the population,
+ * the log of the number of edges of each network, the number of contexts,
+ * the consensus required and the switching probability of each context. The
+ * features are scaled by their range among the completed configurations and
+ * the prediction is the inverse distance weighted mean of the log run time of
+ * the NEIGHBOURS nearest configurations.
+ *
+ * The run time varies by orders of magnitude close to the consensus
+ * thresholds and at extreme switching probabilities, a local estimate
+ * follows those changes where a global fit would smooth them out. Before any
+ * run completes every configuration gets the same prediction.
+ *
+ * Predictions from the nearest configurations are kept and only computed
+ * again once the number of configurations with completed runs grew by
+ * REFRESH_GROWTH, so ranking every pending configuration of a large sweep
+ * before each job stays cheap.
+ *
+ * @author Davide Nunes
+ */
+public class CostModel {
+
+    private static final int NEIGHBOURS = 4;
+    private static final double UNKNOWN_COST = 1.0;
+    private static final double REFRESH_GROWTH = 0.1;
+    //number of edges of each network file, the files are read once
+    private static final Map<String, Integer> edgeCounts = new HashMap<String, Integer>();
+    private Map<Integer, Observation> observations;
+    private List<Observation> observed;
+    private Map<Integer, double[]> features;        //features of each configuration seen
+    private Map<Integer, double[]> predictions;     //prediction and configurations observed when it was made
+
+    public CostModel() {
+        observations = new HashMap<Integer, Observation>();
+        observed = new ArrayList<Observation>();
+        features = new HashMap<Integer, double[]>();
+        predictions = new HashMap<Integer, double[]>();
+    }
+
+    /**
+     * Records completed runs of a configuration
+     *
+     * @param configuration index of the configuration in the parameter space
+     * @param config the configuration
+     * @param runtimeMillis total run time of the runs in milliseconds
+     * @param runs number of runs
+     */
+    public void observe(int configuration, ModelConfiguration config, double runtimeMillis, int runs) {
+        if (runs <= 0) {
+            return;
+        }
+        Observation o = observations.get(configuration);
+        if (o == null) {
+            o = new Observation(featuresOf(configuration, config));
+            observations.put(configuration, o);
+            observed.add(o);
+        }
+        o.runtime += runtimeMillis;
+        o.runs += runs;
+    }
+
+    public int getNumObserved() {
+        return observed.size();
+    }
+
+    /**
+     * Expected run time of a configuration
+     *
+     * @param configuration index of the configuration in the parameter space
+     * @param config the configuration
+     * @return cost double expected time of a run in milliseconds, the same
+     * for every configuration while no run has completed
+     */
+    public double predict(int configuration, ModelConfiguration config) {
+        Observation own = observations.get(configuration);
+        if (own != null) {
+            return own.mean();
+        }
+        if (observed.isEmpty()) {
+            return UNKNOWN_COST;
+        }
+        double[] cached = predictions.get(configuration);
+        if (cached != null && observed.size() < cached[1] * (1 + REFRESH_GROWTH)) {
+            return cached[0];
+        }
+        double prediction = nearestNeighbours(featuresOf(configuration, config));
+        predictions.put(configuration, new double[]{prediction, observed.size()});
+        return prediction;
+    }
+
+    /**
+     * Inverse distance weighted mean of the log run time of the nearest
+     * configurations with completed runs
+     */
+    private double nearestNeighbours(double[] x) {
+        double[] scale = new double[x.length];
+        for (int f = 0; f < x.length; f++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (Observation o : observed) {
+                min = Math.min(min, o.features[f]);
+                max = Math.max(max, o.features[f]);
+            }
+            scale[f] = max > min ? 1 / (max - min) : 0;
+        }
+
+        int k = Math.min(NEIGHBOURS, observed.size());
+        Observation[] nearest = new Observation[k];
+        double[] distance = new double[k];
+        int found = 0;
+        for (Observation o : observed) {
+            double d = 0;
+            for (int f = 0; f < x.length; f++) {
+                double delta = (x[f] - o.features[f]) * scale[f];
+                d += delta * delta;
+            }
+            d = Math.sqrt(d);
+            if (found < k || d < distance[found - 1]) {//insert in order, dropping the farthest
+                int i = found < k ? found++ : found - 1;
+                while (i > 0 && distance[i - 1] > d) {
+                    nearest[i] = nearest[i - 1];
+                    distance[i] = distance[i - 1];
+                    i--;
+                }
+                nearest[i] = o;
+                distance[i] = d;
+            }
+        }
+        if (distance[0] == 0) {
+            return nearest[0].mean();
+        }
+        double weights = 0;
+        double logCost = 0;
+        for (int i = 0; i < k; i++) {
+            double w = 1 / distance[i];
+            weights += w;
+            logCost += w * Math.log(Math.max(nearest[i].mean(), 1e-3));
+        }
+        return Math.exp(logCost / weights);
+    }
+
+    private double[] featuresOf(int configuration, ModelConfiguration config) {
+        double[] x = features.get(configuration);
+        if (x == null) {
+            x = features(config);
+            features.put(configuration, x);
+        }
+        return x;
+    }
+
+    /**
+     * Features of a configuration used to compare it with the completed ones
+     *
+     * @param config the configuration
+     * @return features double[]
+     */
+    private static double[] features(ModelConfiguration config) {
+        int numNetworks = config.networkFiles.length;
+        int numProbs = config.contextSwitchingProb.length;
+        double[] x = new double[3 + numNetworks + numProbs];
+        int f = 0;
+        x[f++] = Math.log(config.population);
+        x[f++] = config.numContexts;
+        x[f++] = config.consensusRequired;
+        for (File network : config.networkFiles) {
+            x[f++] = Math.log(1 + edgeCount(network));
+        }
+        for (double p : config.contextSwitchingProb) {
+            x[f++] = p;
+        }
+        return x;
+    }
+
+    /**
+     * Number of edges of a network file, the number of lines with an edge
+     */
+    private static synchronized int edgeCount(File network) {
+        Integer count = edgeCounts.get(network.getPath());
+        if (count == null) {
+            int edges = 0;
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(network));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.trim().length() > 0) {
+                            edges++;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                edges = 0;//the size of the network is unknown, the other features still apply
+            }
+            count = edges;
+            edgeCounts.put(network.getPath(), count);
+        }
+        return count;
+    }
+
+    /**
+     * Completed runs of a configuration
+     */
+    private static class Observation {
+
+        final double[] features;
+        double runtime;
+        int runs;
+
+        Observation(double[] features) {
+            this.features = features;
+        }
+
+        double mean() {
+            return runtime / runs;
+        }
+    }
+}
@@ -1,26 +1,44 @@
 /**
- * Licensed under the MIT license: 
- * 
- * http://www.opensource.org/licenses/mit-license.php 
+ * Licensed under the MIT license:
+ *
+ * http://www.opensource.org/licenses/mit-license.php
  */
 package contextswitching.grid.performance;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.jppf.server.protocol.JPPFTask;
 
 /**
- * Dummy Task that executes for milisecsDuration 
+ * Dummy Task that keeps a cpu busy for milisecsDuration
+ * and carries a payload of payloadSize bytes to the node
  * (see constructor)
- * 
+ *
+ * the task busy waits instead of sleeping so that the node is actually loaded
+ * while the task executes, as it happens with a simulation task
+ *
  * @author Davide Nunes
  */
 public class DummyTask extends JPPFTask{
-    
+
     int duration;//duration of the task
-    
+    byte[] payload;//data sent to the node with the task
+    long work;//value computed by the task, kept so the work is not optimized away
+
     public DummyTask(int milisecsDuration){
+        this(milisecsDuration, 0);
+    }
+
+    /**
+     * Creates a task with a payload to be serialized with it
+     *
+     * @param milisecsDuration cpu time the task takes to execute
+     * @param payloadSize number of bytes sent with the task
+     */
+    public DummyTask(int milisecsDuration, int payloadSize){
         this.duration = milisecsDuration;
+        this.payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            payload[i] = (byte) i;
+        }
     }
 
     /**
@@ -30,17 +48,18 @@ public class DummyTask extends JPPFTask{
      */
     @Override
     public void run() {
-        try {
-            Thread.sleep(duration);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(DummyTask.class.getName()).log(Level.SEVERE, null, ex);
-            setResult("error");
+        long deadline = System.nanoTime() + duration * 1000000L;
+        work = payload.length;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1000; i++) {//cpu bound work
+                work = work * 6364136223846793005L + 1442695040888963407L;
+            }
         }
-        
+
         // the result object can be any object, in this case a string
-        setResult("done"); 
+        setResult("done");
     }
-    
-    
-    
+
+
+
 }
@@ -0,0 +1,58 @@
+/**
+ * Licensed under the MIT license: 
+ * 
+ * http://www.opensource.org/licenses/mit-license.php 
+ */
+package contextswitching.grid.performance;
+
+import contextswitching.ModelConfiguration;
+import java.util.List;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * An execution path for simulation tasks used by the <code>SweepBenchmark</code>
+ * 
+ * Every backend receives the same list of tasks and must return the executed
+ * tasks, so that the results produced by different backends can be compared
+ * 
+ * @author Davide Nunes
+ */
+public interface ExecutionBackend {
+
+    /**
+     * Name of the backend to be used in the benchmark report
+     * 
+     * @return name String
+     */
+    String getName();
+
+    /**
+     * Checks if this execution path can be used in the current environment
+     * 
+     * @return true if the backend can execute tasks
+     */
+    boolean isAvailable();
+
+    /**
+     * Executes the given tasks and waits for all of them to finish
+     * 
+     * @param tasks the tasks to be executed
+     * @return executed tasks List in the submission order
+     * @throws Exception 
+     */
+    List<JPPFTask> execute(List<JPPFTask> tasks) throws Exception;
+
+    /**
+     * Runs the model until the code executing the tasks is compiled and the
+     * time per step is stable (see <code>NodeWarmup</code>)
+     *
+     * @param config a configuration of the benchmark
+     * @throws Exception
+     */
+    void warmUp(ModelConfiguration config) throws Exception;
+
+    /**
+     * Releases the resources used by the backend
+     */
+    void close();
+}
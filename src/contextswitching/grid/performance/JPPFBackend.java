@@ -0,0 +1,73 @@
+/**
+ * Licensed under the MIT license: 
+ * 
+ * http://www.opensource.org/licenses/mit-license.php 
+ */
+package contextswitching.grid.performance;
+
+import contextswitching.ModelConfiguration;
+import contextswitching.grid.NodeWarmup;
+import java.util.List;
+import org.jppf.client.JPPFClient;
+import org.jppf.client.JPPFJob;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Executes the tasks in a JPPF grid, all the tasks are submitted as a single 
+ * blocking job
+ * 
+ * The grid is configured by the JPPF configuration file, to benchmark 
+ * the grid overhead on a single machine run a driver and a node locally
+ * 
+ * @author Davide Nunes
+ */
+public class JPPFBackend implements ExecutionBackend {
+
+    //time to wait for a connection to the driver
+    private static final long CONNECTION_TIMEOUT = 5000;
+    private JPPFClient jppfClient;
+
+    public String getName() {
+        return "jppf";
+    }
+
+    /**
+     * Creates the JPPF client and waits for a driver connection 
+     * 
+     * @return true if a connection to a driver is available
+     */
+    public boolean isAvailable() {
+        try {
+            if (jppfClient == null) {
+                jppfClient = new JPPFClient();
+            }
+            long deadline = System.currentTimeMillis() + CONNECTION_TIMEOUT;
+            while (!jppfClient.hasAvailableConnection() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            return jppfClient.hasAvailableConnection();
+        } catch (Exception e) {
+            System.out.println("JPPF client not available: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public List<JPPFTask> execute(List<JPPFTask> tasks) throws Exception {
+        JPPFJob job = new JPPFJob();
+        for (JPPFTask task : tasks) {
+            job.addTask(task);
+        }
+        job.setBlocking(true);
+        return jppfClient.submit(job);
+    }
+
+    public void warmUp(ModelConfiguration config) throws Exception {
+        NodeWarmup.warmUp(jppfClient, config);
+    }
+
+    public void close() {
+        if (jppfClient != null) {
+            jppfClient.close();
+        }
+    }
+}
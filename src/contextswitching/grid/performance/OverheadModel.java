@@ -0,0 +1,243 @@
+/**
+ * Licensed under the MIT license:
+ *
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package contextswitching.grid.performance;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Linear model of the time a job takes in the grid
+ *
+ * <pre>
+ * jobTime = perJob + numTasks * perTask + numTasks * payload * perByte
+ *         + numTasks * taskDuration * computeFactor
+ * </pre>
+ *
+ * perJob, perTask and perByte are the overhead constants of the grid
+ * (in milliseconds) and computeFactor is the inverse of the effective
+ * parallelism of the nodes. The constants are fitted by least squares from
+ * the measurements of <code>OverheadTester</code> and saved to a properties
+ * file that the grid runners can load to choose their batch sizes
+ *
+ * @author Davide Nunes
+ */
+public class OverheadModel {
+
+    public static final String DEFAULT_FILE = "grid-overhead.properties";
+    private double perJob;
+    private double perTask;
+    private double perByte;
+    private double computeFactor;
+
+    /**
+     * Constructor
+     *
+     * @param perJob overhead of submitting a job in milliseconds
+     * @param perTask overhead of each task in milliseconds
+     * @param perByte overhead of each byte sent with a task in milliseconds
+     * @param computeFactor fraction of the sequential compute time observed
+     * in a job (1 / effective parallelism)
+     */
+    public OverheadModel(double perJob, double perTask, double perByte, double computeFactor) {
+        this.perJob = perJob;
+        this.perTask = perTask;
+        this.perByte = perByte;
+        this.computeFactor = computeFactor;
+    }
+
+    public double getPerJob() {
+        return perJob;
+    }
+
+    public double getPerTask() {
+        return perTask;
+    }
+
+    public double getPerByte() {
+        return perByte;
+    }
+
+    public double getComputeFactor() {
+        return computeFactor;
+    }
+
+    /**
+     * Predicted duration of a job in milliseconds
+     *
+     * @param numTasks number of tasks in the job
+     * @param taskDuration compute time of each task in milliseconds
+     * @param payload bytes sent with each task
+     * @return duration double
+     */
+    public double predict(int numTasks, double taskDuration, double payload) {
+        return perJob + numTasks * (perTask + payload * perByte + taskDuration * computeFactor);
+    }
+
+    /**
+     * Chooses the number of configurations to be grouped in a single job
+     * so that the per job overhead stays under the given fraction of the
+     * job compute time
+     *
+     * @param tasksPerConfiguration number of tasks created for each configuration
+     * @param taskDuration expected compute time of a task in milliseconds
+     * @param targetOverhead acceptable fraction of per job overhead (0.05 for 5%)
+     * @param maxConfigurations upper bound for the batch size
+     * @return configurations per job int between 1 and maxConfigurations
+     */
+    public int configurationsPerJob(int tasksPerConfiguration, double taskDuration,
+            double targetOverhead, int maxConfigurations) {
+        double computePerConfiguration = tasksPerConfiguration * taskDuration * computeFactor;
+        if (computePerConfiguration <= 0 || perJob <= 0) {
+            return 1;
+        }
+        int batch = (int) Math.ceil(perJob / (targetOverhead * computePerConfiguration));
+        return Math.max(1, Math.min(maxConfigurations, batch));
+    }
+
+    /**
+     * Fits the model to a set of job measurements by ordinary least squares
+     *
+     * @param samples measured jobs
+     * @return model OverheadModel with the fitted constants
+     */
+    public static OverheadModel fit(List<Sample> samples) {
+        //normal equations X'X b = X'y with X = [1, n, n*payload, n*duration]
+        double[][] xtx = new double[4][4];
+        double[] xty = new double[4];
+        for (Sample s : samples) {
+            double[] x = new double[]{1, s.numTasks, (double) s.numTasks * s.payload, (double) s.numTasks * s.taskDuration};
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++) {
+                    xtx[i][j] += x[i] * x[j];
+                }
+                xty[i] += x[i] * s.jobTime;
+            }
+        }
+        double[] b = solve(xtx, xty);
+        return new OverheadModel(b[0], b[1], b[2], b[3]);
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting, singular columns
+     * (parameters that were not varied in the experiment) are set to 0
+     */
+    private static double[] solve(double[][] a, double[] y) {
+        int n = y.length;
+        int[] pivotRow = new int[n];
+        boolean[] used = new boolean[n];
+        for (int col = 0; col < n; col++) {
+            int best = -1;
+            for (int row = 0; row < n; row++) {
+                if (!used[row] && (best < 0 || Math.abs(a[row][col]) > Math.abs(a[best][col]))) {
+                    best = row;
+                }
+            }
+            pivotRow[col] = -1;
+            if (best < 0 || Math.abs(a[best][col]) < 1e-12) {
+                continue;
+            }
+            used[best] = true;
+            pivotRow[col] = best;
+            for (int row = 0; row < n; row++) {
+                if (row != best && a[row][col] != 0) {
+                    double f = a[row][col] / a[best][col];
+                    for (int k = col; k < n; k++) {
+                        a[row][k] -= f * a[best][k];
+                    }
+                    y[row] -= f * y[best];
+                }
+            }
+        }
+        double[] b = new double[n];
+        for (int col = 0; col < n; col++) {
+            if (pivotRow[col] >= 0) {
+                b[col] = y[pivotRow[col]] / a[pivotRow[col]][col];
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Saves the constants in a properties file
+     *
+     * @param file destination file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("overhead.perJob", Double.toString(perJob));
+        properties.setProperty("overhead.perTask", Double.toString(perTask));
+        properties.setProperty("overhead.perByte", Double.toString(perByte));
+        properties.setProperty("overhead.computeFactor", Double.toString(computeFactor));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Grid overhead constants in milliseconds (see OverheadTester)");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the constants saved by <code>save(File)</code>
+     *
+     * @param file the properties file
+     * @return model OverheadModel or null if the file does not exist
+     * @throws IOException
+     */
+    public static OverheadModel load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return new OverheadModel(
+                Double.parseDouble(properties.getProperty("overhead.perJob", "0")),
+                Double.parseDouble(properties.getProperty("overhead.perTask", "0")),
+                Double.parseDouble(properties.getProperty("overhead.perByte", "0")),
+                Double.parseDouble(properties.getProperty("overhead.computeFactor", "1")));
+    }
+
+    @Override
+    public String toString() {
+        return "(perJob: " + perJob + " ms perTask: " + perTask + " ms perByte: " + perByte
+                + " ms computeFactor: " + computeFactor + ")";
+    }
+
+    /**
+     * A single job measurement
+     */
+    public static class Sample {
+
+        int numTasks;
+        int taskDuration;
+        int payload;
+        double jobTime;
+
+        /**
+         * @param numTasks number of tasks in the job
+         * @param taskDuration compute time of each task in milliseconds
+         * @param payload bytes sent with each task
+         * @param jobTime measured job time in milliseconds
+         */
+        public Sample(int numTasks, int taskDuration, int payload, double jobTime) {
+            this.numTasks = numTasks;
+            this.taskDuration = taskDuration;
+            this.payload = payload;
+            this.jobTime = jobTime;
+        }
+    }
+}
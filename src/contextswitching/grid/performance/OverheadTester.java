@@ -5,6 +5,8 @@
  */
 package contextswitching.grid.performance;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import org.jppf.JPPFException;
 import org.jppf.client.JPPFClient;
@@ -15,8 +17,8 @@ import org.jppf.server.protocol.JPPFTask;
  * This class represents an example of a simple JPPF grid client
  * with clocking job submission 
  * 
- * This example submits a job with dummy tasks that take 
- * a specific time to me executed
+ * This example submits jobs with dummy tasks that take 
+ * a specific time to me executed and carry a payload of a given size
  * 
  * This aims to provide an easy way to analyse the overhead 
  * generated by the usage of the grid system
@@ -27,43 +29,62 @@ import org.jppf.server.protocol.JPPFTask;
 public class OverheadTester {
     
     private static JPPFClient jppfClient;
+    //scaling experiment: every combination is submitted REPETITIONS times
+    private static final int[] NUM_TASKS = {1, 4, 16, 64};
+    private static final int[] TASK_DURATIONS = {0, 10, 100};
+    private static final int[] PAYLOAD_SIZES = {0, 16 * 1024, 256 * 1024};
+    private static final int REPETITIONS = 3;
 
     
     /**
      * Run an experiment with dummy tasks to evaluate the
      * rough overhead created by using the grid
      * 
+     * the number of tasks, the task duration and the task payload are 
+     * varied and the job times are used to fit the per job, per task and
+     * per byte overhead constants (see <code>OverheadModel</code>)
      * 
-     * //TODO create an experiment where the number of 
-     * tasks grows and we observe the performance gains
-     * 
-     * //TODO observe that for only one task we can measure the 
-     * overhead produced by the grid
+     * the fitted constants are written to the file given as the first 
+     * argument (grid-overhead.properties by default) so they can be 
+     * loaded by the grid runners
      * 
      * @param args 
      */
     public static void main(String[] args) throws JPPFException, Exception {
+        File output = new File(args.length > 0 ? args[0] : OverheadModel.DEFAULT_FILE);
         //init the Grid Client
         jppfClient =  new JPPFClient();
         
-        int numTasks = 1;
-        int taskDuration = 1000;
-        JPPFJob dummy = createJob(100, 0);
+        JPPFJob dummy = createJob(100, 0, 0);
         executeBlockingJob(dummy);//this job is just submitted to 
         //distribute the classes to the grid nodes
         
-        System.out.println("Creating Dummy Job");
-        JPPFJob job = createJob(numTasks, taskDuration);
-        
-        long beforeSubmission = System.currentTimeMillis();
-        List<JPPFTask> results = executeBlockingJob(job);      
-        long afterSubmission = System.currentTimeMillis();
-        
-        int idealTime = numTasks*taskDuration;
-        long actualDuration = (afterSubmission - beforeSubmission) ;
+        List<OverheadModel.Sample> samples = new ArrayList<OverheadModel.Sample>();
+        System.out.println("tasks\tduration\tpayload\tideal\tactual");
+        for (int numTasks : NUM_TASKS) {
+            for (int taskDuration : TASK_DURATIONS) {
+                for (int payload : PAYLOAD_SIZES) {
+                    for (int r = 0; r < REPETITIONS; r++) {
+                        JPPFJob job = createJob(numTasks, taskDuration, payload);
+
+                        long beforeSubmission = System.nanoTime();
+                        executeBlockingJob(job);
+                        long afterSubmission = System.nanoTime();
+
+                        int idealTime = numTasks * taskDuration;
+                        double actualDuration = (afterSubmission - beforeSubmission) / 1e6;
+                        samples.add(new OverheadModel.Sample(numTasks, taskDuration, payload, actualDuration));
+                        System.out.println(numTasks + "\t" + taskDuration + "\t" + payload
+                                + "\t" + idealTime + "\t" + actualDuration);
+                    }
+                }
+            }
+        }
         
-        System.out.println("Ideal Task Execution Time: "+idealTime);
-        System.out.println("Actual Task ExecutionTime: "+actualDuration);
+        OverheadModel model = OverheadModel.fit(samples);
+        System.out.println("Fitted overhead: " + model);
+        model.save(output);
+        System.out.println("Overhead constants written to " + output.getPath());
         jppfClient.close();
     }
 
@@ -74,18 +95,19 @@ public class OverheadTester {
      * 
      * @param numTasks the number of tasks contained in the job
      * @param taskDuration the duration of the task execution
+     * @param payload number of bytes sent with each task
      * 
      * @return job JPPFJob the newly created job
      * @throws JPPFException 
      */
-    private static JPPFJob createJob(int numTasks, int taskDuration)
+    private static JPPFJob createJob(int numTasks, int taskDuration, int payload)
             throws JPPFException {
         // create a JPPF job
         JPPFJob job = new JPPFJob();
 
         // add a task to the job.
         for (int i = 0; i < numTasks; i++) {
-            job.addTask(new DummyTask(taskDuration));
+            job.addTask(new DummyTask(taskDuration, payload));
         }
         return job;
     }
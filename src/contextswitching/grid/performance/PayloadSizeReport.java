@@ -0,0 +1,101 @@
+/**
+ * Licensed under the MIT license: 
+ * 
+ * http://www.opensource.org/licenses/mit-license.php 
+ */
+package contextswitching.grid.performance;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.grid.CompressionTransform;
+import contextswitching.grid.ParameterSpace;
+import contextswitching.grid.SimulationResult;
+import contextswitching.grid.SimulationTask;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+/**
+ * Reports the size of the data sent to the grid for one job and the time it
+ * takes to encode and decode it
+ * 
+ * the following payloads are compared for a job of the parameter space:
+ * 
+ * <ul>
+ * <li> legacy: the model written with the default java serialization
+ * <li> compact: the <code>SimulationTask</code> with its compact model encoding
+ * <li> deflate: the compact task compressed by <code>CompressionTransform</code>
+ * </ul>
+ * 
+ * @author Davide Nunes
+ */
+public class PayloadSizeReport {
+
+    private static final int NUM_RUNS = 30;
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) throws Exception {
+        ContextSwitchingModel model = new ContextSwitchingModel(1L);
+        model.configureModel(ParameterSpace.switchingProbabilitySweep().get(0));
+        model.initializeModel();
+        SimulationTask task = new SimulationTask(model, 1L);
+        CompressionTransform deflate = new CompressionTransform();
+
+        byte[] legacy = TaskSerialization.serialize(model);
+        byte[] compact = TaskSerialization.serialize(task);
+        byte[] compressed = transform(deflate, compact, true);
+        byte[] result = TaskSerialization.serialize(new SimulationResult(0, 0, 1L, 1000, 100000, true, 1000000000L));
+
+        //warm up and measure the encoding and decoding times
+        long legacyEncode = 0, legacyDecode = 0, compactEncode = 0, compactDecode = 0;
+        long deflateEncode = 0, deflateDecode = 0;
+        for (int i = 0; i < 2 * ITERATIONS; i++) {
+            boolean measure = i >= ITERATIONS;
+            long t0 = System.nanoTime();
+            byte[] a = TaskSerialization.serialize(model);
+            long t1 = System.nanoTime();
+            TaskSerialization.deserialize(a);
+            long t2 = System.nanoTime();
+            byte[] b = TaskSerialization.serialize(task);
+            long t3 = System.nanoTime();
+            TaskSerialization.deserialize(b);
+            long t4 = System.nanoTime();
+            byte[] c = transform(deflate, b, true);
+            long t5 = System.nanoTime();
+            transform(deflate, c, false);
+            long t6 = System.nanoTime();
+            if (measure) {
+                legacyEncode += t1 - t0;
+                legacyDecode += t2 - t1;
+                compactEncode += t3 - t2;
+                compactDecode += t4 - t3;
+                deflateEncode += t3 - t2 + t5 - t4;
+                deflateDecode += t4 - t3 + t6 - t5;
+            }
+        }
+
+        System.out.println("Task payload for a job of " + NUM_RUNS + " runs");
+        System.out.println("format\tbytes/task\tbytes/job\tencode(us)\tdecode(us)");
+        print("legacy", legacy.length, legacyEncode, legacyDecode);
+        print("compact", compact.length, compactEncode, compactDecode);
+        print("deflate", compressed.length, deflateEncode, deflateDecode);
+        System.out.println("Result size: " + result.length + " bytes");
+        System.out.println(String.format(Locale.US, "Saving per job: %d bytes (%.1f%%)",
+                (long) (legacy.length - compressed.length) * NUM_RUNS,
+                100.0 * (legacy.length - compressed.length) / legacy.length));
+    }
+
+    private static void print(String format, int bytes, long encodeNanos, long decodeNanos) {
+        System.out.println(String.format(Locale.US, "%s\t%d\t%d\t%.1f\t%.1f", format, bytes,
+                (long) bytes * NUM_RUNS, encodeNanos / 1e3 / ITERATIONS, decodeNanos / 1e3 / ITERATIONS));
+    }
+
+    private static byte[] transform(CompressionTransform transform, byte[] data, boolean wrap) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (wrap) {
+            transform.wrap(new ByteArrayInputStream(data), out);
+        } else {
+            transform.unwrap(new ByteArrayInputStream(data), out);
+        }
+        return out.toByteArray();
+    }
+}
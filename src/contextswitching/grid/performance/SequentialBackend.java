@@ -0,0 +1,47 @@
+/**
+ * Licensed under the MIT license: 
+ * 
+ * http://www.opensource.org/licenses/mit-license.php 
+ */
+package contextswitching.grid.performance;
+
+import contextswitching.ModelConfiguration;
+import contextswitching.grid.NodeWarmup;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Executes the tasks one after the other in the client thread
+ * 
+ * @author Davide Nunes
+ */
+public class SequentialBackend implements ExecutionBackend {
+
+    public String getName() {
+        return "sequential";
+    }
+
+    public boolean isAvailable() {
+        return true;
+    }
+
+    public List<JPPFTask> execute(List<JPPFTask> tasks) throws Exception {
+        List<JPPFTask> results = new ArrayList<JPPFTask>(tasks.size());
+        for (JPPFTask task : tasks) {
+            JPPFTask copy = (JPPFTask) TaskSerialization.copy(task);
+            copy.run();
+            results.add(copy);
+        }
+        return results;
+    }
+
+    public void warmUp(ModelConfiguration config) throws Exception {
+        JPPFTask task = NodeWarmup.createTask(config);
+        NodeWarmup.isWarm(execute(Collections.singletonList(task)));
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Licensed under the MIT license:
+ *
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package contextswitching.grid.performance;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.ModelConfiguration;
+import contextswitching.grid.NodeWarmup;
+import contextswitching.grid.ParameterSpace;
+import contextswitching.grid.SimulationResult;
+import contextswitching.grid.SimulationTask;
+import ec.util.MersenneTwisterFast;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * End to end benchmark of the sweep pipeline
+ *
+ * Runs a fixed, seeded sub-sweep of the parameter space explored by
+ * <code>ContextSwitchingParallelGridRunner</code> against every available
+ * execution backend:
+ *
+ * <ul>
+ * <li> sequential execution in the client
+ * <li> a local thread pool
+ * <li> a JPPF grid (for instance a driver and a node on the same machine)
+ * </ul>
+ *
+ * For each backend the runs per second, the median and 99th percentile of the
+ * run latency, the peak client heap and the bytes serialized per task are
+ * written to a CSV report. The seeds of the sub-sweep are fixed so reports
+ * produced by different versions of the code can be compared, the result
+ * checksum column must be equal if the backends ran the same simulations.
+ * Each backend is warmed up before it is timed (see <code>NodeWarmup</code>).
+ *
+ * usage: SweepBenchmark [report file] [baseline report file]
+ *
+ * @author Davide Nunes
+ */
+public class SweepBenchmark {
+
+    private static final long SEED = 20120301L;
+    private static final int NUM_CONFIGURATIONS = 16;
+    private static final int NUM_REPLICATES = 4;
+    private static final String DEFAULT_REPORT = "sweep-benchmark.csv";
+    private static final String REPORT_HEADER =
+            "backend,configurations,runs,seconds,runs_per_sec,p50_ms,p99_ms,peak_heap_mb,bytes_per_task,checksum";
+
+    public static void main(String[] args) throws Exception {
+        File report = new File(args.length > 0 ? args[0] : DEFAULT_REPORT);
+        File baseline = args.length > 1 ? new File(args[1]) : null;
+
+        List<ModelConfiguration> ps = ParameterSpace.switchingProbabilitySweep();
+        int[] configurations = selectConfigurations(ps.size(), NUM_CONFIGURATIONS, SEED);
+        System.out.println("Benchmark configurations: " + Arrays.toString(configurations));
+
+        List<JPPFTask> tasks = createTasks(ps, configurations);
+        long bytesPerTask = 0;
+        for (JPPFTask task : tasks) {
+            bytesPerTask += TaskSerialization.serialize(task).length;
+        }
+        bytesPerTask /= tasks.size();
+
+        ExecutionBackend[] backends = new ExecutionBackend[]{
+            new SequentialBackend(),
+            new ThreadPoolBackend(Runtime.getRuntime().availableProcessors()),
+            new JPPFBackend()
+        };
+
+        List<String> rows = new ArrayList<String>();
+        for (ExecutionBackend backend : backends) {
+            if (!backend.isAvailable()) {
+                System.out.println("Backend " + backend.getName() + " not available, skipping");
+                backend.close();
+                continue;
+            }
+            try {
+                if (NodeWarmup.ENABLED) {//the first backend would run cold
+                    backend.warmUp(ps.get(configurations[0]));
+                }
+                rows.add(benchmark(backend, tasks, configurations.length, bytesPerTask));
+            } finally {
+                backend.close();
+            }
+        }
+
+        writeReport(report, rows);
+        printComparison(rows, baseline);
+    }
+
+    /**
+     * Selects numConfigurations distinct configuration indexes from the
+     * parameter space, the selection only depends on the seed
+     *
+     * @param size size of the parameter space
+     * @param numConfigurations number of configurations to select
+     * @param seed random seed for the selection
+     * @return indexes int[] sorted configuration indexes
+     */
+    private static int[] selectConfigurations(int size, int numConfigurations, long seed) {
+        MersenneTwisterFast random = new MersenneTwisterFast(seed);
+        int[] all = new int[size];
+        for (int i = 0; i < size; i++) {
+            all[i] = i;
+        }
+        int n = Math.min(size, numConfigurations);
+        for (int i = 0; i < n; i++) {//partial Fisher-Yates shuffle
+            int j = i + random.nextInt(size - i);
+            int tmp = all[i];
+            all[i] = all[j];
+            all[j] = tmp;
+        }
+        int[] selected = Arrays.copyOf(all, n);
+        Arrays.sort(selected);
+        return selected;
+    }
+
+    /**
+     * Creates NUM_REPLICATES seeded tasks for each selected configuration
+     *
+     * @param ps parameter space
+     * @param configurations selected configuration indexes
+     * @return tasks List of tasks ready to be executed
+     */
+    private static List<JPPFTask> createTasks(List<ModelConfiguration> ps, int[] configurations) {
+        MersenneTwisterFast seeds = new MersenneTwisterFast(SEED);
+        List<JPPFTask> tasks = new ArrayList<JPPFTask>();
+        for (int index : configurations) {
+            ContextSwitchingModel model = new ContextSwitchingModel(seeds.nextLong());
+            model.configureModel(ps.get(index));
+            model.initializeModel();
+            model.setVerbose(false);
+            for (int r = 0; r < NUM_REPLICATES; r++) {
+                tasks.add(new SimulationTask(model, seeds.nextLong()));
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Runs the tasks in the given backend and summarizes the measurements
+     *
+     * @return report row String
+     */
+    private static String benchmark(ExecutionBackend backend, List<JPPFTask> tasks,
+            int numConfigurations, long bytesPerTask) throws Exception {
+        System.out.println("Running backend " + backend.getName() + "...");
+        System.gc();
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+
+        long before = System.nanoTime();
+        List<JPPFTask> results = backend.execute(tasks);
+        long after = System.nanoTime();
+
+        heap.interrupt();
+        heap.join();
+
+        double[] latencies = new double[results.size()];
+        long checksum = 0;
+        for (int i = 0; i < results.size(); i++) {
+            JPPFTask task = results.get(i);
+            if (task.getException() != null) {
+                throw task.getException();
+            }
+            SimulationResult result = (SimulationResult) task.getResult();
+            latencies[i] = result.getRuntimeNanos() / 1e6;
+            checksum = checksum * 31 + result.getSteps();
+            checksum = checksum * 31 + result.getNumEncounters();
+        }
+        Arrays.sort(latencies);
+        double seconds = (after - before) / 1e9;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(backend.getName()).append(',');
+        sb.append(numConfigurations).append(',');
+        sb.append(results.size()).append(',');
+        sb.append(String.format(Locale.US, "%.3f", seconds)).append(',');
+        sb.append(String.format(Locale.US, "%.3f", results.size() / seconds)).append(',');
+        sb.append(String.format(Locale.US, "%.3f", percentile(latencies, 0.5))).append(',');
+        sb.append(String.format(Locale.US, "%.3f", percentile(latencies, 0.99))).append(',');
+        sb.append(String.format(Locale.US, "%.1f", heap.getPeak() / (1024.0 * 1024.0))).append(',');
+        sb.append(bytesPerTask).append(',');
+        sb.append(Long.toHexString(checksum));
+        return sb.toString();
+    }
+
+    /**
+     * Nearest rank percentile of sorted values
+     */
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+
+    private static void writeReport(File report, List<String> rows) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(report));
+        try {
+            out.println(REPORT_HEADER);
+            for (String row : rows) {
+                out.println(row);
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println("Report written to " + report.getPath());
+    }
+
+    /**
+     * Prints the throughput of each backend relative to the sequential one
+     * and, if a baseline report is given, relative to the same backend in
+     * the baseline
+     */
+    private static void printComparison(List<String> rows, File baseline) throws IOException {
+        Map<String, Double> baselineThroughput = new HashMap<String, Double>();
+        if (baseline != null && baseline.exists()) {
+            BufferedReader in = new BufferedReader(new FileReader(baseline));
+            try {
+                in.readLine();//header
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] columns = line.split(",");
+                    baselineThroughput.put(columns[0], Double.parseDouble(columns[4]));
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        double reference = 0;
+        System.out.println(REPORT_HEADER + ",speedup,vs_baseline");
+        for (String row : rows) {
+            String[] columns = row.split(",");
+            double throughput = Double.parseDouble(columns[4]);
+            if (reference == 0) {
+                reference = throughput;
+            }
+            Double previous = baselineThroughput.get(columns[0]);
+            System.out.println(row + ","
+                    + String.format(Locale.US, "%.2f", throughput / reference) + ","
+                    + (previous == null ? "-" : String.format(Locale.US, "%+.1f%%", 100 * (throughput / previous - 1))));
+        }
+    }
+
+    /**
+     * Samples the used client heap while a backend is running
+     */
+    private static class HeapSampler extends Thread {
+
+        private volatile long peak;
+
+        public HeapSampler() {
+            setDaemon(true);
+        }
+
+        public long getPeak() {
+            return peak;
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed under the MIT license: 
+ * 
+ * http://www.opensource.org/licenses/mit-license.php 
+ */
+package contextswitching.grid.performance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Serialization utilities used by the in-process backends
+ * 
+ * tasks are serialized and deserialized before being executed locally
+ * this way each execution works on its own copy of the model (as it happens 
+ * in a grid node) and the serialization cost is part of the measurement
+ * 
+ * @author Davide Nunes
+ */
+public class TaskSerialization {
+
+    /**
+     * Serializes an object with the default java serialization
+     * 
+     * @param object the object to be serialized
+     * @return bytes byte[] 
+     * @throws IOException 
+     */
+    public static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads an object from its serialized form
+     * 
+     * @param bytes serialized object
+     * @return object Object 
+     * @throws IOException
+     * @throws ClassNotFoundException 
+     */
+    public static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates a deep copy of an object through serialization
+     * 
+     * @param object the object to be copied
+     * @return copy Object
+     * @throws Exception 
+     */
+    public static Object copy(Object object) throws Exception {
+        return deserialize(serialize(object));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed under the MIT license: 
+ * 
+ * http://www.opensource.org/licenses/mit-license.php 
+ */
+package contextswitching.grid.performance;
+
+import contextswitching.ModelConfiguration;
+import contextswitching.grid.NodeWarmup;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jppf.server.protocol.JPPFTask;
+
+/**
+ * Executes the tasks in a local fixed size thread pool
+ * 
+ * @author Davide Nunes
+ */
+public class ThreadPoolBackend implements ExecutionBackend {
+
+    private int numThreads;
+    private ExecutorService executor;
+
+    /**
+     * Constructor
+     * 
+     * @param numThreads number of threads in the pool
+     */
+    public ThreadPoolBackend(int numThreads) {
+        this.numThreads = numThreads;
+        this.executor = Executors.newFixedThreadPool(numThreads);
+    }
+
+    public String getName() {
+        return "threads-" + numThreads;
+    }
+
+    public boolean isAvailable() {
+        return true;
+    }
+
+    public List<JPPFTask> execute(List<JPPFTask> tasks) throws Exception {
+        List<Future<JPPFTask>> futures = new ArrayList<Future<JPPFTask>>(tasks.size());
+        for (JPPFTask task : tasks) {
+            final byte[] serialized = TaskSerialization.serialize(task);
+            futures.add(executor.submit(new Callable<JPPFTask>() {
+
+                public JPPFTask call() throws Exception {
+                    JPPFTask copy = (JPPFTask) TaskSerialization.deserialize(serialized);
+                    copy.run();
+                    return copy;
+                }
+            }));
+        }
+
+        List<JPPFTask> results = new ArrayList<JPPFTask>(tasks.size());
+        for (Future<JPPFTask> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    /**
+     * Warms up every thread of the pool at the same time
+     */
+    public void warmUp(ModelConfiguration config) throws Exception {
+        JPPFTask task = NodeWarmup.createTask(config);
+        NodeWarmup.isWarm(execute(Collections.nCopies(numThreads, task)));
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+}
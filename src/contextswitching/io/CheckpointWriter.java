@@ -0,0 +1,123 @@
+package contextswitching.io;
+
+import contextswitching.ContextSwitchingModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/**
+ * Writes compact checkpoints of a model every K steps in the background
+ *
+ * The simulation only stops to copy the state of the agents into primitive
+ * arrays, the encoding and the disk writes are done by a background thread.
+ * If the previous checkpoint is still being written when a new one is due,
+ * the new one is skipped instead of blocking the simulation.
+ *
+ * <pre>
+ * CheckpointWriter writer = new CheckpointWriter(new File("run.ckpt"));
+ * writer.attach(model, 1000);
+ * model.run();
+ * writer.close();
+ * if (writer.getLastError() != null) {
+ *     //the last checkpoints were not written
+ * }
+ * </pre>
+ *
+ * @see ModelCheckpoint
+ * @author Davide Nunes
+ */
+public class CheckpointWriter implements Steppable {
+
+    private static final long serialVersionUID = 1L;
+    private File file;
+    private transient ExecutorService executor;
+    private volatile boolean writing;
+    private volatile IOException lastError;
+    private int written;
+    private int skipped;
+
+    /**
+     * Constructor
+     *
+     * @param file checkpoint file, replaced by each new checkpoint
+     */
+    public CheckpointWriter(File file) {
+        this.file = file;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "checkpoint-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Registers the writer in a model, checkpoints are written while the
+     * model is executed with <code>run()</code>
+     *
+     * @param model the model to be checkpointed
+     * @param interval number of steps between checkpoints
+     */
+    public void attach(ContextSwitchingModel model, int interval) {
+        model.addPeriodicSteppable(this, interval);
+    }
+
+    /**
+     * Captures the model state and hands it to the background writer
+     */
+    public void step(SimState state) {
+        if (writing) {
+            skipped++;
+            return;
+        }
+        final ModelCheckpoint checkpoint = ModelCheckpoint.capture((ContextSwitchingModel) state);
+        writing = true;
+        executor.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    checkpoint.write(file);
+                    written++;
+                } catch (IOException e) {
+                    lastError = e;
+                } finally {
+                    writing = false;
+                }
+            }
+        });
+    }
+
+    public int getNumWritten() {
+        return written;
+    }
+
+    public int getNumSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Error of the last failed write, null if every write succeeded
+     *
+     * @return error IOException
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Waits for the checkpoint being written and stops the background thread
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,96 @@
+package contextswitching.io;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Reads the values written by <code>CompactOutput</code>
+ *
+ * @see CompactOutput
+ * @author Davide Nunes
+ */
+public class CompactInput {
+
+    private DataInput in;
+
+    /**
+     * Constructor
+     *
+     * @param in source of the encoded values
+     */
+    public CompactInput(DataInput in) {
+        this.in = in;
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IOException("Malformed variable length integer");
+            }
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed variable length long");
+            }
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public int readSignedVarInt() throws IOException {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    public long readLong() throws IOException {
+        return in.readLong();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    public String readString() throws IOException {
+        return in.readUTF();
+    }
+
+    public int[] readVarIntArray() throws IOException {
+        int[] values = new int[readVarInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readVarInt();
+        }
+        return values;
+    }
+
+    public double[] readDoubleArray() throws IOException {
+        double[] values = new double[readVarInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,118 @@
+package contextswitching.io;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes primitive values in a compact binary form
+ *
+ * integers are written as variable length quantities (7 bits per byte,
+ * the high bit signals that more bytes follow), small values take a single
+ * byte. Signed values are zig-zag encoded before being written
+ *
+ * @see CompactInput
+ * @author Davide Nunes
+ */
+public class CompactOutput {
+
+    private DataOutput out;
+
+    /**
+     * Constructor
+     *
+     * @param out destination of the encoded values
+     */
+    public CompactOutput(DataOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes a non negative integer as a variable length quantity
+     *
+     * @param value the value to be written
+     * @throws IOException
+     */
+    public void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Writes a non negative long as a variable length quantity
+     *
+     * @param value the value to be written
+     * @throws IOException
+     */
+    public void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Writes a signed integer, values close to zero take less bytes
+     *
+     * @param value the value to be written
+     * @throws IOException
+     */
+    public void writeSignedVarInt(int value) throws IOException {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes a signed long, values close to zero take less bytes
+     *
+     * @param value the value to be written
+     * @throws IOException
+     */
+    public void writeSignedVarLong(long value) throws IOException {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeDouble(double value) throws IOException {
+        out.writeDouble(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        out.writeLong(value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        out.writeBoolean(value);
+    }
+
+    public void writeString(String value) throws IOException {
+        out.writeUTF(value);
+    }
+
+    /**
+     * Writes an array of non negative integers, the length first
+     *
+     * @param values the values to be written
+     * @throws IOException
+     */
+    public void writeVarIntArray(int[] values) throws IOException {
+        writeVarInt(values.length);
+        for (int v : values) {
+            writeVarInt(v);
+        }
+    }
+
+    /**
+     * Writes an array of doubles, the length first
+     *
+     * @param values the values to be written
+     * @throws IOException
+     */
+    public void writeDoubleArray(double[] values) throws IOException {
+        writeVarInt(values.length);
+        for (double v : values) {
+            out.writeDouble(v);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package contextswitching.io;
+
+import contextswitching.AgentMemory;
+import contextswitching.Choices;
+import contextswitching.ContextSwitchingModel;
+import contextswitching.ContextTopology;
+import contextswitching.ModelConfiguration;
+import contextswitching.RandomStream;
+import ec.util.MersenneTwisterFast;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact checkpoint of a running model
+ *
+ * Unlike the MASON checkpoints, which serialize the whole <code>SimState</code>
+ * (agents, hash maps, networks and space fields), only the dynamic state of
+ * the model is stored:
+ *
+ * <ul>
+ * <li> the opinion, context and memory of each agent, with the windows or
+ * the weights of a bounded memory
+ * <li> the state of the random number generator and of the buffered
+ * random stream
+ * <li> the order in which the agents were stepped in the last step
+ * <li> the number of steps and encounters
+ * </ul>
+ *
+ * together with a reference to the topology: the network files and a
+ * fingerprint of the adjacency lists, which is checked when the checkpoint
+ * is restored. A model that rewires its edges also stores the networks it
+ * reached, they replace the loaded networks when the checkpoint is restored
+ *
+ * @see CheckpointWriter
+ * @author Davide Nunes
+ */
+public class ModelCheckpoint {
+
+    private static final int MAGIC = 0x4353434B; //CSCK
+    private static final int VERSION = 9;
+    private long topologyFingerprint;
+    private String[] networkFiles;
+    private int population;
+    private double consensusRequired;
+    private double[] contextSwitching;
+    private boolean eventDrivenSwitching;
+    private boolean driverScheduling;
+    private double[][] contextTransitions;
+    private int agentOrdering;
+    private boolean bufferedRandom;
+    private double rewiringProb;
+    private int rewiringTarget;
+    private ContextTopology rewiredTopology;    //current networks of a model that rewires, null otherwise
+    private int memoryModel;
+    private int memoryWindow;
+    private double memoryDecay;
+    private int[] memoryWindows;                //windows of a WINDOW_MEMORY, null otherwise
+    private double[] memoryWeights;             //weights of a DECAY_MEMORY, null otherwise
+    private double[] memoryScales;              //scales of the weights of a DECAY_MEMORY, null otherwise
+    private RandomStream stepRandom;
+    private long steps;
+    private int numEncounters;
+    private MersenneTwisterFast random;
+    private int[] opinions;
+    private int[] contexts;
+    private int[] memories;
+    private int[] schedulingOrder;
+
+    private ModelCheckpoint() {
+    }
+
+    /**
+     * Copies the dynamic state of a model, this must be called between steps
+     *
+     * @param model the model
+     * @return checkpoint ModelCheckpoint
+     */
+    public static ModelCheckpoint capture(ContextSwitchingModel model) {
+        ModelCheckpoint cp = new ModelCheckpoint();
+        cp.topologyFingerprint = model.getTopologyFingerprint();
+        File[] files = model.getNetworkFiles();
+        cp.networkFiles = new String[files == null ? 0 : files.length];
+        for (int i = 0; i < cp.networkFiles.length; i++) {
+            cp.networkFiles[i] = files[i].getPath();
+        }
+        cp.population = model.getPopulation();
+        cp.consensusRequired = model.getConsensusRequired();
+        cp.contextSwitching = model.getContextSwitchingProbs().clone();
+        cp.eventDrivenSwitching = model.isEventDrivenSwitching();
+        cp.driverScheduling = model.isDriverScheduling();
+        cp.contextTransitions = model.getContextTransitions();
+        cp.agentOrdering = model.getAgentOrdering();
+        cp.bufferedRandom = model.isBufferedRandom();
+        cp.rewiringProb = model.getRewiringProb();
+        cp.rewiringTarget = model.getRewiringTarget();
+        cp.rewiredTopology = cp.rewiringProb > 0 ? model.getOriginalTopology() : null;
+        cp.memoryModel = model.getMemoryModel();
+        cp.memoryWindow = model.getMemoryWindow();
+        cp.memoryDecay = model.getMemoryDecay();
+        RandomStream stream = model.getStepRandom();
+        cp.stepRandom = stream == null ? null : new RandomStream(stream.getState(), stream.getGamma());
+        cp.steps = model.getSteps();
+        cp.numEncounters = model.getNumEncounters();
+        cp.random = (MersenneTwisterFast) model.random.clone();
+        cp.opinions = model.getOpinions();
+        cp.contexts = model.getContexts();
+        cp.memories = model.getMemories();
+        cp.memoryWindows = model.getMemoryWindows();
+        cp.memoryWeights = model.getMemoryWeights();
+        cp.memoryScales = model.getMemoryScales();
+        cp.schedulingOrder = model.getSchedulingOrder();
+        return cp;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Restores the checkpoint on an initialized model with the same topology
+     *
+     * @param model the model to be restored
+     * @throws IOException if the model topology is not the one of the checkpoint
+     */
+    public void restore(ContextSwitchingModel model) throws IOException {
+        if (model.getTopologyFingerprint() != topologyFingerprint) {
+            throw new IOException("The checkpoint was taken from a model with different networks");
+        }
+        if (rewiredTopology != null) {
+            model.restoreTopology(rewiredTopology);
+        }
+        model.restoreState(opinions, contexts, memories, schedulingOrder,
+                (MersenneTwisterFast) random.clone(),
+                stepRandom == null ? null : new RandomStream(stepRandom.getState(), stepRandom.getGamma()),
+                steps, numEncounters);
+        model.restoreMemories(memoryWindows, memoryWeights, memoryScales);
+    }
+
+    /**
+     * Rebuilds a model from the checkpoint, the networks are loaded from the
+     * network files referenced by the checkpoint
+     *
+     * @return model ContextSwitchingModel ready to resume its run
+     * @throws IOException if the network files are not available or changed
+     */
+    public ContextSwitchingModel restore() throws IOException {
+        if (networkFiles.length == 0) {
+            throw new IOException("The checkpoint does not reference its network files");
+        }
+        File[] files = new File[networkFiles.length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(networkFiles[i]);
+        }
+        ContextSwitchingModel model = new ContextSwitchingModel(0);
+        try {
+            ModelConfiguration config = new ModelConfiguration(population, contextSwitching.length,
+                    consensusRequired, contextSwitching, files);
+            config.eventDrivenSwitching = eventDrivenSwitching;
+            config.driverScheduling = driverScheduling;
+            config.setContextTransitions(contextTransitions);
+            config.agentOrdering = agentOrdering;
+            config.bufferedRandom = bufferedRandom;
+            config.setRewiring(rewiringProb, rewiringTarget);
+            config.memoryModel = memoryModel;
+            config.memoryWindow = memoryWindow;
+            config.memoryDecay = memoryDecay;
+            model.configureModel(config);
+        } catch (Exception e) {
+            throw new IOException("Invalid configuration in checkpoint: " + e.getMessage());
+        }
+        model.initializeModel(ContextTopology.load(files, population), opinions, contexts, memories);
+        restore(model);
+        return model;
+    }
+
+    /**
+     * Writes the checkpoint to a file
+     *
+     * the checkpoint is written to a temporary file which then replaces the
+     * destination, so a crash while writing leaves the previous checkpoint
+     * intact
+     *
+     * @param file destination file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+        try {
+            writeTo(data);
+            data.flush();
+            fos.getFD().sync();
+        } finally {
+            data.close();
+        }
+        if (!tmp.renameTo(file)) {//some platforms do not replace existing files
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a checkpoint written by <code>write(File)</code>
+     *
+     * @param file the checkpoint file
+     * @return checkpoint ModelCheckpoint
+     * @throws IOException
+     */
+    public static ModelCheckpoint read(File file) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            return readFrom(data, file.getPath());
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Encodes the checkpoint in memory, in the format of the checkpoint files
+     *
+     * @return encoded byte[]
+     * @throws IOException
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buffer);
+        writeTo(data);
+        data.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decodes a checkpoint encoded with <code>toBytes()</code>
+     *
+     * @param encoded the encoded checkpoint
+     * @return checkpoint ModelCheckpoint
+     * @throws IOException if the bytes are not a checkpoint
+     */
+    public static ModelCheckpoint fromBytes(byte[] encoded) throws IOException {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(encoded)), "encoded checkpoint");
+    }
+
+    private void writeTo(DataOutputStream data) throws IOException {
+        CompactOutput out = new CompactOutput(data);
+        data.writeInt(MAGIC);
+        out.writeVarInt(VERSION);
+        out.writeLong(topologyFingerprint);
+        out.writeVarInt(networkFiles.length);
+        for (String f : networkFiles) {
+            out.writeString(f);
+        }
+        out.writeVarInt(population);
+        out.writeDouble(consensusRequired);
+        out.writeDoubleArray(contextSwitching);
+        out.writeBoolean(eventDrivenSwitching);
+        out.writeBoolean(driverScheduling);
+        out.writeBoolean(contextTransitions != null);
+        if (contextTransitions != null) {
+            ModelCodec.writeMatrix(out, contextTransitions);
+        }
+        out.writeVarInt(agentOrdering);
+        out.writeBoolean(bufferedRandom);
+        out.writeDouble(rewiringProb);
+        out.writeVarInt(rewiringTarget);
+        out.writeBoolean(rewiredTopology != null);
+        if (rewiredTopology != null) {
+            ModelCodec.writeTopology(out, rewiredTopology);
+        }
+        out.writeVarInt(memoryModel);
+        out.writeVarInt(memoryWindow);
+        out.writeDouble(memoryDecay);
+        out.writeBoolean(stepRandom != null);
+        if (stepRandom != null) {
+            out.writeLong(stepRandom.getState());
+            out.writeLong(stepRandom.getGamma());
+        }
+        out.writeVarLong(steps);
+        out.writeVarInt(numEncounters);
+        random.writeState(data);
+        for (int i = 0; i < population; i++) {
+            out.writeVarInt(opinions[i]);
+            out.writeVarInt(contexts[i]);
+        }
+        for (int m : memories) {
+            out.writeVarInt(m);
+        }
+        if (memoryWindows != null) {
+            for (int op : memoryWindows) {
+                out.writeVarInt(op + 1);//-1 for the encounters not yet made
+            }
+        }
+        if (memoryWeights != null) {
+            for (double w : memoryWeights) {
+                out.writeDouble(w);
+            }
+            for (double scale : memoryScales) {
+                out.writeDouble(scale);
+            }
+        }
+        out.writeVarIntArray(schedulingOrder);
+    }
+
+    private static ModelCheckpoint readFrom(DataInputStream data, String source) throws IOException {
+        CompactInput in = new CompactInput(data);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a model checkpoint: " + source);
+        }
+        int version = in.readVarInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version: " + version);
+        }
+        ModelCheckpoint cp = new ModelCheckpoint();
+        cp.topologyFingerprint = in.readLong();
+        cp.networkFiles = new String[in.readVarInt()];
+        for (int i = 0; i < cp.networkFiles.length; i++) {
+            cp.networkFiles[i] = in.readString();
+        }
+        cp.population = in.readVarInt();
+        cp.consensusRequired = in.readDouble();
+        cp.contextSwitching = in.readDoubleArray();
+        cp.eventDrivenSwitching = in.readBoolean();
+        cp.driverScheduling = in.readBoolean();
+        cp.contextTransitions = in.readBoolean() ? ModelCodec.readMatrix(in) : null;
+        cp.agentOrdering = in.readVarInt();
+        cp.bufferedRandom = in.readBoolean();
+        cp.rewiringProb = in.readDouble();
+        cp.rewiringTarget = in.readVarInt();
+        cp.rewiredTopology = in.readBoolean() ? ModelCodec.readTopology(in) : null;
+        cp.memoryModel = in.readVarInt();
+        cp.memoryWindow = in.readVarInt();
+        cp.memoryDecay = in.readDouble();
+        if (in.readBoolean()) {
+            long state = in.readLong();
+            cp.stepRandom = new RandomStream(state, in.readLong());
+        }
+        cp.steps = in.readVarLong();
+        cp.numEncounters = in.readVarInt();
+        cp.random = new MersenneTwisterFast(0);
+        cp.random.readState(data);
+        cp.opinions = new int[cp.population];
+        cp.contexts = new int[cp.population];
+        for (int i = 0; i < cp.population; i++) {
+            cp.opinions[i] = in.readVarInt();
+            cp.contexts[i] = in.readVarInt();
+        }
+        cp.memories = new int[cp.population * Choices.NUM_OPINIONS];
+        for (int i = 0; i < cp.memories.length; i++) {
+            cp.memories[i] = in.readVarInt();
+        }
+        if (cp.memoryModel == AgentMemory.WINDOW_MEMORY) {
+            cp.memoryWindows = new int[cp.population * cp.memoryWindow];
+            for (int i = 0; i < cp.memoryWindows.length; i++) {
+                cp.memoryWindows[i] = in.readVarInt() - 1;
+            }
+        } else if (cp.memoryModel == AgentMemory.DECAY_MEMORY) {
+            cp.memoryWeights = new double[cp.population * Choices.NUM_OPINIONS];
+            for (int i = 0; i < cp.memoryWeights.length; i++) {
+                cp.memoryWeights[i] = in.readDouble();
+            }
+            cp.memoryScales = new double[cp.population];
+            for (int i = 0; i < cp.population; i++) {
+                cp.memoryScales[i] = in.readDouble();
+            }
+        }
+        cp.schedulingOrder = in.readVarIntArray();
+        return cp;
+    }
+}
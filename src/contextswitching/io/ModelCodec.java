@@ -0,0 +1,397 @@
+package contextswitching.io;
+
+import contextswitching.AgentMemory;
+import contextswitching.Choices;
+import contextswitching.ContextSwitchingModel;
+import contextswitching.ContextTopology;
+import contextswitching.ModelConfiguration;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of the model and its configuration
+ *
+ * Instead of the default serialization of the object graph (agents, bags,
+ * edges, hash maps and their class descriptors) only the primitive state is
+ * written:
+ *
+ * <ul>
+ * <li> the seed and the model parameters and options
+ * <li> each network layer as delta encoded adjacency lists
+ * <li> the opinion, context and memory of each agent, with the windows or
+ * the weights of a bounded memory
+ * </ul>
+ *
+ * Networks and agents are written with the ids of the network files, a model
+ * with an agent ordering is renumbered again when it is decoded. The networks
+ * of a model that rewires its edges are written as they are when encoded
+ *
+ * The networks, space fields and agents are rebuilt when the model is decoded
+ *
+ * @author Davide Nunes
+ */
+public class ModelCodec {
+
+    private static final int VERSION = 9;
+    //model options, written as a bit set followed by the data of the options
+    private static final int EVENT_DRIVEN_SWITCHING = 1;
+    private static final int CONTEXT_TRANSITIONS = 2;
+    private static final int DRIVER_SCHEDULING = 4;
+    private static final int AGENT_ORDERING = 8;
+    private static final int BUFFERED_RANDOM = 16;
+    private static final int REWIRING = 32;
+    private static final int BOUNDED_MEMORY = 64;
+
+    /**
+     * Encodes an initialized model
+     *
+     * @param model the model to be encoded
+     * @return bytes byte[]
+     * @throws IOException
+     */
+    public static byte[] encode(ContextSwitchingModel model) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeModel(new CompactOutput(new DataOutputStream(bytes)), model);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuilds a model from the bytes produced by <code>encode</code>
+     *
+     * @param bytes the encoded model
+     * @return model ContextSwitchingModel initialized model
+     * @throws IOException
+     */
+    public static ContextSwitchingModel decode(byte[] bytes) throws IOException {
+        return readModel(new CompactInput(new DataInputStream(new ByteArrayInputStream(bytes))));
+    }
+
+    public static void writeModel(CompactOutput out, ContextSwitchingModel model) throws IOException {
+        out.writeVarInt(VERSION);
+        out.writeLong(model.seed());
+        out.writeVarInt(model.getPopulation());
+        out.writeDouble(model.getConsensusRequired());
+        out.writeDoubleArray(model.getContextSwitchingProbs());
+        writeOptions(out, model);
+        writeTopology(out, model.getOriginalTopology());
+
+        int[] opinions = model.getOpinions();
+        int[] contexts = model.getContexts();
+        int[] memories = model.getMemories();
+        for (int i = 0; i < opinions.length; i++) {
+            out.writeVarInt(opinions[i]);
+            out.writeVarInt(contexts[i]);
+        }
+        for (int m : memories) {
+            out.writeVarInt(m);
+        }
+        int[] windows = model.getMemoryWindows();
+        if (windows != null) {
+            for (int op : windows) {
+                out.writeVarInt(op + 1);//-1 for the encounters not yet made
+            }
+        }
+        double[] weights = model.getMemoryWeights();
+        if (weights != null) {
+            for (double w : weights) {
+                out.writeDouble(w);
+            }
+            for (double scale : model.getMemoryScales()) {
+                out.writeDouble(scale);
+            }
+        }
+    }
+
+    public static ContextSwitchingModel readModel(CompactInput in) throws IOException {
+        checkVersion(in);
+        ContextSwitchingModel model = new ContextSwitchingModel(in.readLong());
+        int population = in.readVarInt();
+        model.setPopulation(population);
+        model.setConsensusRequired(in.readDouble());
+        double[] switching = in.readDoubleArray();
+        model.setNumContexts(switching.length);
+        model.setContextSwitchingProbs(switching);
+        readOptions(in, model);
+        ContextTopology topology = readTopology(in);
+
+        int[] opinions = new int[population];
+        int[] contexts = new int[population];
+        int[] memories = new int[population * Choices.NUM_OPINIONS];
+        for (int i = 0; i < population; i++) {
+            opinions[i] = in.readVarInt();
+            contexts[i] = in.readVarInt();
+        }
+        for (int i = 0; i < memories.length; i++) {
+            memories[i] = in.readVarInt();
+        }
+        model.initializeModel(topology, opinions, contexts, memories);
+        int[] windows = null;
+        double[] weights = null;
+        double[] scales = null;
+        if (model.getMemoryModel() == AgentMemory.WINDOW_MEMORY) {
+            windows = new int[population * model.getMemoryWindow()];
+            for (int i = 0; i < windows.length; i++) {
+                windows[i] = in.readVarInt() - 1;
+            }
+        } else if (model.getMemoryModel() == AgentMemory.DECAY_MEMORY) {
+            weights = new double[population * Choices.NUM_OPINIONS];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = in.readDouble();
+            }
+            scales = new double[population];
+            for (int i = 0; i < population; i++) {
+                scales[i] = in.readDouble();
+            }
+        }
+        model.restoreMemories(windows, weights, scales);
+        return model;
+    }
+
+    /**
+     * Writes the options of the model that change how it runs
+     */
+    public static void writeOptions(CompactOutput out, ContextSwitchingModel model) throws IOException {
+        writeOptions(out, model.isEventDrivenSwitching(), model.isDriverScheduling(),
+                model.isBufferedRandom(), model.getContextTransitions(), model.getAgentOrdering(),
+                model.getRewiringProb(), model.getRewiringTarget(),
+                model.getMemoryModel(), model.getMemoryWindow(), model.getMemoryDecay());
+    }
+
+    public static void readOptions(CompactInput in, ContextSwitchingModel model) throws IOException {
+        int options = in.readVarInt();
+        model.setEventDrivenSwitching((options & EVENT_DRIVEN_SWITCHING) != 0);
+        model.setDriverScheduling((options & DRIVER_SCHEDULING) != 0);
+        model.setBufferedRandom((options & BUFFERED_RANDOM) != 0);
+        model.setContextTransitions((options & CONTEXT_TRANSITIONS) != 0 ? readMatrix(in) : null);
+        model.setAgentOrdering((options & AGENT_ORDERING) != 0 ? in.readVarInt() : ContextTopology.ORIGINAL_ORDER);
+        if ((options & REWIRING) != 0) {
+            double probability = in.readDouble();
+            model.setRewiring(probability, in.readVarInt());
+        } else {
+            model.setRewiring(0.0, ContextSwitchingModel.RANDOM_REWIRING);
+        }
+        if ((options & BOUNDED_MEMORY) != 0) {
+            int memory = in.readVarInt();
+            int window = in.readVarInt();
+            model.setMemoryModel(memory, window, in.readDouble());
+        } else {
+            model.setMemoryModel(AgentMemory.UNBOUNDED_MEMORY, 0, 1.0);
+        }
+    }
+
+    private static void writeOptions(CompactOutput out, boolean eventDriven, boolean driver,
+            boolean buffered, double[][] transitions, int ordering,
+            double rewiringProb, int rewiringTarget,
+            int memory, int window, double decay) throws IOException {
+        int options = 0;
+        if (eventDriven) {
+            options |= EVENT_DRIVEN_SWITCHING;
+        }
+        if (driver) {
+            options |= DRIVER_SCHEDULING;
+        }
+        if (buffered) {
+            options |= BUFFERED_RANDOM;
+        }
+        if (transitions != null) {
+            options |= CONTEXT_TRANSITIONS;
+        }
+        if (ordering != ContextTopology.ORIGINAL_ORDER) {
+            options |= AGENT_ORDERING;
+        }
+        if (rewiringProb > 0) {
+            options |= REWIRING;
+        }
+        if (memory != AgentMemory.UNBOUNDED_MEMORY) {
+            options |= BOUNDED_MEMORY;
+        }
+        out.writeVarInt(options);
+        if (transitions != null) {
+            writeMatrix(out, transitions);
+        }
+        if (ordering != ContextTopology.ORIGINAL_ORDER) {
+            out.writeVarInt(ordering);
+        }
+        if (rewiringProb > 0) {
+            out.writeDouble(rewiringProb);
+            out.writeVarInt(rewiringTarget);
+        }
+        if (memory != AgentMemory.UNBOUNDED_MEMORY) {
+            out.writeVarInt(memory);
+            out.writeVarInt(window);
+            out.writeDouble(decay);
+        }
+    }
+
+    public static void writeMatrix(CompactOutput out, double[][] matrix) throws IOException {
+        out.writeVarInt(matrix.length);
+        for (double[] row : matrix) {
+            out.writeDoubleArray(row);
+        }
+    }
+
+    public static double[][] readMatrix(CompactInput in) throws IOException {
+        double[][] matrix = new double[in.readVarInt()][];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = in.readDoubleArray();
+        }
+        return matrix;
+    }
+
+    /**
+     * Writes each undirected edge once: for each agent the number of
+     * neighbours with a greater or equal id followed by the gaps between them
+     */
+    public static void writeTopology(CompactOutput out, ContextTopology topology) throws IOException {
+        int population = topology.getPopulation();
+        out.writeVarInt(population);
+        out.writeVarInt(topology.getNumLayers());
+        for (int l = 0; l < topology.getNumLayers(); l++) {
+            int[] row = topology.getOffsets(l);
+            int[] adj = topology.getNeighbors(l);
+            for (int i = 0; i < population; i++) {
+                int first = row[i];
+                while (first < row[i + 1] && adj[first] < i) {
+                    first++;
+                }
+                out.writeVarInt(row[i + 1] - first);
+                int previous = i;
+                for (int k = first; k < row[i + 1]; k++) {
+                    out.writeVarInt(adj[k] - previous);
+                    previous = adj[k];
+                }
+            }
+        }
+    }
+
+    public static ContextTopology readTopology(CompactInput in) throws IOException {
+        int population = in.readVarInt();
+        int numLayers = in.readVarInt();
+        int[][] offsets = new int[numLayers][];
+        int[][] neighbors = new int[numLayers][];
+        for (int l = 0; l < numLayers; l++) {
+            int[] src = new int[16];
+            int[] dst = new int[16];
+            int size = 0;
+            for (int i = 0; i < population; i++) {
+                int degree = in.readVarInt();
+                int previous = i;
+                for (int k = 0; k < degree; k++) {
+                    if (size == src.length) {
+                        src = Arrays.copyOf(src, size * 2);
+                        dst = Arrays.copyOf(dst, size * 2);
+                    }
+                    previous += in.readVarInt();
+                    src[size] = i;
+                    dst[size] = previous;
+                    size++;
+                }
+            }
+            int[][] csr = toCSR(population, src, dst, size);
+            offsets[l] = csr[0];
+            neighbors[l] = csr[1];
+        }
+        return new ContextTopology(population, offsets, neighbors);
+    }
+
+    public static void writeConfiguration(CompactOutput out, ModelConfiguration config) throws IOException {
+        out.writeVarInt(VERSION);
+        out.writeVarInt(config.population);
+        out.writeVarInt(config.numContexts);
+        out.writeDouble(config.consensusRequired);
+        out.writeDoubleArray(config.contextSwitchingProb);
+        writeOptions(out, config.eventDrivenSwitching, config.driverScheduling,
+                config.bufferedRandom, config.contextTransitions, config.agentOrdering,
+                config.rewiringProb, config.rewiringTarget,
+                config.memoryModel, config.memoryWindow, config.memoryDecay);
+        out.writeVarInt(config.networkFiles.length);
+        for (File file : config.networkFiles) {
+            out.writeString(file.getPath());
+        }
+    }
+
+    public static ModelConfiguration readConfiguration(CompactInput in) throws IOException {
+        checkVersion(in);
+        int population = in.readVarInt();
+        int numContexts = in.readVarInt();
+        double consensusRequired = in.readDouble();
+        double[] switching = in.readDoubleArray();
+        int options = in.readVarInt();
+        double[][] transitions = (options & CONTEXT_TRANSITIONS) != 0 ? readMatrix(in) : null;
+        int ordering = (options & AGENT_ORDERING) != 0 ? in.readVarInt() : ContextTopology.ORIGINAL_ORDER;
+        double rewiringProb = 0.0;
+        int rewiringTarget = ContextSwitchingModel.RANDOM_REWIRING;
+        if ((options & REWIRING) != 0) {
+            rewiringProb = in.readDouble();
+            rewiringTarget = in.readVarInt();
+        }
+        int memory = AgentMemory.UNBOUNDED_MEMORY;
+        int window = 0;
+        double decay = 1.0;
+        if ((options & BOUNDED_MEMORY) != 0) {
+            memory = in.readVarInt();
+            window = in.readVarInt();
+            decay = in.readDouble();
+        }
+        File[] files = new File[in.readVarInt()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(in.readString());
+        }
+        try {
+            ModelConfiguration config = new ModelConfiguration(population, numContexts, consensusRequired, switching, files);
+            config.eventDrivenSwitching = (options & EVENT_DRIVEN_SWITCHING) != 0;
+            config.driverScheduling = (options & DRIVER_SCHEDULING) != 0;
+            config.bufferedRandom = (options & BUFFERED_RANDOM) != 0;
+            config.setContextTransitions(transitions);
+            config.agentOrdering = ordering;
+            config.setRewiring(rewiringProb, rewiringTarget);
+            config.memoryModel = memory;
+            config.memoryWindow = window;
+            config.memoryDecay = decay;
+            return config;
+        } catch (Exception e) {
+            throw new IOException("Invalid configuration: " + e.getMessage());
+        }
+    }
+
+    private static void checkVersion(CompactInput in) throws IOException {
+        int version = in.readVarInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported encoding version: " + version);
+        }
+    }
+
+    /**
+     * Rows are written sorted and without repetitions so the edge list
+     * only needs to be mirrored
+     */
+    private static int[][] toCSR(int population, int[] src, int[] dst, int numEdges) {
+        int[] row = new int[population + 1];
+        for (int e = 0; e < numEdges; e++) {
+            row[src[e] + 1]++;
+            if (src[e] != dst[e]) {
+                row[dst[e] + 1]++;
+            }
+        }
+        for (int i = 0; i < population; i++) {
+            row[i + 1] += row[i];
+        }
+        int[] fill = Arrays.copyOf(row, population);
+        int[] adj = new int[row[population]];
+        //edges arrive sorted by source, lower neighbours are filled first
+        for (int e = 0; e < numEdges; e++) {
+            if (src[e] != dst[e]) {
+                adj[fill[dst[e]]++] = src[e];
+            }
+        }
+        for (int e = 0; e < numEdges; e++) {
+            adj[fill[src[e]]++] = dst[e];
+        }
+        return new int[][]{row, adj};
+    }
+}
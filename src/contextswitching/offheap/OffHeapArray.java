@@ -0,0 +1,104 @@
+package contextswitching.offheap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Fixed size array of primitive values stored outside the Java heap
+ *
+ * A direct <code>ByteBuffer</code> holds at most 2 GB, so the values are
+ * split in chunks of CHUNK_BYTES, each a direct buffer, and are addressed by
+ * a <code>long</code> index. The heap only holds the array of chunks whatever
+ * the size of the array, and the garbage collector never scans nor copies
+ * the values. The memory of the chunks is released when the array is
+ * collected.
+ *
+ * Values are stored little endian, so the arrays are written to and read from
+ * channels without conversion on the usual platforms and the files do not
+ * depend on the platform that wrote them.
+ *
+ * @author Davide Nunes
+ */
+abstract class OffHeapArray {
+
+    static final int CHUNK_BYTES = 1 << 29;     //512 MB
+    private static final int IO_BYTES = 1 << 20;//bytes transferred per channel call
+    protected final long size;
+    protected final ByteBuffer[] chunks;
+
+    /**
+     * Allocates the chunks of an array filled with zeros
+     *
+     * @param size number of values
+     * @param elementShift log2 of the bytes of a value
+     */
+    protected OffHeapArray(long size, int elementShift) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid array size: " + size);
+        }
+        this.size = size;
+        long bytes = size << elementShift;
+        int numChunks = (int) ((bytes + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        chunks = new ByteBuffer[numChunks];
+        for (int c = 0; c < numChunks; c++) {
+            int capacity = (int) Math.min(CHUNK_BYTES, bytes - (long) c * CHUNK_BYTES);
+            chunks[c] = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Number of values of the array
+     *
+     * @return size long
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Writes the values to a channel, straight from the off heap memory
+     *
+     * @param channel the destination
+     * @throws IOException
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer view = chunk.duplicate();
+            view.clear();
+            while (view.hasRemaining()) {
+                view.limit(Math.min(view.capacity(), view.position() + IO_BYTES));
+                while (view.hasRemaining()) {
+                    channel.write(view);
+                }
+                view.limit(view.capacity());
+            }
+        }
+    }
+
+    /**
+     * Reads the values written by <code>write</code> from a channel, straight
+     * into the off heap memory
+     *
+     * @param channel the source
+     * @throws IOException if the channel ends before the array is filled
+     */
+    public void read(ReadableByteChannel channel) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer view = chunk.duplicate();
+            view.clear();
+            while (view.hasRemaining()) {
+                view.limit(Math.min(view.capacity(), view.position() + IO_BYTES));
+                while (view.hasRemaining()) {
+                    if (channel.read(view) < 0) {
+                        throw new EOFException("The channel ended before the array was read");
+                    }
+                }
+                view.limit(view.capacity());
+            }
+        }
+    }
+}
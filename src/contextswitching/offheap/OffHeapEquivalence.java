@@ -0,0 +1,105 @@
+package contextswitching.offheap;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.LockstepEngine;
+import contextswitching.ModelConfiguration;
+import java.io.File;
+
+/**
+ * Checks that an <code>OffHeapModel</code> runs exactly as a
+ * <code>LockstepEngine</code> replicate with the same seed
+ *
+ * for each of a number of initialized models, runs a group of replicates in
+ * lockstep and, for each replicate, an off heap model created from the same
+ * model with the seed of the replicate. Both draw the same random numbers,
+ * so the steps, the encounters and the final opinion counts of each off heap
+ * run must be the ones of its replicate. The check is made with uniform
+ * context destinations and with a context transition matrix.
+ *
+ * usage: OffHeapEquivalence [groups] [replicates per group] [seed]
+ *
+ * @author Davide Nunes
+ */
+public class OffHeapEquivalence {
+
+    private static final int GROUPS = 5;
+    private static final int REPLICATES = 4;
+
+    public static void main(String[] args) throws Exception {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : GROUPS;
+        int replicates = args.length > 1 ? Integer.parseInt(args[1]) : REPLICATES;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1L;
+
+        File[] networks = new File[]{
+            new File("NetworkFiles/barabasi_500.np"),
+            new File("NetworkFiles/regular_500.np"),
+            new File("NetworkFiles/ws_500.np")
+        };
+        ModelConfiguration uniform = new ModelConfiguration(500, 3, 0.7,
+                new double[]{0.2, 0.1, 0.05}, networks);
+        ModelConfiguration transitions = new ModelConfiguration(500, 3, 0.7,
+                new double[]{0.2, 0.1, 0.05}, networks);
+        transitions.setContextTransitions(new double[][]{
+            {0, 3, 1},
+            {1, 0, 0},
+            {2, 1, 0}
+        });
+
+        int mismatches = compare("uniform", uniform, groups, replicates, seed)
+                + compare("transitions", transitions, groups, replicates, seed);
+        System.out.println(mismatches == 0 ? "PASS: every off heap run matches its lockstep replicate"
+                : "FAIL: " + mismatches + " off heap runs differ from their lockstep replicate");
+    }
+
+    /**
+     * Runs the groups of a configuration with both engines
+     *
+     * @return number of off heap runs that differ from their replicate
+     */
+    private static int compare(String name, ModelConfiguration config, int groups, int replicates, long seed) {
+        int mismatches = 0;
+        long lockstepTime = 0;
+        long offHeapTime = 0;
+        for (int g = 0; g < groups; g++) {
+            long[] seeds = new long[replicates];
+            for (int r = 0; r < replicates; r++) {
+                seeds[r] = seed * 1000003L + g * (long) replicates + r;
+            }
+            LockstepEngine engine = new LockstepEngine(initialModel(config, seed + g), seeds);
+            long start = System.nanoTime();
+            engine.run();
+            lockstepTime += System.nanoTime() - start;
+            for (int r = 0; r < replicates; r++) {
+                OffHeapModel model = new OffHeapModel(initialModel(config, seed + g), seeds[r]);
+                start = System.nanoTime();
+                model.run();
+                offHeapTime += System.nanoTime() - start;
+                long[] counts = model.getOpinionCounts();
+                int[] expected = engine.getOpinionCounts(r);
+                boolean same = model.getSteps() == engine.getSteps(r)
+                        && model.getNumEncounters() == engine.getNumEncounters(r)
+                        && model.consensusReached() == engine.isConsensusReached(r);
+                for (int op = 0; op < counts.length; op++) {
+                    same &= counts[op] == expected[op];
+                }
+                if (!same) {
+                    mismatches++;
+                    System.out.println(name + " group " + g + " replicate " + r + ": lockstep "
+                            + engine.getSteps(r) + " steps " + engine.getNumEncounters(r) + " encounters, off heap "
+                            + model.getSteps() + " steps " + model.getNumEncounters() + " encounters");
+                }
+            }
+        }
+        System.out.printf("%-12s %d runs, %d mismatches, time: lockstep %.1f ms off heap %.1f ms%n",
+                name, groups * replicates, mismatches, lockstepTime / 1e6, offHeapTime / 1e6);
+        return mismatches;
+    }
+
+    private static ContextSwitchingModel initialModel(ModelConfiguration config, long seed) {
+        ContextSwitchingModel model = new ContextSwitchingModel(seed);
+        model.configureModel(config);
+        model.initializeModel();
+        model.setVerbose(false);
+        return model;
+    }
+}
@@ -0,0 +1,60 @@
+package contextswitching.offheap;
+
+/**
+ * Off heap array of <code>int</code> values with a <code>long</code> index
+ * (see <code>OffHeapArray</code>)
+ *
+ * @author Davide Nunes
+ */
+public class OffHeapIntArray extends OffHeapArray {
+
+    private static final int SHIFT = 27;    //values per chunk: CHUNK_BYTES / 4
+    private static final long MASK = (1L << SHIFT) - 1;
+
+    /**
+     * Allocates an array filled with zeros
+     *
+     * @param size number of values
+     */
+    public OffHeapIntArray(long size) {
+        super(size, 2);
+    }
+
+    public int get(long index) {
+        return chunks[(int) (index >>> SHIFT)].getInt((int) (index & MASK) << 2);
+    }
+
+    public void set(long index, int value) {
+        chunks[(int) (index >>> SHIFT)].putInt((int) (index & MASK) << 2, value);
+    }
+
+    /**
+     * Adds a value to an entry
+     *
+     * @param index the entry
+     * @param delta the value added
+     * @return value int the new value of the entry
+     */
+    public int add(long index, int delta) {
+        int c = (int) (index >>> SHIFT);
+        int offset = (int) (index & MASK) << 2;
+        int value = chunks[c].getInt(offset) + delta;
+        chunks[c].putInt(offset, value);
+        return value;
+    }
+
+    /**
+     * Exchanges two entries
+     */
+    public void swap(long a, long b) {
+        int t = get(a);
+        set(a, get(b));
+        set(b, t);
+    }
+
+    public void fill(int value) {
+        for (long i = 0; i < size; i++) {
+            set(i, value);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package contextswitching.offheap;
+
+/**
+ * Off heap array of <code>long</code> values with a <code>long</code> index
+ * (see <code>OffHeapArray</code>)
+ *
+ * @author Davide Nunes
+ */
+public class OffHeapLongArray extends OffHeapArray {
+
+    private static final int SHIFT = 26;    //values per chunk: CHUNK_BYTES / 8
+    private static final long MASK = (1L << SHIFT) - 1;
+
+    /**
+     * Allocates an array filled with zeros
+     *
+     * @param size number of values
+     */
+    public OffHeapLongArray(long size) {
+        super(size, 3);
+    }
+
+    public long get(long index) {
+        return chunks[(int) (index >>> SHIFT)].getLong((int) (index & MASK) << 3);
+    }
+
+    public void set(long index, long value) {
+        chunks[(int) (index >>> SHIFT)].putLong((int) (index & MASK) << 3, value);
+    }
+
+    /**
+     * Adds a value to an entry
+     *
+     * @param index the entry
+     * @param delta the value added
+     * @return value long the new value of the entry
+     */
+    public long add(long index, long delta) {
+        int c = (int) (index >>> SHIFT);
+        int offset = (int) (index & MASK) << 3;
+        long value = chunks[c].getLong(offset) + delta;
+        chunks[c].putLong(offset, value);
+        return value;
+    }
+}
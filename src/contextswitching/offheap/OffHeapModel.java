@@ -0,0 +1,586 @@
+package contextswitching.offheap;
+
+import contextswitching.AgentMemory;
+import contextswitching.AliasTable;
+import contextswitching.Choices;
+import contextswitching.ContextSwitchingModel;
+import contextswitching.ModelConfiguration;
+import contextswitching.RandomStream;
+import contextswitching.io.CompactInput;
+import contextswitching.io.CompactOutput;
+import contextswitching.io.ModelCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Headless run of the model with the state of the agents outside the Java
+ * heap
+ *
+ * The MASON model keeps an object per agent, bags, networks and space
+ * fields, which limits the population to what the heap and the garbage
+ * collector can handle. This model keeps the opinion, context, active
+ * neighbour count and memory of each agent, the activation order and the
+ * networks (see <code>OffHeapTopology</code>) in off heap arrays indexed by
+ * <code>long</code>, so the heap used does not grow with the population and
+ * nothing is allocated while the model runs.
+ *
+ * The agents follow the rules of <code>Agent</code> with Bernoulli context
+ * switching and unbounded memories, activated in a random sequential order
+ * shuffled every step, with the random numbers of a <code>RandomStream</code>:
+ * a run started from a model in the original agent order with
+ * <code>OffHeapModel(model, seed)</code> is the run of a
+ * <code>LockstepEngine</code> replicate with that seed (checked by
+ * <code>OffHeapEquivalence</code>). The options of the configuration that
+ * only change how the MASON model schedules its agents and draws its random
+ * numbers are not applied: the agent ordering (the agents keep the ids of
+ * the network files), <code>eventDrivenSwitching</code>,
+ * <code>driverScheduling</code> and <code>bufferedRandom</code>. Rewiring and
+ * bounded memories change the rules and are rejected.
+ *
+ * This is a standalone harness for single runs larger than the heap, run
+ * with <code>RunModel -Dcontextswitching.offheap=true</code>. The grid tasks
+ * and <code>ModelCheckpoint</code> do not use it, its checkpoints have their
+ * own format.
+ *
+ * The state is checkpointed to a file with <code>writeCheckpoint</code>, or
+ * every K steps with <code>setCheckpoint</code>: the arrays are written from
+ * the off heap memory through a file channel, the checkpoint references the
+ * network files and the fingerprint of the networks as
+ * <code>ModelCheckpoint</code> does. The checkpoints are written between
+ * steps, a copy of the state for a background writer would double the memory
+ * of the run.
+ *
+ * @author Davide Nunes
+ */
+public class OffHeapModel implements Runnable {
+
+    private static final int STEP_LIMIT = 10000;    //same limit as ContextSwitchingModel.run()
+    private static final int MAGIC = 0x43534F48;    //CSOH
+    private static final int VERSION = 1;
+    private long population;
+    private int numContexts;
+    private int numOpinions;
+    private double consensusRequired;
+    private double[] switching;
+    private double[][] transitions;
+    private AliasTable[] transitionTables;
+    private File[] networkFiles;
+    private OffHeapTopology topology;
+    private OffHeapIntArray opinion;
+    private OffHeapIntArray context;
+    private OffHeapIntArray active;     //neighbours of each agent in its context
+    private OffHeapIntArray memory;     //[i * numOpinions + op]
+    private OffHeapIntArray order;      //activation order, shuffled every step
+    private RandomStream random;
+    private long[] opinionCounts;
+    private long[] contextPopulations;
+    private long steps;
+    private long encounters;
+    private volatile boolean stopRequested;
+    private File checkpointFile;
+    private int checkpointInterval;
+    private IOException lastError;
+
+    /**
+     * Creates a model from a configuration: the networks are loaded off heap
+     * from the network files and the opinions and contexts are distributed
+     * at random, the same number of agents for each opinion and for each
+     * context as in <code>ContextSwitchingModel.initializeModel()</code>
+     *
+     * @param config the configuration
+     * @param seed seed of the random stream of the run
+     */
+    public OffHeapModel(ModelConfiguration config, long seed) {
+        checkSupported(config.rewiringProb, config.memoryModel);
+        configure(config.population, config.consensusRequired, config.contextSwitchingProb,
+                config.contextTransitions, OffHeapTopology.load(config.networkFiles, config.population));
+        networkFiles = config.networkFiles.clone();
+        allocate();
+        random = new RandomStream(seed);
+        distribute();
+        countState();
+    }
+
+    /**
+     * Creates a model with the networks and the state of an initialized
+     * <code>ContextSwitchingModel</code>, with the ids of the network files
+     *
+     * @param model an initialized model
+     * @param seed seed of the random stream of the run
+     */
+    public OffHeapModel(ContextSwitchingModel model, long seed) {
+        checkSupported(model.getRewiringProb(), model.getMemoryModel());
+        configure(model.getPopulation(), model.getConsensusRequired(), model.getContextSwitchingProbs(),
+                model.getContextTransitions(), OffHeapTopology.copyOf(model.getOriginalTopology()));
+        networkFiles = model.getNetworkFiles() == null ? null : model.getNetworkFiles().clone();
+        allocate();
+        int[] opinions = model.getOpinions();
+        int[] contexts = model.getContexts();
+        int[] memories = model.getMemories();
+        for (int i = 0; i < opinions.length; i++) {
+            opinion.set(i, opinions[i]);
+            context.set(i, contexts[i]);
+            order.set(i, i);
+        }
+        for (int k = 0; k < memories.length; k++) {
+            memory.set(k, memories[k]);
+        }
+        random = new RandomStream(seed);
+        countState();
+    }
+
+    private OffHeapModel() {
+    }
+
+    private static void checkSupported(double rewiringProb, int memoryModel) {
+        if (rewiringProb > 0 || memoryModel != AgentMemory.UNBOUNDED_MEMORY) {
+            throw new IllegalArgumentException("Off heap runs do not support rewiring nor bounded memories");
+        }
+    }
+
+    private void configure(long population, double consensusRequired, double[] switching,
+            double[][] transitions, OffHeapTopology topology) {
+        this.population = population;
+        this.numContexts = switching.length;
+        this.numOpinions = Choices.NUM_OPINIONS;
+        this.consensusRequired = consensusRequired;
+        this.switching = switching.clone();
+        this.transitions = transitions;
+        this.topology = topology;
+        this.transitionTables = AliasTable.forRows(transitions);
+    }
+
+    private void allocate() {
+        opinion = new OffHeapIntArray(population);
+        context = new OffHeapIntArray(population);
+        active = new OffHeapIntArray(population);
+        memory = new OffHeapIntArray(population * numOpinions);
+        order = new OffHeapIntArray(population);
+    }
+
+    /**
+     * Gives population / NUM_OPINIONS agents each opinion, the others keep
+     * opinion 0, and population / numContexts agents each context, the last
+     * context takes the remainder, each to agents drawn at random
+     */
+    private void distribute() {
+        for (long i = 0; i < population; i++) {
+            order.set(i, (int) i);
+        }
+        shuffleOrder();
+        long perOpinion = population / numOpinions;
+        for (long k = 0; k < population; k++) {
+            opinion.set(order.get(k), k / perOpinion < numOpinions ? (int) (k / perOpinion) : 0);
+        }
+        shuffleOrder();
+        long perContext = population / numContexts;
+        for (long k = 0; k < population; k++) {
+            context.set(order.get(k), perContext == 0 ? numContexts - 1
+                    : (int) Math.min(k / perContext, numContexts - 1));
+        }
+    }
+
+    /**
+     * Counts the active neighbours of each agent and the agents with each
+     * opinion and in each context
+     */
+    private void countState() {
+        opinionCounts = new long[numOpinions];
+        contextPopulations = new long[numContexts];
+        for (long i = 0; i < population; i++) {
+            int c = context.get(i);
+            opinionCounts[opinion.get(i)]++;
+            contextPopulations[c]++;
+            OffHeapLongArray row = topology.getOffsets(c);
+            OffHeapIntArray adj = topology.getNeighbors(c);
+            int count = 0;
+            for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                if (context.get(adj.get(k)) == c) {
+                    count++;
+                }
+            }
+            active.set(i, count);
+        }
+    }
+
+    public long getPopulation() {
+        return population;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public long getNumEncounters() {
+        return encounters;
+    }
+
+    public long[] getOpinionCounts() {
+        return opinionCounts.clone();
+    }
+
+    public long[] getContextPopulations() {
+        return contextPopulations.clone();
+    }
+
+    public int getOpinion(long agent) {
+        return opinion.get(agent);
+    }
+
+    public int getContext(long agent) {
+        return context.get(agent);
+    }
+
+    /**
+     * The number of encounters with an opinion an agent remembers
+     *
+     * @param agent the agent id
+     * @param opinion the opinion
+     * @return encounters int
+     */
+    public int getMemory(long agent, int opinion) {
+        return memory.get(agent * numOpinions + opinion);
+    }
+
+    public OffHeapTopology getTopology() {
+        return topology;
+    }
+
+    public double getConsensusRequired() {
+        return consensusRequired;
+    }
+
+    public double[] getContextSwitchingProbs() {
+        return switching.clone();
+    }
+
+    /**
+     * The context transition matrix, null for uniform destinations
+     *
+     * @return transitions double[][]
+     */
+    public double[][] getContextTransitions() {
+        return transitions;
+    }
+
+    public boolean consensusReached() {
+        for (long c : opinionCounts) {
+            if (c / (population * 1.0) >= consensusRequired) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asks <code>run()</code> to return after the step being executed, can be
+     * called from any thread
+     */
+    public void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Writes a checkpoint every interval steps while the model runs
+     *
+     * @param file checkpoint file, replaced by each new checkpoint, null to
+     * stop writing checkpoints
+     * @param interval number of steps between checkpoints
+     * @throws IllegalArgumentException if a file is given and the interval
+     * is not positive
+     */
+    public void setCheckpoint(File file, int interval) {
+        if (file != null && interval <= 0) {
+            throw new IllegalArgumentException("Invalid checkpoint interval: " + interval);
+        }
+        this.checkpointFile = file;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Error of the last failed checkpoint, null if every checkpoint was
+     * written
+     *
+     * @return error IOException
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Runs the model until consensus, the step limit or a stop request
+     */
+    public void run() {
+        //checked before the first step as well, a restored model may be finished
+        while (!consensusReached() && steps < STEP_LIMIT && !stopRequested) {
+            shuffleOrder();
+            for (long k = 0; k < population; k++) {
+                step(order.get(k));
+            }
+            steps++;
+            if (checkpointFile != null && steps % checkpointInterval == 0) {
+                try {
+                    writeCheckpoint(checkpointFile);
+                } catch (IOException e) {
+                    lastError = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Shuffles the activation order, same shuffle as sim.util.Bag
+     */
+    private void shuffleOrder() {
+        RandomStream rnd = random;
+        for (long x = population - 1; x > 0; x--) {
+            order.swap(x, rnd.nextInt((int) x + 1));
+        }
+    }
+
+    /**
+     * Steps agent i: an encounter with a random active neighbour followed by
+     * the context switching draw
+     */
+    private void step(int i) {
+        RandomStream rnd = random;
+        int c = context.get(i);
+        int numActive = active.get(i);
+        if (numActive > 0) {
+            int target = rnd.nextInt(numActive);
+            OffHeapLongArray row = topology.getOffsets(c);
+            OffHeapIntArray adj = topology.getNeighbors(c);
+            for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                int j = adj.get(k);
+                if (context.get(j) == c && target-- == 0) {
+                    encounter(i, opinion.get(j));
+                    encounters++;
+                    break;
+                }
+            }
+        }
+        if (rnd.nextDouble() < switching[c] && numContexts > 1) {
+            int next;
+            if (transitionTables != null) {
+                if (transitionTables[c] == null) {
+                    return;
+                }
+                next = transitionTables[c].sample(rnd.nextDouble());
+            } else {
+                next = rnd.nextInt(numContexts - 1);
+                if (next >= c) {
+                    next++;
+                }
+            }
+            move(i, c, next);
+        }
+    }
+
+    /**
+     * Records the opinion of the partner and adopts it if it was seen more
+     * often than the current opinion (see <code>Agent.performEncounter</code>)
+     */
+    private void encounter(int i, int other) {
+        long base = (long) i * numOpinions;
+        int seen = memory.add(base + other, 1);
+        int current = opinion.get(i);
+        if (other != current && seen > memory.get(base + current)) {
+            opinion.set(i, other);
+            opinionCounts[current]--;
+            opinionCounts[other]++;
+        }
+    }
+
+    /**
+     * Moves agent i to another context updating the active neighbour counts
+     * (see <code>ContextSwitchingModel.moveAgent</code>)
+     */
+    private void move(int i, int from, int to) {
+        contextPopulations[from]--;
+        contextPopulations[to]++;
+        OffHeapLongArray row = topology.getOffsets(from);
+        OffHeapIntArray adj = topology.getNeighbors(from);
+        for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+            int j = adj.get(k);
+            if (j != i && context.get(j) == from) {
+                active.add(j, -1);
+            }
+        }
+        context.set(i, to);
+        row = topology.getOffsets(to);
+        adj = topology.getNeighbors(to);
+        int count = 0;
+        for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+            int j = adj.get(k);
+            if (context.get(j) == to) {
+                count++;
+                if (j != i) {
+                    active.add(j, 1);
+                }
+            }
+        }
+        active.set(i, count);
+    }
+
+    /**
+     * Writes the state of the model to a file, this must be called between
+     * steps
+     *
+     * the checkpoint is written to a temporary file which then replaces the
+     * destination, so a crash while writing leaves the previous checkpoint
+     * intact
+     *
+     * @param file destination file
+     * @throws IOException
+     */
+    public void writeCheckpoint(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        CompactOutput out = new CompactOutput(data);
+        data.writeInt(MAGIC);
+        out.writeVarInt(VERSION);
+        out.writeLong(topology.fingerprint());
+        out.writeVarInt(networkFiles == null ? 0 : networkFiles.length);
+        if (networkFiles != null) {
+            for (File f : networkFiles) {
+                out.writeString(f.getPath());
+            }
+        }
+        out.writeVarLong(population);
+        out.writeDouble(consensusRequired);
+        out.writeDoubleArray(switching);
+        out.writeBoolean(transitions != null);
+        if (transitions != null) {
+            ModelCodec.writeMatrix(out, transitions);
+        }
+        out.writeLong(random.getState());
+        out.writeLong(random.getGamma());
+        out.writeVarLong(steps);
+        out.writeVarLong(encounters);
+        data.flush();
+        byte[] header = bytes.toByteArray();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = fos.getChannel();
+            ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(header.length).flip();
+            writeFully(channel, length);
+            writeFully(channel, ByteBuffer.wrap(header));
+            opinion.write(channel);
+            context.write(channel);
+            memory.write(channel);
+            order.write(channel);
+            channel.force(true);
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {//some platforms do not replace existing files
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a model from a checkpoint, the networks are loaded from the
+     * network files referenced by the checkpoint
+     *
+     * @param file the checkpoint file
+     * @return model OffHeapModel ready to resume its run
+     * @throws IOException if the network files are not available or changed
+     */
+    public static OffHeapModel restore(File file) throws IOException {
+        return restore(file, null);
+    }
+
+    /**
+     * Rebuilds a model from a checkpoint on given networks
+     *
+     * @param file the checkpoint file
+     * @param topology the networks of the model, null to load the network
+     * files referenced by the checkpoint
+     * @return model OffHeapModel ready to resume its run
+     * @throws IOException if the networks are not the ones of the checkpoint
+     */
+    public static OffHeapModel restore(File file, OffHeapTopology topology) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(channel, length);
+            length.flip();
+            byte[] header = new byte[length.getInt()];
+            readFully(channel, ByteBuffer.wrap(header));
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(header));
+            CompactInput in = new CompactInput(data);
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not an off heap checkpoint: " + file);
+            }
+            int version = in.readVarInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version: " + version);
+            }
+            long fingerprint = in.readLong();
+            File[] files = new File[in.readVarInt()];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(in.readString());
+            }
+            long population = in.readVarLong();
+            double consensusRequired = in.readDouble();
+            double[] switching = in.readDoubleArray();
+            double[][] transitions = in.readBoolean() ? ModelCodec.readMatrix(in) : null;
+            if (topology == null) {
+                if (files.length == 0) {
+                    throw new IOException("The checkpoint does not reference its network files");
+                }
+                topology = OffHeapTopology.load(files, population);
+            }
+            if (topology.fingerprint() != fingerprint) {
+                throw new IOException("The checkpoint was taken from a model with different networks");
+            }
+
+            OffHeapModel model = new OffHeapModel();
+            model.configure(population, consensusRequired, switching, transitions, topology);
+            model.networkFiles = files.length == 0 ? null : files;
+            long state = in.readLong();
+            model.random = new RandomStream(state, in.readLong());
+            model.steps = in.readVarLong();
+            model.encounters = in.readVarLong();
+            model.allocate();
+            model.opinion.read(channel);
+            model.context.read(channel);
+            model.memory.read(channel);
+            model.order.read(channel);
+            model.countState();
+            return model;
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Truncated checkpoint");
+            }
+        }
+    }
+}
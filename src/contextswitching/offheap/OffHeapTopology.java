@@ -0,0 +1,269 @@
+package contextswitching.offheap;
+
+import contextswitching.ContextTopology;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Social networks of the model in compressed sparse row form outside the
+ * Java heap
+ *
+ * The layout is the one of <code>ContextTopology</code> with
+ * <code>long</code> row offsets: the neighbours of agent i in layer l are the
+ * entries <code>getOffsets(l).get(i)</code> to
+ * <code>getOffsets(l).get(i + 1) - 1</code> of <code>getNeighbors(l)</code>,
+ * sorted by id and without repetitions. Agent ids are <code>int</code>
+ * values, so a population can have up to 2^31 - 1 agents while a layer can
+ * have any number of edges.
+ *
+ * The network files are read twice, once to count the neighbours of each
+ * agent and once to place them, so no edge list is kept in memory. The heap
+ * only holds the neighbours of one agent at a time while the rows are
+ * sorted.
+ *
+ * @author Davide Nunes
+ */
+public class OffHeapTopology {
+
+    private long population;
+    private OffHeapLongArray[] offsets;
+    private OffHeapIntArray[] neighbors;
+
+    private OffHeapTopology(long population, int numLayers) {
+        this.population = population;
+        this.offsets = new OffHeapLongArray[numLayers];
+        this.neighbors = new OffHeapIntArray[numLayers];
+    }
+
+    public long getPopulation() {
+        return population;
+    }
+
+    public int getNumLayers() {
+        return offsets.length;
+    }
+
+    /**
+     * Row offsets of a layer, population + 1 entries
+     *
+     * @param layer the layer index
+     * @return offsets OffHeapLongArray
+     */
+    public OffHeapLongArray getOffsets(int layer) {
+        return offsets[layer];
+    }
+
+    /**
+     * Neighbour ids of a layer, the entries from
+     * <code>getOffsets(layer).get(population)</code> on are not used
+     *
+     * @param layer the layer index
+     * @return neighbors OffHeapIntArray
+     */
+    public OffHeapIntArray getNeighbors(int layer) {
+        return neighbors[layer];
+    }
+
+    public long getDegree(int layer, long agent) {
+        return offsets[layer].get(agent + 1) - offsets[layer].get(agent);
+    }
+
+    /**
+     * A hash of the adjacency lists, equal to
+     * <code>ContextTopology.fingerprint()</code> for the same networks
+     *
+     * @return fingerprint long
+     */
+    public long fingerprint() {
+        long h = 0xCBF29CE484222325L;
+        h = (h ^ population) * 0x100000001B3L;
+        for (int l = 0; l < offsets.length; l++) {
+            h = (h ^ l) * 0x100000001B3L;
+            OffHeapLongArray row = offsets[l];
+            OffHeapIntArray adj = neighbors[l];
+            for (long i = 0; i <= population; i++) {
+                h = (h ^ row.get(i)) * 0x100000001B3L;
+            }
+            long end = row.get(population);
+            for (long k = 0; k < end; k++) {
+                h = (h ^ adj.get(k)) * 0x100000001B3L;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Copies the networks of a topology
+     *
+     * @param topology the networks
+     * @return topology OffHeapTopology
+     */
+    public static OffHeapTopology copyOf(ContextTopology topology) {
+        int population = topology.getPopulation();
+        OffHeapTopology copy = new OffHeapTopology(population, topology.getNumLayers());
+        for (int l = 0; l < topology.getNumLayers(); l++) {
+            int[] row = topology.getOffsets(l);
+            int[] adj = topology.getNeighbors(l);
+            copy.offsets[l] = new OffHeapLongArray(population + 1L);
+            copy.neighbors[l] = new OffHeapIntArray(adj.length);
+            for (int i = 0; i <= population; i++) {
+                copy.offsets[l].set(i, row[i]);
+            }
+            for (int k = 0; k < adj.length; k++) {
+                copy.neighbors[l].set(k, adj[k]);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Loads the network files, one for each layer, in the format read by
+     * <code>ContextTopology.load</code>: one edge per line as a pair of agent
+     * ids, read until the first id that does not belong to the population; a
+     * missing file produces an empty layer
+     *
+     * @param files the network files
+     * @param population number of agents
+     * @return topology OffHeapTopology
+     */
+    public static OffHeapTopology load(File[] files, long population) {
+        if (population >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Agent ids must be int values: " + population);
+        }
+        OffHeapTopology topology = new OffHeapTopology(population, files.length);
+        for (int l = 0; l < files.length; l++) {
+            OffHeapLongArray row = new OffHeapLongArray(population + 1);
+            OffHeapIntArray adj;
+            try {
+                //count the neighbours of each agent
+                EdgeReader edges = new EdgeReader(files[l], population);
+                try {
+                    while (edges.next()) {
+                        row.add(edges.a + 1, 1);
+                        if (edges.a != edges.b) {
+                            row.add(edges.b + 1, 1);
+                        }
+                    }
+                } finally {
+                    edges.close();
+                }
+                for (long i = 0; i < population; i++) {
+                    row.add(i + 1, row.get(i));
+                }
+                //place them, the offsets of the rows are advanced as they are filled
+                adj = new OffHeapIntArray(row.get(population));
+                edges = new EdgeReader(files[l], population);
+                try {
+                    while (edges.next()) {
+                        adj.set(row.add(edges.a, 1) - 1, edges.b);
+                        if (edges.a != edges.b) {
+                            adj.set(row.add(edges.b, 1) - 1, edges.a);
+                        }
+                    }
+                } finally {
+                    edges.close();
+                }
+                for (long i = population; i > 0; i--) {//each offset now holds the end of its row
+                    row.set(i, row.get(i - 1));
+                }
+                row.set(0, 0);
+                sortRows(population, row, adj);
+            } catch (IOException ex) {
+                System.out.println("Invalid Network File");
+                System.out.println(ex.getMessage());
+                row = new OffHeapLongArray(population + 1);
+                adj = new OffHeapIntArray(0);
+            }
+            topology.offsets[l] = row;
+            topology.neighbors[l] = adj;
+        }
+        return topology;
+    }
+
+    /**
+     * Sorts each row and removes repeated edges, the rows are moved down
+     * over the entries freed
+     */
+    private static void sortRows(long population, OffHeapLongArray row, OffHeapIntArray adj) {
+        int[] scratch = new int[16];
+        long start = 0;
+        long size = 0;
+        for (long i = 0; i < population; i++) {
+            long end = row.get(i + 1);
+            int degree = (int) (end - start);
+            if (degree > scratch.length) {
+                scratch = new int[Math.max(degree, scratch.length * 2)];
+            }
+            for (int k = 0; k < degree; k++) {
+                scratch[k] = adj.get(start + k);
+            }
+            Arrays.sort(scratch, 0, degree);
+            row.set(i, size);
+            for (int k = 0; k < degree; k++) {
+                if (k == 0 || scratch[k] != scratch[k - 1]) {
+                    adj.set(size++, scratch[k]);
+                }
+            }
+            start = end;
+        }
+        row.set(population, size);
+    }
+
+    /**
+     * Reads the edges of a network file one at a time
+     */
+    private static class EdgeReader {
+
+        private InputStream in;
+        private long population;
+        int a;
+        int b;
+
+        EdgeReader(File file, long population) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            this.population = population;
+        }
+
+        /**
+         * @return true if an edge was read, false at the end of the edges
+         */
+        boolean next() throws IOException {
+            long id1 = readId();
+            long id2 = readId();
+            if (id1 < 0 || id2 < 0 || id1 >= population || id2 >= population) {
+                return false;
+            }
+            a = (int) id1;
+            b = (int) id2;
+            return true;
+        }
+
+        /**
+         * Reads the next non negative integer, -1 at the end of the stream or
+         * if the next token is not a number
+         */
+        private long readId() throws IOException {
+            int c = in.read();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                c = in.read();
+            }
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                c = in.read();
+            }
+            return value;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
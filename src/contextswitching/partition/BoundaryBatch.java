@@ -0,0 +1,140 @@
+package contextswitching.partition;
+
+import contextswitching.io.CompactInput;
+import contextswitching.io.CompactOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Updates sent by a partition to another at the end of a step
+ *
+ * holds the new opinion and context of each boundary agent of the sender
+ * that changed during the step and that the receiver keeps a ghost copy of,
+ * in increasing order of the agent ids, along with the number of agents of
+ * the sender with each opinion, so every partition knows the global counts,
+ * and whether the sender was asked to stop. A batch is sent at every step,
+ * with no updates if no boundary agent changed.
+ *
+ * The batches are reused from step to step, the agent ids are written as
+ * differences to the previous id and the opinion and context of an agent
+ * as a single number.
+ *
+ * @author Davide Nunes
+ */
+public class BoundaryBatch {
+
+    private int numOpinions;
+    private long[] opinionCounts;
+    private boolean stop;
+    private int size;
+    private int[] agents;
+    private int[] states;       //context * numOpinions + opinion
+
+    /**
+     * Constructor
+     *
+     * @param numOpinions number of opinions of the model
+     */
+    public BoundaryBatch(int numOpinions) {
+        this.numOpinions = numOpinions;
+        this.opinionCounts = new long[numOpinions];
+        this.agents = new int[16];
+        this.states = new int[16];
+    }
+
+    /**
+     * Empties the batch for a new step
+     *
+     * @param counts the number of agents of the sender with each opinion
+     * @param stop true if the sender stops after this step
+     */
+    public void reset(long[] counts, boolean stop) {
+        System.arraycopy(counts, 0, opinionCounts, 0, numOpinions);
+        this.stop = stop;
+        this.size = 0;
+    }
+
+    /**
+     * Adds the state of an agent, agents must be added in increasing order of
+     * their ids
+     *
+     * @param agent the id of the agent
+     * @param opinion its opinion
+     * @param context its context
+     */
+    public void add(int agent, int opinion, int context) {
+        if (size == agents.length) {
+            agents = Arrays.copyOf(agents, size * 2);
+            states = Arrays.copyOf(states, size * 2);
+        }
+        agents[size] = agent;
+        states[size] = context * numOpinions + opinion;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getAgent(int k) {
+        return agents[k];
+    }
+
+    public int getOpinion(int k) {
+        return states[k] % numOpinions;
+    }
+
+    public int getContext(int k) {
+        return states[k] / numOpinions;
+    }
+
+    public long getOpinionCount(int opinion) {
+        return opinionCounts[opinion];
+    }
+
+    public boolean isStop() {
+        return stop;
+    }
+
+    /**
+     * Writes the batch
+     *
+     * @param out destination of the batch
+     * @throws IOException
+     */
+    public void write(CompactOutput out) throws IOException {
+        for (long count : opinionCounts) {
+            out.writeVarLong(count);
+        }
+        out.writeBoolean(stop);
+        out.writeVarInt(size);
+        int previous = 0;
+        for (int k = 0; k < size; k++) {
+            out.writeVarInt(agents[k] - previous);
+            out.writeVarInt(states[k]);
+            previous = agents[k];
+        }
+    }
+
+    /**
+     * Replaces the contents of the batch with a batch written by
+     * <code>write</code>
+     *
+     * @param in source of the batch
+     * @throws IOException
+     */
+    public void read(CompactInput in) throws IOException {
+        for (int op = 0; op < numOpinions; op++) {
+            opinionCounts[op] = in.readVarLong();
+        }
+        stop = in.readBoolean();
+        int n = in.readVarInt();
+        size = 0;
+        int agent = 0;
+        for (int k = 0; k < n; k++) {
+            agent += in.readVarInt();
+            int state = in.readVarInt();
+            add(agent, state % numOpinions, state / numOpinions);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package contextswitching.partition;
+
+import java.io.IOException;
+
+/**
+ * Communication between the partitions of a run
+ *
+ * at the end of each step every partition hands a batch for each of the
+ * other partitions to <code>exchange</code>, which returns once the batches
+ * of all the partitions for that step were delivered. The partitions advance
+ * in lockstep, a partition only starts a step once it received the updates
+ * of the previous one from all the others.
+ *
+ * A partition must not modify a batch it sent until its next call to
+ * <code>exchange</code> returned, and must be done with the batches it
+ * received before calling it again.
+ *
+ * @author Davide Nunes
+ */
+public interface BoundaryExchange {
+
+    /**
+     * Sends the batches of a partition and receives those addressed to it
+     *
+     * @param partition index of the partition
+     * @param outgoing the batch for each partition, the entry of the sender
+     * is ignored
+     * @return incoming the batch from each partition, the entry of the
+     * receiver is null
+     * @throws IOException if the batches could not be delivered or another
+     * partition failed
+     * @throws InterruptedException
+     */
+    BoundaryBatch[] exchange(int partition, BoundaryBatch[] outgoing) throws IOException, InterruptedException;
+}
@@ -0,0 +1,184 @@
+package contextswitching.partition;
+
+import contextswitching.offheap.OffHeapIntArray;
+import contextswitching.offheap.OffHeapLongArray;
+import contextswitching.offheap.OffHeapTopology;
+import java.util.Arrays;
+
+/**
+ * Splits the agents of a model in balanced partitions cutting few edges
+ *
+ * The edges of all the layers are considered together, an edge of a layer
+ * that joins agents of two partitions is an edge cut: each time one of them
+ * changes its opinion or context the other partition must be told. The
+ * partitions are first grown breadth first from an unassigned agent until
+ * they hold their share of the population, then the agents on the boundary
+ * are moved, in a few passes, to the partition where most of their
+ * neighbours are, as long as no partition gets bigger than its share by more
+ * than the imbalance allowed nor smaller than it by more than the imbalance.
+ *
+ * The networks are read from an <code>OffHeapTopology</code>, one row at a
+ * time, the heap only holds the assignment and a queue of the agents.
+ *
+ * @author Davide Nunes
+ */
+public class EdgeCutPartitioner {
+
+    public static final double DEFAULT_IMBALANCE = 0.03;
+    private static final int REFINEMENT_PASSES = 8;
+    private OffHeapTopology topology;
+    private double imbalance;
+
+    /**
+     * Constructor
+     *
+     * @param topology the networks of the model
+     * @param imbalance fraction of its share of the population a partition
+     * can be larger or smaller by
+     */
+    public EdgeCutPartitioner(OffHeapTopology topology, double imbalance) {
+        this.topology = topology;
+        this.imbalance = imbalance;
+    }
+
+    public EdgeCutPartitioner(OffHeapTopology topology) {
+        this(topology, DEFAULT_IMBALANCE);
+    }
+
+    /**
+     * Assigns each agent to a partition
+     *
+     * @param numPartitions number of partitions
+     * @return assignment int[] the partition of each agent
+     */
+    public int[] partition(int numPartitions) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("Invalid number of partitions: " + numPartitions);
+        }
+        int population = (int) topology.getPopulation();
+        int[] assignment = new int[population];
+        if (numPartitions == 1) {
+            return assignment;
+        }
+        int[] sizes = grow(assignment, numPartitions);
+        refine(assignment, sizes, numPartitions);
+        return assignment;
+    }
+
+    /**
+     * Grows each partition breadth first, starting a new search from the
+     * first unassigned agent whenever a partition runs out of neighbours
+     */
+    private int[] grow(int[] assignment, int numPartitions) {
+        int population = (int) topology.getPopulation();
+        Arrays.fill(assignment, -1);
+        int[] sizes = new int[numPartitions];
+        int[] queue = new int[population];
+        int next = 0;   //first agent that may be unassigned
+        int assigned = 0;
+        for (int p = 0; p < numPartitions; p++) {
+            int target = (population - assigned + numPartitions - p - 1) / (numPartitions - p);
+            int head = 0;
+            int tail = 0;
+            while (sizes[p] < target) {
+                if (head == tail) {
+                    while (assignment[next] >= 0) {
+                        next++;
+                    }
+                    assignment[next] = p;
+                    sizes[p]++;
+                    queue[tail++] = next;
+                    continue;
+                }
+                int i = queue[head++];
+                for (int l = 0; l < topology.getNumLayers() && sizes[p] < target; l++) {
+                    OffHeapLongArray row = topology.getOffsets(l);
+                    OffHeapIntArray adj = topology.getNeighbors(l);
+                    for (long k = row.get(i), end = row.get(i + 1); k < end && sizes[p] < target; k++) {
+                        int j = adj.get(k);
+                        if (assignment[j] < 0) {
+                            assignment[j] = p;
+                            sizes[p]++;
+                            queue[tail++] = j;
+                        }
+                    }
+                }
+            }
+            assigned += sizes[p];
+        }
+        return sizes;
+    }
+
+    /**
+     * Moves boundary agents to the partition holding most of their
+     * neighbours while the sizes stay within the imbalance allowed
+     */
+    private void refine(int[] assignment, int[] sizes, int numPartitions) {
+        int population = (int) topology.getPopulation();
+        double share = population / (double) numPartitions;
+        int maxSize = (int) Math.ceil(share * (1 + imbalance));
+        int minSize = (int) Math.floor(share * (1 - imbalance));
+        int[] links = new int[numPartitions];     //edges of the agent to each partition
+        int[] touched = new int[numPartitions];
+        for (int pass = 0; pass < REFINEMENT_PASSES; pass++) {
+            int moved = 0;
+            for (int i = 0; i < population; i++) {
+                int own = assignment[i];
+                int numTouched = 0;
+                for (int l = 0; l < topology.getNumLayers(); l++) {
+                    OffHeapLongArray row = topology.getOffsets(l);
+                    OffHeapIntArray adj = topology.getNeighbors(l);
+                    for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                        int q = assignment[adj.get(k)];
+                        if (links[q]++ == 0) {
+                            touched[numTouched++] = q;
+                        }
+                    }
+                }
+                int best = own;
+                for (int t = 0; t < numTouched; t++) {
+                    int q = touched[t];
+                    if (q != own && sizes[q] < maxSize && links[q] > links[best]) {
+                        best = q;
+                    }
+                }
+                if (best != own && sizes[own] > minSize) {
+                    assignment[i] = best;
+                    sizes[own]--;
+                    sizes[best]++;
+                    moved++;
+                }
+                for (int t = 0; t < numTouched; t++) {
+                    links[touched[t]] = 0;
+                }
+            }
+            if (moved == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Number of edges, over all the layers, between agents of different
+     * partitions
+     *
+     * @param assignment the partition of each agent
+     * @return cut long
+     */
+    public long getCutEdges(int[] assignment) {
+        long cut = 0;
+        for (int l = 0; l < topology.getNumLayers(); l++) {
+            OffHeapLongArray row = topology.getOffsets(l);
+            OffHeapIntArray adj = topology.getNeighbors(l);
+            for (int i = 0; i < assignment.length; i++) {
+                for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                    int j = adj.get(k);
+                    if (j > i && assignment[j] != assignment[i]) {
+                        cut++;
+                    }
+                }
+            }
+        }
+        return cut;
+    }
+}
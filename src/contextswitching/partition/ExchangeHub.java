@@ -0,0 +1,157 @@
+package contextswitching.partition;
+
+import contextswitching.Choices;
+import contextswitching.io.CompactInput;
+import contextswitching.io.CompactOutput;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes the batches of the partitions of a run executed on the nodes of a
+ * grid (see <code>SocketExchange</code>)
+ *
+ * The hub runs on the client and listens for one connection from each
+ * partition. A thread per connection decodes the batches of its partition
+ * and hands them to an <code>InProcessExchange</code>, as if the partition
+ * ran in the client, then writes back the batches of the other partitions.
+ * When a connection fails or is closed the exchange is aborted, so the
+ * partitions still waiting for a step fail instead of waiting for ever.
+ *
+ * All the partitions must be running at the same time: the nodes of the grid
+ * must have at least one processing thread for each partition, partitions
+ * that do not connect within the timeout make the run fail.
+ *
+ * @author Davide Nunes
+ */
+public class ExchangeHub {
+
+    private int numPartitions;
+    private ServerSocket server;
+    private InProcessExchange exchange;
+    private List<Socket> connections;
+
+    /**
+     * Constructor
+     *
+     * @param port port to listen on, 0 for any free port
+     * @param numPartitions number of partitions of the run
+     * @param timeoutMillis time the partitions wait for each other at each
+     * step before the run fails
+     * @throws IOException if the port can not be opened
+     */
+    public ExchangeHub(int port, int numPartitions, long timeoutMillis) throws IOException {
+        this.numPartitions = numPartitions;
+        this.server = new ServerSocket(port);
+        this.exchange = new InProcessExchange(numPartitions, timeoutMillis);
+        this.connections = new ArrayList<Socket>();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Starts accepting the connections of the partitions
+     */
+    public void start() {
+        Thread acceptor = new Thread("exchange-hub") {
+            @Override
+            public void run() {
+                try {
+                    for (int p = 0; p < numPartitions; p++) {
+                        final Socket socket = server.accept();
+                        synchronized (connections) {
+                            connections.add(socket);
+                        }
+                        Thread relay = new Thread("exchange-hub-" + p) {
+                            @Override
+                            public void run() {
+                                relay(socket);
+                            }
+                        };
+                        relay.setDaemon(true);
+                        relay.start();
+                    }
+                } catch (IOException e) {
+                    //the hub was closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Relays the batches of a partition until it closes its connection
+     */
+    private void relay(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            CompactOutput out = new CompactOutput(data);
+            CompactInput in = new CompactInput(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)));
+            int partition = in.readVarInt();
+            //the exchange hands the batches to the other relays, two sets alternate
+            BoundaryBatch[][] outgoing = new BoundaryBatch[2][numPartitions];
+            for (int q = 0; q < numPartitions; q++) {
+                outgoing[0][q] = new BoundaryBatch(Choices.NUM_OPINIONS);
+                outgoing[1][q] = new BoundaryBatch(Choices.NUM_OPINIONS);
+            }
+            for (int step = 0;; step++) {
+                BoundaryBatch[] batches = outgoing[step & 1];
+                for (int q = 0; q < numPartitions; q++) {
+                    if (q != partition) {
+                        batches[q].read(in);
+                    }
+                }
+                BoundaryBatch[] incoming = exchange.exchange(partition, batches);
+                for (int q = 0; q < numPartitions; q++) {
+                    if (q != partition) {
+                        incoming[q].write(out);
+                    }
+                }
+                data.flush();
+            }
+        } catch (IOException e) {
+            //the partition finished or failed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            //once the partitions finished nobody waits on the exchange
+            exchange.abort();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //nothing left to do with the connection
+            }
+        }
+    }
+
+    /**
+     * Stops listening and closes the connections of the partitions
+     */
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            //nothing left to do with the server
+        }
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    //nothing left to do with the connection
+                }
+            }
+        }
+        exchange.abort();
+    }
+}
@@ -0,0 +1,84 @@
+package contextswitching.partition;
+
+import java.io.IOException;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exchange between partitions running in the same process, each partition
+ * in its own thread
+ *
+ * it stands in for the network when a partitioned run is tested on one
+ * machine, and routes the batches of the partitions connected to an
+ * <code>ExchangeHub</code>. The batches are not copied: the sender leaves
+ * its batch in the mailbox of the receiver and the partitions wait on a
+ * barrier for the others to do the same. The mailboxes alternate between
+ * two slots, so a fast partition filling the mailboxes of the next step
+ * does not overwrite batches that were not read yet.
+ *
+ * @author Davide Nunes
+ */
+public class InProcessExchange implements BoundaryExchange {
+
+    private int numPartitions;
+    private CyclicBarrier barrier;
+    private long timeoutMillis;
+    private BoundaryBatch[][][] mailbox;    //[slot][to][from]
+    private int[] calls;                    //exchanges made by each partition
+
+    /**
+     * Constructor
+     *
+     * @param numPartitions number of partitions
+     */
+    public InProcessExchange(int numPartitions) {
+        this(numPartitions, 0);
+    }
+
+    /**
+     * Creates an exchange that fails when a partition waits longer than a
+     * timeout for the others
+     *
+     * @param numPartitions number of partitions
+     * @param timeoutMillis the timeout, 0 to wait for ever
+     */
+    public InProcessExchange(int numPartitions, long timeoutMillis) {
+        this.numPartitions = numPartitions;
+        this.barrier = new CyclicBarrier(numPartitions);
+        this.timeoutMillis = timeoutMillis;
+        this.mailbox = new BoundaryBatch[2][numPartitions][numPartitions];
+        this.calls = new int[numPartitions];
+    }
+
+    public BoundaryBatch[] exchange(int partition, BoundaryBatch[] outgoing) throws IOException, InterruptedException {
+        BoundaryBatch[][] slot = mailbox[calls[partition]++ & 1];
+        for (int q = 0; q < numPartitions; q++) {
+            if (q != partition) {
+                slot[q][partition] = outgoing[q];
+            }
+        }
+        try {
+            if (timeoutMillis > 0) {
+                barrier.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                barrier.await();
+            }
+        } catch (BrokenBarrierException e) {
+            throw new IOException("Another partition failed");
+        } catch (TimeoutException e) {
+            barrier.reset();
+            throw new IOException("The partitions did not exchange their updates within " + timeoutMillis + " ms");
+        }
+        return slot[partition];
+    }
+
+    /**
+     * Makes the partitions waiting on the exchange fail, called when a
+     * partition can not go on
+     */
+    public void abort() {
+        barrier.reset();
+    }
+}
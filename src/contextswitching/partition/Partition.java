@@ -0,0 +1,517 @@
+package contextswitching.partition;
+
+import contextswitching.AliasTable;
+import contextswitching.Choices;
+import contextswitching.RandomStream;
+import contextswitching.offheap.OffHeapIntArray;
+import contextswitching.offheap.OffHeapLongArray;
+import contextswitching.offheap.OffHeapModel;
+import contextswitching.offheap.OffHeapTopology;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The agents of one partition of a partitioned run, with ghost copies of the
+ * agents of other partitions they are linked to
+ *
+ * The agents of the partition have the local ids 0 to numLocal - 1, in the
+ * order of their ids, and the ghosts the ids that follow. For each layer the
+ * partition keeps the neighbours of its agents, ghosts included, and the
+ * neighbours of each ghost among its agents, so a ghost that changes context
+ * updates the active neighbour counts of the agents linked to it. The
+ * partitions are built from the networks and the state of an
+ * <code>OffHeapModel</code>, the agents of the model are never held in the
+ * heap as a whole.
+ *
+ * The agents follow the rules of <code>Agent</code> with Bernoulli context
+ * switching and unbounded memories, stepped in a random order shuffled every
+ * step. Ghosts hold the opinion and context their agents had at the end of
+ * the previous step: at the end of a step each partition sends the new state
+ * of its boundary agents that changed to the partitions that keep a ghost of
+ * them (see <code>BoundaryExchange</code>). Since all partitions receive the
+ * opinion counts of all the others, each one decides on its own, and all in
+ * the same way, whether consensus was reached. Partitions use independent
+ * random streams of the seed of the run; a run with a single partition is
+ * the run of a <code>LockstepEngine</code> replicate with that seed.
+ *
+ * @author Davide Nunes
+ */
+public class Partition implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int STEP_LIMIT = 10000;    //same limit as ContextSwitchingModel.run()
+    private int id;
+    private int numPartitions;
+    private long population;    //agents in all the partitions
+    private double consensusRequired;
+    private double[] switching;
+    private AliasTable[] transitionTables;
+    private int numLocal;
+    private int[] globalIds;    //local agents then ghosts, each group by increasing id
+    private int[][] offsets;    //[layer][local id], numLocal + numGhosts + 1 entries
+    private int[][] neighbors;  //local ids, ghost rows only hold local agents
+    private int[] ghostOffsets; //partitions keeping a ghost of each local agent
+    private int[] ghostedBy;
+    private int[] opinion;
+    private int[] context;
+    private int[] active;
+    private int[] memory;       //[i * NUM_OPINIONS + op]
+    private int[] order;
+    private RandomStream random;
+    private long[] localCounts;
+    private long steps;
+    private long encounters;
+    private transient long[] globalCounts;
+    private transient boolean[] changed;
+    private transient int[] changedAgents;
+    private transient int numChanged;
+    private transient volatile boolean stopRequested;
+
+    /**
+     * Creates the partitions of a model
+     *
+     * @param model the model, its networks and the state of its agents are
+     * copied to the partitions
+     * @param assignment the partition of each agent (see
+     * <code>EdgeCutPartitioner</code>)
+     * @param numPartitions number of partitions
+     * @param seed seed of the run
+     * @return partitions Partition[]
+     */
+    public static Partition[] create(OffHeapModel model, int[] assignment, int numPartitions, long seed) {
+        OffHeapTopology topology = model.getTopology();
+        AliasTable[] tables = AliasTable.forRows(model.getContextTransitions());
+        int[] localIds = new int[assignment.length];
+        int[] marks = new int[assignment.length];
+        Arrays.fill(marks, -1);
+        Partition[] partitions = new Partition[numPartitions];
+        for (int p = 0; p < numPartitions; p++) {
+            Partition part = new Partition();
+            part.id = p;
+            part.numPartitions = numPartitions;
+            part.population = topology.getPopulation();
+            part.consensusRequired = model.getConsensusRequired();
+            part.switching = model.getContextSwitchingProbs();
+            part.transitionTables = tables;
+            part.random = numPartitions == 1 ? new RandomStream(seed) : RandomStream.forStream(seed, p);
+            part.build(model, assignment, localIds, marks);
+            partitions[p] = part;
+        }
+        return partitions;
+    }
+
+    private Partition() {
+    }
+
+    /**
+     * Builds the local ids, the rows of the agents and ghosts and the state
+     *
+     * @param localIds scratch array of population entries
+     * @param marks scratch array of population entries, -1 for agents not
+     * seen by this partition, it is left as it was found
+     */
+    private void build(OffHeapModel model, int[] assignment, int[] localIds, int[] marks) {
+        OffHeapTopology topology = model.getTopology();
+        int n = assignment.length;
+        int layers = topology.getNumLayers();
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (assignment[i] == id) {
+                localIds[i] = count++;
+                marks[i] = id;
+            }
+        }
+        numLocal = count;
+        int[] locals = new int[numLocal];
+        for (int i = 0; i < n; i++) {
+            if (assignment[i] == id) {
+                locals[localIds[i]] = i;
+            }
+        }
+        //ghosts in increasing order of their ids
+        int[] ghosts = new int[16];
+        int numGhosts = 0;
+        for (int i : locals) {
+            for (int l = 0; l < layers; l++) {
+                OffHeapLongArray row = topology.getOffsets(l);
+                OffHeapIntArray adj = topology.getNeighbors(l);
+                for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                    int j = adj.get(k);
+                    if (marks[j] != id) {
+                        marks[j] = id;
+                        if (numGhosts == ghosts.length) {
+                            ghosts = Arrays.copyOf(ghosts, numGhosts * 2);
+                        }
+                        ghosts[numGhosts++] = j;
+                    }
+                }
+            }
+        }
+        Arrays.sort(ghosts, 0, numGhosts);
+        globalIds = new int[numLocal + numGhosts];
+        System.arraycopy(locals, 0, globalIds, 0, numLocal);
+        System.arraycopy(ghosts, 0, globalIds, numLocal, numGhosts);
+        for (int g = 0; g < numGhosts; g++) {
+            localIds[ghosts[g]] = numLocal + g;
+        }
+
+        //rows, the neighbours of the ghosts among the local agents
+        offsets = new int[layers][];
+        neighbors = new int[layers][];
+        for (int l = 0; l < layers; l++) {
+            OffHeapLongArray row = topology.getOffsets(l);
+            OffHeapIntArray adj = topology.getNeighbors(l);
+            int[] localRow = new int[globalIds.length + 1];
+            int edges = 0;
+            for (int v = 0; v < globalIds.length; v++) {
+                int i = globalIds[v];
+                for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                    if (v < numLocal || assignment[adj.get(k)] == id) {
+                        edges++;
+                    }
+                }
+                localRow[v + 1] = edges;
+            }
+            int[] localAdj = new int[edges];
+            edges = 0;
+            for (int v = 0; v < globalIds.length; v++) {
+                int i = globalIds[v];
+                for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                    int j = adj.get(k);
+                    if (v < numLocal || assignment[j] == id) {
+                        localAdj[edges++] = localIds[j];
+                    }
+                }
+            }
+            offsets[l] = localRow;
+            neighbors[l] = localAdj;
+        }
+
+        //partitions keeping a ghost of each local agent
+        ghostOffsets = new int[numLocal + 1];
+        int[] seen = new int[numPartitions];
+        Arrays.fill(seen, -1);
+        int[] holders = new int[16];
+        int numHolders = 0;
+        for (int v = 0; v < numLocal; v++) {
+            int i = globalIds[v];
+            for (int l = 0; l < layers; l++) {
+                OffHeapLongArray row = topology.getOffsets(l);
+                OffHeapIntArray adj = topology.getNeighbors(l);
+                for (long k = row.get(i), end = row.get(i + 1); k < end; k++) {
+                    int q = assignment[adj.get(k)];
+                    if (q != id && seen[q] != v) {
+                        seen[q] = v;
+                        if (numHolders == holders.length) {
+                            holders = Arrays.copyOf(holders, numHolders * 2);
+                        }
+                        holders[numHolders++] = q;
+                    }
+                }
+            }
+            ghostOffsets[v + 1] = numHolders;
+        }
+        ghostedBy = Arrays.copyOf(holders, numHolders);
+
+        //state of the agents and ghosts
+        opinion = new int[globalIds.length];
+        context = new int[globalIds.length];
+        for (int v = 0; v < globalIds.length; v++) {
+            opinion[v] = model.getOpinion(globalIds[v]);
+            context[v] = model.getContext(globalIds[v]);
+        }
+        memory = new int[numLocal * Choices.NUM_OPINIONS];
+        for (int v = 0; v < numLocal; v++) {
+            for (int op = 0; op < Choices.NUM_OPINIONS; op++) {
+                memory[v * Choices.NUM_OPINIONS + op] = model.getMemory(globalIds[v], op);
+            }
+        }
+        order = new int[numLocal];
+        active = new int[numLocal];
+        localCounts = new long[Choices.NUM_OPINIONS];
+        for (int v = 0; v < numLocal; v++) {
+            order[v] = v;
+            localCounts[opinion[v]]++;
+            int c = context[v];
+            for (int k = offsets[c][v]; k < offsets[c][v + 1]; k++) {
+                if (context[neighbors[c][k]] == c) {
+                    active[v]++;
+                }
+            }
+        }
+        for (int i : globalIds) {
+            marks[i] = -1;
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getNumLocal() {
+        return numLocal;
+    }
+
+    public int getNumGhosts() {
+        return globalIds.length - numLocal;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Encounters of the agents of this partition
+     *
+     * @return encounters long
+     */
+    public long getNumEncounters() {
+        return encounters;
+    }
+
+    /**
+     * Number of agents of this partition with each opinion
+     *
+     * @return counts long[]
+     */
+    public long[] getLocalOpinionCounts() {
+        return localCounts.clone();
+    }
+
+    /**
+     * Ids of the agents of this partition, in the order of
+     * <code>getOpinion</code> and <code>getContext</code>
+     *
+     * @return ids int[]
+     */
+    public int[] getAgents() {
+        return Arrays.copyOf(globalIds, numLocal);
+    }
+
+    public int getOpinion(int localId) {
+        return opinion[localId];
+    }
+
+    public int getContext(int localId) {
+        return context[localId];
+    }
+
+    /**
+     * Asks the run to stop, all the partitions stop after the same step
+     */
+    public void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Runs the partition, with the other partitions of the run, until
+     * consensus, the step limit or a stop request
+     *
+     * @param exchange communication with the other partitions
+     * @return consensus true if consensus was reached
+     * @throws IOException if the exchange with the other partitions failed
+     * @throws InterruptedException
+     */
+    public boolean run(BoundaryExchange exchange) throws IOException, InterruptedException {
+        changed = new boolean[numLocal];
+        changedAgents = new int[16];
+        globalCounts = new long[Choices.NUM_OPINIONS];
+        //two sets of batches, the receivers may still read the batches of the previous step
+        BoundaryBatch[][] batches = new BoundaryBatch[2][numPartitions];
+        for (int q = 0; q < numPartitions; q++) {
+            batches[0][q] = new BoundaryBatch(Choices.NUM_OPINIONS);
+            batches[1][q] = new BoundaryBatch(Choices.NUM_OPINIONS);
+        }
+        //the first exchange only shares the opinion counts
+        boolean stop = exchange(exchange, batches[(int) (steps & 1)]);
+        while (!stop && !consensusReached() && steps < STEP_LIMIT) {
+            step();
+            steps++;
+            stop = exchange(exchange, batches[(int) (steps & 1)]);
+        }
+        return consensusReached();
+    }
+
+    /**
+     * Sends the agents that changed, applies the updates of the other
+     * partitions to the ghosts and sums the opinion counts
+     *
+     * @return stop true if a partition was asked to stop
+     */
+    private boolean exchange(BoundaryExchange exchange, BoundaryBatch[] outgoing)
+            throws IOException, InterruptedException {
+        boolean stop = stopRequested;
+        for (BoundaryBatch batch : outgoing) {
+            batch.reset(localCounts, stop);
+        }
+        Arrays.sort(changedAgents, 0, numChanged);
+        for (int c = 0; c < numChanged; c++) {
+            int v = changedAgents[c];
+            changed[v] = false;
+            for (int k = ghostOffsets[v]; k < ghostOffsets[v + 1]; k++) {
+                outgoing[ghostedBy[k]].add(globalIds[v], opinion[v], context[v]);
+            }
+        }
+        numChanged = 0;
+
+        BoundaryBatch[] incoming = exchange.exchange(id, outgoing);
+        System.arraycopy(localCounts, 0, globalCounts, 0, globalCounts.length);
+        for (int q = 0; q < numPartitions; q++) {
+            if (q == id) {
+                continue;
+            }
+            BoundaryBatch batch = incoming[q];
+            for (int op = 0; op < globalCounts.length; op++) {
+                globalCounts[op] += batch.getOpinionCount(op);
+            }
+            stop |= batch.isStop();
+            for (int k = 0; k < batch.size(); k++) {
+                int g = Arrays.binarySearch(globalIds, numLocal, globalIds.length, batch.getAgent(k));
+                opinion[g] = batch.getOpinion(k);
+                int next = batch.getContext(k);
+                if (next != context[g]) {
+                    moveGhost(g, context[g], next);
+                }
+            }
+        }
+        return stop;
+    }
+
+    private boolean consensusReached() {
+        for (long c : globalCounts) {
+            if (c / (population * 1.0) >= consensusRequired) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void step() {
+        RandomStream rnd = random;
+        for (int x = numLocal - 1; x > 0; x--) {
+            int y = rnd.nextInt(x + 1);
+            int t = order[x];
+            order[x] = order[y];
+            order[y] = t;
+        }
+        for (int k = 0; k < numLocal; k++) {
+            stepAgent(order[k]);
+        }
+    }
+
+    /**
+     * An encounter with a random active neighbour, local or ghost, followed
+     * by the context switching draw
+     */
+    private void stepAgent(int v) {
+        RandomStream rnd = random;
+        int c = context[v];
+        if (active[v] > 0) {
+            int target = rnd.nextInt(active[v]);
+            int[] row = offsets[c];
+            int[] adj = neighbors[c];
+            for (int k = row[v]; k < row[v + 1]; k++) {
+                int j = adj[k];
+                if (context[j] == c && target-- == 0) {
+                    encounter(v, opinion[j]);
+                    encounters++;
+                    break;
+                }
+            }
+        }
+        if (rnd.nextDouble() < switching[c] && switching.length > 1) {
+            int next;
+            if (transitionTables != null) {
+                if (transitionTables[c] == null) {
+                    return;
+                }
+                next = transitionTables[c].sample(rnd.nextDouble());
+            } else {
+                next = rnd.nextInt(switching.length - 1);
+                if (next >= c) {
+                    next++;
+                }
+            }
+            move(v, c, next);
+        }
+    }
+
+    private void encounter(int v, int other) {
+        int base = v * Choices.NUM_OPINIONS;
+        int seen = ++memory[base + other];
+        int current = opinion[v];
+        if (other != current && seen > memory[base + current]) {
+            opinion[v] = other;
+            localCounts[current]--;
+            localCounts[other]++;
+            markChanged(v);
+        }
+    }
+
+    /**
+     * Moves a local agent to another context, the active neighbour counts of
+     * the local agents are updated at once, the ghosts of the agent with the
+     * exchange
+     */
+    private void move(int v, int from, int to) {
+        int[] row = offsets[from];
+        int[] adj = neighbors[from];
+        for (int k = row[v]; k < row[v + 1]; k++) {
+            int j = adj[k];
+            if (j != v && j < numLocal && context[j] == from) {
+                active[j]--;
+            }
+        }
+        context[v] = to;
+        row = offsets[to];
+        adj = neighbors[to];
+        int count = 0;
+        for (int k = row[v]; k < row[v + 1]; k++) {
+            int j = adj[k];
+            if (context[j] == to) {
+                count++;
+                if (j != v && j < numLocal) {
+                    active[j]++;
+                }
+            }
+        }
+        active[v] = count;
+        markChanged(v);
+    }
+
+    /**
+     * Moves a ghost to the context its agent moved to, updating the active
+     * neighbour counts of the local agents linked to it
+     */
+    private void moveGhost(int g, int from, int to) {
+        int[] row = offsets[from];
+        int[] adj = neighbors[from];
+        for (int k = row[g]; k < row[g + 1]; k++) {
+            if (context[adj[k]] == from) {
+                active[adj[k]]--;
+            }
+        }
+        context[g] = to;
+        row = offsets[to];
+        adj = neighbors[to];
+        for (int k = row[g]; k < row[g + 1]; k++) {
+            if (context[adj[k]] == to) {
+                active[adj[k]]++;
+            }
+        }
+    }
+
+    /**
+     * Records that a boundary agent changed during the step
+     */
+    private void markChanged(int v) {
+        if (!changed[v] && ghostOffsets[v + 1] > ghostOffsets[v]) {
+            changed[v] = true;
+            if (numChanged == changedAgents.length) {
+                changedAgents = Arrays.copyOf(changedAgents, numChanged * 2);
+            }
+            changedAgents[numChanged++] = v;
+        }
+    }
+}
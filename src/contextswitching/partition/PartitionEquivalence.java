@@ -0,0 +1,213 @@
+package contextswitching.partition;
+
+import contextswitching.ContextSwitchingModel;
+import contextswitching.LockstepEngine;
+import contextswitching.ModelConfiguration;
+import contextswitching.offheap.OffHeapModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Checks that the partitions of a run follow the model exactly, whatever
+ * runs them
+ *
+ * for each of a number of initialized models, a run with a single partition
+ * is compared with a <code>LockstepEngine</code> replicate with the same
+ * seed: both draw the same random numbers, so the steps, the encounters and
+ * the final opinion counts must be the same. Then a run with several
+ * partitions, loaded from the network files, is run in process and a copy
+ * of its partitions, serialized as a <code>PartitionTask</code> sends them
+ * to a node, is run in threads exchanging through sockets and an
+ * <code>ExchangeHub</code>: the state of every agent at the end must be the
+ * same in both. The check is made with uniform context destinations and
+ * with a context transition matrix.
+ *
+ * usage: PartitionEquivalence [groups] [partitions] [seed]
+ *
+ * @author Davide Nunes
+ */
+public class PartitionEquivalence {
+
+    private static final int GROUPS = 5;
+    private static final int PARTITIONS = 4;
+    private static final long TIMEOUT = 60000;
+
+    public static void main(String[] args) throws Exception {
+        int groups = args.length > 0 ? Integer.parseInt(args[0]) : GROUPS;
+        int numPartitions = args.length > 1 ? Integer.parseInt(args[1]) : PARTITIONS;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1L;
+
+        File[] networks = new File[]{
+            new File("NetworkFiles/barabasi_500.np"),
+            new File("NetworkFiles/regular_500.np"),
+            new File("NetworkFiles/ws_500.np")
+        };
+        ModelConfiguration uniform = new ModelConfiguration(500, 3, 0.7,
+                new double[]{0.2, 0.1, 0.05}, networks);
+        ModelConfiguration transitions = new ModelConfiguration(500, 3, 0.7,
+                new double[]{0.2, 0.1, 0.05}, networks);
+        transitions.setContextTransitions(new double[][]{
+            {0, 3, 1},
+            {1, 0, 0},
+            {2, 1, 0}
+        });
+
+        int mismatches = 0;
+        mismatches += compareWithLockstep("uniform", uniform, groups, seed);
+        mismatches += compareWithLockstep("transitions", transitions, groups, seed);
+        mismatches += compareExchanges("uniform", uniform, groups, numPartitions, seed);
+        mismatches += compareExchanges("transitions", transitions, groups, numPartitions, seed);
+        System.out.println(mismatches == 0 ? "PASS: the partitioned runs match"
+                : "FAIL: " + mismatches + " partitioned runs differ");
+    }
+
+    /**
+     * Runs each group with a single partition and as a lockstep replicate
+     *
+     * @return number of runs that differ
+     */
+    private static int compareWithLockstep(String name, ModelConfiguration config, int groups, long seed)
+            throws IOException, InterruptedException {
+        int mismatches = 0;
+        for (int g = 0; g < groups; g++) {
+            long runSeed = seed * 1000003L + g;
+            ContextSwitchingModel model = initialModel(config, seed + g);
+            LockstepEngine engine = new LockstepEngine(model, new long[]{runSeed});
+            engine.run();
+            PartitionedRun run = new PartitionedRun(new OffHeapModel(model, runSeed), 1, runSeed);
+            run.runInProcess();
+            long[] counts = run.getOpinionCounts();
+            int[] expected = engine.getOpinionCounts(0);
+            boolean same = run.getSteps() == engine.getSteps(0)
+                    && run.getNumEncounters() == engine.getNumEncounters(0);
+            for (int op = 0; op < counts.length; op++) {
+                same &= counts[op] == expected[op];
+            }
+            if (!same) {
+                mismatches++;
+                System.out.println(name + " group " + g + ": lockstep " + engine.getSteps(0) + " steps "
+                        + engine.getNumEncounters(0) + " encounters, partition " + run.getSteps() + " steps "
+                        + run.getNumEncounters() + " encounters");
+            }
+        }
+        System.out.printf("%-12s single partition vs lockstep: %d runs, %d mismatches%n", name, groups, mismatches);
+        return mismatches;
+    }
+
+    /**
+     * Runs the partitions of each group in process and through sockets
+     *
+     * @return number of runs that differ
+     */
+    private static int compareExchanges(String name, ModelConfiguration config, int groups, int numPartitions,
+            long seed) throws Exception {
+        int mismatches = 0;
+        long cut = 0;
+        for (int g = 0; g < groups; g++) {
+            long runSeed = seed * 1000003L + g;
+            PartitionedRun run = new PartitionedRun(new OffHeapModel(config, seed + g), numPartitions, runSeed);
+            cut += run.getCutEdges();
+            Partition[] sent = new Partition[numPartitions];
+            for (int p = 0; p < numPartitions; p++) {
+                sent[p] = copy(run.getPartitions()[p]);
+            }
+            run.runInProcess();
+            runOverSockets(sent);
+            boolean same = true;
+            for (int p = 0; p < numPartitions; p++) {
+                same &= sameState(run.getPartitions()[p], sent[p]);
+            }
+            if (!same) {
+                mismatches++;
+                System.out.println(name + " group " + g + ": the partitions run through sockets differ");
+            }
+        }
+        System.out.printf("%-12s %d partitions in process vs sockets: %d runs, %d mismatches, %.1f edges cut%n",
+                name, numPartitions, groups, mismatches, cut / (double) groups);
+        return mismatches;
+    }
+
+    private static boolean sameState(Partition a, Partition b) {
+        if (a.getSteps() != b.getSteps() || a.getNumEncounters() != b.getNumEncounters()
+                || a.getNumLocal() != b.getNumLocal()) {
+            return false;
+        }
+        for (int v = 0; v < a.getNumLocal(); v++) {
+            if (a.getOpinion(v) != b.getOpinion(v) || a.getContext(v) != b.getContext(v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the partitions in threads of this process, each connected to a
+     * hub with a <code>SocketExchange</code> as a node would
+     */
+    private static void runOverSockets(final Partition[] partitions) throws IOException, InterruptedException {
+        final ExchangeHub hub = new ExchangeHub(0, partitions.length, TIMEOUT);
+        final Exception[] failures = new Exception[partitions.length];
+        try {
+            hub.start();
+            Thread[] threads = new Thread[partitions.length];
+            for (int p = 0; p < partitions.length; p++) {
+                final int index = p;
+                threads[p] = new Thread("socket-partition-" + p) {
+                    @Override
+                    public void run() {
+                        SocketExchange exchange = null;
+                        try {
+                            exchange = new SocketExchange("localhost", hub.getPort(), index, partitions.length);
+                            partitions[index].run(exchange);
+                        } catch (Exception e) {
+                            failures[index] = e;
+                        } finally {
+                            if (exchange != null) {
+                                exchange.close();
+                            }
+                        }
+                    }
+                };
+                threads[p].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        } finally {
+            hub.close();
+        }
+        for (Exception e : failures) {
+            if (e != null) {
+                throw new IOException("Partition failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copy of a partition through serialization
+     */
+    private static Partition copy(Partition partition) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(partition);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (Partition) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ContextSwitchingModel initialModel(ModelConfiguration config, long seed) {
+        ContextSwitchingModel model = new ContextSwitchingModel(seed);
+        model.configureModel(config);
+        model.initializeModel();
+        model.setVerbose(false);
+        return model;
+    }
+}
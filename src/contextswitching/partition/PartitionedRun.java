@@ -0,0 +1,134 @@
+package contextswitching.partition;
+
+import contextswitching.Choices;
+import contextswitching.offheap.OffHeapModel;
+import java.io.IOException;
+
+/**
+ * A run of a model split in partitions that step their agents in parallel
+ * (see <code>Partition</code>)
+ *
+ * the agents are assigned to the partitions by an
+ * <code>EdgeCutPartitioner</code>. The networks and the initial state are
+ * taken from an <code>OffHeapModel</code>, loaded from the network files
+ * with <code>OffHeapModel(config, seed)</code>, so the MASON model, whose
+ * agents and networks must fit in the heap of the client, is never built:
+ * besides the off heap arrays of the model, the client holds a few ints per
+ * agent and the partitions. <code>runInProcess</code> runs each
+ * partition in a thread of this process with an
+ * <code>InProcessExchange</code>, the partitions can also be sent to the
+ * nodes of a grid (see <code>contextswitching.grid.PartitionTask</code>).
+ * Whatever runs them, the partitions of a run with the same seed produce the
+ * same results, and a run with a single partition is the run of a
+ * <code>LockstepEngine</code> replicate with the seed of the run (both are
+ * checked by <code>PartitionEquivalence</code>).
+ *
+ * @author Davide Nunes
+ */
+public class PartitionedRun {
+
+    private int[] assignment;
+    private long cutEdges;
+    private Partition[] partitions;
+
+    /**
+     * Partitions a model
+     *
+     * @param model the model, the partitions start from its state
+     * @param numPartitions number of partitions
+     * @param seed seed of the run
+     */
+    public PartitionedRun(OffHeapModel model, int numPartitions, long seed) {
+        EdgeCutPartitioner partitioner = new EdgeCutPartitioner(model.getTopology());
+        assignment = partitioner.partition(numPartitions);
+        cutEdges = partitioner.getCutEdges(assignment);
+        partitions = Partition.create(model, assignment, numPartitions, seed);
+    }
+
+    public int[] getAssignment() {
+        return assignment;
+    }
+
+    /**
+     * Edges between agents of different partitions, over all the layers
+     *
+     * @return cut long
+     */
+    public long getCutEdges() {
+        return cutEdges;
+    }
+
+    public Partition[] getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Runs the partitions in threads of this process
+     *
+     * @return consensus true if consensus was reached
+     * @throws IOException if a partition failed
+     * @throws InterruptedException
+     */
+    public boolean runInProcess() throws IOException, InterruptedException {
+        final InProcessExchange exchange = new InProcessExchange(partitions.length);
+        final Exception[] failures = new Exception[partitions.length];
+        final boolean[] consensus = new boolean[partitions.length];
+        Thread[] threads = new Thread[partitions.length];
+        for (int p = 0; p < partitions.length; p++) {
+            final int index = p;
+            threads[p] = new Thread("partition-" + p) {
+                @Override
+                public void run() {
+                    try {
+                        consensus[index] = partitions[index].run(exchange);
+                    } catch (Exception e) {
+                        failures[index] = e;
+                        exchange.abort();
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Exception e : failures) {
+            if (e != null) {
+                throw new IOException("Partition failed: " + e.getMessage());
+            }
+        }
+        return consensus[0];
+    }
+
+    /**
+     * Asks the partitions to stop after the current step
+     */
+    public void requestStop() {
+        for (Partition partition : partitions) {
+            partition.requestStop();
+        }
+    }
+
+    public long getSteps() {
+        return partitions[0].getSteps();
+    }
+
+    public long getNumEncounters() {
+        long encounters = 0;
+        for (Partition partition : partitions) {
+            encounters += partition.getNumEncounters();
+        }
+        return encounters;
+    }
+
+    public long[] getOpinionCounts() {
+        long[] counts = new long[Choices.NUM_OPINIONS];
+        for (Partition partition : partitions) {
+            long[] local = partition.getLocalOpinionCounts();
+            for (int op = 0; op < counts.length; op++) {
+                counts[op] += local[op];
+            }
+        }
+        return counts;
+    }
+}
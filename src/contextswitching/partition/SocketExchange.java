@@ -0,0 +1,82 @@
+package contextswitching.partition;
+
+import contextswitching.Choices;
+import contextswitching.io.CompactInput;
+import contextswitching.io.CompactOutput;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Exchange of a partition running on a node with the other partitions of
+ * the run, through the <code>ExchangeHub</code> of the client
+ *
+ * at each step the batches of the partition are written to the hub, which
+ * answers with the batches of the other partitions once all of them sent
+ * theirs. The batches received are decoded into the same objects at every
+ * step.
+ *
+ * @author Davide Nunes
+ */
+public class SocketExchange implements BoundaryExchange {
+
+    private Socket socket;
+    private DataOutputStream data;
+    private CompactOutput out;
+    private CompactInput in;
+    private BoundaryBatch[] incoming;
+
+    /**
+     * Connects to the hub
+     *
+     * @param host host of the hub
+     * @param port port of the hub
+     * @param partition index of the partition
+     * @param numPartitions number of partitions of the run
+     * @throws IOException if the hub can not be reached
+     */
+    public SocketExchange(String host, int port, int partition, int numPartitions) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        data = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        out = new CompactOutput(data);
+        in = new CompactInput(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)));
+        out.writeVarInt(partition);
+        data.flush();
+        incoming = new BoundaryBatch[numPartitions];
+        for (int q = 0; q < numPartitions; q++) {
+            if (q != partition) {
+                incoming[q] = new BoundaryBatch(Choices.NUM_OPINIONS);
+            }
+        }
+    }
+
+    public BoundaryBatch[] exchange(int partition, BoundaryBatch[] outgoing) throws IOException {
+        for (int q = 0; q < outgoing.length; q++) {
+            if (q != partition) {
+                outgoing[q].write(out);
+            }
+        }
+        data.flush();
+        for (int q = 0; q < incoming.length; q++) {
+            if (q != partition) {
+                incoming[q].read(in);
+            }
+        }
+        return incoming;
+    }
+
+    /**
+     * Closes the connection, the hub takes it as the end of the partition
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //nothing left to do with the connection
+        }
+    }
+}